@@ -0,0 +1,50 @@
+package model.Spreadsheet.src.controller;
+
+import java.nio.file.Path;
+
+/**
+ * DelimitedFormat is a text format a spreadsheet can be saved in. Every
+ * line of the file is a row of the spreadsheet and every field on a line is
+ * a column, so the first field of the first line is cell A0.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public enum DelimitedFormat {
+    /** Comma separated values. */
+    CSV(','),
+    /** Tab separated values. */
+    TSV('\t');
+
+    /** The character between two fields. */
+    private final char myDelimiter;
+
+    /**
+     * Creates a format.
+     * @param theDelimiter The character between two fields.
+     */
+    DelimitedFormat(final char theDelimiter) {
+        myDelimiter = theDelimiter;
+    }
+
+    /**
+     * Getter for the delimiter.
+     * @return Returns the character between two fields.
+     */
+    public char getDelimiter() {
+        return myDelimiter;
+    }
+
+    /**
+     * Picks the format from a file's extension: ".tsv" and ".tab" files are
+     * tab separated, everything else is comma separated.
+     * @param theFile The file.
+     * @return Returns the format of the file.
+     */
+    public static DelimitedFormat forFile(final Path theFile) {
+        String name = theFile.getFileName().toString().toLowerCase();
+        if (name.endsWith(".tsv") || name.endsWith(".tab")) {
+            return TSV;
+        }
+        return CSV;
+    }
+}
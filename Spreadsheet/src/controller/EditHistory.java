@@ -0,0 +1,559 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.Cell;
+import model.Spreadsheet.src.model.CompiledFormula;
+import model.Spreadsheet.src.model.DependencyGraph;
+import model.Spreadsheet.src.model.ExpressionTable;
+import model.Spreadsheet.src.model.ExpressionTreeNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * EditHistory remembers the edits made to a spreadsheet so they can be
+ * undone and redone. A step is one edit, or one batch of edits, and holds
+ * only what the edit changed: the formulas of the edited cells before and
+ * after, and the values of the cells it recalculated from before it did.
+ * Formulas are immutable once set, so a step keeps the very same strings,
+ * expression trees and compiled programs the cells had instead of copying
+ * them; it holds its own references to their shared subexpressions in the
+ * ExpressionTable, which it gives back when it is dropped.
+ * Undoing puts the old formulas back and, if nothing has been left
+ * unfinished by a cancelled recalculation since, the old values of the
+ * recalculated cells too, so nothing is evaluated at all. Otherwise the
+ * edited cells and their dependents are recalculated, like after any
+ * edit. Either way the values the cells had are kept for redoing.
+ * The steps are kept in a ring buffer of a fixed number of steps and a
+ * budget of bytes, estimated from the sizes of the formulas and values.
+ * The oldest steps are dropped first to stay within both; a single step
+ * bigger than the whole budget, like a large import, can't be undone and
+ * clears the history.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+final class EditHistory {
+    /** The default number of steps kept. */
+    static final int DEFAULT_STEPS = 100;
+    /** The default budget, in bytes. */
+    static final long DEFAULT_BUDGET = 64L << 20;
+    /** The estimated bytes of a step besides its formulas and values. */
+    private static final int STEP_BYTES = 96;
+    /** The estimated bytes of a recorded formula besides its text, tree and program. */
+    private static final int FORMULA_BYTES = 48;
+    /** The estimated bytes of an expression tree, per char of the formula. */
+    private static final int TREE_BYTES_PER_CHAR = 24;
+    /** The estimated bytes of a compiled formula besides its code and edges. */
+    private static final int PROGRAM_BYTES = 96;
+    /** The estimated bytes of a compiled formula's code, per char of the formula. */
+    private static final int PROGRAM_BYTES_PER_CHAR = 4;
+    /** The bytes of a recorded value: the id, the value, the double value and the flags. */
+    private static final int VALUE_BYTES = 21;
+    /** The flag of a recorded value that is a double. */
+    private static final byte IS_DOUBLE = 1;
+    /** The flag of a recorded value of a cell in a cycle. */
+    private static final byte IN_CYCLE = 2;
+
+    /** Holds the shared subexpressions the recorded programs push. */
+    private final ExpressionTable myExpressions;
+    /** The steps, oldest first starting at myFirst and wrapping around. */
+    private Step[] mySteps = new Step[DEFAULT_STEPS];
+    /** The index of the oldest step in mySteps. */
+    private int myFirst;
+    /** The number of steps kept. */
+    private int myCount;
+    /** The number of steps, counted from the oldest, that are done rather than undone. */
+    private int myDone;
+    /** The estimated bytes of the steps kept. */
+    private long myBytes;
+    /** The most bytes the steps may take. */
+    private long myBudget = DEFAULT_BUDGET;
+    /** The step the edits being made are recorded in, or null. */
+    private Step myOpen;
+    /** True if the open step went over the budget and was given up. */
+    private boolean myOverflow;
+    /** True while a step is undone or redone, which is not recorded itself. */
+    private boolean myPaused;
+
+    /**
+     * Creates an empty history.
+     * @param theExpressions The table the recorded programs' shared subexpressions are in.
+     */
+    EditHistory(final ExpressionTable theExpressions) {
+        myExpressions = theExpressions;
+    }
+
+    /**
+     * Sets how much history is kept, forgetting what there is.
+     * @param theSteps The most steps kept, at least 1.
+     * @param theBudget The most bytes the steps may take.
+     */
+    void setLimits(final int theSteps, final long theBudget) {
+        if (theSteps < 1) {
+            throw new IllegalArgumentException("The history has to keep at least one step");
+        }
+        clear();
+        mySteps = new Step[theSteps];
+        myBudget = theBudget;
+    }
+
+    /**
+     * Forgets every step.
+     */
+    void clear() {
+        while (myCount > 0) {
+            dropNewest();
+        }
+        myFirst = 0;
+        myDone = 0;
+        if (myOpen != null) {
+            release(myOpen);
+            myOpen = null;
+        }
+        myOverflow = false;
+    }
+
+    /**
+     * Tells if edits are being recorded, which they aren't while a step is
+     * undone or redone.
+     * @return Returns true if formula changes should be recorded.
+     */
+    boolean isRecording() {
+        return !myPaused;
+    }
+
+    /**
+     * Stops or resumes recording while a step is undone or redone.
+     * @param isPaused True to stop recording.
+     */
+    void setPaused(final boolean isPaused) {
+        myPaused = isPaused;
+    }
+
+    /**
+     * Records a cell's formula change in the open step, opening one if
+     * needed. Called before the new formula is installed, so the cell still
+     * has the old one.
+     * @param theCell The cell.
+     * @param theFormula The new formula in the form stored on the cell, or null.
+     * @param theInOrder The new formula as typed, or null.
+     * @param theTree The new expression tree, or null.
+     * @param theCompiled The new compiled formula, or null.
+     */
+    void formulaChanged(final Cell theCell, final String theFormula, final String theInOrder,
+                        final ExpressionTreeNode theTree, final CompiledFormula theCompiled) {
+        if (myOverflow) {
+            return;
+        }
+        if (myOpen == null) {
+            myOpen = new Step();
+        }
+        FormulaState before = new FormulaState(theCell.getFormula(), theCell.getInOrderFormula(),
+                theCell.getExpressionTree(), theCell.getCompiledFormula());
+        FormulaState after = new FormulaState(theFormula, theInOrder, theTree, theCompiled);
+        myExpressions.retain(before.myCompiled);
+        myExpressions.retain(after.myCompiled);
+        myOpen.add(theCell.getId(), before, after);
+        if (myOpen.myBytes > myBudget) {
+            release(myOpen);
+            myOpen = null;
+            myOverflow = true;
+        }
+    }
+
+    /**
+     * Ends the open step and keeps it as the newest done step, dropping
+     * the steps that were undone. Called right before the step's edits are
+     * recalculated.
+     * @param theGraph The graph of the spreadsheet.
+     * @param theAffectedIds The ids of the cells the recalculation will
+     *                       evaluate, the edited cells and their dependents.
+     * @param isSettled True if every value is settled, so the values of the
+     *                  affected cells are the ones to go back to.
+     */
+    void closeStep(final DependencyGraph theGraph, final int[] theAffectedIds, final boolean isSettled) {
+        if (myOverflow) {
+            myOverflow = false;
+            clear();
+            return;
+        }
+        Step step = myOpen;
+        if (step == null) {
+            return;
+        }
+        myOpen = null;
+        while (myCount > myDone) {
+            dropNewest();
+        }
+        if (myCount == mySteps.length) {
+            dropOldest();
+        }
+        step.myAffectedIds = theAffectedIds;
+        if (isSettled && step.myBytes + (long) VALUE_BYTES * theAffectedIds.length <= myBudget) {
+            step.setValues(capture(theGraph, theAffectedIds));
+        }
+        mySteps[(myFirst + myCount) % mySteps.length] = step;
+        myCount++;
+        myDone++;
+        myBytes += step.myBytes;
+        if (step.myBytes > myBudget) {
+            clear();
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * Tells if there is a step to undo.
+     * @return Returns true if undo() would do something.
+     */
+    boolean canUndo() {
+        return myDone > 0;
+    }
+
+    /**
+     * Tells if there is a step to redo.
+     * @return Returns true if redo() would do something.
+     */
+    boolean canRedo() {
+        return myDone < myCount;
+    }
+
+    /**
+     * Takes the newest done step for undoing it.
+     * @return Returns the step, or null if there is none.
+     */
+    Step undoStep() {
+        if (myDone == 0) {
+            return null;
+        }
+        myDone--;
+        return mySteps[(myFirst + myDone) % mySteps.length];
+    }
+
+    /**
+     * Takes the oldest undone step for redoing it.
+     * @return Returns the step, or null if there is none.
+     */
+    Step redoStep() {
+        if (myDone == myCount) {
+            return null;
+        }
+        myDone++;
+        return mySteps[(myFirst + myDone - 1) % mySteps.length];
+    }
+
+    /**
+     * Keeps the values the affected cells of a step had before it was
+     * undone or redone, for going back the other way. They are only kept
+     * if they fit in the budget; other steps aren't dropped for them.
+     * @param theStep The step being undone or redone.
+     * @param theValues The values, or null if they weren't settled.
+     */
+    void replaceValues(final Step theStep, final Values theValues) {
+        myBytes -= theStep.myBytes;
+        theStep.setValues(null);
+        if (theValues != null && myBytes + theStep.myBytes
+                + (long) VALUE_BYTES * theStep.myAffectedIds.length <= myBudget) {
+            theStep.setValues(theValues);
+        }
+        myBytes += theStep.myBytes;
+    }
+
+    /**
+     * Drops the values every step kept, so undoing or redoing any of them
+     * recalculates instead. Used when values change without an edit, like
+     * when a cell on another sheet that a formula reads changes.
+     */
+    void forgetValues() {
+        for (int i = 0; i < myCount; i++) {
+            Step step = mySteps[(myFirst + i) % mySteps.length];
+            myBytes -= step.myBytes;
+            step.setValues(null);
+            myBytes += step.myBytes;
+        }
+    }
+
+    /**
+     * Records the values of some cells.
+     * @param theGraph The graph holding the cells.
+     * @param theIds The ids of the cells.
+     * @return Returns their values.
+     */
+    static Values capture(final DependencyGraph theGraph, final int[] theIds) {
+        Values values = new Values(theIds.length);
+        for (int i = 0; i < theIds.length; i++) {
+            Cell cell = theGraph.getCell(theIds[i]);
+            values.myValues[i] = cell.getValue();
+            values.myDoubleValues[i] = cell.getDoubleValue();
+            values.myFlags[i] = (byte) ((cell.isDouble() ? IS_DOUBLE : 0) | (cell.isInCycle() ? IN_CYCLE : 0));
+        }
+        return values;
+    }
+
+    /**
+     * Puts back the values a step recorded for its affected cells.
+     * @param theGraph The graph holding the cells.
+     * @param theStep The step, which has values.
+     * @param theEditedIds The sorted ids of the cells whose formula changed,
+     *                     reported even if their value didn't.
+     * @return Returns the cells whose value or cycle state changed, and the edited cells.
+     */
+    static List<Cell> restore(final DependencyGraph theGraph, final Step theStep, final int[] theEditedIds) {
+        List<Cell> changed = new ArrayList<>();
+        Values values = theStep.myValues;
+        for (int i = 0; i < theStep.myAffectedIds.length; i++) {
+            Cell cell = theGraph.getCell(theStep.myAffectedIds[i]);
+            boolean isDouble = (values.myFlags[i] & IS_DOUBLE) != 0;
+            boolean isInCycle = (values.myFlags[i] & IN_CYCLE) != 0;
+            if (cell.getValue() != values.myValues[i] || cell.isDouble() != isDouble
+                    || cell.isInCycle() != isInCycle
+                    || Double.doubleToLongBits(cell.getDoubleValue()) != Double.doubleToLongBits(values.myDoubleValues[i])) {
+                cell.restoreValue(values.myValues[i], values.myDoubleValues[i], isDouble, isInCycle);
+                theGraph.valueChanged(cell);
+                changed.add(cell);
+            } else if (Arrays.binarySearch(theEditedIds, cell.getId()) >= 0) {
+                // a formula that came or went counts in COUNT even with the same value
+                theGraph.valueChanged(cell);
+                changed.add(cell);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Drops steps until the history is within its budget: the oldest done
+     * steps first, then the undone steps farthest from being redone.
+     */
+    private void trim() {
+        while (myBytes > myBudget && myCount > 0) {
+            if (myDone > 0) {
+                dropOldest();
+            } else {
+                dropNewest();
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest step.
+     */
+    private void dropOldest() {
+        Step step = mySteps[myFirst];
+        mySteps[myFirst] = null;
+        myFirst = (myFirst + 1) % mySteps.length;
+        myCount--;
+        if (myDone > 0) {
+            myDone--;
+        }
+        myBytes -= step.myBytes;
+        release(step);
+    }
+
+    /**
+     * Drops the newest step.
+     */
+    private void dropNewest() {
+        int index = (myFirst + myCount - 1) % mySteps.length;
+        Step step = mySteps[index];
+        mySteps[index] = null;
+        myCount--;
+        myDone = Math.min(myDone, myCount);
+        myBytes -= step.myBytes;
+        release(step);
+    }
+
+    /**
+     * Gives back the references a step holds to shared subexpressions.
+     * @param theStep The step.
+     */
+    private void release(final Step theStep) {
+        for (int i = 0; i < theStep.myChangeCount; i++) {
+            myExpressions.release(theStep.myBefore[i].myCompiled);
+            myExpressions.release(theStep.myAfter[i].myCompiled);
+        }
+    }
+
+    /**
+     * A cell's formula in all the forms the cell keeps it in.
+     */
+    static final class FormulaState {
+        /** The formula in the form stored on the cell, or null. */
+        final String myFormula;
+        /** The formula as typed, or null. */
+        final String myInOrder;
+        /** The expression tree, or null. */
+        final ExpressionTreeNode myTree;
+        /** The compiled formula, or null. */
+        final CompiledFormula myCompiled;
+
+        /**
+         * Creates a formula state.
+         * @param theFormula The formula in the form stored on the cell.
+         * @param theInOrder The formula as typed.
+         * @param theTree The expression tree.
+         * @param theCompiled The compiled formula.
+         */
+        FormulaState(final String theFormula, final String theInOrder, final ExpressionTreeNode theTree,
+                     final CompiledFormula theCompiled) {
+            myFormula = theFormula;
+            myInOrder = theInOrder;
+            myTree = theTree;
+            myCompiled = theCompiled;
+        }
+
+        /**
+         * Estimates how many bytes the formula keeps alive.
+         * @return Returns the estimate.
+         */
+        long bytes() {
+            long bytes = FORMULA_BYTES + textBytes(myFormula);
+            if (myInOrder != myFormula) {
+                bytes += textBytes(myInOrder);
+            }
+            if (myTree != null && myInOrder != null) {
+                bytes += (long) TREE_BYTES_PER_CHAR * myInOrder.length();
+            }
+            if (myCompiled != null) {
+                bytes += PROGRAM_BYTES + 4L * (myCompiled.getPrecedents().length + myCompiled.getRanges().length)
+                        + (myInOrder == null ? 0 : (long) PROGRAM_BYTES_PER_CHAR * myInOrder.length());
+            }
+            return bytes;
+        }
+
+        /**
+         * Estimates the bytes of a string.
+         * @param theText The string, may be null.
+         * @return Returns the estimate.
+         */
+        private static long textBytes(final String theText) {
+            return theText == null ? 0 : 40 + theText.length();
+        }
+    }
+
+    /**
+     * The values of a step's affected cells, in the order of their ids.
+     */
+    static final class Values {
+        /** The values, truncated toward 0 for doubles. */
+        final long[] myValues;
+        /** The values as doubles. */
+        final double[] myDoubleValues;
+        /** IS_DOUBLE and IN_CYCLE, per cell. */
+        final byte[] myFlags;
+
+        /**
+         * Creates room for the values of some cells.
+         * @param theCount The number of cells.
+         */
+        Values(final int theCount) {
+            myValues = new long[theCount];
+            myDoubleValues = new double[theCount];
+            myFlags = new byte[theCount];
+        }
+    }
+
+    /**
+     * One undoable edit or batch of edits.
+     */
+    static final class Step {
+        /** The ids of the edited cells, in the order they were edited, possibly with duplicates. */
+        private int[] myCellIds = new int[4];
+        /** The formulas the cells had before each change. */
+        private FormulaState[] myBefore = new FormulaState[4];
+        /** The formulas each change gave the cells. */
+        private FormulaState[] myAfter = new FormulaState[4];
+        /** The number of changes. */
+        private int myChangeCount;
+        /** The ids of the edited cells and their dependents. */
+        private int[] myAffectedIds;
+        /** The values the affected cells have on the other side of the step, or null. */
+        private Values myValues;
+        /** The estimated bytes of the step. */
+        private long myBytes = STEP_BYTES;
+
+        /**
+         * Adds a change.
+         * @param theCellId The id of the changed cell.
+         * @param theBefore Its formula before.
+         * @param theAfter Its formula after.
+         */
+        private void add(final int theCellId, final FormulaState theBefore, final FormulaState theAfter) {
+            if (myChangeCount == myCellIds.length) {
+                myCellIds = Arrays.copyOf(myCellIds, myChangeCount * 2);
+                myBefore = Arrays.copyOf(myBefore, myChangeCount * 2);
+                myAfter = Arrays.copyOf(myAfter, myChangeCount * 2);
+            }
+            myCellIds[myChangeCount] = theCellId;
+            myBefore[myChangeCount] = theBefore;
+            myAfter[myChangeCount] = theAfter;
+            myChangeCount++;
+            myBytes += 12 + theBefore.bytes() + theAfter.bytes();
+        }
+
+        /**
+         * Replaces the recorded values, updating the estimate.
+         * @param theValues The values, or null.
+         */
+        private void setValues(final Values theValues) {
+            if (myValues != null) {
+                myBytes -= (long) VALUE_BYTES * myAffectedIds.length;
+            }
+            myValues = theValues;
+            if (myValues != null) {
+                myBytes += (long) VALUE_BYTES * myAffectedIds.length;
+            }
+        }
+
+        /**
+         * Getter for the number of changes.
+         * @return Returns how many formula changes the step made.
+         */
+        int getChangeCount() {
+            return myChangeCount;
+        }
+
+        /**
+         * Gets the cell of a change.
+         * @param theIndex The index of the change.
+         * @return Returns the id of the changed cell.
+         */
+        int getCellId(final int theIndex) {
+            return myCellIds[theIndex];
+        }
+
+        /**
+         * Gets the formula a cell had before a change.
+         * @param theIndex The index of the change.
+         * @return Returns the formula.
+         */
+        FormulaState getBefore(final int theIndex) {
+            return myBefore[theIndex];
+        }
+
+        /**
+         * Gets the formula a change gave a cell.
+         * @param theIndex The index of the change.
+         * @return Returns the formula.
+         */
+        FormulaState getAfter(final int theIndex) {
+            return myAfter[theIndex];
+        }
+
+        /**
+         * Getter for the affected cells.
+         * @return Returns the ids of the edited cells and their dependents.
+         */
+        int[] getAffectedIds() {
+            return myAffectedIds;
+        }
+
+        /**
+         * Tells if the values on the other side of the step are known.
+         * @return Returns true if they can be put back without recalculating.
+         */
+        boolean hasValues() {
+            return myValues != null;
+        }
+    }
+}
@@ -0,0 +1,758 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.FormulaParseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * EditJournal is an append-only log of the formulas set on a spreadsheet's
+ * cells, so the edits made since the last snapshot survive a crash. Each
+ * edit is one small binary record: the cell's row and column, the formula
+ * as typed in UTF-8, or no formula for a cleared cell, and a CRC-32C of the
+ * lot. A record only says what a cell holds now, so replaying records that
+ * are already in the snapshot changes nothing, and a torn record at the end
+ * of the file, left by a crash in the middle of a write, is recognized by
+ * its checksum and cut off when the journal is opened.
+ * Records are copied into a buffer in memory as the edits are made, which
+ * is all an edit pays for. The buffer goes to the file in one write, and is
+ * forced to the disk with one fsync, according to the SyncPolicy: at the
+ * end of every edit or batch, or every interval on a background thread.
+ * Either way the records of every edit since the last write share that
+ * write and that fsync, and whoever needs its records on disk finds them
+ * there already if another thread got to it first.
+ * Once the file has grown past the compaction threshold, a background
+ * thread rewrites it keeping only the last record of each cell. Edits go
+ * on being appended meanwhile; whatever was appended while the compacted
+ * copy was written is moved over to it before it replaces the file.
+ * Checkpointing with Spreadsheet.checkpoint() saves a snapshot and empties
+ * the journal.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class EditJournal implements Closeable {
+    /**
+     * When the records of edits are forced to the disk.
+     */
+    public enum SyncPolicy {
+        /** At the end of every edit or batch, before it is recalculated. */
+        EVERY_COMMIT,
+        /** Every interval, on a background thread; a crash loses at most the last interval. */
+        INTERVAL,
+        /** Never; the records are written every interval and the operating system forces them. */
+        NEVER
+    }
+
+    /** The first four bytes of a journal, "SJRN". */
+    private static final int MAGIC = 0x534A524E;
+    /** The version of the format. */
+    private static final int VERSION = 1;
+    /** The number of bytes before the first record: the magic and the version. */
+    private static final int HEADER_SIZE = 8;
+    /** The bytes of a record besides its formula: row, column, formula length and checksum. */
+    private static final int RECORD_OVERHEAD = 16;
+    /** The formula length that marks a cleared cell. */
+    private static final int NO_FORMULA = -1;
+    /** The size of the buffers records are read and written through. */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** How many bytes of records are held in memory before they are written anyway. */
+    private static final int WRITE_LIMIT = 1 << 20;
+    /** The default time between background writes, in milliseconds. */
+    public static final long DEFAULT_INTERVAL = 50;
+    /** The default size a journal grows to before it is compacted, in bytes. */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 16L << 20;
+
+    /** The journal file. */
+    private final Path myFile;
+    /** When records are forced to the disk. */
+    private final SyncPolicy myPolicy;
+    /** Runs the interval writes and the compactions, on two threads so a compaction never delays a write. */
+    private final ScheduledExecutorService myBackground;
+    /** Guards the file: writing, forcing, truncating and replacing it. Taken before this. */
+    private final Object myFileLock = new Object();
+    /** The file the records are written to, replaced by compaction; guarded by myFileLock. */
+    private FileChannel myChannel;
+    /** The length of the file, which is where the next write goes; guarded by myFileLock. */
+    private long myLength;
+    /** The length of the file after the last compaction or checkpoint; guarded by myFileLock. */
+    private long myCompactedLength;
+    /** Counts the checkpoints, so a compaction started before one is dropped; guarded by myFileLock. */
+    private int myGeneration;
+    /** True while a compaction is running; guarded by myFileLock. */
+    private boolean myCompacting;
+    /** True once the journal is closed; guarded by myFileLock. */
+    private boolean myClosed;
+    /** The size the file grows to before it is compacted; guarded by myFileLock. */
+    private long myCompactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    /** The number of records appended so far; guarded by this. */
+    private long myAppended;
+    /** The number of records written to the file; guarded by myFileLock. */
+    private long myWritten;
+    /** The number of records forced to the disk; guarded by myFileLock. */
+    private long myForced;
+    /** The records appended since the last write; guarded by this. */
+    private ByteBuffer myPending = ByteBuffer.allocate(BUFFER_SIZE);
+    /** The buffer the last write came from, reused for the next; guarded by myFileLock. */
+    private ByteBuffer mySpare = ByteBuffer.allocate(BUFFER_SIZE);
+    /** Checksums the records as they are appended; guarded by this. */
+    private final CRC32C myChecksum = new CRC32C();
+    /** What went wrong in the background, reported by the next append or commit. */
+    private volatile IOException myFailure;
+
+    /**
+     * Only open() creates journals.
+     * @param theFile The journal file.
+     * @param theChannel The open file, positioned nowhere in particular.
+     * @param theLength The length of the valid part of the file.
+     * @param thePolicy When records are forced to the disk.
+     * @param theInterval The time between background writes, in milliseconds.
+     */
+    private EditJournal(final Path theFile, final FileChannel theChannel, final long theLength,
+                        final SyncPolicy thePolicy, final long theInterval) {
+        myFile = theFile;
+        myChannel = theChannel;
+        myLength = theLength;
+        myCompactedLength = theLength;
+        myPolicy = thePolicy;
+        myBackground = Executors.newScheduledThreadPool(2, theTask -> {
+            Thread thread = new Thread(theTask, "Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (thePolicy != SyncPolicy.EVERY_COMMIT) {
+            myBackground.scheduleWithFixedDelay(this::writeInBackground, theInterval, theInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Opens a journal with the default interval, creating the file if it
+     * doesn't exist.
+     * @param theFile The journal file.
+     * @param thePolicy When records are forced to the disk.
+     * @return Returns the journal.
+     * @throws IOException If the file can't be opened or isn't a journal.
+     */
+    public static EditJournal open(final Path theFile, final SyncPolicy thePolicy) throws IOException {
+        return open(theFile, thePolicy, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Opens a journal, creating the file if it doesn't exist. The records
+     * are checked, and whatever follows the last good one, like a record a
+     * crash cut short, is cut off, so new records go right after it.
+     * @param theFile The journal file.
+     * @param thePolicy When records are forced to the disk.
+     * @param theInterval The time between background writes, in milliseconds,
+     *                    for the policies that write in the background.
+     * @return Returns the journal.
+     * @throws IOException If the file can't be opened or isn't a journal.
+     */
+    public static EditJournal open(final Path theFile, final SyncPolicy thePolicy,
+                                   final long theInterval) throws IOException {
+        FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        try {
+            long length;
+            if (channel.size() == 0) {
+                writeHeader(channel);
+                channel.force(true);
+                length = HEADER_SIZE;
+            } else {
+                checkHeader(channel);
+                RecordReader reader = new RecordReader(channel, channel.size());
+                while (reader.next()) {
+                    continue;
+                }
+                length = reader.getPosition();
+                if (length < channel.size()) {
+                    channel.truncate(length);
+                    channel.force(true);
+                }
+            }
+            return new EditJournal(theFile, channel, length, thePolicy, theInterval);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets how big the file may grow before it is compacted.
+     * @param theThreshold The size in bytes.
+     */
+    public void setCompactionThreshold(final long theThreshold) {
+        synchronized (myFileLock) {
+            myCompactionThreshold = theThreshold;
+        }
+    }
+
+    /**
+     * Gets how big the file is, counting only what has been written.
+     * @return Returns the length of the file in bytes.
+     */
+    public long getLength() {
+        synchronized (myFileLock) {
+            return myLength;
+        }
+    }
+
+    /**
+     * Sets every formula in the journal on the spreadsheet, in the order the
+     * edits were made and in one batch, so the spreadsheet is recalculated
+     * once at the end. Call it before the journal is given to the
+     * spreadsheet with setJournal(), or the replayed edits are journaled again.
+     * A formula that can't be parsed leaves its cell alone; it is counted in
+     * the Result, for the caller to report.
+     * The replay itself can't be undone.
+     * @param theSpreadsheet The spreadsheet, usually just opened from the
+     *                       snapshot the journal was started after.
+     * @return Returns the Result, with the numbers of edits replayed and of
+     *         formulas that couldn't be parsed.
+     * @throws IOException If the file can't be read.
+     */
+    public Result replay(final Spreadsheet theSpreadsheet) throws IOException {
+        flush(false);
+        int replayed = 0;
+        int malformed = 0;
+        synchronized (myFileLock) {
+            RecordReader reader = new RecordReader(myChannel, myLength);
+            theSpreadsheet.beginBatch();
+            try {
+                while (reader.next()) {
+                    try {
+                        theSpreadsheet.replayEdit(reader.getRow(), reader.getColumn(), reader.getFormula());
+                        replayed++;
+                    } catch (FormulaParseException e) {
+                        malformed++;
+                    }
+                }
+            } finally {
+                theSpreadsheet.commitBatch();
+            }
+        }
+        theSpreadsheet.clearHistory();
+        return new Result(replayed, malformed);
+    }
+
+    /**
+     * Appends the record of an edit. It reaches the file with the next
+     * write, by commit() or in the background.
+     * @param theRow The row of the edited cell.
+     * @param theColumn The column of the edited cell.
+     * @param theFormula The formula as typed, or null if the cell was cleared.
+     * @throws UncheckedIOException If an earlier write in the background failed,
+     *                              or the records had to be written and that failed.
+     */
+    void append(final int theRow, final int theColumn, final String theFormula) {
+        checkFailure();
+        byte[] text = theFormula == null ? null : theFormula.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_OVERHEAD + (text == null ? 0 : text.length);
+        boolean full;
+        synchronized (this) {
+            if (myPending.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(myPending.capacity() * 2,
+                        myPending.position() + size));
+                myPending.flip();
+                larger.put(myPending);
+                myPending = larger;
+            }
+            int start = myPending.position();
+            myPending.putInt(theRow).putInt(theColumn).putInt(text == null ? NO_FORMULA : text.length);
+            if (text != null) {
+                myPending.put(text);
+            }
+            myChecksum.reset();
+            myChecksum.update(myPending.array(), start, myPending.position() - start);
+            myPending.putInt((int) myChecksum.getValue());
+            myAppended++;
+            full = myPending.position() >= WRITE_LIMIT;
+        }
+        if (full) {
+            try {
+                flush(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Ends an edit or a batch of edits. With SyncPolicy.EVERY_COMMIT this
+     * waits until its records are on the disk; otherwise the background
+     * thread takes care of them.
+     * @throws UncheckedIOException If the records couldn't be written or
+     *                              an earlier write in the background failed.
+     */
+    void commit() {
+        checkFailure();
+        if (myPolicy == SyncPolicy.EVERY_COMMIT) {
+            try {
+                flush(true);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the records appended so far and forces them to the disk,
+     * whatever the policy.
+     * @throws IOException If the records can't be written.
+     */
+    public void sync() throws IOException {
+        flush(true);
+    }
+
+    /**
+     * Empties the journal, once everything in it is in a snapshot.
+     * Spreadsheet.checkpoint() calls it after saving the snapshot. A
+     * compaction that is running is dropped.
+     * @throws IOException If the file can't be truncated.
+     */
+    void reset() throws IOException {
+        synchronized (myFileLock) {
+            synchronized (this) {
+                myPending.clear();
+                myWritten = myAppended;
+                myForced = myAppended;
+            }
+            myChannel.truncate(HEADER_SIZE);
+            myChannel.force(true);
+            myLength = HEADER_SIZE;
+            myCompactedLength = HEADER_SIZE;
+            myGeneration++;
+        }
+    }
+
+    /**
+     * Writes and forces whatever is left, stops the background thread,
+     * letting a running compaction finish, and closes the file.
+     * @throws IOException If the last records can't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (myFileLock) {
+            if (myClosed) {
+                return;
+            }
+            flush(true);
+            myClosed = true;
+        }
+        myBackground.shutdown();
+        try {
+            myBackground.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (myFileLock) {
+            myChannel.close();
+        }
+    }
+
+    /**
+     * Writes the records appended so far in one write, unless someone
+     * already did, and optionally forces them to the disk. Callers that
+     * find their records already written by another thread return without
+     * writing, which is what groups the commits of several threads.
+     * @param theForce True to force the records to the disk.
+     * @throws IOException If the records can't be written.
+     */
+    private void flush(final boolean theForce) throws IOException {
+        long wanted;
+        synchronized (this) {
+            wanted = myAppended;
+        }
+        synchronized (myFileLock) {
+            if (theForce ? myForced >= wanted : myWritten >= wanted) {
+                return;
+            }
+            if (myClosed) {
+                throw new IOException("The journal is closed");
+            }
+            ByteBuffer records;
+            long appended;
+            synchronized (this) {
+                records = myPending;
+                myPending = mySpare;
+                appended = myAppended;
+            }
+            records.flip();
+            while (records.hasRemaining()) {
+                myLength += myChannel.write(records, myLength);
+            }
+            records.clear();
+            mySpare = records;
+            myWritten = appended;
+            if (theForce) {
+                myChannel.force(false);
+                myForced = appended;
+            }
+            if (!myCompacting && myLength > myCompactionThreshold && myLength > 2 * myCompactedLength) {
+                myCompacting = true;
+                int generation = myGeneration;
+                myBackground.execute(() -> compact(generation));
+            }
+        }
+    }
+
+    /**
+     * Writes the records in the background, for the policies that don't
+     * write at every commit. A failure is kept for the next append or commit.
+     */
+    private void writeInBackground() {
+        try {
+            flush(myPolicy == SyncPolicy.INTERVAL);
+        } catch (IOException e) {
+            myFailure = e;
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the last record of each cell. The part
+     * of the file written so far is compacted without holding any lock;
+     * then, under the file lock, the records written since are copied over
+     * and the compacted file is renamed over the journal.
+     * @param theGeneration The checkpoint count when the compaction started.
+     */
+    private void compact(final int theGeneration) {
+        Path temporary = myFile.resolveSibling(myFile.getFileName() + ".compact");
+        FileChannel compacted = null;
+        try {
+            long end;
+            synchronized (myFileLock) {
+                end = myLength;
+            }
+            Map<Long, Long> lastRecords = new HashMap<>();
+            try (FileChannel source = FileChannel.open(myFile, StandardOpenOption.READ)) {
+                RecordReader reader = new RecordReader(source, end);
+                for (long index = 0; reader.next(); index++) {
+                    lastRecords.put(cellKey(reader.getRow(), reader.getColumn()), index);
+                }
+                compacted = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                writeHeader(compacted);
+                compacted.position(HEADER_SIZE);
+                reader = new RecordReader(source, end);
+                ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+                for (long index = 0; reader.next(); index++) {
+                    if (lastRecords.get(cellKey(reader.getRow(), reader.getColumn())) == index) {
+                        if (out.remaining() < reader.getRecordSize()) {
+                            writeFully(compacted, out);
+                        }
+                        if (out.remaining() < reader.getRecordSize()) {
+                            ByteBuffer record = reader.getRecord();
+                            while (record.hasRemaining()) {
+                                compacted.write(record);
+                            }
+                        } else {
+                            out.put(reader.getRecord());
+                        }
+                    }
+                }
+                writeFully(compacted, out);
+            }
+            synchronized (myFileLock) {
+                if (myClosed || myGeneration != theGeneration) {
+                    return;
+                }
+                long length = compacted.size();
+                long tail = myLength - end;
+                for (long copied = 0; copied < tail; ) {
+                    copied += myChannel.transferTo(end + copied, tail - copied, compacted);
+                }
+                compacted.force(true);
+                Files.move(temporary, myFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                myChannel.close();
+                myChannel = compacted;
+                compacted = null;
+                myLength = length + tail;
+                myCompactedLength = myLength;
+            }
+        } catch (IOException e) {
+            myFailure = e;
+        } finally {
+            synchronized (myFileLock) {
+                myCompacting = false;
+            }
+            try {
+                if (compacted != null) {
+                    compacted.close();
+                    Files.deleteIfExists(temporary);
+                }
+            } catch (IOException e) {
+                myFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Throws what went wrong in the background, once.
+     * @throws UncheckedIOException If a background write or compaction failed.
+     */
+    private void checkFailure() {
+        IOException failure = myFailure;
+        if (failure != null) {
+            myFailure = null;
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    /**
+     * Packs a cell's position into one key.
+     * @param theRow The row.
+     * @param theColumn The column.
+     * @return Returns the key.
+     */
+    private static long cellKey(final int theRow, final int theColumn) {
+        return (long) theRow << 32 | theColumn & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Writes the magic and the version at the start of a file.
+     * @param theChannel The file.
+     * @throws IOException If the file can't be written.
+     */
+    private static void writeHeader(final FileChannel theChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            theChannel.write(header, HEADER_SIZE - header.remaining());
+        }
+    }
+
+    /**
+     * Checks that a file starts like a journal.
+     * @param theChannel The file.
+     * @throws IOException If the file can't be read or isn't a journal.
+     */
+    private static void checkHeader(final FileChannel theChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && theChannel.read(header, header.position()) > 0) {
+            continue;
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a spreadsheet journal");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported journal version " + header.getInt(4));
+        }
+    }
+
+    /**
+     * Writes a buffer to the end of a file and empties it.
+     * @param theChannel The file, positioned at its end.
+     * @param theBuffer The bytes to write.
+     * @throws IOException If the file can't be written.
+     */
+    private static void writeFully(final FileChannel theChannel, final ByteBuffer theBuffer) throws IOException {
+        theBuffer.flip();
+        while (theBuffer.hasRemaining()) {
+            theChannel.write(theBuffer);
+        }
+        theBuffer.clear();
+    }
+
+    /**
+     * What a replay did: how many edits it made and how many it couldn't.
+     */
+    public static final class Result {
+        /** The number of edits replayed. */
+        private final int myReplayed;
+        /** The number of records whose formula couldn't be parsed. */
+        private final int myMalformed;
+
+        /**
+         * Creates the result of a replay.
+         * @param theReplayed The number of edits replayed.
+         * @param theMalformed The number of records whose formula couldn't be parsed.
+         */
+        Result(final int theReplayed, final int theMalformed) {
+            myReplayed = theReplayed;
+            myMalformed = theMalformed;
+        }
+
+        /**
+         * Gets the number of edits replayed.
+         * @return Returns the number of records set as a cell's formula.
+         */
+        public int getReplayed() {
+            return myReplayed;
+        }
+
+        /**
+         * Gets the number of records whose formula couldn't be parsed, whose
+         * cells were left as they were.
+         * @return Returns the number of malformed records.
+         */
+        public int getMalformed() {
+            return myMalformed;
+        }
+    }
+
+    /**
+     * Reads the records of a journal one at a time through a buffer,
+     * stopping at the end or at the first record that is incomplete or
+     * doesn't match its checksum.
+     */
+    private static final class RecordReader {
+        /** The file. */
+        private final FileChannel myChannel;
+        /** Where the records end. */
+        private final long myEnd;
+        /** Where the next read from the file starts. */
+        private long myReadPosition = HEADER_SIZE;
+        /** Where the record after the current one starts. */
+        private long myPosition = HEADER_SIZE;
+        /** The bytes read and not consumed yet, from position to limit. */
+        private ByteBuffer myBuffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+        /** Checks the records. */
+        private final CRC32C myChecksum = new CRC32C();
+        /** Where the current record starts in myBuffer. */
+        private int myStart;
+        /** The size of the current record. */
+        private int mySize;
+
+        /**
+         * Creates a reader for the records of a file.
+         * @param theChannel The file.
+         * @param theEnd Where the records end.
+         */
+        RecordReader(final FileChannel theChannel, final long theEnd) {
+            myChannel = theChannel;
+            myEnd = theEnd;
+        }
+
+        /**
+         * Moves on to the next record.
+         * @return Returns false at the end or at a bad record.
+         * @throws IOException If the file can't be read.
+         */
+        boolean next() throws IOException {
+            if (!fill(RECORD_OVERHEAD)) {
+                return false;
+            }
+            int start = myBuffer.position();
+            int length = myBuffer.getInt(start + 8);
+            if (length < NO_FORMULA || length > myEnd - myPosition - RECORD_OVERHEAD) {
+                return false;
+            }
+            int size = RECORD_OVERHEAD + Math.max(length, 0);
+            if (!fill(size)) {
+                return false;
+            }
+            start = myBuffer.position();
+            myChecksum.reset();
+            myChecksum.update(myBuffer.array(), start, size - 4);
+            if ((int) myChecksum.getValue() != myBuffer.getInt(start + size - 4)) {
+                return false;
+            }
+            myStart = start;
+            mySize = size;
+            myBuffer.position(start + size);
+            myPosition += size;
+            return true;
+        }
+
+        /**
+         * Makes sure a number of bytes are in the buffer, reading more of
+         * the file if needed.
+         * @param theCount The number of bytes.
+         * @return Returns false if the records end first.
+         * @throws IOException If the file can't be read.
+         */
+        private boolean fill(final int theCount) throws IOException {
+            if (myBuffer.remaining() >= theCount) {
+                return true;
+            }
+            if (myPosition + theCount > myEnd) {
+                return false;
+            }
+            ByteBuffer target = myBuffer.capacity() < theCount ? ByteBuffer.allocate(theCount) : myBuffer;
+            myBuffer.compact();
+            if (target != myBuffer) {
+                myBuffer.flip();
+                target.put(myBuffer);
+                myBuffer = target;
+            }
+            while (myBuffer.position() < theCount) {
+                int limit = (int) Math.min(myBuffer.capacity(), myBuffer.position() + myEnd - myReadPosition);
+                myBuffer.limit(limit);
+                int read = myChannel.read(myBuffer, myReadPosition);
+                if (read <= 0) {
+                    myBuffer.flip();
+                    return false;
+                }
+                myReadPosition += read;
+            }
+            myBuffer.flip();
+            return true;
+        }
+
+        /**
+         * Gets where the last good record ends.
+         * @return Returns the position in the file after it.
+         */
+        long getPosition() {
+            return myPosition;
+        }
+
+        /**
+         * Getter for the row.
+         * @return Returns the row of the current record's cell.
+         */
+        int getRow() {
+            return myBuffer.getInt(myStart);
+        }
+
+        /**
+         * Getter for the column.
+         * @return Returns the column of the current record's cell.
+         */
+        int getColumn() {
+            return myBuffer.getInt(myStart + 4);
+        }
+
+        /**
+         * Decodes the formula of the current record.
+         * @return Returns the formula, or null if the record clears its cell.
+         */
+        String getFormula() {
+            int length = myBuffer.getInt(myStart + 8);
+            if (length == NO_FORMULA) {
+                return null;
+            }
+            return new String(myBuffer.array(), myStart + 12, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Getter for the record size.
+         * @return Returns the size of the current record in bytes.
+         */
+        int getRecordSize() {
+            return mySize;
+        }
+
+        /**
+         * Gets the bytes of the current record.
+         * @return Returns a buffer over them, valid until the next call to next().
+         */
+        ByteBuffer getRecord() {
+            return ByteBuffer.wrap(myBuffer.array(), myStart, mySize);
+        }
+    }
+}
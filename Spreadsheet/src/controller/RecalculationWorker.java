@@ -0,0 +1,210 @@
+package model.Spreadsheet.src.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * RecalculationWorker owns a spreadsheet and makes every change to it on
+ * one background thread, so whoever submits an edit, like the GUI, never
+ * waits for the recalculation. Submitting an edit cancels the
+ * recalculation that is running; the edits that piled up are then applied
+ * together in one batch, and the cells the cancelled recalculation didn't
+ * get to are recalculated with them. However fast edits arrive, the worker
+ * only ever finishes the latest state of the spreadsheet.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class RecalculationWorker {
+    /** The spreadsheet the edits are made to. */
+    private final Spreadsheet mySpreadsheet;
+    /** The thread the edits run on. */
+    private final ExecutorService myThread;
+    /** The edits waiting to run, guarded by this. */
+    private List<Edit> myQueue = new ArrayList<>();
+    /** True while the worker thread is busy with the queue, guarded by this. */
+    private boolean myRunning;
+
+    /**
+     * Creates a worker for a spreadsheet. From now on the spreadsheet
+     * should only be used through submit().
+     * @param theSpreadsheet The spreadsheet.
+     */
+    public RecalculationWorker(final Spreadsheet theSpreadsheet) {
+        mySpreadsheet = theSpreadsheet;
+        myThread = Executors.newSingleThreadExecutor(theTask -> {
+            Thread thread = new Thread(theTask, "Recalculation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a change to the spreadsheet and cancels the recalculation in
+     * progress so the change gets picked up as soon as possible. Changes run
+     * in the order they were submitted.
+     * @param theChange The change, which runs on the worker thread.
+     * @return Returns a future that completes when the change has been made
+     *         and recalculated, or exceptionally with whatever the change threw.
+     */
+    public CompletableFuture<Void> submit(final Runnable theChange) {
+        return enqueue(new Edit(theChange, false));
+    }
+
+    /**
+     * Queues a change that has to run outside of a batch, like undoing an
+     * edit. The changes queued before it are committed first, and the ones
+     * queued after it go in a batch of their own.
+     * @param theChange The change, which runs on the worker thread.
+     * @return Returns a future that completes when the change has been made
+     *         and recalculated, or exceptionally with whatever the change threw.
+     */
+    public CompletableFuture<Void> submitAlone(final Runnable theChange) {
+        return enqueue(new Edit(theChange, true));
+    }
+
+    /**
+     * Queues an edit and starts the worker thread on the queue if it isn't
+     * busy with it already.
+     * @param edit The edit.
+     * @return Returns the future of the edit.
+     */
+    private CompletableFuture<Void> enqueue(final Edit edit) {
+        boolean start;
+        synchronized (this) {
+            myQueue.add(edit);
+            start = !myRunning;
+            myRunning = true;
+        }
+        mySpreadsheet.cancelRecalculation();
+        if (start) {
+            myThread.execute(this::drain);
+        }
+        return edit.myDone;
+    }
+
+    /**
+     * Stops the worker thread once the queued changes are done.
+     */
+    public void shutdown() {
+        myThread.shutdown();
+    }
+
+    /**
+     * Runs the queued changes a batch at a time until there is nothing left
+     * to change or to recalculate. An edit is only reported done once a
+     * recalculation that includes it has finished. When nothing is queued
+     * but a cancelled recalculation was left behind, it is finished on its
+     * own so its listeners hear the end of it; if that fails, the cells are
+     * left for the next edit rather than tried again and again.
+     */
+    private void drain() {
+        List<Edit> made = new ArrayList<>();
+        while (true) {
+            List<Edit> edits;
+            synchronized (this) {
+                if (myQueue.isEmpty() && !mySpreadsheet.hasUnfinishedRecalculation()) {
+                    myRunning = false;
+                    return;
+                }
+                edits = myQueue;
+                myQueue = new ArrayList<>();
+            }
+            if (edits.isEmpty()) {
+                try {
+                    mySpreadsheet.finishRecalculation();
+                } catch (RuntimeException exception) {
+                    for (Edit edit : made) {
+                        edit.myDone.completeExceptionally(exception);
+                    }
+                    made.clear();
+                    synchronized (this) {
+                        if (myQueue.isEmpty()) {
+                            myRunning = false;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+            } else {
+                int start = 0;
+                while (start < edits.size()) {
+                    int end = start + 1;
+                    if (!edits.get(start).myAlone) {
+                        while (end < edits.size() && !edits.get(end).myAlone) {
+                            end++;
+                        }
+                    }
+                    run(edits.subList(start, end), made);
+                    start = end;
+                }
+            }
+            if (!mySpreadsheet.hasUnfinishedRecalculation()) {
+                for (Edit edit : made) {
+                    edit.myDone.complete(null);
+                }
+                made.clear();
+            }
+        }
+    }
+
+    /**
+     * Makes a run of changes, in one batch unless it is a single change
+     * that has to run alone. The changes that were made are added to the
+     * list; the ones that threw are reported done with the exception, and so
+     * are all of them if the recalculation at the end of the batch threw.
+     * @param theEdits The changes to make.
+     * @param theMade The changes made so far whose recalculation hasn't finished.
+     */
+    private void run(final List<Edit> theEdits, final List<Edit> theMade) {
+        boolean batch = !theEdits.get(0).myAlone;
+        if (batch) {
+            mySpreadsheet.beginBatch();
+        }
+        try {
+            for (Edit edit : theEdits) {
+                try {
+                    edit.myChange.run();
+                    theMade.add(edit);
+                } catch (RuntimeException exception) {
+                    edit.myDone.completeExceptionally(exception);
+                }
+            }
+        } finally {
+            if (batch) {
+                try {
+                    mySpreadsheet.commitBatch();
+                } catch (RuntimeException exception) {
+                    for (Edit edit : theMade) {
+                        edit.myDone.completeExceptionally(exception);
+                    }
+                    theMade.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued change and the future that reports it done.
+     */
+    private static final class Edit {
+        /** The change to make. */
+        private final Runnable myChange;
+        /** Completed once the change is made and recalculated. */
+        private final CompletableFuture<Void> myDone = new CompletableFuture<>();
+        /** True if the change has to run outside of a batch. */
+        private final boolean myAlone;
+
+        /**
+         * Creates an edit.
+         * @param theChange The change to make.
+         * @param isAlone True if the change has to run outside of a batch.
+         */
+        Edit(final Runnable theChange, final boolean isAlone) {
+            myChange = theChange;
+            myAlone = isAlone;
+        }
+    }
+}
@@ -1,37 +1,319 @@
 package model.Spreadsheet.src.controller;
 
 import model.Spreadsheet.src.model.*;
-import model.Spreadsheet.src.view.SpreadsheetGUI;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParsePosition;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * The Spreadsheet class contains all relevant information to the
  * actual spreadsheet itself. Includes the spreadsheet of cells,
  * getters, and print methods.
+ * Every spreadsheet keeps all of its state to itself, so one program can
+ * hold as many of them as it likes; see SpreadsheetPool.
+ * Several threads may edit and read the spreadsheet at once. Formulas are
+ * parsed on the editing thread, each with a parser of its own. Changing a
+ * formula and working out what it affects takes the write lock, which is
+ * held only briefly. The recalculation then runs on the editing thread
+ * under the region locks of the cells it evaluates and reads, so edits to
+ * regions that don't read each other recalculate at the same time.
+ * readValues() reads without locking unless a recalculation got in the way.
+ * Formulas may read cells on other sheets, like Inputs!B3. The spreadsheet
+ * only numbers those references; a Workbook binds them to the other
+ * sheets' cells and calls referencesChanged() when those cells change.
  * @author Patrick Hern
  * @author Nathameion Montgomery
  * @author Tim Ratsko
  */
 public class Spreadsheet {
-    /** A 2-Dimensional array that represents a spreadsheet. */
-    private static Cell[][] mySpreadsheet;
+    /** The cells of the spreadsheet. Only cells that hold a formula or are used in one are stored. */
+    private final CellStorage mySpreadsheet;
+    /** The number of rows in the spreadsheet. */
+    private final int myNumRows;
+    /** The number of columns in the spreadsheet. */
+    private final int myNumColumns;
     /** A "bad cell" will return -1 if an operation goes wrong. */
     private final int BadCell = -1;
-    /** The GUI for the spreadsheet. */
-    private final SpreadsheetGUI myGUI;
-    /** The ArrayList of Cells that holds the evaluation order. */
-    ArrayList<Cell> evaluationOrder = new ArrayList<>();
+    /** The listeners that are told about changed cells after each recalculation. */
+    private final List<SpreadsheetListener> myListeners = new CopyOnWriteArrayList<>();
+    /** Which cells read which other cells, by cell id. */
+    private final DependencyGraph myGraph;
+    /** Turns cell references in formulas into cell ids, creating blank cells as needed, or into external references. */
+    private final CellResolver myResolver;
+    /**
+     * The parsers not in use, which keep their buffers between formulas.
+     * They are pooled like the evaluators of RecalculationExecutor.
+     */
+    private final ConcurrentLinkedDeque<FormulaParser> myParsers = new ConcurrentLinkedDeque<>();
+    /** Runs the compiled formulas of the cells during recalculation. */
+    private final RecalculationExecutor myExecutor;
+    /** Held while formulas or the dependency graph change; a batch holds it until it is committed. */
+    private final ReentrantLock myWriteLock = new ReentrantLock();
+    /** Guards the values of the cells by region. */
+    private final RegionLocks myRegionLocks = new RegionLocks();
+    /** Guards the cell storage for lookups made without the write lock. */
+    private final StampedLock myCellsLock = new StampedLock();
+    /** How many batches have been begun and not committed yet, by the thread holding the write lock. */
+    private int myBatchDepth;
+    /** The ids of the cells edited during the current batch, possibly with duplicates. */
+    private int[] myBatchEdits = new int[16];
+    /** The number of ids in myBatchEdits. */
+    private int myBatchEditCount;
+    /** The dirty cells of cancelled recalculations, which the next one has to include, or null; guarded by this. */
+    private int[] myUnfinished;
+    /** The journal every formula change is appended to, or null. */
+    private EditJournal myJournal;
+    /** The edits that can be undone and redone. */
+    private final EditHistory myHistory;
 
     /**
      * The constructor for the spreadsheet that initializes the
      * spreadsheet with the proper dimensions.
+     * The spreadsheet runs on its own; a GUI follows it by adding a listener.
+     * @param theRowAndCols The size of the square spreadsheet.
+     */
+    public Spreadsheet(final int theRowAndCols) {
+        this(theRowAndCols, new SparseCellStorage());
+    }
+
+    /**
+     * Creates a spreadsheet that keeps its cells in the given storage.
      * @param theRowAndCols The size of the square spreadsheet.
+     * @param theCells The empty storage for the cells.
+     */
+    private Spreadsheet(final int theRowAndCols, final CellStorage theCells) {
+        mySpreadsheet = theCells;
+        myNumRows = theRowAndCols;
+        myNumColumns = theRowAndCols;
+        myGraph = new DependencyGraph();
+        myResolver = new CellResolver() {
+            @Override
+            public int resolve(final int theRow, final int theColumn) {
+                Cell cell = getOrCreateCell(theRow, theColumn);
+                return cell == null ? -1 : cell.getId();
+            }
+
+            @Override
+            public int resolveExternal(final String theSheet, final int theRow, final int theColumn) {
+                return myGraph.getReferences().intern(new CellToken(theSheet, theRow, theColumn));
+            }
+        };
+        myExecutor = new RecalculationExecutor(myGraph);
+        myHistory = new EditHistory(myGraph.getExpressions());
+    }
+
+    /**
+     * Opens a spreadsheet saved with saveSnapshot(). Nothing is parsed or
+     * recalculated: the cells come back with their saved values, and each
+     * formula is decoded from the mapped file when it is first needed.
+     * @param theFile The snapshot file.
+     * @return Returns the spreadsheet, sized as it was saved.
+     * @throws IOException If the file can't be read or isn't a snapshot.
+     */
+    public static Spreadsheet openSnapshot(final Path theFile) throws IOException {
+        SheetSnapshot snapshot = SheetSnapshot.open(theFile);
+        Spreadsheet sheet = new Spreadsheet(snapshot.getSize(), new SparseCellStorage(snapshot.getCellCount()));
+        sheet.myGraph.load(snapshot);
+        for (int id = 0; id < sheet.myGraph.getCellCount(); id++) {
+            sheet.mySpreadsheet.put(sheet.myGraph.getCell(id));
+        }
+        return sheet;
+    }
+
+    /**
+     * Saves the spreadsheet to a binary snapshot with its compiled formulas,
+     * dependency graph and values, replacing the file if it exists. A
+     * cancelled recalculation is finished first, so the saved values are
+     * settled. Edits on other threads wait until the snapshot is written.
+     * @param theFile The file to write.
+     * @throws IOException If the file can't be written.
+     * @throws IllegalStateException If a batch is open.
+     */
+    public void saveSnapshot(final Path theFile) throws IOException {
+        myWriteLock.lock();
+        try {
+            if (myBatchDepth > 0) {
+                throw new IllegalStateException("Commit the batch before saving a snapshot");
+            }
+            finishRecalculation();
+            RegionLocks.Claim claim = myRegionLocks.claim();
+            claim.readAll();
+            claim.acquire();
+            try {
+                SheetSnapshot.write(myGraph, myNumRows, theFile);
+            } finally {
+                claim.release();
+            }
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Saves a snapshot, like saveSnapshot(), and then empties the journal,
+     * since everything in it is in the snapshot now. The journal must be the
+     * one that is replayed on top of this snapshot.
+     * @param theFile The snapshot file.
+     * @throws IOException If the snapshot can't be written or the journal emptied.
+     * @throws IllegalStateException If a batch is open.
+     */
+    public void checkpoint(final Path theFile) throws IOException {
+        myWriteLock.lock();
+        try {
+            saveSnapshot(theFile);
+            if (myJournal != null) {
+                myJournal.reset();
+            }
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the journal every later formula change is appended to. Edits are
+     * committed to it before they are recalculated; a batch is committed
+     * once, at its outermost commitBatch().
+     * @param theJournal The journal, or null to stop journaling.
+     */
+    public void setJournal(final EditJournal theJournal) {
+        myWriteLock.lock();
+        try {
+            myJournal = theJournal;
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Undoes the newest edit, or batch of edits, that hasn't been undone.
+     * The edited cells get their old formulas back. If no recalculation was
+     * left unfinished, the cells the edit recalculated get their old values
+     * back without evaluating anything; otherwise they are recalculated,
+     * like after any edit. The listeners hear about the changes either way.
+     * @return Returns false if there was nothing to undo.
+     * @throws IllegalStateException If a batch is open.
+     */
+    public boolean undo() {
+        return apply(true);
+    }
+
+    /**
+     * Redoes the edit undone last, the same way undo() undoes it.
+     * Any new edit drops the edits that could be redone.
+     * @return Returns false if there was nothing to redo.
+     * @throws IllegalStateException If a batch is open.
+     */
+    public boolean redo() {
+        return apply(false);
+    }
+
+    /**
+     * Tells if there is an edit to undo.
+     * @return Returns true if undo() would change something.
+     */
+    public boolean canUndo() {
+        myWriteLock.lock();
+        try {
+            return myHistory.canUndo();
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Tells if there is an edit to redo.
+     * @return Returns true if redo() would change something.
+     */
+    public boolean canRedo() {
+        myWriteLock.lock();
+        try {
+            return myHistory.canRedo();
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Sets how much undo history is kept, forgetting what there is. The
+     * oldest edits are forgotten first once there are more than the given
+     * number of them, or their formulas and values take more than the given
+     * number of bytes.
+     * @param theSteps The most edits or batches kept, at least 1.
+     * @param theBudget The most bytes of history, estimated.
+     */
+    public void setHistoryLimits(final int theSteps, final long theBudget) {
+        myWriteLock.lock();
+        try {
+            myHistory.setLimits(theSteps, theBudget);
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets every edit, so nothing can be undone or redone.
+     */
+    public void clearHistory() {
+        myWriteLock.lock();
+        try {
+            myHistory.clear();
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a listener to be told about the cells each recalculation changes.
+     * Listeners are called on the thread that made the edit, so with
+     * several editing threads they may be called from several at once.
+     * @param theListener The listener to add.
+     */
+    public void addListener(final SpreadsheetListener theListener) {
+        myListeners.add(theListener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param theListener The listener to remove.
+     */
+    public void removeListener(final SpreadsheetListener theListener) {
+        myListeners.remove(theListener);
+    }
+
+    /**
+     * Sets how many threads recalculation may use. Cells that don't depend
+     * on each other are then evaluated at the same time, which gives the
+     * same values as evaluating them one after another.
+     * @param theParallelism The number of threads, 1 to recalculate on the calling thread only.
      */
-    public Spreadsheet(final int theRowAndCols, final SpreadsheetGUI theGUI) {
-        mySpreadsheet = new Cell[theRowAndCols][theRowAndCols];
-        myGUI = theGUI;
+    public void setParallelism(final int theParallelism) {
+        myExecutor.setParallelism(theParallelism);
+    }
+
+    /**
+     * Sets how many independent cells there have to be before they are split
+     * across threads. Smaller recalculations stay on the calling thread.
+     * @param theThreshold The smallest number of cells evaluated in parallel.
+     */
+    public void setParallelThreshold(final int theThreshold) {
+        myExecutor.setParallelThreshold(theThreshold);
+    }
+
+    /**
+     * Stops the threads parallel recalculation started, if there are any.
+     * The spreadsheet can still be used; a later parallel recalculation
+     * starts them again.
+     */
+    public void shutdown() {
+        myExecutor.shutdown();
     }
 
     /**
@@ -40,11 +322,12 @@ public class Spreadsheet {
     public void printValues() {
         for (int rows = 0; rows < getNumRows(); rows++) {
             for (int cols = 0; cols < getNumColumns(); cols++) {
-                if (mySpreadsheet[rows][cols] == null) {
+                Cell cell = mySpreadsheet.get(rows, cols);
+                if (cell == null) {
                     System.out.print("\t0\t");
                 }
                 else {
-                    System.out.print("\t" + mySpreadsheet[rows][cols].getValue() + "\t");
+                    System.out.print("\t" + cell.getValueString() + "\t");
                 }
             }
             System.out.println();
@@ -56,7 +339,7 @@ public class Spreadsheet {
      * @return Returns the number of rows.
      */
     public int getNumRows() {
-        return mySpreadsheet.length;
+        return myNumRows;
     }
 
     /**
@@ -64,7 +347,7 @@ public class Spreadsheet {
      * @return Returns the number of columns.
      */
     public int getNumColumns() {
-        return mySpreadsheet[0].length;
+        return myNumColumns;
     }
 
     /**
@@ -90,19 +373,113 @@ public class Spreadsheet {
         for (int rows = 0; rows < getNumRows(); rows++) {
             System.out.print(rows + " ");
             for (int cols = 0; cols < getNumColumns(); cols++) {
-                if (mySpreadsheet[rows][cols] == null) {
+                Cell cell = mySpreadsheet.get(rows, cols);
+                if (cell == null) {
                     System.out.print("\t\t \t\t");
                 }
                 else {
-                    System.out.printf("\t\t" + mySpreadsheet[rows][cols].getInOrderFormula() + "\t\t");
+                    System.out.printf("\t\t" + cell.getInOrderFormula() + "\t\t");
                 }
             }
             System.out.println();
         }
     }
 
+    /**
+     * Starts a batch of edits. Until the matching commitBatch(), formulas
+     * are installed as they are set but nothing is recalculated. Batches
+     * can be nested; only the outermost commit recalculates. The batch holds
+     * the write lock, so edits on other threads wait until it is committed.
+     */
+    public void beginBatch() {
+        myWriteLock.lock();
+        myBatchDepth++;
+    }
+
+    /**
+     * Ends a batch of edits and recalculates the cells edited during the
+     * batch together with everything that depends on them, in one pass,
+     * along with whatever a cancelled recalculation left unfinished.
+     * Every cell is evaluated at most once no matter how many edits
+     * affected it, and the listeners hear about the changes once.
+     * @throws IllegalStateException If this thread has no batch open.
+     */
+    public void commitBatch() {
+        if (!myWriteLock.isHeldByCurrentThread() || myBatchDepth == 0) {
+            throw new IllegalStateException("commitBatch() without beginBatch()");
+        }
+        Recalculation recalculation = null;
+        try {
+            if (--myBatchDepth > 0) {
+                return;
+            }
+            int[] edited = Arrays.copyOf(myBatchEdits, myBatchEditCount);
+            myBatchEditCount = 0;
+            if (myJournal != null && edited.length > 0) {
+                myJournal.commit();
+            }
+            if (edited.length > 0 || hasUnfinishedRecalculation()) {
+                int[] dirty = myGraph.collectDependents(edited);
+                Arrays.sort(edited);
+                recalculation = startRecalculation(dirty, edited);
+            }
+        } finally {
+            myWriteLock.unlock();
+        }
+        if (recalculation != null) {
+            recalculation.run();
+        }
+    }
+
+    /**
+     * Checks whether this thread has a batch open.
+     * @return Returns true between beginBatch() and the matching commitBatch().
+     */
+    public boolean isInBatch() {
+        return myWriteLock.isHeldByCurrentThread() && myBatchDepth > 0;
+    }
+
+    /**
+     * Asks the recalculation running on another thread, if there is one, to
+     * stop as soon as possible. The cells it didn't get to are remembered
+     * and recalculated along with the next edit or by finishRecalculation().
+     * Safe to call from any thread.
+     */
+    public void cancelRecalculation() {
+        myExecutor.cancel();
+    }
+
+    /**
+     * Checks whether a recalculation was cancelled before it finished.
+     * @return Returns true if some cells still have to be recalculated.
+     */
+    public synchronized boolean hasUnfinishedRecalculation() {
+        return myUnfinished != null;
+    }
+
+    /**
+     * Recalculates the cells a cancelled recalculation didn't finish.
+     */
+    public void finishRecalculation() {
+        Recalculation recalculation;
+        myWriteLock.lock();
+        try {
+            if (!hasUnfinishedRecalculation()) {
+                return;
+            }
+            recalculation = new Recalculation(new int[0], new int[0]);
+        } finally {
+            myWriteLock.unlock();
+        }
+        recalculation.run();
+    }
+
     /**
      * Changes the cells formula and recalculates the expression.
+     * The formula is compiled once here, which also resolves its cell
+     * references and updates the dependency graph. Only the changed cell
+     * and the cells that depend on it, directly or through other cells,
+     * are evaluated again; during a batch that waits for commitBatch().
      * @param cellToken The CellToken passed where a new cell will
      *                  be declared and set.
      * @param expTreeTokenString The expressionTreeToken String for
@@ -111,114 +488,377 @@ public class Spreadsheet {
      */
     public void changeCellFormulaAndRecalculate(CellToken cellToken, String expTreeTokenString,
                                                 String inOrder, ExpressionTreeNode expTreeNode) {
-        mySpreadsheet[cellToken.getRow()][cellToken.getColumn()] = new Cell(cellToken.getRow(), cellToken.getColumn());
-        mySpreadsheet[cellToken.getRow()][cellToken.getColumn()].setFormula(expTreeTokenString);
-        mySpreadsheet[cellToken.getRow()][cellToken.getColumn()].setMyExpressionTree(expTreeNode);
-        mySpreadsheet[cellToken.getRow()][cellToken.getColumn()].setFormulaInOrder(inOrder);
+        Cell cell = getOrCreateCell(cellToken.getRow(), cellToken.getColumn());
+        CompiledFormula compiled = expTreeNode == null ? null : FormulaCompiler.compile(expTreeNode, myResolver);
+        Recalculation recalculation;
+        myWriteLock.lock();
+        try {
+            installFormula(cell, expTreeTokenString, inOrder, expTreeNode, compiled);
+            recalculation = cellEdited(cell);
+        } finally {
+            myWriteLock.unlock();
+        }
+        if (recalculation != null) {
+            recalculation.run();
+        }
+    }
 
-        this.evaluate();
+    /**
+     * Parses a formula and sets it on a cell, then recalculates like
+     * changeCellFormulaAndRecalculate(). The formula goes straight from its
+     * text to its compiled form in one pass, without building tokens or an
+     * expression tree, and it is stored on the cell as typed. The parsing
+     * happens before taking the write lock, so threads setting formulas at
+     * the same time only wait on each other to install them. Use a batch
+     * to set many formulas with a single recalculation.
+     * @param row The row of the cell.
+     * @param col The column of the cell.
+     * @param inputFormula The formula as typed.
+     * @return Returns the cell, or null if the position is off the spreadsheet.
+     * @throws FormulaParseException If the formula is malformed; the cell is left as it was.
+     */
+    public Cell setCellFormula(final int row, final int col, final String inputFormula) {
+        Cell cell = getOrCreateCell(row, col);
+        if (cell != null) {
+            FormulaParser parser = myParsers.poll();
+            if (parser == null) {
+                parser = new FormulaParser(myResolver, myGraph.getExpressions());
+            }
+            CompiledFormula compiled;
+            try {
+                compiled = parser.parse(inputFormula);
+                if (compiled == null) {
+                    throw new FormulaParseException(inputFormula, parser.getErrorIndex(), parser.getErrorMessage());
+                }
+            } finally {
+                myParsers.push(parser);
+            }
+            Recalculation recalculation;
+            myWriteLock.lock();
+            try {
+                installFormula(cell, inputFormula, inputFormula, null, compiled);
+                recalculation = cellEdited(cell);
+            } finally {
+                myWriteLock.unlock();
+            }
+            if (recalculation != null) {
+                recalculation.run();
+            }
+        }
+        return cell;
     }
 
     /**
-     * getCellToken
-     * *
-     * Assuming that the next chars in a String (at the given startIndex)
-     * is a cell reference, set cellToken's column and row to the
-     * cell's column and row.
-     * If the cell reference is invalid, the row and column of the return CellToken
-     * are both set to BadCell (which should be a final int that equals -1).
-     * Also, return the index of the position in the string after processing
-     * the cell reference.
-     * (Possible improvement: instead of returning a CellToken with row and
-     * column equal to BadCell, throw an exception that indicates a parsing error.)
-     * *
-     * A cell reference is defined to be a sequence of CAPITAL letters,
-     * followed by a sequence of digits (0-9).  The letters refer to
-     * columns as follows: A = 0, B = 1, C = 2, ..., Z = 25, AA = 26,
-     * AB = 27, ..., AZ = 51, BA = 52, ..., ZA = 676, ..., ZZ = 701,
-     * AAA = 702.  The digits represent the row number.
-     *
-     * @param inputString  the input string
-     * @param startIndex  the index of the first char to process
-     * @param cellToken  a cellToken (essentially a return value)
-     * @return  index corresponding to the position in the string just after the cell
-    reference
+     * Removes the formula of every cell, so that a spreadsheet can be loaded
+     * in its place. Like any other edit this recalculates unless a batch is open.
      */
-    public int getCellToken(String inputString, int startIndex, CellToken cellToken) {
-        char ch;
-        int column = 0;
-        int row = 0;
-        int index = startIndex;
-        // handle a bad startIndex
-        if ((startIndex < 0) || (startIndex >= inputString.length() )) {
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
-        }
-        // get rid of leading whitespace characters
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);
-            if (!Character.isWhitespace(ch)) {
-                break;
-            }
-            index++;
-        }
-        if (index == inputString.length()) {
-            // reached the end of the string before finding a capital letter
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
-        }
-        // ASSERT: index now points to the first non-whitespace character
-        ch = inputString.charAt(index);
-        // process CAPITAL alphabetic characters to calculate the column
-        if (!Character.isUpperCase(ch)) {
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
-        } else {
-            column = ch - 'A';
-            index++;
-        }
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);
-            if (Character.isUpperCase(ch)) {
-                column = ((column + 1) * 26) + (ch - 'A');
-                index++;
+    public void clearFormulas() {
+        beginBatch();
+        for (Cell cell : mySpreadsheet) {
+            if (cell.hasFormula()) {
+                installFormula(cell, null, null, null, null);
+                cellEdited(cell);
+            }
+        }
+        commitBatch();
+    }
+
+    /**
+     * Sets a formula read back from a journal, clearing the cell if there is
+     * none, and recalculates like any other edit.
+     * @param row The row of the cell.
+     * @param col The column of the cell.
+     * @param inputFormula The formula as typed, or null to clear the cell.
+     * @throws FormulaParseException If the formula is malformed.
+     */
+    void replayEdit(final int row, final int col, final String inputFormula) {
+        if (inputFormula != null) {
+            setCellFormula(row, col, inputFormula);
+            return;
+        }
+        Cell cell = getOrCreateCell(row, col);
+        Recalculation recalculation = null;
+        myWriteLock.lock();
+        try {
+            if (cell != null && cell.hasFormula()) {
+                installFormula(cell, null, null, null, null);
+                recalculation = cellEdited(cell);
+            }
+        } finally {
+            myWriteLock.unlock();
+        }
+        if (recalculation != null) {
+            recalculation.run();
+        }
+    }
+
+    /**
+     * Recalculates the cells that read some cells on other sheets, and
+     * everything that depends on them, after those cells changed. Nothing
+     * is journaled or recorded for undoing, since no formula changed; the
+     * values the undo history kept are dropped instead, so undoing
+     * recalculates with the new values. During a batch on this thread the
+     * cells are recalculated when it is committed.
+     * @param theExternals The indices of the references whose cells changed.
+     */
+    public void referencesChanged(final int... theExternals) {
+        referencesChanged(theExternals, new int[0]);
+    }
+
+    /**
+     * Recalculates the readers of some references, like referencesChanged(),
+     * with some cells taken to be part of a cycle that runs through other
+     * sheets, which this sheet can't find on its own. Those cells are set to
+     * 0 and marked as in a cycle instead of being evaluated, the same way
+     * the cycles within the sheet are, and the cells that depend on them are
+     * recalculated.
+     * @param theExternals The indices of the references whose cells changed.
+     * @param theCycleIds The sorted ids of the cells in a cycle through other sheets.
+     */
+    public void referencesChanged(final int[] theExternals, final int[] theCycleIds) {
+        Recalculation recalculation;
+        myWriteLock.lock();
+        try {
+            int[] readers = myGraph.collectReaders(theExternals);
+            if (readers.length == 0 && theCycleIds.length == 0) {
+                return;
+            }
+            int[] changed = Arrays.copyOf(readers, readers.length + theCycleIds.length);
+            System.arraycopy(theCycleIds, 0, changed, readers.length, theCycleIds.length);
+            int[] dirty = myGraph.collectDependents(changed);
+            myHistory.forgetValues();
+            if (myBatchDepth > 0) {
+                addUnfinished(dirty);
+                return;
+            }
+            recalculation = new Recalculation(dirty, new int[0], theCycleIds);
+        } finally {
+            myWriteLock.unlock();
+        }
+        recalculation.run();
+    }
+
+    /**
+     * Gets the cells that read a cell, through a reference or a range, so a
+     * Workbook can follow dependencies from sheet to sheet.
+     * @param theId The id of the cell.
+     * @return Returns the ids of the cells; a cell may be listed twice.
+     */
+    public int[] getDependents(final int theId) {
+        myWriteLock.lock();
+        try {
+            int count = myGraph.getDependentCount(theId);
+            int[] rangeDependents = myGraph.getRangeDependents(theId);
+            int[] dependents = Arrays.copyOf(rangeDependents, count + rangeDependents.length);
+            for (int i = 0; i < count; i++) {
+                dependents[rangeDependents.length + i] = myGraph.getDependent(theId, i);
+            }
+            return dependents;
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the cells whose formulas read a reference to a cell on another sheet.
+     * @param theExternal The index of the reference.
+     * @return Returns the ids of the cells.
+     */
+    public int[] getReaders(final int theExternal) {
+        myWriteLock.lock();
+        try {
+            return myGraph.collectReaders(theExternal);
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Sets up the recalculation after a cell's formula was installed, or
+     * remembers the cell for the commit if a batch is open. Outside a batch
+     * the edit is committed to the journal first. Called with the write lock held.
+     * @param theCell The edited cell.
+     * @return Returns the recalculation to run once the write lock is
+     *         released, or null inside a batch.
+     */
+    private Recalculation cellEdited(final Cell theCell) {
+        if (myBatchDepth == 0) {
+            if (myJournal != null) {
+                myJournal.commit();
+            }
+            int[] dirty = myGraph.collectDependents(theCell.getId());
+            return startRecalculation(dirty, new int[] {theCell.getId()});
+        }
+        if (myBatchEditCount == myBatchEdits.length) {
+            myBatchEdits = Arrays.copyOf(myBatchEdits, myBatchEditCount * 2);
+        }
+        myBatchEdits[myBatchEditCount++] = theCell.getId();
+        return null;
+    }
+
+    /**
+     * Sets up the recalculation of an edit and closes the edit's step of
+     * the undo history, which keeps the values the cells have before they
+     * are recalculated. Called with the write lock held.
+     * @param theDirtyIds The ids of the edited cells and their dependents, without duplicates.
+     * @param theEditedIds The sorted ids of the edited cells.
+     * @return Returns the recalculation, holding its region locks.
+     */
+    private Recalculation startRecalculation(final int[] theDirtyIds, final int[] theEditedIds) {
+        Recalculation recalculation = new Recalculation(theDirtyIds, theEditedIds);
+        try {
+            myHistory.closeStep(myGraph, theDirtyIds, recalculation.isSettled());
+        } catch (RuntimeException | Error exception) {
+            recalculation.release();
+            throw exception;
+        }
+        return recalculation;
+    }
+
+    /**
+     * Sets a cell's formula, compiles it and updates the dependency graph.
+     * The shared subexpressions of the old formula are given back, after
+     * the new one has taken its own, so setting the same formula again
+     * keeps them. The cell's value is left alone until the next recalculation.
+     * The change is appended to the journal, if there is one, and recorded
+     * in the undo history unless it is an undo or redo itself. Called with
+     * the write lock held; the cell's region is locked while it changes, and
+     * so are the columns of the ranges the formula reads, in case they get
+     * aggregate trees.
+     * @param theCell The cell to change.
+     * @param expTreeTokenString The formula in the form stored on the cell, or null.
+     * @param inOrder The formula as typed, or null.
+     * @param expTreeNode The expression tree of the formula, or null if it
+     *                    was parsed without one.
+     * @param theCompiled The compiled formula, or null for a formula that
+     *                    evaluates to 0 and reads no cells.
+     */
+    private void installFormula(final Cell theCell, final String expTreeTokenString,
+                                final String inOrder, final ExpressionTreeNode expTreeNode,
+                                final CompiledFormula theCompiled) {
+        RegionLocks.Claim claim = myRegionLocks.claim();
+        claim.write(theCell.getRow(), theCell.getColumn());
+        if (theCompiled != null) {
+            int[] ranges = theCompiled.getRanges();
+            for (int i = 0; i < ranges.length; i += 4) {
+                claim.readBlock(0, ranges[i + 1], myNumRows - 1, ranges[i + 3]);
+            }
+        }
+        claim.acquire();
+        try {
+            if (myJournal != null) {
+                myJournal.append(theCell.getRow(), theCell.getColumn(), inOrder);
+            }
+            if (myHistory.isRecording()) {
+                myHistory.formulaChanged(theCell, expTreeTokenString, inOrder, expTreeNode, theCompiled);
+            }
+            theCell.setFormula(expTreeTokenString);
+            theCell.setMyExpressionTree(expTreeNode);
+            theCell.setFormulaInOrder(inOrder);
+            myGraph.getExpressions().release(theCell.getCompiledFormula());
+            theCell.setCompiledFormula(theCompiled);
+            if (theCompiled == null) {
+                myGraph.setPrecedents(theCell.getId(), new int[0]);
+                myGraph.setRanges(theCell.getId(), new int[0]);
+                myGraph.setExternals(theCell.getId(), new int[0]);
             } else {
-                break;
+                myGraph.setPrecedents(theCell.getId(), theCompiled.getPrecedents());
+                myGraph.setRanges(theCell.getId(), theCompiled.getRanges());
+                myGraph.setExternals(theCell.getId(), theCompiled.getExternals());
             }
+        } finally {
+            claim.release();
         }
-        if (index == inputString.length() ) {
-            // reached the end of the string before fully parsing the cell reference
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
+    }
+
+    /**
+     * Undoes or redoes the next step of the history: puts the formulas of
+     * one side of it back on its cells, then either puts back the values
+     * the cells it affected had on that side, or recalculates them if those
+     * aren't known or something is left unfinished. The values the cells
+     * had before are kept in the step for going back the other way.
+     * @param isUndo True to undo the newest step, false to redo the step undone last.
+     * @return Returns false if there was no step.
+     * @throws IllegalStateException If a batch is open.
+     */
+    private boolean apply(final boolean isUndo) {
+        Recalculation recalculation;
+        List<Cell> changed = null;
+        myWriteLock.lock();
+        try {
+            if (myBatchDepth > 0) {
+                throw new IllegalStateException("Commit the batch before undoing or redoing");
+            }
+            EditHistory.Step step = isUndo ? myHistory.undoStep() : myHistory.redoStep();
+            if (step == null) {
+                return false;
+            }
+            int count = step.getChangeCount();
+            int[] edited = new int[count];
+            myHistory.setPaused(true);
+            try {
+                for (int i = 0; i < count; i++) {
+                    int change = isUndo ? count - 1 - i : i;
+                    EditHistory.FormulaState formula = isUndo ? step.getBefore(change) : step.getAfter(change);
+                    Cell cell = myGraph.getCell(step.getCellId(change));
+                    myGraph.getExpressions().retain(formula.myCompiled);
+                    installFormula(cell, formula.myFormula, formula.myInOrder, formula.myTree, formula.myCompiled);
+                    edited[i] = cell.getId();
+                }
+            } finally {
+                myHistory.setPaused(false);
+            }
+            if (myJournal != null) {
+                myJournal.commit();
+            }
+            edited = Arrays.stream(edited).sorted().distinct().toArray();
+            int[] affected = step.getAffectedIds();
+            recalculation = new Recalculation(affected, edited);
+            try {
+                boolean settled = recalculation.isSettled();
+                EditHistory.Values current = settled ? EditHistory.capture(myGraph, affected) : null;
+                if (settled && step.hasValues()) {
+                    changed = EditHistory.restore(myGraph, step, edited);
+                    recalculation.release();
+                    recalculation = null;
+                }
+                myHistory.replaceValues(step, current);
+            } catch (RuntimeException | Error exception) {
+                if (recalculation != null) {
+                    recalculation.release();
+                }
+                throw exception;
+            }
+        } finally {
+            myWriteLock.unlock();
         }
-        // ASSERT: We have processed leading whitespace and the
-        // capital letters of the cell reference
-        // read numeric characters to calculate the row
-        if (Character.isDigit(ch)) {
-            row = ch - '0';
-            index++;
+        if (recalculation != null) {
+            recalculation.run();
         } else {
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
-        }
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);
-            if (Character.isDigit(ch)) {
-                row = (row * 10) + (ch - '0');
-                index++;
-            } else {
-                break;
+            for (SpreadsheetListener listener : myListeners) {
+                listener.cellsChanged(changed);
+            }
+            for (SpreadsheetListener listener : myListeners) {
+                listener.recalculationFinished();
             }
         }
-        // successfully parsed a cell reference
-        cellToken.setColumn(column);
-        cellToken.setRow(row);
-        return index;
+        return true;
+    }
+
+    /**
+     * getCellToken
+     * *
+     * Reads the cell reference that starts at the given index, like
+     * SpreadSheetUtility.getCellToken(). A cell reference is a sequence of
+     * CAPITAL letters for the column followed by digits for the row.
+     * *
+     * @param inputString  the input string
+     * @param startIndex  the index of the first char to process
+     * @return  the cell reference, with row and column equal to BadCell
+     *          if it is invalid
+     */
+    public CellToken getCellToken(String inputString, int startIndex) {
+        return SpreadSheetUtility.getCellToken(inputString, new ParsePosition(startIndex));
     }
 
     /**
@@ -262,95 +902,406 @@ public class Spreadsheet {
      * Gets the cell and returns it.
      * @param row The row of the cell.
      * @param col The column of the cell.
-     * @return Returns a cell found from the spreadsheet.
+     * @return Returns a cell found from the spreadsheet, or null if the cell is blank.
+     */
+    public Cell getCell(final int row, final int col) {
+        return findCell(row, col);
+    }
+
+    /**
+     * Reads the values of a block of cells as doubles, row by row. Blank
+     * cells are worth 0. The values are consistent with each other even
+     * while other threads edit: no recalculation of the block is half done
+     * in them. They are read without locking first, and read again under
+     * the region locks only if a recalculation wrote to the block meanwhile.
+     * @param theFirstRow The top row of the block.
+     * @param theFirstColumn The leftmost column of the block.
+     * @param theLastRow The bottom row of the block.
+     * @param theLastColumn The rightmost column of the block.
+     * @return Returns the values, theLastColumn - theFirstColumn + 1 to a row.
+     * @throws IllegalArgumentException If the block is empty or not on the spreadsheet.
      */
-    public static Cell getCell(final int row, final int col) {
+    public double[] readValues(final int theFirstRow, final int theFirstColumn,
+                               final int theLastRow, final int theLastColumn) {
+        if (theFirstRow < 0 || theFirstColumn < 0 || theFirstRow > theLastRow || theFirstColumn > theLastColumn
+                || theLastRow >= myNumRows || theLastColumn >= myNumColumns) {
+            throw new IllegalArgumentException("Not a block on the spreadsheet: " + theFirstRow + ","
+                    + theFirstColumn + " to " + theLastRow + "," + theLastColumn);
+        }
+        double[] values = new double[(theLastRow - theFirstRow + 1) * (theLastColumn - theFirstColumn + 1)];
+        RegionLocks.Claim claim = myRegionLocks.claim();
+        claim.readBlock(theFirstRow, theFirstColumn, theLastRow, theLastColumn);
+        if (claim.tryOptimisticRead()) {
+            readBlock(theFirstRow, theFirstColumn, theLastRow, theLastColumn, values);
+            if (claim.validate()) {
+                return values;
+            }
+        }
+        claim.acquire();
         try {
-            return mySpreadsheet[row][col];
-        } catch (Exception e) {
-            return null;
+            readBlock(theFirstRow, theFirstColumn, theLastRow, theLastColumn, values);
+        } finally {
+            claim.release();
         }
+        return values;
     }
 
-    /** Evaluates the spreadsheet.
-     *  Topologically sorts all the cells in the spreadsheet then evaluates them in that order.
-     *  Also takes not of any cycles.
+    /**
+     * Copies the values of a block of cells into an array, row by row.
+     * @param theFirstRow The top row of the block.
+     * @param theFirstColumn The leftmost column of the block.
+     * @param theLastRow The bottom row of the block.
+     * @param theLastColumn The rightmost column of the block.
+     * @param theValues Receives the values.
      */
-    public void evaluate() {
-        for (int row = 0; row < mySpreadsheet.length; row++) {
-            for (int col = 0; col < mySpreadsheet[0].length; col++) {
-                if (mySpreadsheet[row][col] != null) {
-                    mySpreadsheet[row][col].clearLists();
-                }
+    private void readBlock(final int theFirstRow, final int theFirstColumn,
+                           final int theLastRow, final int theLastColumn, final double[] theValues) {
+        int i = 0;
+        for (int row = theFirstRow; row <= theLastRow; row++) {
+            for (int col = theFirstColumn; col <= theLastColumn; col++) {
+                Cell cell = findCell(row, col);
+                theValues[i++] = cell == null ? 0 : cell.getDoubleValue();
             }
         }
+    }
 
-        for (int row = 0; row < mySpreadsheet.length; row++) {
-            for (int col = 0; col < mySpreadsheet[0].length; col++) {
-                if (mySpreadsheet[row][col] == null) {
-                    mySpreadsheet[row][col] = new Cell(row, col);
+    /**
+     * Looks a cell up without the write lock. The storage is read without
+     * locking first, which is safe to retry, and under its read lock only if
+     * a cell was added meanwhile.
+     * @param row The row of the cell.
+     * @param col The column of the cell.
+     * @return Returns the cell, or null if there is none.
+     */
+    private Cell findCell(final int row, final int col) {
+        long stamp = myCellsLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Cell cell = mySpreadsheet.get(row, col);
+                if (myCellsLock.validate(stamp)) {
+                    return cell;
                 }
+            } catch (RuntimeException exception) {
+                // the table was being resized; look again under the lock
+            }
+        }
+        stamp = myCellsLock.readLock();
+        try {
+            return mySpreadsheet.get(row, col);
+        } finally {
+            myCellsLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the storage holding the cells of the spreadsheet. It may only be
+     * used while no other thread is editing; readValues() can be used at any time.
+     * @return Returns the cell storage.
+     */
+    public CellStorage getCells() {
+        return mySpreadsheet;
+    }
+
+    /**
+     * Gets the dependency graph of the spreadsheet.
+     * @return Returns the dependency graph.
+     */
+    public DependencyGraph getDependencyGraph() {
+        return myGraph;
+    }
 
-                if (mySpreadsheet[row][col].getFormula() == null) {
-                    mySpreadsheet[row][col].createListOfPrerequisites("", this);
-                } else {
-                    mySpreadsheet[row][col].createListOfPrerequisites(mySpreadsheet[row][col].getFormula(), this);
+    /**
+     * Gets the cell at the given position, creating a blank cell there
+     * first if there isn't one yet. Only creating a cell takes the write lock.
+     * @param row The row of the cell.
+     * @param col The column of the cell.
+     * @return Returns the cell, or null if the position is off the spreadsheet.
+     */
+    public Cell getOrCreateCell(final int row, final int col) {
+        if (row < 0 || row >= getNumRows() || col < 0 || col >= getNumColumns()) {
+            return null;
+        }
+        Cell cell = findCell(row, col);
+        if (cell == null) {
+            myWriteLock.lock();
+            try {
+                cell = mySpreadsheet.get(row, col);
+                if (cell == null) {
+                    cell = myGraph.addCell(row, col);
+                    long stamp = myCellsLock.writeLock();
+                    try {
+                        mySpreadsheet.put(cell);
+                    } finally {
+                        myCellsLock.unlockWrite(stamp);
+                    }
                 }
+            } finally {
+                myWriteLock.unlock();
             }
         }
+        return cell;
+    }
 
-        for (int row = 0; row < mySpreadsheet.length; row++) {
-            for (int col = 0; col < mySpreadsheet[0].length; col++) {
-                evaluationOrder.add(mySpreadsheet[row][col]);
+    /** Evaluates the spreadsheet.
+     *  Recalculates every cell. The dependency graph is kept up to date as
+     *  formulas are set, so nothing has to be rebuilt first. Edits don't
+     *  need this, they only recalculate the cells they affect.
+     */
+    public void evaluate() {
+        Recalculation recalculation;
+        myWriteLock.lock();
+        try {
+            int[] allIds = new int[myGraph.getCellCount()];
+            for (int id = 0; id < allIds.length; id++) {
+                allIds[id] = id;
             }
+            recalculation = new Recalculation(allIds, new int[0]);
+        } finally {
+            myWriteLock.unlock();
+        }
+        recalculation.run();
+    }
+
+    /**
+     * Takes the dirty cells cancelled recalculations left, for the next
+     * recalculation to include.
+     * @return Returns their ids, or null if there are none.
+     */
+    private synchronized int[] takeUnfinished() {
+        int[] unfinished = myUnfinished;
+        myUnfinished = null;
+        return unfinished;
+    }
+
+    /**
+     * Remembers the dirty cells of a cancelled recalculation.
+     * @param theDirtyIds Their ids.
+     */
+    private synchronized void addUnfinished(final int[] theDirtyIds) {
+        if (myUnfinished == null) {
+            myUnfinished = theDirtyIds;
+        } else {
+            int[] all = Arrays.copyOf(myUnfinished, myUnfinished.length + theDirtyIds.length);
+            System.arraycopy(theDirtyIds, 0, all, myUnfinished.length, theDirtyIds.length);
+            myUnfinished = all;
+        }
+    }
+
+    /**
+     * A recalculation of some dirty cells. It is set up with the write lock
+     * held: that takes in whatever cancelled recalculations left unfinished,
+     * locks the regions of the cells it evaluates for writing and the
+     * regions of the cells they read for reading, and schedules the cells.
+     * It then runs after the write lock is released, so other threads can
+     * edit meanwhile, and releases its region locks when it is done.
+     */
+    private final class Recalculation {
+        /** The ids of the cells to evaluate, without duplicates. */
+        private final int[] myDirtyIds;
+        /** The sorted ids of the cells reported even if their value doesn't change. */
+        private final int[] myEditedIds;
+        /** The sorted ids of the cells in a cycle through other sheets, marked instead of evaluated. */
+        private final int[] myCycleIds;
+        /** The regions the recalculation writes and reads. */
+        private final RegionLocks.Claim myClaim;
+        /** The order to evaluate the cells in. */
+        private final EvaluationScheduler myScheduler;
+        /** Tells cancel() calls made before the set up apart from later ones. */
+        private final int myCancellationMark;
+        /** True if no recalculation was left unfinished when this one was set up. */
+        private final boolean mySettled;
+
+        /**
+         * Sets up a recalculation and takes its region locks, waiting for
+         * the recalculations running in those regions. Called with the
+         * write lock held.
+         * @param theDirtyIds The ids of the cells to evaluate, without duplicates.
+         * @param theEditedIds The sorted ids of the cells whose formula changed,
+         *                     reported even if their value didn't.
+         */
+        Recalculation(final int[] theDirtyIds, final int[] theEditedIds) {
+            this(theDirtyIds, theEditedIds, new int[0]);
         }
 
-        boolean isCycle = false;
-        while (!evaluationOrder.isEmpty()) {
-            isCycle = false;
-            evaluationOrder.sort(new CellPrerequisiteComparator());
-            Cell currentCell = evaluationOrder.remove(0);
-            if (currentCell.getCellsInMyFormula().size() > 0) {
-                isCycle = true;
-                myGUI.setErrorInCell(currentCell.getRow(), currentCell.getColumn(), true, "CYCLE");
-                System.out.println("Cycle detected");
+        /**
+         * Sets up a recalculation that marks some cells as part of a cycle
+         * through other sheets rather than evaluating them. Called with the
+         * write lock held.
+         * @param theDirtyIds The ids of the cells to evaluate, and of the
+         *                    cells in the cycle, without duplicates.
+         * @param theEditedIds The sorted ids of the cells whose formula changed,
+         *                     reported even if their value didn't.
+         * @param theCycleIds The sorted ids of the cells in the cycle.
+         */
+        Recalculation(final int[] theDirtyIds, final int[] theEditedIds, final int[] theCycleIds) {
+            myCancellationMark = myExecutor.markCancellation();
+            int[] unfinished = takeUnfinished();
+            int[] claimedIds;
+            if (unfinished == null) {
+                claimedIds = theDirtyIds;
+                myEditedIds = theEditedIds;
             } else {
-                currentCell.removeSelfFromOtherCellsDependencyList(this);
-                currentCell.evaluate(this);
-                myGUI.setCellText(currentCell.getRow(), currentCell.getColumn(), Integer.toString(currentCell.getValue()));
-                if (currentCell.getFormula() != null) {
-                    //System.out.println("evaluating cell with formula " + currentCell.getFormula());
-                }
+                int[] all = Arrays.copyOf(unfinished, unfinished.length + theDirtyIds.length);
+                System.arraycopy(theDirtyIds, 0, all, unfinished.length, theDirtyIds.length);
+                claimedIds = myGraph.collectDependents(all);
+                myEditedIds = claimedIds.clone();
+                Arrays.sort(myEditedIds);
+            }
+            myCycleIds = theCycleIds;
+            myDirtyIds = theCycleIds.length == 0 ? claimedIds : without(claimedIds, theCycleIds);
+            myClaim = myRegionLocks.claim();
+            myGraph.claimRegions(claimedIds, myClaim);
+            myClaim.acquire();
+            mySettled = unfinished == null && !hasUnfinishedRecalculation();
+            try {
+                myScheduler = new EvaluationScheduler(myGraph, myDirtyIds);
+            } catch (RuntimeException | Error exception) {
+                myClaim.release();
+                throw exception;
             }
         }
 
-        if (!isCycle) {
-            for (int row = 0; row < mySpreadsheet.length; row++) {
-                for (int col = 0; col < mySpreadsheet[0].length; col++) {
-                    try {
-                        // Puts values in text fields
-                        if (mySpreadsheet[row][col].getFormula() == null) {
-                            myGUI.setCellText(row + 1, col + 1,"");
-                        }
-                        if (!mySpreadsheet[row][col].getFormula().equals("0")) {
-                            myGUI.setCellText(row + 1, col + 1,
-                                    Integer.toString(mySpreadsheet[row][col].getValue()));
-                        }
-                    } catch (Exception e) {
-                        //myGUI.setCellText(row, col, mySpreadsheet[row][col].toString());
-                        //e.printStackTrace();
+        /**
+         * Tells if the values of the cells are the ones their formulas give,
+         * with nothing left unfinished, so they can be kept for undoing.
+         * @return Returns true if no cancelled recalculation was taken in.
+         */
+        boolean isSettled() {
+            return mySettled;
+        }
+
+        /**
+         * Releases the region locks without evaluating anything.
+         */
+        void release() {
+            myClaim.release();
+        }
+
+        /**
+         * Evaluates the dirty cells in topological order. Cells that are
+         * part of a cycle are set to 0 and marked as such, cells that only
+         * depend on a cycle are still evaluated, and cells whose formula
+         * divides by 0 get an error value. Afterwards the region locks
+         * are released, the listeners get the cells whose value or cycle
+         * state changed, and then hear that the recalculation finished.
+         * If the recalculation is cancelled the listeners hear nothing more; its
+         * cells are kept and included in the next recalculation, which
+         * reports all of them since some may have changed already. If it
+         * fails, its cells are kept the same way, and the listeners still
+         * hear that it finished before the failure is thrown on.
+         */
+        void run() {
+            ArrayList<Cell> changedCells = new ArrayList<>();
+            boolean cancelled = false;
+            try {
+                boolean evaluated = false;
+                try {
+                    for (SpreadsheetListener listener : myListeners) {
+                        listener.recalculationStarted(myScheduler.getEvaluationOrder());
+                    }
+                    cancelled = !evaluate(changedCells);
+                    evaluated = true;
+                } finally {
+                    myClaim.release();
+                    if (!evaluated || cancelled) {
+                        addUnfinished(myDirtyIds);
+                    }
+                }
+                if (!cancelled && !changedCells.isEmpty()) {
+                    for (SpreadsheetListener listener : myListeners) {
+                        listener.cellsChanged(changedCells);
+                    }
+                }
+            } finally {
+                if (!cancelled) {
+                    for (SpreadsheetListener listener : myListeners) {
+                        listener.recalculationFinished();
                     }
                 }
             }
         }
+
+        /**
+         * Marks the cycles and evaluates the other dirty cells, with the
+         * region locks held.
+         * @param theChangedCells Receives the cells whose value or cycle state changed.
+         * @return Returns false if the recalculation was cancelled.
+         */
+        private boolean evaluate(final List<Cell> theChangedCells) {
+            for (int id : myCycleIds) {
+                markInCycle(myGraph.getCell(id), theChangedCells);
+            }
+            for (List<Cell> cycle : myScheduler.getCycles()) {
+                for (Cell cell : cycle) {
+                    markInCycle(cell, theChangedCells);
+                }
+            }
+
+            List<Cell> order = myScheduler.getEvaluationOrder();
+            long[] oldValues = new long[order.size()];
+            boolean[] wasDouble = new boolean[order.size()];
+            boolean[] wasInCycle = new boolean[order.size()];
+            for (int i = 0; i < order.size(); i++) {
+                Cell cell = order.get(i);
+                oldValues[i] = valueBits(cell);
+                wasDouble[i] = cell.isDouble();
+                wasInCycle[i] = cell.isInCycle();
+                cell.setInCycle(false);
+            }
+
+            if (!myExecutor.evaluate(myScheduler, myCancellationMark)) {
+                return false;
+            }
+
+            for (int i = 0; i < order.size(); i++) {
+                Cell cell = order.get(i);
+                if (valueBits(cell) != oldValues[i] || cell.isDouble() != wasDouble[i] || wasInCycle[i]
+                        || Arrays.binarySearch(myEditedIds, cell.getId()) >= 0) {
+                    theChangedCells.add(cell);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sets a cell of a cycle to 0 and marks it as such.
+         * @param theCell The cell.
+         * @param theChangedCells Receives the cell if that changed it, or if
+         *                        its formula was edited.
+         */
+        private void markInCycle(final Cell theCell, final List<Cell> theChangedCells) {
+            if (!theCell.isInCycle() || theCell.isDouble() || theCell.getValue() != 0
+                    || Arrays.binarySearch(myEditedIds, theCell.getId()) >= 0) {
+                theChangedCells.add(theCell);
+            }
+            theCell.setInCycle(true);
+            myGraph.valueChanged(theCell);
+        }
     }
 
-    /** Class to compare cells in a list, based off of how many cells contain that cell in the formula. */
-    class CellPrerequisiteComparator implements Comparator<Cell> {
-        @Override
-        public int compare(Cell cell1, Cell cell2) {
-            return Integer.compare(cell1.getCellsThatContainThisInFormula().size(),
-                    cell2.getCellsThatContainThisInFormula().size()) * -1;
+    /**
+     * Leaves some cells out of a list of cells.
+     * @param theIds The ids of the cells.
+     * @param theLeftOut The sorted ids of the cells to leave out.
+     * @return Returns the ids that aren't left out, in the same order.
+     */
+    private static int[] without(final int[] theIds, final int[] theLeftOut) {
+        int[] kept = new int[theIds.length];
+        int count = 0;
+        for (int id : theIds) {
+            if (Arrays.binarySearch(theLeftOut, id) < 0) {
+                kept[count++] = id;
+            }
         }
+        return Arrays.copyOf(kept, count);
+    }
+
+    /**
+     * Packs the value of a cell into a long for comparing it with a later one.
+     * @param theCell The cell.
+     * @return Returns the value, or the bits of the double if it is one.
+     */
+    private static long valueBits(final Cell theCell) {
+        return theCell.isDouble() ? Double.doubleToLongBits(theCell.getDoubleValue()) : theCell.getValue();
     }
 }
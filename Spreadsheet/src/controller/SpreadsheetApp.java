@@ -6,13 +6,21 @@ import model.Spreadsheet.src.view.SpreadsheetGUI;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Stack;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static model.Spreadsheet.src.model.OperatorToken.*;
 
 /**
  * SpreadsheetApp is the main driver for the Spreadsheet program and is
  * written with a text based version of the Spreadsheet.
+ * Each SpreadsheetApp drives one spreadsheet and its GUI, so a program can
+ * open more than one of them.
  * @author Donald Chinn
  * @author Patrick Hern
  * @author Nathameion Montgomery
@@ -20,10 +28,40 @@ import static model.Spreadsheet.src.model.OperatorToken.*;
  * @author Moon Chang
  */
 public class SpreadsheetApp {
-    /** The spreadsheet object. */
-    static Spreadsheet theSpreadsheet;
     /** The number of rows and column in the spreadsheet. */
     private static final int ROWS_AND_COLUMNS = 57;
+    /** The file name ending of binary snapshots. */
+    private static final String SNAPSHOT_EXTENSION = ".snap";
+    /** What is added to a snapshot's file name to name its journal. */
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    /** The spreadsheet object. */
+    private final Spreadsheet mySpreadsheet;
+    /** Makes every change to the spreadsheet on a background thread. */
+    private final RecalculationWorker myWorker;
+    /** The snapshot the spreadsheet was opened from, which saving to checkpoints the journal, or null. */
+    private final Path mySnapshotFile;
+    /** The journal of the edits made since the snapshot was saved, or null. */
+    private EditJournal myJournal;
+
+    /**
+     * Creates a driver for a spreadsheet, with a background worker of its own.
+     * @param theSpreadsheet The spreadsheet to drive.
+     * @param theSnapshotFile The snapshot the spreadsheet was opened from, or null.
+     */
+    public SpreadsheetApp(final Spreadsheet theSpreadsheet, final Path theSnapshotFile) {
+        mySpreadsheet = theSpreadsheet;
+        mySnapshotFile = theSnapshotFile;
+        myWorker = new RecalculationWorker(theSpreadsheet);
+    }
+
+    /**
+     * Getter for the spreadsheet.
+     * @return Returns the spreadsheet this driver changes.
+     */
+    public Spreadsheet getSpreadsheet() {
+        return mySpreadsheet;
+    }
 
     /**
      * Read a string from standard input.
@@ -54,8 +92,8 @@ public class SpreadsheetApp {
      * Prints the values stored in the cells.
      * @param theSpreadsheet The spreadsheet with all of its cells.
      */
-    private static void menuPrintValues(Spreadsheet theSpreadsheet) {
-        theSpreadsheet.printValues();
+    private void menuPrintValues(Spreadsheet theSpreadsheet) {
+        myWorker.submit(theSpreadsheet::printValues).join();
     }
 
     /**
@@ -63,13 +101,12 @@ public class SpreadsheetApp {
      * print cell menu option.
      * @param theSpreadsheet The spreadsheet with all the cells.
      */
-    private static void menuPrintCellFormula(Spreadsheet theSpreadsheet) {
-        CellToken cellToken = new CellToken();
+    private void menuPrintCellFormula(Spreadsheet theSpreadsheet) {
         String inputString;
 
         System.out.println("Enter the cell: ");
         inputString = readString();
-        theSpreadsheet.getCellToken(inputString, 0, cellToken);
+        CellToken cellToken = theSpreadsheet.getCellToken(inputString, 0);
 
         System.out.print(theSpreadsheet.printCellToken(cellToken));
         System.out.print(": ");
@@ -85,7 +122,8 @@ public class SpreadsheetApp {
 
         //theSpreadsheet.printCellFormula(cellToken);
 
-        theSpreadsheet.printCellFormula(theSpreadsheet.getCell(cellToken.getRow(), cellToken.getColumn()));
+        myWorker.submit(() -> theSpreadsheet.printCellFormula(
+                theSpreadsheet.getCell(cellToken.getRow(), cellToken.getColumn()))).join();
 
         System.out.println();
     }
@@ -94,29 +132,25 @@ public class SpreadsheetApp {
      * Prints out all the formulas stored in the Spreadsheet.
      * @param theSpreadsheet The spreadsheet with all Cells and formulas.
      */
-    private static void menuPrintAllFormulas(Spreadsheet theSpreadsheet) {
-        theSpreadsheet.printAllFormulas();
+    private void menuPrintAllFormulas(Spreadsheet theSpreadsheet) {
+        myWorker.submit(theSpreadsheet::printAllFormulas).join();
         System.out.println();
     }
 
     /**
      * Prints out to the console a prompt to change a Cell in the spreadsheet.
      * The String is parsed and then the formula is updated for the
-     * respective cell.
+     * respective cell. A malformed formula is reported and leaves the cell
+     * as it was.
      * @param theSpreadsheet The spreadsheet where a Cell will be changed.
      */
-    private static void menuChangeCellFormula(Spreadsheet theSpreadsheet) {
+    private void menuChangeCellFormula(Spreadsheet theSpreadsheet) {
         String inputCell;
         String inputFormula;
-        CellToken cellToken = new CellToken();
-        Stack expTreeTokenStack;
-//        ExpressionTreeToken expTreeToken;
-        Token expTreeToken;
-
 
         System.out.println("Enter the cell to change: ");
         inputCell = readString();
-        theSpreadsheet.getCellToken(inputCell, 0, cellToken);
+        CellToken cellToken = theSpreadsheet.getCellToken(inputCell, 0);
 
         // error check to make sure the row and column
         // are within spreadsheet array bounds.
@@ -131,74 +165,223 @@ public class SpreadsheetApp {
 
         System.out.println("Enter the cell's new formula: ");
         inputFormula = readString();
-        expTreeTokenStack = SpreadSheetUtility.getFormula(inputFormula);
-
-        ExpressionTreeNode root = ExpressionTreeNode.GetExpressionTree(expTreeTokenStack);
-        // DEBUG CODE
-        ExpressionTree.printTree(root);
-        System.out.println("");
-        System.out.println("The answer should be " + ExpressionTree.evaluate(root, theSpreadsheet));
-        String postFix = ""; // Temp Code
-        // This code prints out the expression stack from
-        // top to bottom (that is, reverse of postfix).
-        while (!expTreeTokenStack.isEmpty()) {
-            expTreeToken = (Token) expTreeTokenStack.pop();
-            printExpressionTreeToken(expTreeToken);
-
-            postFix += expTreeToken + " ";
+        try {
+            submitCellChange(cellToken.getRow(), cellToken.getColumn(), inputFormula).join();
+        } catch (CompletionException e) {
+            System.out.println(e.getCause().getMessage());
+        }
+        System.out.println();
+    }
+
+    /**
+     * Prompts for a CSV or TSV file and replaces the spreadsheet with its
+     * contents. Files ending in ".tsv" are read as tab separated. Snapshots
+     * replace the whole spreadsheet, so they are opened at startup instead.
+     * @param theSpreadsheet The spreadsheet to load into.
+     */
+    private void menuReadSpreadsheet(Spreadsheet theSpreadsheet) {
+        System.out.println("Enter the file to read: ");
+        Path file = Paths.get(readString().trim());
+        if (file.toString().endsWith(SNAPSHOT_EXTENSION)) {
+            System.out.println("Snapshots are opened by starting the program with the file as its argument.");
+            return;
         }
-        System.out.println(postFix);
+        myWorker.submit(() -> {
+            try {
+                SpreadsheetImporter.Result result = SpreadsheetImporter.read(theSpreadsheet, file);
+                System.out.println("Read " + result.getLoaded() + " cells from " + file + ".");
+                if (result.getSkipped() > 0) {
+                    System.out.println(result.getSkipped() + " cells were outside the spreadsheet and were skipped.");
+                }
+                if (result.getMalformed() > 0) {
+                    System.out.println(result.getMalformed()
+                            + " cells had formulas that couldn't be parsed and were left blank.");
+                }
+            } catch (IOException e) {
+                System.out.println("Could not read " + file + ": " + e.getMessage());
+            }
+        }).join();
+    }
 
+    /**
+     * Prompts for a CSV or TSV file and saves the formulas or the values of
+     * the spreadsheet to it. Files ending in ".tsv" are written tab separated,
+     * files ending in ".snap" get a binary snapshot of the whole spreadsheet.
+     * Saving to the snapshot the program was started with also empties its
+     * journal.
+     * @param theSpreadsheet The spreadsheet to save.
+     */
+    private void menuSaveSpreadsheet(Spreadsheet theSpreadsheet) {
+        System.out.println("Enter the file to save to: ");
+        Path file = Paths.get(readString().trim());
+        if (file.toString().endsWith(SNAPSHOT_EXTENSION)) {
+            myWorker.submit(() -> {
+                try {
+                    if (myJournal != null && file.equals(mySnapshotFile)) {
+                        theSpreadsheet.checkpoint(file);
+                    } else {
+                        theSpreadsheet.saveSnapshot(file);
+                    }
+                    System.out.println("Saved a snapshot to " + file + ".");
+                } catch (IOException e) {
+                    System.out.println("Could not save to " + file + ": " + e.getMessage());
+                }
+            }).join();
+            return;
+        }
+        System.out.println("Save formulas or values? (f/v): ");
+        String choice = readString().trim();
+        myWorker.submit(() -> {
+            try {
+                if (choice.startsWith("v")) {
+                    SpreadsheetExporter.writeValues(theSpreadsheet, file);
+                } else {
+                    SpreadsheetExporter.writeFormulas(theSpreadsheet, file);
+                }
+                System.out.println("Saved to " + file + ".");
+            } catch (IOException e) {
+                System.out.println("Could not save to " + file + ": " + e.getMessage());
+            }
+        }).join();
+    }
 
-        theSpreadsheet.changeCellFormulaAndRecalculate(cellToken, ExpressionTree.stringTree(root), inputFormula, root);
-        System.out.println();
+    /**
+     * GUIChangeCell parses a formula typed into the GUI and sets it on its cell.
+     * @param row Integer of the row.
+     * @param col Integer of the column.
+     * @param inputFormula String of the input formula.
+     * @throws FormulaParseException If the formula is malformed.
+     */
+    public void GUIChangeCell(int row, int col, String inputFormula) {
+        mySpreadsheet.setCellFormula(row, col, inputFormula);
     }
 
     /**
-     * GUIChangeCell works with the
+     * Hands a cell's new formula to the background worker and returns right
+     * away, so the GUI stays responsive while the spreadsheet recalculates.
+     * A newer change cancels the recalculation of an older one.
      * @param row Integer of the row.
      * @param col Integer of the column.
      * @param inputFormula String of the input formula.
+     * @return Returns a future that completes once the change is recalculated,
+     *         or exceptionally if the formula couldn't be used.
+     */
+    public CompletableFuture<Void> submitCellChange(int row, int col, String inputFormula) {
+        return myWorker.submit(() -> GUIChangeCell(row, col, inputFormula));
+    }
+
+    /**
+     * Hands undoing the newest edit to the background worker, which
+     * cancels the recalculation in progress like any other change.
+     * @return Returns a future that completes once the edit is undone.
+     */
+    public CompletableFuture<Void> submitUndo() {
+        return myWorker.submitAlone(mySpreadsheet::undo);
+    }
+
+    /**
+     * Hands redoing the edit undone last to the background worker.
+     * @return Returns a future that completes once the edit is redone.
+     */
+    public CompletableFuture<Void> submitRedo() {
+        return myWorker.submitAlone(mySpreadsheet::redo);
+    }
+
+    /**
+     * Undoes or redoes an edit from the console.
+     * @param isUndo True to undo, false to redo.
      */
-    public static void GUIChangeCell(int row, int col, String inputFormula) {
-        Stack expTreeTokenStack = SpreadSheetUtility.getFormula(inputFormula);
-        Token expTreeToken;
-        CellToken cellToken = new CellToken();
-        cellToken.setRow(row);
-        cellToken.setColumn(col);
-        ExpressionTreeNode root = ExpressionTreeNode.GetExpressionTree(expTreeTokenStack);
-        // DEBUG CODE
-        ExpressionTree.printTree(root);
-        System.out.println("The answer should be " + ExpressionTree.evaluate(root, theSpreadsheet));
-        String postFix = ""; // Temp Code
-        // This code prints out the expression stack from
-        // top to bottom (that is, reverse of postfix).
-        while (!expTreeTokenStack.isEmpty()) {
-            expTreeToken = (Token) expTreeTokenStack.pop();
-            printExpressionTreeToken(expTreeToken);
-
-            postFix += expTreeToken + " ";
+    private void menuUndoRedo(final boolean isUndo) {
+        myWorker.submitAlone(() -> {
+            if (!(isUndo ? mySpreadsheet.undo() : mySpreadsheet.redo())) {
+                System.out.println(isUndo ? "Nothing to undo." : "Nothing to redo.");
+            }
+        }).join();
+    }
+
+    /**
+     * Opens the snapshot given on the command line.
+     * @param theFile The snapshot file.
+     * @return Returns the spreadsheet, or null if there is no such file or
+     *         it couldn't be opened.
+     */
+    private static Spreadsheet openSnapshot(final Path theFile) {
+        if (!Files.exists(theFile)) {
+            System.out.println("Starting a new spreadsheet for " + theFile + ".");
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            Spreadsheet sheet = Spreadsheet.openSnapshot(theFile);
+            System.out.println("Opened " + sheet.getCells().size() + " cells from " + theFile + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms.");
+            return sheet;
+        } catch (IOException e) {
+            System.out.println("Could not open " + theFile + ": " + e.getMessage());
+            return null;
         }
-        theSpreadsheet.changeCellFormulaAndRecalculate(cellToken, ExpressionTree.stringTree(root), inputFormula, root);
     }
 
     /**
-     * Prints the expression tree's token out to the console.
-     * @param theExpTreeToken The expression tree token to be printed.
+     * Replays the journal kept next to the snapshot given on the command
+     * line and journals every edit from now on.
+     * @param theSnapshot The snapshot file.
      */
-    private static void printExpressionTreeToken(Token theExpTreeToken) {
-        System.out.println(theExpTreeToken);
+    private void openJournal(final Path theSnapshot) {
+        Path file = theSnapshot.resolveSibling(theSnapshot.getFileName() + JOURNAL_EXTENSION);
+        try {
+            myJournal = EditJournal.open(file, EditJournal.SyncPolicy.INTERVAL);
+            EditJournal.Result result = myJournal.replay(mySpreadsheet);
+            if (result.getReplayed() > 0) {
+                System.out.println("Replayed " + result.getReplayed() + " edits from " + file + ".");
+            }
+            if (result.getMalformed() > 0) {
+                System.out.println(result.getMalformed()
+                        + " journaled formulas couldn't be parsed and were skipped.");
+            }
+            mySpreadsheet.setJournal(myJournal);
+        } catch (IOException e) {
+            System.out.println("Could not open the journal " + file + ", edits won't be journaled: "
+                    + e.getMessage());
+            myJournal = null;
+        }
     }
 
     /**
      * The main method of the driver program that controls the console
      * interface.
-     * @param args The arguments passed into main.
+     * @param args The arguments passed into main: optionally a snapshot to
+     *             open, whose journal is replayed and kept from then on.
      */
     public static void main(String[] args) {
         //Spreadsheet theSpreadsheet = new Spreadsheet(8);
-        SpreadsheetGUI theGUI = new SpreadsheetGUI(ROWS_AND_COLUMNS, ROWS_AND_COLUMNS);
-        theSpreadsheet = new Spreadsheet(ROWS_AND_COLUMNS, theGUI);
+        Path snapshotFile = args.length > 0 ? Paths.get(args[0]) : null;
+        Spreadsheet spreadsheet = snapshotFile != null ? openSnapshot(snapshotFile) : null;
+        if (spreadsheet == null) {
+            spreadsheet = new Spreadsheet(ROWS_AND_COLUMNS);
+        }
+        new SpreadsheetApp(spreadsheet, snapshotFile).run();
+    }
+
+    /**
+     * Shows the GUI and runs the console interface until the user quits.
+     * The journal next to the snapshot, if there is one, is replayed first.
+     */
+    public void run() {
+        if (mySnapshotFile != null) {
+            openJournal(mySnapshotFile);
+        }
+        SpreadsheetGUI theGUI = new SpreadsheetGUI(this);
+        mySpreadsheet.addListener(theGUI);
+        List<Cell> loaded = new ArrayList<>();
+        for (Cell cell : mySpreadsheet.getCells()) {
+            if (cell.hasFormula()) {
+                loaded.add(cell);
+            }
+        }
+        if (!loaded.isEmpty()) {
+            theGUI.cellsChanged(loaded);
+        }
 
         boolean done = false;
         String command = "";
@@ -214,10 +397,10 @@ public class SpreadsheetApp {
             System.out.println("f: print out a cell's formula");
             System.out.println("a: print all cell formulas");
             System.out.println("c: change the formula of a cell");
-    /* BONUS
             System.out.println("r: read in a spreadsheet from a text file");
-            System.out.println("s: save the spreadsheet to a text file");
-     */
+            System.out.println("s: save the spreadsheet to a text file or a .snap snapshot");
+            System.out.println("u: undo the last change");
+            System.out.println("y: redo the last undone change");
             System.out.println();
             System.out.println("q: quit");
 
@@ -228,30 +411,36 @@ public class SpreadsheetApp {
             // We care only about the first character of the string
             switch (command.charAt(0)) {
                 case 'p':
-                    menuPrintValues(theSpreadsheet);
+                    menuPrintValues(mySpreadsheet);
                     break;
 
                 case 'f':
-                    menuPrintCellFormula(theSpreadsheet);
+                    menuPrintCellFormula(mySpreadsheet);
                     break;
 
                 case 'a':
-                    menuPrintAllFormulas(theSpreadsheet);
+                    menuPrintAllFormulas(mySpreadsheet);
                     break;
 
                 case 'c':
-                    menuChangeCellFormula(theSpreadsheet);
+                    menuChangeCellFormula(mySpreadsheet);
                     break;
 
-                    /* BONUS:
                 case 'r':
-                    menuReadSpreadsheet(theSpreadsheet);
+                    menuReadSpreadsheet(mySpreadsheet);
                     break;
 
                 case 's':
-                    menuSaveSpreadsheet(theSpreadsheet);
+                    menuSaveSpreadsheet(mySpreadsheet);
+                    break;
+
+                case 'u':
+                    menuUndoRedo(true);
+                    break;
+
+                case 'y':
+                    menuUndoRedo(false);
                     break;
-                    */
 
                 case 'q':
                     done = true;
@@ -265,6 +454,17 @@ public class SpreadsheetApp {
 
         }
 
+        if (myJournal != null) {
+            myWorker.submit(() -> {
+                try {
+                    myJournal.close();
+                } catch (IOException e) {
+                    System.out.println("Could not close the journal: " + e.getMessage());
+                }
+            }).join();
+        }
+        myWorker.shutdown();
+        mySpreadsheet.shutdown();
         System.out.println("Thank you for using our spreadsheet.");
     }
 }
\ No newline at end of file
@@ -0,0 +1,167 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.Cell;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SpreadsheetExporter writes a spreadsheet to a CSV or TSV file, one line
+ * per row, up to the last row and column that hold something. The output
+ * goes through a fixed size buffer a row at a time, so nothing the size of
+ * the file is built in memory. Saved formulas can be read back with
+ * SpreadsheetImporter; saved values are meant for other programs.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class SpreadsheetExporter {
+    /** The number of bytes written to the file at a time. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The spreadsheet being saved. */
+    private final Spreadsheet mySpreadsheet;
+    /** The character between two fields. */
+    private final char myDelimiter;
+    /** True to write the values of the cells instead of their formulas. */
+    private final boolean myValues;
+
+    /**
+     * Only the write methods create exporters.
+     * @param theSpreadsheet The spreadsheet to save.
+     * @param theFormat The format of the output.
+     * @param theValues True to write values instead of formulas.
+     */
+    private SpreadsheetExporter(final Spreadsheet theSpreadsheet, final DelimitedFormat theFormat,
+                                final boolean theValues) {
+        mySpreadsheet = theSpreadsheet;
+        myDelimiter = theFormat.getDelimiter();
+        myValues = theValues;
+    }
+
+    /**
+     * Saves the formulas of the spreadsheet to a file, replacing it if it
+     * exists. The format is picked from the file's extension.
+     * @param theSpreadsheet The spreadsheet to save.
+     * @param theFile The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    public static void writeFormulas(final Spreadsheet theSpreadsheet, final Path theFile) throws IOException {
+        write(theSpreadsheet, theFile, false);
+    }
+
+    /**
+     * Saves the values of the spreadsheet to a file, replacing it if it
+     * exists. The format is picked from the file's extension.
+     * @param theSpreadsheet The spreadsheet to save.
+     * @param theFile The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    public static void writeValues(final Spreadsheet theSpreadsheet, final Path theFile) throws IOException {
+        write(theSpreadsheet, theFile, true);
+    }
+
+    /**
+     * Writes the formulas or values of the spreadsheet to a channel. The
+     * channel is not closed.
+     * @param theSpreadsheet The spreadsheet to save.
+     * @param theChannel Where the UTF-8 encoded output goes.
+     * @param theFormat The format of the output.
+     * @param theValues True to write values instead of formulas.
+     * @throws IOException If the channel can't be written.
+     */
+    public static void write(final Spreadsheet theSpreadsheet, final WritableByteChannel theChannel,
+                             final DelimitedFormat theFormat, final boolean theValues) throws IOException {
+        Writer writer = Channels.newWriter(theChannel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE);
+        new SpreadsheetExporter(theSpreadsheet, theFormat, theValues).writeRows(writer);
+        writer.flush();
+    }
+
+    /**
+     * Opens a file for writing and saves the spreadsheet to it.
+     * @param theSpreadsheet The spreadsheet to save.
+     * @param theFile The file to write.
+     * @param theValues True to write values instead of formulas.
+     * @throws IOException If the file can't be written.
+     */
+    private static void write(final Spreadsheet theSpreadsheet, final Path theFile,
+                              final boolean theValues) throws IOException {
+        try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(theSpreadsheet, channel, DelimitedFormat.forFile(theFile), theValues);
+        }
+    }
+
+    /**
+     * Writes every row up to the last one that holds something.
+     * @param theWriter The output.
+     * @throws IOException If the output can't be written.
+     */
+    private void writeRows(final Writer theWriter) throws IOException {
+        int lastRow = -1;
+        int lastColumn = -1;
+        for (Cell cell : mySpreadsheet.getCells()) {
+            if (fieldOf(cell) != null) {
+                lastRow = Math.max(lastRow, cell.getRow());
+                lastColumn = Math.max(lastColumn, cell.getColumn());
+            }
+        }
+        for (int row = 0; row <= lastRow; row++) {
+            for (int col = 0; col <= lastColumn; col++) {
+                if (col > 0) {
+                    theWriter.write(myDelimiter);
+                }
+                String field = fieldOf(mySpreadsheet.getCells().get(row, col));
+                if (field != null) {
+                    writeField(theWriter, field);
+                }
+            }
+            theWriter.write('\n');
+        }
+    }
+
+    /**
+     * Gets what is written for a cell.
+     * @param theCell The cell, or null for a blank cell.
+     * @return Returns the formula or value of the cell, or null if the field stays empty.
+     */
+    private String fieldOf(final Cell theCell) {
+        if (theCell == null || theCell.getFormula() == null) {
+            return null;
+        }
+        return myValues ? theCell.getValueString() : theCell.getInOrderFormula();
+    }
+
+    /**
+     * Writes one field, quoting it if it contains a delimiter, a quote or
+     * a line break.
+     * @param theWriter The output.
+     * @param theField The field.
+     * @throws IOException If the output can't be written.
+     */
+    private void writeField(final Writer theWriter, final String theField) throws IOException {
+        boolean needsQuotes = false;
+        for (int i = 0; i < theField.length() && !needsQuotes; i++) {
+            char ch = theField.charAt(i);
+            needsQuotes = ch == myDelimiter || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!needsQuotes) {
+            theWriter.write(theField);
+            return;
+        }
+        theWriter.write('"');
+        for (int i = 0; i < theField.length(); i++) {
+            char ch = theField.charAt(i);
+            if (ch == '"') {
+                theWriter.write('"');
+            }
+            theWriter.write(ch);
+        }
+        theWriter.write('"');
+    }
+}
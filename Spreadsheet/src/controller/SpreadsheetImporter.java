@@ -0,0 +1,244 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.FormulaParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SpreadsheetImporter reads a spreadsheet from a CSV or TSV file. The file
+ * is read through a fixed size buffer and every field is handed to the
+ * spreadsheet as soon as it is complete, so the file is never held in
+ * memory as a whole. A field holds the formula of its cell, a value is just
+ * a formula without cell references, and an empty field is a blank cell.
+ * Fields may be quoted the way spreadsheet programs do it, with a doubled
+ * quote standing for a quote inside the field.
+ * The whole load is one batch, so the spreadsheet is recalculated once
+ * after the last formula and loading is linear in the size of the file.
+ * Fields off the spreadsheet and formulas that can't be parsed don't stop
+ * the load; they are counted in the Result, for the caller to report.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class SpreadsheetImporter {
+    /** The number of chars read from the file at a time. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The spreadsheet being loaded. */
+    private final Spreadsheet mySpreadsheet;
+    /** The character between two fields. */
+    private final char myDelimiter;
+    /** The field being read, reused for every field. */
+    private final StringBuilder myField = new StringBuilder();
+    /** The row of the field being read. */
+    private int myRow;
+    /** The column of the field being read. */
+    private int myColumn;
+    /** The number of cells loaded so far. */
+    private int myLoaded;
+    /** The number of non-empty fields that were off the spreadsheet. */
+    private int mySkipped;
+    /** The number of fields whose formula couldn't be parsed. */
+    private int myMalformed;
+
+    /**
+     * Only read() creates importers.
+     * @param theSpreadsheet The spreadsheet to load into.
+     * @param theFormat The format of the file.
+     */
+    private SpreadsheetImporter(final Spreadsheet theSpreadsheet, final DelimitedFormat theFormat) {
+        mySpreadsheet = theSpreadsheet;
+        myDelimiter = theFormat.getDelimiter();
+    }
+
+    /**
+     * Replaces the contents of the spreadsheet with the contents of a file.
+     * The format is picked from the file's extension.
+     * @param theSpreadsheet The spreadsheet to load into.
+     * @param theFile The file to read.
+     * @return Returns the Result, with the numbers of cells loaded, fields
+     *         off the spreadsheet and fields whose formula couldn't be parsed.
+     * @throws IOException If the file can't be read.
+     */
+    public static Result read(final Spreadsheet theSpreadsheet, final Path theFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ)) {
+            return read(theSpreadsheet, channel, DelimitedFormat.forFile(theFile));
+        }
+    }
+
+    /**
+     * Replaces the contents of the spreadsheet with what is read from a
+     * channel. Fields that fall outside the spreadsheet are skipped. The
+     * channel is not closed.
+     * @param theSpreadsheet The spreadsheet to load into.
+     * @param theChannel The UTF-8 encoded input.
+     * @param theFormat The format of the input.
+     * @return Returns the Result, with the numbers of cells loaded, fields
+     *         off the spreadsheet and fields whose formula couldn't be parsed.
+     * @throws IOException If the channel can't be read.
+     */
+    public static Result read(final Spreadsheet theSpreadsheet, final ReadableByteChannel theChannel,
+                              final DelimitedFormat theFormat) throws IOException {
+        SpreadsheetImporter importer = new SpreadsheetImporter(theSpreadsheet, theFormat);
+        theSpreadsheet.beginBatch();
+        try {
+            theSpreadsheet.clearFormulas();
+            importer.parse(Channels.newReader(theChannel, StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE));
+        } finally {
+            theSpreadsheet.commitBatch();
+        }
+        return new Result(importer.myLoaded, importer.mySkipped, importer.myMalformed);
+    }
+
+    /**
+     * Splits the input into fields, one buffer at a time. A field ends at a
+     * delimiter or at the end of a line; inside quotes both are part of the
+     * field.
+     * @param theReader The input.
+     * @throws IOException If the input can't be read.
+     */
+    private void parse(final Reader theReader) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        boolean quoted = false;
+        boolean quoteInQuoted = false;
+        boolean afterCarriageReturn = false;
+        boolean lineHasContent = false;
+        int count;
+        while ((count = theReader.read(buffer)) != -1) {
+            for (int i = 0; i < count; i++) {
+                char ch = buffer[i];
+                if (afterCarriageReturn) {
+                    afterCarriageReturn = false;
+                    if (ch == '\n') {
+                        continue;
+                    }
+                }
+                if (quoted) {
+                    if (ch == '"') {
+                        quoted = false;
+                        quoteInQuoted = true;
+                    } else {
+                        myField.append(ch);
+                    }
+                    continue;
+                }
+                if (ch == '"') {
+                    if (quoteInQuoted) {
+                        myField.append('"');
+                    }
+                    quoted = true;
+                    quoteInQuoted = false;
+                    lineHasContent = true;
+                    continue;
+                }
+                quoteInQuoted = false;
+                if (ch == myDelimiter) {
+                    endField();
+                    lineHasContent = true;
+                } else if (ch == '\n' || ch == '\r') {
+                    endField();
+                    myRow++;
+                    myColumn = 0;
+                    lineHasContent = false;
+                    afterCarriageReturn = ch == '\r';
+                } else {
+                    myField.append(ch);
+                    lineHasContent = true;
+                }
+            }
+        }
+        if (lineHasContent) {
+            endField();
+        }
+    }
+
+    /**
+     * Loads the field that was just read into its cell and moves on to the
+     * next column. A field that isn't a valid formula leaves its cell blank
+     * instead of stopping the load.
+     */
+    private void endField() {
+        if (!isBlank(myField)) {
+            try {
+                if (mySpreadsheet.setCellFormula(myRow, myColumn, myField.toString().trim()) != null) {
+                    myLoaded++;
+                } else {
+                    mySkipped++;
+                }
+            } catch (FormulaParseException e) {
+                myMalformed++;
+            }
+        }
+        myField.setLength(0);
+        myColumn++;
+    }
+
+    /**
+     * Checks whether a field is empty or only whitespace.
+     * @param theField The field.
+     * @return Returns true if the field holds no formula.
+     */
+    private static boolean isBlank(final CharSequence theField) {
+        for (int i = 0; i < theField.length(); i++) {
+            if (!Character.isWhitespace(theField.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * What a load did with the non-empty fields of the file.
+     */
+    public static final class Result {
+        /** The number of cells loaded. */
+        private final int myLoaded;
+        /** The number of fields that were off the spreadsheet. */
+        private final int mySkipped;
+        /** The number of fields whose formula couldn't be parsed. */
+        private final int myMalformed;
+
+        /**
+         * Creates the result of a load.
+         * @param theLoaded The number of cells loaded.
+         * @param theSkipped The number of fields that were off the spreadsheet.
+         * @param theMalformed The number of fields whose formula couldn't be parsed.
+         */
+        Result(final int theLoaded, final int theSkipped, final int theMalformed) {
+            myLoaded = theLoaded;
+            mySkipped = theSkipped;
+            myMalformed = theMalformed;
+        }
+
+        /**
+         * Gets the number of cells loaded.
+         * @return Returns the number of fields set as a cell's formula.
+         */
+        public int getLoaded() {
+            return myLoaded;
+        }
+
+        /**
+         * Gets the number of fields skipped because their cell is off the spreadsheet.
+         * @return Returns the number of skipped fields.
+         */
+        public int getSkipped() {
+            return mySkipped;
+        }
+
+        /**
+         * Gets the number of fields whose formula couldn't be parsed, whose
+         * cells were left blank.
+         * @return Returns the number of malformed fields.
+         */
+        public int getMalformed() {
+            return myMalformed;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.Cell;
+
+import java.util.List;
+
+/**
+ * SpreadsheetListener is told about the cells a recalculation changed.
+ * Recalculations may run on a background thread, so listeners are called
+ * on whatever thread recalculates and must not assume it is the GUI's.
+ * Several threads may edit the spreadsheet at once, so a listener can be
+ * called by more than one of them at the same time.
+ * The spreadsheet itself knows nothing about how its values are shown, so
+ * it can run without a GUI, and anything that wants to follow its values,
+ * like SpreadsheetGUI, subscribes as a listener.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public interface SpreadsheetListener {
+    /**
+     * Called once after each recalculation with the cells whose value or
+     * cycle state changed, plus the cell whose formula was edited. Cells
+     * that are part of a cycle report isInCycle() as true, cells whose
+     * formula divided by 0 report isError() as true.
+     * @param theChangedCells The changed cells, in the order they were evaluated.
+     */
+    void cellsChanged(List<Cell> theChangedCells);
+
+    /**
+     * Called before a recalculation evaluates anything, with the cells whose
+     * values are about to be worked out again. Until recalculationFinished()
+     * their values may be stale or half done. If the recalculation is
+     * cancelled the next one starts with these cells included.
+     * @param theDirtyCells The cells that will be evaluated; the list must not be kept.
+     */
+    default void recalculationStarted(List<Cell> theDirtyCells) {
+    }
+
+    /**
+     * Called after a recalculation finished and cellsChanged() was called,
+     * when every value is settled. Also called when a recalculation failed
+     * part of the way through; its cells are then recalculated with the next
+     * edit. Only a cancelled recalculation ends without it.
+     */
+    default void recalculationFinished() {
+    }
+}
@@ -0,0 +1,388 @@
+package model.Spreadsheet.src.controller;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SpreadsheetPool keeps many spreadsheets open in one program, so they share
+ * its warmed up code instead of each starting a program of their own. Every
+ * spreadsheet has a name and is saved as a snapshot under that name in the
+ * pool's directory. A spreadsheet is opened the first time it is checked
+ * out and stays loaded after it is checked back in, so using it again costs
+ * nothing. Spreadsheets that aren't checked out are evicted, least recently
+ * used first, when more than the limit are loaded or, for a pool that
+ * watches the heap, when the heap is still nearly full after a garbage
+ * collection: they are saved to their snapshot and dropped, and opened from
+ * it again the next time they are checked out. A spreadsheet that can't be
+ * saved stays loaded.
+ * Watching the heap sets the collection usage thresholds of the JVM's heap
+ * memory pools, which are shared by the whole program and stay set after
+ * the pool is closed, so it has to be asked for. The thresholds are set the
+ * first time a pool watches the heap, and a threshold the program set
+ * already is left alone.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class SpreadsheetPool implements AutoCloseable {
+    /** The file name ending of the snapshots. */
+    public static final String SNAPSHOT_EXTENSION = ".snap";
+    /** How full the heap may be after a collection before idle spreadsheets are evicted. */
+    public static final double MEMORY_PRESSURE = 0.8;
+
+    /** The directory the snapshots are kept in. */
+    private final Path myDirectory;
+    /** The size of new spreadsheets. */
+    private final int mySize;
+    /** The most spreadsheets kept loaded while they aren't checked out. */
+    private final int myMaxLoaded;
+    /** Every spreadsheet that is loaded or checked out, least recently used first; guarded by this. */
+    private final Map<String, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+    /** True once the heap thresholds were set for some pool; guarded by the class. */
+    private static boolean ourThresholdsSet;
+
+    /** Evicts idle spreadsheets when the heap is nearly full after a collection, or null if the heap isn't watched. */
+    private final NotificationListener myPressureListener;
+    /** True once the pool is closed; guarded by this. */
+    private boolean myClosed;
+
+    /**
+     * Creates a pool over a directory of snapshots, creating the directory
+     * if it doesn't exist. The pool doesn't watch the heap.
+     * @param theDirectory The directory of the snapshots.
+     * @param theSize The size of the spreadsheets that have no snapshot yet.
+     * @param theMaxLoaded The most spreadsheets kept loaded, not counting
+     *                     the ones checked out.
+     * @throws IOException If the directory can't be created.
+     */
+    public SpreadsheetPool(final Path theDirectory, final int theSize, final int theMaxLoaded)
+            throws IOException {
+        this(theDirectory, theSize, theMaxLoaded, false);
+    }
+
+    /**
+     * Creates a pool over a directory of snapshots, creating the directory
+     * if it doesn't exist, and watches the heap if asked to. Watching the
+     * heap changes the collection usage thresholds of the whole JVM; see
+     * the class comment.
+     * @param theDirectory The directory of the snapshots.
+     * @param theSize The size of the spreadsheets that have no snapshot yet.
+     * @param theMaxLoaded The most spreadsheets kept loaded, not counting
+     *                     the ones checked out.
+     * @param isWatchingHeap True to evict idle spreadsheets when the heap is
+     *                       still more than MEMORY_PRESSURE full after a collection.
+     * @throws IOException If the directory can't be created.
+     */
+    public SpreadsheetPool(final Path theDirectory, final int theSize, final int theMaxLoaded,
+                           final boolean isWatchingHeap) throws IOException {
+        if (theSize < 1 || theMaxLoaded < 0) {
+            throw new IllegalArgumentException("Bad pool size: " + theSize + ", " + theMaxLoaded);
+        }
+        myDirectory = Files.createDirectories(theDirectory.toAbsolutePath().normalize());
+        mySize = theSize;
+        myMaxLoaded = theMaxLoaded;
+        if (!isWatchingHeap) {
+            myPressureListener = null;
+            return;
+        }
+        myPressureListener = (theNotification, theHandback) -> {
+            if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(theNotification.getType())) {
+                evict(Math.max(1, getIdleCount() / 2));
+            }
+        };
+        setThresholds();
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+                .addNotificationListener(myPressureListener, null, null);
+    }
+
+    /**
+     * Sets the collection usage threshold of every heap memory pool to
+     * MEMORY_PRESSURE of its size, the first time a pool watches the heap.
+     * The thresholds belong to the JVM, so they are never set again or
+     * reset, and pools whose threshold is set already keep it.
+     */
+    private static synchronized void setThresholds() {
+        if (ourThresholdsSet) {
+            return;
+        }
+        ourThresholdsSet = true;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0
+                    && pool.getCollectionUsageThreshold() == 0) {
+                pool.setCollectionUsageThreshold((long) (max * MEMORY_PRESSURE));
+            }
+        }
+    }
+
+    /**
+     * Checks out a spreadsheet, opening its snapshot or creating it empty if
+     * it isn't loaded. It may be used until it is checked in, and is never
+     * evicted before. A spreadsheet may be checked out more than once at a
+     * time; it is idle once every checkout is checked in.
+     * @param theName The name of the spreadsheet, which is also its file name.
+     * @return Returns the spreadsheet.
+     * @throws IOException If the snapshot can't be opened.
+     * @throws IllegalArgumentException If the name can't be a file name in the directory.
+     * @throws IllegalStateException If the pool is closed.
+     */
+    public Spreadsheet checkOut(final String theName) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            if (myClosed) {
+                throw new IllegalStateException("The pool is closed");
+            }
+            entry = myEntries.get(theName);
+            if (entry == null) {
+                entry = new Entry(fileOf(theName));
+                myEntries.put(theName, entry);
+            }
+            entry.myCheckouts++;
+        }
+        Spreadsheet sheet;
+        try {
+            synchronized (entry) {
+                if (entry.mySheet == null) {
+                    entry.mySheet = Files.exists(entry.myFile)
+                            ? Spreadsheet.openSnapshot(entry.myFile) : new Spreadsheet(mySize);
+                }
+                sheet = entry.mySheet;
+            }
+        } catch (IOException | RuntimeException exception) {
+            checkIn(theName);
+            throw exception;
+        }
+        trim();
+        return sheet;
+    }
+
+    /**
+     * Gives back a spreadsheet from checkOut(). It must not be used
+     * afterwards unless it is checked out again. Checking in after the
+     * pool is closed does nothing.
+     * @param theName The name it was checked out with.
+     * @throws IllegalStateException If it isn't checked out.
+     */
+    public void checkIn(final String theName) {
+        synchronized (this) {
+            if (myClosed) {
+                return;
+            }
+            Entry entry = myEntries.get(theName);
+            if (entry == null || entry.myCheckouts == 0) {
+                throw new IllegalStateException(theName + " isn't checked out");
+            }
+            entry.myCheckouts--;
+            if (entry.myCheckouts == 0 && entry.mySheet == null) {
+                myEntries.remove(theName);
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Evicts the least recently used spreadsheets that aren't checked out:
+     * saves each to its snapshot and drops it.
+     * @param theCount The most spreadsheets to evict.
+     * @return Returns how many were evicted, fewer if there weren't enough
+     *         idle ones or one couldn't be saved.
+     */
+    public int evict(final int theCount) {
+        int evicted = 0;
+        while (evicted < theCount) {
+            Entry victim = eldestIdle();
+            if (victim == null || !evict(victim)) {
+                break;
+            }
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Gets the number of spreadsheets loaded, checked out or not.
+     * @return Returns the number of loaded spreadsheets.
+     */
+    public synchronized int getLoadedCount() {
+        int loaded = 0;
+        for (Entry entry : myEntries.values()) {
+            if (entry.mySheet != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Gets the number of spreadsheets loaded but not checked out.
+     * @return Returns the number of spreadsheets that can be evicted.
+     */
+    public synchronized int getIdleCount() {
+        int idle = 0;
+        for (Entry entry : myEntries.values()) {
+            if (entry.mySheet != null && entry.myCheckouts == 0) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * Saves every loaded spreadsheet to its snapshot, checked out or not,
+     * stops watching the heap, if it did, and drops them all. Nothing can be checked
+     * out afterwards.
+     * @throws IOException If a spreadsheet couldn't be saved; the others
+     *         are saved anyway.
+     */
+    @Override
+    public void close() throws IOException {
+        List<Entry> entries;
+        synchronized (this) {
+            if (myClosed) {
+                return;
+            }
+            myClosed = true;
+            entries = new ArrayList<>(myEntries.values());
+            myEntries.clear();
+        }
+        if (myPressureListener != null) {
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+                        .removeNotificationListener(myPressureListener);
+            } catch (ListenerNotFoundException exception) {
+                // never added
+            }
+        }
+        IOException failure = null;
+        for (Entry entry : entries) {
+            synchronized (entry) {
+                if (entry.mySheet == null) {
+                    continue;
+                }
+                try {
+                    entry.mySheet.saveSnapshot(entry.myFile);
+                } catch (IOException exception) {
+                    if (failure == null) {
+                        failure = exception;
+                    } else {
+                        failure.addSuppressed(exception);
+                    }
+                }
+                entry.mySheet.shutdown();
+                entry.mySheet = null;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Evicts the least recently used idle spreadsheets until no more than
+     * the limit are loaded besides the checked out ones.
+     */
+    private void trim() {
+        while (true) {
+            Entry victim;
+            synchronized (this) {
+                if (getIdleCount() <= myMaxLoaded) {
+                    return;
+                }
+                victim = eldestIdle();
+            }
+            if (victim == null || !evict(victim)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the least recently used spreadsheet that is loaded but not checked out.
+     * @return Returns its entry, or null if there is none.
+     */
+    private synchronized Entry eldestIdle() {
+        for (Entry entry : myEntries.values()) {
+            if (entry.mySheet != null && entry.myCheckouts == 0) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Saves a spreadsheet to its snapshot and drops it, unless it was
+     * checked out again or evicted by another thread meanwhile.
+     * @param theEntry The entry of the spreadsheet.
+     * @return Returns false if the spreadsheet couldn't be saved and stays
+     *         loaded, true otherwise.
+     */
+    private boolean evict(final Entry theEntry) {
+        synchronized (theEntry) {
+            Spreadsheet sheet = theEntry.mySheet;
+            synchronized (this) {
+                if (sheet == null || theEntry.myCheckouts > 0) {
+                    return true;
+                }
+            }
+            try {
+                sheet.saveSnapshot(theEntry.myFile);
+            } catch (IOException exception) {
+                return false;
+            }
+            sheet.shutdown();
+            theEntry.mySheet = null;
+            synchronized (this) {
+                if (theEntry.myCheckouts == 0) {
+                    myEntries.values().remove(theEntry);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gets the snapshot of a spreadsheet.
+     * @param theName The name of the spreadsheet.
+     * @return Returns the snapshot file in the pool's directory.
+     * @throws IllegalArgumentException If the name isn't a plain file name.
+     */
+    private Path fileOf(final String theName) {
+        Path file = myDirectory.resolve(theName + SNAPSHOT_EXTENSION);
+        if (theName.isEmpty() || !myDirectory.equals(file.getParent())) {
+            throw new IllegalArgumentException("Not a spreadsheet name: " + theName);
+        }
+        return file;
+    }
+
+    /**
+     * A spreadsheet of the pool, loaded or not. Its spreadsheet is changed
+     * only while the entry is locked; its checkouts only while the pool is.
+     */
+    private static final class Entry {
+        /** The snapshot the spreadsheet is saved to. */
+        private final Path myFile;
+        /** The spreadsheet, or null while it isn't loaded. */
+        private volatile Spreadsheet mySheet;
+        /** The number of times the spreadsheet is checked out. */
+        private int myCheckouts;
+
+        /**
+         * Creates the entry of a spreadsheet that isn't loaded yet.
+         * @param theFile The snapshot of the spreadsheet.
+         */
+        Entry(final Path theFile) {
+            myFile = theFile;
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.Cell;
+import model.Spreadsheet.src.model.CellToken;
+import model.Spreadsheet.src.model.ExternalReferences;
+import model.Spreadsheet.src.model.SpreadSheetUtility;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Workbook holds the named sheets of one model, whose formulas can read
+ * each other's cells, like Inputs!B3. Every sheet is saved as a snapshot
+ * under its name in the workbook's directory, and is only opened the first
+ * time it is asked for, together with the sheets its formulas read; sheets
+ * nobody asks for and nothing loaded reads stay on disk.
+ * Across sheets the workbook keeps a dependency graph of its own: for every
+ * cell some formula elsewhere reads, the sheets and references that read
+ * it. When a recalculation changes such a cell, only the sheets reading it
+ * are told, and each of them recalculates only the cells that read it and
+ * their dependents. Their changes are passed on the same way, round after
+ * round, until nothing more changes. A sheet that is opened later catches
+ * up by recalculating its readers of other sheets once.
+ * A cycle running through several sheets is cut off after as many rounds
+ * as there are references between the loaded sheets: its cells are set to
+ * 0 and marked as in a cycle, like the cycles within one sheet, and the
+ * cells depending on them are recalculated. Cells on other sheets are read
+ * without their region locks, so while several threads edit, a sheet may
+ * briefly see another half recalculated; the next round brings it up to date.
+ * A formula naming a cell of a sheet whose snapshot can't be opened is
+ * rejected: setting it throws an UncheckedIOException, and the reference
+ * is bound once the sheet does open.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class Workbook implements AutoCloseable {
+    /** The file name ending of the sheets' snapshots. */
+    public static final String SNAPSHOT_EXTENSION = SpreadsheetPool.SNAPSHOT_EXTENSION;
+
+    /** The directory the snapshots are kept in. */
+    private final Path myDirectory;
+    /** The size of new sheets. */
+    private final int mySize;
+    /** Every sheet, loaded or not, by name; guarded by this. */
+    private final Map<String, Sheet> mySheets = new TreeMap<>();
+    /**
+     * The references reading each cell that other sheets read, by the name
+     * of the cell's sheet and then its position; guarded by this. Sheets
+     * that don't exist yet may have readers too.
+     */
+    private final Map<String, Map<CellToken, List<Reader>>> myReaders = new HashMap<>();
+    /** The references whose cells changed and whose readers aren't recalculated yet, by reading sheet; guarded by itself. */
+    private final Map<Sheet, BitSet> myPending = new LinkedHashMap<>();
+    /** True while a thread is passing changes on between sheets; guarded by myPending. */
+    private boolean myPropagating;
+    /** True once the workbook is closed; guarded by this. */
+    private boolean myClosed;
+
+    /**
+     * Creates a workbook over a directory of snapshots, creating the
+     * directory if it doesn't exist. Every snapshot whose name is a sheet
+     * name is a sheet of the workbook; none is opened yet.
+     * @param theDirectory The directory of the snapshots.
+     * @param theSize The size of the sheets that have no snapshot yet.
+     * @throws IOException If the directory can't be created or listed.
+     */
+    public Workbook(final Path theDirectory, final int theSize) throws IOException {
+        if (theSize < 1) {
+            throw new IllegalArgumentException("Bad sheet size: " + theSize);
+        }
+        myDirectory = Files.createDirectories(theDirectory.toAbsolutePath().normalize());
+        mySize = theSize;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(myDirectory, "*" + SNAPSHOT_EXTENSION)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String name = fileName.substring(0, fileName.length() - SNAPSHOT_EXTENSION.length());
+                if (SpreadSheetUtility.isSheetName(name)) {
+                    mySheets.put(name, new Sheet(name, file));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the names of the sheets, loaded or not.
+     * @return Returns the names in alphabetical order.
+     */
+    public synchronized List<String> getSheetNames() {
+        return new ArrayList<>(mySheets.keySet());
+    }
+
+    /**
+     * Gets a sheet, opening its snapshot, or creating it empty if it has
+     * none, the first time it is asked for. The sheets its formulas read
+     * are opened along with it, and its readers of other sheets are
+     * recalculated, since those may have changed while it was on disk.
+     * @param theName The name of the sheet, which is also its file name.
+     * @return Returns the sheet.
+     * @throws IOException If the snapshot of the sheet, or of a sheet it reads, can't be opened.
+     * @throws IllegalArgumentException If the name isn't a sheet name formulas can refer to.
+     * @throws IllegalStateException If the workbook is closed.
+     */
+    public Spreadsheet getSheet(final String theName) throws IOException {
+        Sheet entry;
+        synchronized (this) {
+            if (myClosed) {
+                throw new IllegalStateException("The workbook is closed");
+            }
+            if (!SpreadSheetUtility.isSheetName(theName)) {
+                throw new IllegalArgumentException("Not a sheet name: " + theName);
+            }
+            entry = mySheets.get(theName);
+            if (entry == null) {
+                entry = new Sheet(theName, myDirectory.resolve(theName + SNAPSHOT_EXTENSION));
+                mySheets.put(theName, entry);
+            }
+        }
+        Spreadsheet sheet;
+        synchronized (entry) {
+            if (entry.mySheet != null) {
+                return entry.mySheet;
+            }
+            sheet = Files.exists(entry.myFile) ? Spreadsheet.openSnapshot(entry.myFile) : new Spreadsheet(mySize);
+            entry.mySheet = sheet;
+        }
+        connect(entry, sheet);
+        return sheet;
+    }
+
+    /**
+     * Tells if a sheet is loaded.
+     * @param theName The name of the sheet.
+     * @return Returns true if it was asked for or read by a loaded sheet.
+     */
+    public synchronized boolean isLoaded(final String theName) {
+        Sheet entry = mySheets.get(theName);
+        return entry != null && entry.mySheet != null;
+    }
+
+    /**
+     * Gets the number of sheets loaded.
+     * @return Returns the number of loaded sheets.
+     */
+    public synchronized int getLoadedCount() {
+        int loaded = 0;
+        for (Sheet entry : mySheets.values()) {
+            if (entry.mySheet != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Saves every loaded sheet to its snapshot. Sheets that were never
+     * loaded are left as they are.
+     * @throws IOException If a sheet couldn't be saved; the others are saved anyway.
+     */
+    public void save() throws IOException {
+        IOException failure = null;
+        for (Sheet entry : loadedSheets()) {
+            try {
+                entry.mySheet.saveSnapshot(entry.myFile);
+            } catch (IOException exception) {
+                if (failure == null) {
+                    failure = exception;
+                } else {
+                    failure.addSuppressed(exception);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Saves every loaded sheet and stops their threads. No sheet can be
+     * asked for afterwards.
+     * @throws IOException If a sheet couldn't be saved; the others are saved anyway.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (myClosed) {
+                return;
+            }
+            myClosed = true;
+        }
+        try {
+            save();
+        } finally {
+            for (Sheet entry : loadedSheets()) {
+                entry.mySheet.getDependencyGraph().getReferences().setListener(null);
+                entry.mySheet.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Hooks a newly loaded sheet into the workbook: follows the references
+     * it makes now and later, binds the references other sheets make to it,
+     * and recalculates what reads other sheets on both sides.
+     * @param theEntry The entry of the sheet.
+     * @param theSheet The sheet.
+     * @throws IOException If a sheet it reads can't be opened.
+     */
+    private void connect(final Sheet theEntry, final Spreadsheet theSheet) throws IOException {
+        ExternalReferences references = theSheet.getDependencyGraph().getReferences();
+        references.setListener((theIndex, theReference) -> {
+            try {
+                follow(theEntry, references, theIndex, theReference);
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Couldn't open sheet " + theReference.getSheet(), exception);
+            }
+        });
+        theSheet.addListener(theChangedCells -> cellsChanged(theEntry, theChangedCells));
+        int count = references.getCount();
+        for (int index = 0; index < count; index++) {
+            follow(theEntry, references, index, references.getReference(index));
+        }
+        List<Reader> readers = new ArrayList<>();
+        synchronized (this) {
+            Map<CellToken, List<Reader>> positions = myReaders.get(theEntry.myName);
+            if (positions != null) {
+                for (List<Reader> list : positions.values()) {
+                    readers.addAll(list);
+                }
+            }
+        }
+        for (Reader reader : readers) {
+            CellToken reference = reader.references().getReference(reader.myIndex);
+            reader.references().bind(reader.myIndex, theSheet.getCell(reference.getRow(), reference.getColumn()));
+            enqueue(reader.mySheet, reader.myIndex);
+        }
+        for (int index = 0; index < count; index++) {
+            enqueue(theEntry, index);
+        }
+        propagate();
+    }
+
+    /**
+     * Records a reference a sheet makes as an edge of the workbook's graph
+     * and binds it to its cell, opening the cell's sheet if it isn't loaded.
+     * A reference to a sheet that doesn't exist stays unbound until the
+     * sheet is created.
+     * @param theEntry The entry of the sheet making the reference.
+     * @param theReferences The sheet's references.
+     * @param theIndex The index of the reference.
+     * @param theReference The cell it names.
+     * @throws IOException If the cell's sheet can't be opened.
+     */
+    private void follow(final Sheet theEntry, final ExternalReferences theReferences, final int theIndex,
+                        final CellToken theReference) throws IOException {
+        boolean exists;
+        synchronized (this) {
+            List<Reader> readers = myReaders.computeIfAbsent(theReference.getSheet(), theKey -> new HashMap<>())
+                    .computeIfAbsent(new CellToken(theReference.getRow(), theReference.getColumn()),
+                            theKey -> new ArrayList<>());
+            boolean known = false;
+            for (Reader reader : readers) {
+                known |= reader.mySheet == theEntry && reader.myIndex == theIndex;
+            }
+            if (!known) {
+                readers.add(new Reader(theEntry, theIndex));
+            }
+            exists = !myClosed && mySheets.containsKey(theReference.getSheet());
+        }
+        if (exists) {
+            Spreadsheet source = getSheet(theReference.getSheet());
+            theReferences.bind(theIndex, source.getCell(theReference.getRow(), theReference.getColumn()));
+        }
+    }
+
+    /**
+     * Passes the cells a recalculation of a sheet changed on to the sheets
+     * that read them, binding the references to cells that didn't exist
+     * when they were made.
+     * @param theEntry The entry of the recalculated sheet.
+     * @param theChangedCells The cells whose value changed.
+     */
+    private void cellsChanged(final Sheet theEntry, final List<Cell> theChangedCells) {
+        List<Reader> readers = new ArrayList<>();
+        List<Cell> sources = new ArrayList<>();
+        synchronized (this) {
+            Map<CellToken, List<Reader>> positions = myReaders.get(theEntry.myName);
+            if (positions == null) {
+                return;
+            }
+            for (Cell cell : theChangedCells) {
+                List<Reader> list = positions.get(new CellToken(cell.getRow(), cell.getColumn()));
+                if (list != null) {
+                    for (Reader reader : list) {
+                        readers.add(reader);
+                        sources.add(cell);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < readers.size(); i++) {
+            Reader reader = readers.get(i);
+            if (reader.references().getSource(reader.myIndex) != sources.get(i)) {
+                reader.references().bind(reader.myIndex, sources.get(i));
+            }
+            enqueue(reader.mySheet, reader.myIndex);
+        }
+        propagate();
+    }
+
+    /**
+     * Remembers that the cell of a reference changed.
+     * @param theEntry The entry of the sheet making the reference.
+     * @param theIndex The index of the reference.
+     */
+    private void enqueue(final Sheet theEntry, final int theIndex) {
+        synchronized (myPending) {
+            myPending.computeIfAbsent(theEntry, theKey -> new BitSet()).set(theIndex);
+        }
+    }
+
+    /**
+     * Recalculates the readers of the changed references, round after
+     * round, until no more references change. Only one thread does this at
+     * a time; the changes other threads make meanwhile are picked up by the
+     * thread already doing it, so they return at once. Once there have been
+     * more rounds than references, the cycles the changes keep going round
+     * are marked, and the rounds after that leave them alone. A round that
+     * is over the limit without a cycle in it is dropped.
+     */
+    private void propagate() {
+        synchronized (myPending) {
+            if (myPropagating) {
+                return;
+            }
+            myPropagating = true;
+        }
+        boolean finished = false;
+        try {
+            int limit = referenceCount() + 1;
+            int rounds = 0;
+            Map<Sheet, int[]> cycles = new HashMap<>();
+            while (true) {
+                Map<Sheet, BitSet> round;
+                synchronized (myPending) {
+                    if (myPending.isEmpty()) {
+                        myPropagating = false;
+                        finished = true;
+                        return;
+                    }
+                    round = new LinkedHashMap<>(myPending);
+                    myPending.clear();
+                }
+                if (++rounds > limit) {
+                    Map<Sheet, int[]> found = findCycles(round);
+                    if (found.isEmpty()) {
+                        continue;
+                    }
+                    for (Map.Entry<Sheet, int[]> entry : found.entrySet()) {
+                        cycles.merge(entry.getKey(), entry.getValue(), (theOld, theNew) ->
+                                IntStream.concat(Arrays.stream(theOld), Arrays.stream(theNew))
+                                        .distinct().sorted().toArray());
+                        round.putIfAbsent(entry.getKey(), new BitSet());
+                    }
+                    rounds = 0;
+                }
+                for (Map.Entry<Sheet, BitSet> entry : round.entrySet()) {
+                    Spreadsheet sheet = entry.getKey().mySheet;
+                    if (sheet != null) {
+                        sheet.referencesChanged(entry.getValue().stream().toArray(),
+                                cycles.getOrDefault(entry.getKey(), new int[0]));
+                    }
+                }
+            }
+        } finally {
+            if (!finished) {
+                synchronized (myPending) {
+                    myPropagating = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the cells of the cycles that run through several sheets, which
+     * no sheet can find on its own. The search starts from the readers of
+     * the references in a round and follows, from each cell, the cells of
+     * its own sheet that read it and the readers of it on other sheets, so
+     * it only visits the cells the round reaches. Tarjan's algorithm then
+     * splits those into strongly connected components, with a stack of its
+     * own like EvaluationScheduler's; a component with more than one cell,
+     * or a cell that reads itself, is a cycle.
+     * @param theRound The references whose cells changed, by reading sheet.
+     * @return Returns the sorted ids of the cells in cycles, by sheet.
+     */
+    private Map<Sheet, int[]> findCycles(final Map<Sheet, BitSet> theRound) {
+        Map<Sheet, Map<Integer, Integer>> numbers = new HashMap<>();
+        List<Sheet> nodeSheets = new ArrayList<>();
+        List<Integer> nodeIds = new ArrayList<>();
+        List<int[]> edges = new ArrayList<>();
+        for (Map.Entry<Sheet, BitSet> entry : theRound.entrySet()) {
+            Spreadsheet sheet = entry.getKey().mySheet;
+            if (sheet != null) {
+                for (int external : entry.getValue().stream().toArray()) {
+                    for (int id : sheet.getReaders(external)) {
+                        number(entry.getKey(), id, numbers, nodeSheets, nodeIds);
+                    }
+                }
+            }
+        }
+        for (int node = 0; node < nodeSheets.size(); node++) {
+            Sheet entry = nodeSheets.get(node);
+            int id = nodeIds.get(node);
+            List<Integer> targets = new ArrayList<>();
+            for (int dependent : entry.mySheet.getDependents(id)) {
+                targets.add(number(entry, dependent, numbers, nodeSheets, nodeIds));
+            }
+            Cell cell = entry.mySheet.getDependencyGraph().getCell(id);
+            List<Reader> readers;
+            synchronized (this) {
+                Map<CellToken, List<Reader>> positions = myReaders.get(entry.myName);
+                List<Reader> list = positions == null ? null
+                        : positions.get(new CellToken(cell.getRow(), cell.getColumn()));
+                readers = list == null ? List.of() : new ArrayList<>(list);
+            }
+            for (Reader reader : readers) {
+                if (reader.mySheet.mySheet != null) {
+                    for (int readerId : reader.mySheet.mySheet.getReaders(reader.myIndex)) {
+                        targets.add(number(reader.mySheet, readerId, numbers, nodeSheets, nodeIds));
+                    }
+                }
+            }
+            edges.add(targets.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        int size = nodeSheets.size();
+        int[] index = new int[size];
+        int[] lowLink = new int[size];
+        boolean[] onStack = new boolean[size];
+        int[] componentStack = new int[size];
+        int componentTop = 0;
+        int[] callStack = new int[size];
+        int[] edgePosition = new int[size];
+        int nextIndex = 1;
+        Map<Sheet, List<Integer>> found = new HashMap<>();
+        for (int start = 0; start < size; start++) {
+            if (index[start] != 0) {
+                continue;
+            }
+            int callTop = 0;
+            callStack[callTop++] = start;
+            index[start] = nextIndex;
+            lowLink[start] = nextIndex++;
+            componentStack[componentTop++] = start;
+            onStack[start] = true;
+
+            while (callTop > 0) {
+                int current = callStack[callTop - 1];
+                int[] targets = edges.get(current);
+                if (edgePosition[current] < targets.length) {
+                    int next = targets[edgePosition[current]++];
+                    if (index[next] == 0) {
+                        index[next] = nextIndex;
+                        lowLink[next] = nextIndex++;
+                        componentStack[componentTop++] = next;
+                        onStack[next] = true;
+                        callStack[callTop++] = next;
+                    } else if (onStack[next]) {
+                        lowLink[current] = Math.min(lowLink[current], index[next]);
+                    }
+                    continue;
+                }
+
+                callTop--;
+                if (callTop > 0) {
+                    int parent = callStack[callTop - 1];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[current]);
+                }
+                if (lowLink[current] == index[current]) {
+                    boolean isCycle = componentStack[componentTop - 1] != current;
+                    for (int target : targets) {
+                        isCycle |= target == current;
+                    }
+                    int member;
+                    do {
+                        member = componentStack[--componentTop];
+                        onStack[member] = false;
+                        if (isCycle) {
+                            found.computeIfAbsent(nodeSheets.get(member), theKey -> new ArrayList<>())
+                                    .add(nodeIds.get(member));
+                        }
+                    } while (member != current);
+                }
+            }
+        }
+
+        Map<Sheet, int[]> cycles = new HashMap<>();
+        for (Map.Entry<Sheet, List<Integer>> entry : found.entrySet()) {
+            cycles.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).sorted().toArray());
+        }
+        return cycles;
+    }
+
+    /**
+     * Gets the number of a cell in the search for cycles, numbering it if
+     * the search hasn't come across it yet.
+     * @param theEntry The entry of the cell's sheet.
+     * @param theId The id of the cell.
+     * @param theNumbers The numbers given so far, by sheet and id.
+     * @param theSheets Receives the sheet of a newly numbered cell.
+     * @param theIds Receives the id of a newly numbered cell.
+     * @return Returns the number of the cell.
+     */
+    private static int number(final Sheet theEntry, final int theId,
+                              final Map<Sheet, Map<Integer, Integer>> theNumbers,
+                              final List<Sheet> theSheets, final List<Integer> theIds) {
+        return theNumbers.computeIfAbsent(theEntry, theKey -> new HashMap<>()).computeIfAbsent(theId, theKey -> {
+            theSheets.add(theEntry);
+            theIds.add(theId);
+            return theSheets.size() - 1;
+        });
+    }
+
+    /**
+     * Counts the references between the loaded sheets, the longest chain
+     * of rounds changes can take without a cycle.
+     * @return Returns the number of references the loaded sheets make.
+     */
+    private int referenceCount() {
+        int count = 0;
+        for (Sheet entry : loadedSheets()) {
+            count += entry.mySheet.getDependencyGraph().getReferences().getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the sheets that are loaded.
+     * @return Returns their entries.
+     */
+    private synchronized List<Sheet> loadedSheets() {
+        List<Sheet> loaded = new ArrayList<>();
+        for (Sheet entry : mySheets.values()) {
+            if (entry.mySheet != null) {
+                loaded.add(entry);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * A sheet of the workbook, loaded or not. Its spreadsheet is set once,
+     * while the entry is locked.
+     */
+    private static final class Sheet {
+        /** The name of the sheet. */
+        private final String myName;
+        /** The snapshot the sheet is saved to. */
+        private final Path myFile;
+        /** The sheet, or null while it isn't loaded. */
+        private volatile Spreadsheet mySheet;
+
+        /**
+         * Creates the entry of a sheet that isn't loaded yet.
+         * @param theName The name of the sheet.
+         * @param theFile The snapshot of the sheet.
+         */
+        Sheet(final String theName, final Path theFile) {
+            myName = theName;
+            myFile = theFile;
+        }
+    }
+
+    /**
+     * An edge of the workbook's graph: a reference one loaded sheet makes
+     * to a cell on another.
+     */
+    private static final class Reader {
+        /** The entry of the sheet making the reference. */
+        private final Sheet mySheet;
+        /** The index of the reference in that sheet's ExternalReferences. */
+        private final int myIndex;
+
+        /**
+         * Creates an edge.
+         * @param theSheet The entry of the sheet making the reference.
+         * @param theIndex The index of the reference.
+         */
+        Reader(final Sheet theSheet, final int theIndex) {
+            mySheet = theSheet;
+            myIndex = theIndex;
+        }
+
+        /**
+         * Gets the references of the sheet making the reference.
+         * @return Returns its table of external references.
+         */
+        ExternalReferences references() {
+            return mySheet.mySheet.getDependencyGraph().getReferences();
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package model.Spreadsheet.src.model;
 
-import model.Spreadsheet.src.controller.Spreadsheet;
-
-import java.util.ArrayList;
 import java.util.Stack;
 
 /**
@@ -19,29 +16,40 @@ public class Cell {
 	private final int myRow;
 	/** The column this cell is in. */
 	private final int myCol;
+	/** The id of this cell in the spreadsheet's DependencyGraph. */
+	private final int myId;
 	/** The formula of the cell. */
 	private String myFormula;
-	/** The value of the cell. */
-	private Integer myValue;
+	/** The value of the cell, truncated if it is a double. Blank cells are worth 0. */
+	private long myValue;
+	/** The value of the cell as a double, whether or not it is one. */
+	private double myDoubleValue;
+	/** Whether the value is a double rather than a whole number. */
+	private boolean myIsDouble;
+	/** Whether the cell is part of a cycle and so can't be evaluated. */
+	private boolean myInCycle;
 	/** The ExpressionTree of the Cell. */
 	private ExpressionTree myExpressionTree;
 	/** The formula in order of how it was typed. */
 	private String myInOrderFormula;
 	/** The root node of the tree that holds the formula for this cell. */
 	private ExpressionTreeNode myTreeNodeRoot;
-	/** The list of cells used inside this cells` formula. */
-	private final ArrayList<Cell> cellsInMyFormula = new ArrayList<Cell>();
-	/** The list of cells that use this cell in their formula. */
-	private final ArrayList<Cell> cellsThatContainMeInFormula = new ArrayList<Cell>();
+	/** The expression tree compiled into a program, which is what actually gets evaluated. */
+	private CompiledFormula myCompiledFormula;
+	/** The snapshot the formula still has to be read from, or null once it has been. */
+	private volatile SheetSnapshot mySnapshot;
 
-	/** Create a cell using an int for row and column.
+	/** Create a cell using an int for row and column. Cells are created
+	 * through DependencyGraph.addCell, which hands out the ids.
 	 *
 	 * @param theRow The row this cell is in.
 	 * @param theCol The column this cell is in.
+	 * @param theId The id of this cell in the dependency graph.
 	 */
-	public Cell(int theRow, int theCol) {
+	Cell(int theRow, int theCol, int theId) {
 		myRow = theRow;
 		myCol = theCol;
+		myId = theId;
 	}
 
 	/**
@@ -49,6 +57,7 @@ public class Cell {
 	 * @param theFormula The formula for the cell to be set to.
 	 */
 	public void setFormula (final String theFormula) {
+		loadFormula();
 		myFormula = theFormula;
 	}
 
@@ -58,6 +67,7 @@ public class Cell {
 	 * @param expressionTreeTokens The Stack of expression tree tokens.
 	 */
 	public void setFormula (final Stack<Token> expressionTreeTokens) {
+		loadFormula();
 		StringBuilder newFormula = new StringBuilder();
 		while (!expressionTreeTokens.isEmpty()) {
 			newFormula.append(expressionTreeTokens.pop().toString());
@@ -74,150 +84,227 @@ public class Cell {
 		myTreeNodeRoot = theExpTreeNode;
 	}
 
+	/**
+	 * Sets the compiled program of the cell's expression tree, which is
+	 * what evaluate() runs.
+	 * @param theCompiledFormula The compiled formula.
+	 */
+	public void setCompiledFormula(final CompiledFormula theCompiledFormula) {
+		loadFormula();
+		myCompiledFormula = theCompiledFormula;
+	}
+
+	/**
+	 * Getter for the compiled formula.
+	 * @return Returns the compiled formula, or null if the cell has no formula.
+	 */
+	public CompiledFormula getCompiledFormula() {
+		loadFormula();
+		return myCompiledFormula;
+	}
+
+	/**
+	 * Getter for the expression tree.
+	 * @return Returns the root of the cell's expression tree, or null.
+	 */
+	public ExpressionTreeNode getExpressionTree() {
+		return myTreeNodeRoot;
+	}
+
 	/**
 	 * Sets the in order formula for proper displaying of the
 	 * formula the user input.
 	 * @param theFormula The formula in normal order/in order.
 	 */
 	public void setFormulaInOrder(final String theFormula) {
+		loadFormula();
 		myInOrderFormula = theFormula;
 	}
 
 	/**
-	 * Evaluates the Spreadsheet using the Token using the spreadsheet's
-	 * formulas. Most of the work is done in the ExpressionTree classes
-	 * evaluate methods.
-	 * @param theSpreadsheet The spreadsheet to be evaluated.
+	 * Evaluates the cell's compiled formula and stores the result as its
+	 * value. A cell without a formula evaluates to 0. A formula that
+	 * divides by 0 gets the error value NaN instead, which every formula
+	 * reading the cell passes on, so a recalculation always gets through
+	 * all of its cells.
+	 * @param theEvaluator The evaluator to run the formula on.
 	 */
-	public void evaluate(Spreadsheet theSpreadsheet) {
-		myValue = ExpressionTree.evaluate(myTreeNodeRoot, theSpreadsheet);
+	public void evaluate(FormulaEvaluator theEvaluator) {
+		loadFormula();
+		if (myCompiledFormula == null) {
+			setValue(0);
+		} else {
+			long value;
+			try {
+				value = theEvaluator.evaluate(myCompiledFormula);
+			} catch (ArithmeticException exception) {
+				myValue = 0;
+				myDoubleValue = Double.NaN;
+				myIsDouble = true;
+				return;
+			}
+			if (theEvaluator.isDoubleResult()) {
+				myValue = value;
+				myDoubleValue = theEvaluator.getDoubleResult();
+				myIsDouble = true;
+			} else {
+				setValue(value);
+			}
+		}
 	}
 
 	/**
-	 * Getter for the formula.
-	 * @return Returns the formula.
+	 * Takes the value and state of the cell from a snapshot. The formula is
+	 * only read from the snapshot when it is first needed.
+	 * @param theSnapshot The snapshot, or null if the cell has no formula.
+	 * @param theValue The value, truncated toward 0 if it is a double.
+	 * @param theDoubleValue The value as a double.
+	 * @param isDouble True if the value is a double.
+	 * @param isInCycle True if the cell is part of a cycle.
 	 */
-	public String getFormula() {
-		return myFormula;
+	void load(final SheetSnapshot theSnapshot, final long theValue, final double theDoubleValue,
+			  final boolean isDouble, final boolean isInCycle) {
+		myValue = theValue;
+		myDoubleValue = theDoubleValue;
+		myIsDouble = isDouble;
+		myInCycle = isInCycle;
+		mySnapshot = theSnapshot;
 	}
 
 	/**
-	 * Getter for the in order formula.
-	 * @return Returns the formula in normal reading order.
+	 * Puts back a value the cell had before, instead of evaluating it
+	 * again, when an edit is undone or redone.
+	 * @param theValue The value, truncated toward 0 if it is a double.
+	 * @param theDoubleValue The value as a double.
+	 * @param isDouble True if the value is a double.
+	 * @param isInCycle True if the cell was part of a cycle.
 	 */
-	public String getInOrderFormula() {
-		return myInOrderFormula;
+	public void restoreValue(final long theValue, final double theDoubleValue,
+							 final boolean isDouble, final boolean isInCycle) {
+		myValue = theValue;
+		myDoubleValue = theDoubleValue;
+		myIsDouble = isDouble;
+		myInCycle = isInCycle;
 	}
 
 	/**
-	 * Getter for the value in the cell.
-	 * @return Returns the value in the cell.
+	 * Reads the formula from the snapshot the cell was loaded from, the
+	 * first time anything needs it.
 	 */
-	public Integer getValue() {
-		return myValue;
+	private void loadFormula() {
+		if (mySnapshot != null) {
+			synchronized (this) {
+				SheetSnapshot snapshot = mySnapshot;
+				if (snapshot != null) {
+					myFormula = snapshot.getFormula(myId);
+					myInOrderFormula = snapshot.getInOrderFormula(myId);
+					myCompiledFormula = snapshot.getProgram(myId);
+					mySnapshot = null;
+				}
+			}
+		}
 	}
 
-	/** Gets all the cells in the formula.
-	 *
-	 * @return A list of the cells in this formula.
+	/**
+	 * Sets the value of the cell to a whole number.
+	 * @param theValue The value.
 	 */
-	public ArrayList<Cell> getCellsInMyFormula() {
-		return cellsInMyFormula;
+	private void setValue(final long theValue) {
+		myValue = theValue;
+		myDoubleValue = theValue;
+		myIsDouble = false;
 	}
 
-	/** Gets the cells that contain this formula.
-	 *
-	 * @return A list of the cells that contain this formula.
+	/**
+	 * Marks whether the cell is part of a cycle. A cell in a cycle
+	 * can't be evaluated, so its value goes back to 0.
+	 * @param theInCycle True if the cell is part of a cycle.
 	 */
-	public ArrayList<Cell> getCellsThatContainThisInFormula() {
-		return cellsThatContainMeInFormula;
+	public void setInCycle(final boolean theInCycle) {
+		myInCycle = theInCycle;
+		if (theInCycle) {
+			setValue(0);
+		}
 	}
 
-	/** Creates a list of Prerequisites for this cell and adds it to the cellsInMyFormula list
-	 *
-	 * @param formula The formula of this list.
-	 * @param theSpreadsheet The main spreadsheet.
-	 */
-	public void createListOfPrerequisites(String formula, Spreadsheet theSpreadsheet) {
-		char ch = ' ';
-		CellToken cellToken;
-		int index = 0;
-		while (index < formula.length() ) {
-			// get rid of leading whitespace characters
-			while (index < formula.length() ) {
-				ch = formula.charAt(index);
-				if (!Character.isWhitespace(ch)) {
-					break;
-				}
-				index++;
-			}
-			if (index == formula.length() ) {
-				break;
-			}
-			if (Character.isUpperCase(ch)) {
-				// We found a cell reference token
-				//CellToken cellToken = new CellToken();
-				cellToken = new CellToken();
-				index = SpreadSheetUtility.getCellToken(formula, index, cellToken);
-				cellsInMyFormula.add(theSpreadsheet.getCell(cellToken.getRow(), cellToken.getColumn()));
-				try {
-					theSpreadsheet.getCell(cellToken.getRow(), cellToken.getColumn()).addToCellsThatContainThisInFormula(this);
-				} catch (Exception e) {
-					//cellsInMyFormula.add(null);
-				}
-				if (cellToken.getRow() == -1) {
-					break;
-				}
+	/**
+	 * Tells if the cell is part of a cycle.
+	 * @return Returns true if the cell is part of a cycle.
+	 */
+	public boolean isInCycle() {
+		return myInCycle;
+	}
 
-			} else {
-				break;
-			}
-		}
+	/**
+	 * Tells if the value of the cell is an error, because its formula, or
+	 * one it reads, divided by 0 or had no real result.
+	 * @return Returns true if the value is NaN.
+	 */
+	public boolean isError() {
+		return myIsDouble && Double.isNaN(myDoubleValue);
 	}
 
 	/**
-	 *  Clears the lists of cells that contain this cell in their formula,
-	 *  and the cells that are contained in this cells' formula.
+	 * Getter for the formula.
+	 * @return Returns the formula.
 	 */
-	public void clearLists() {
-		cellsThatContainMeInFormula.clear();
-		cellsInMyFormula.clear();
+	public String getFormula() {
+		loadFormula();
+		return myFormula;
 	}
 
 	/**
-	 * Adds a cell to the list of cells that contain this formula.
-	 * @param cell The cell to add to the list.
+	 * Tells if the cell has a formula, without reading it from a snapshot.
+	 * @return Returns true unless the cell is blank.
 	 */
-	private void addToCellsThatContainThisInFormula(Cell cell) {
-		cellsThatContainMeInFormula.add(cell);
+	public boolean hasFormula() {
+		return mySnapshot != null || myFormula != null;
 	}
 
-	/** Remove cell from the dependency list.
-	 *
-	 * @param cellRemoving The cell to remove from the dependency list.
+	/**
+	 * Getter for the in order formula.
+	 * @return Returns the formula in normal reading order.
 	 */
-	private void removeCellFromDependencyList(Cell cellRemoving) {
-		for (int i = 0; i < cellsInMyFormula.size(); i++) {
-			if (cellsInMyFormula.get(i).equals(cellRemoving)) {
-				cellsInMyFormula.remove(i);
-			}
-		}
+	public String getInOrderFormula() {
+		loadFormula();
+		return myInOrderFormula;
 	}
 
 	/**
-	 * Look over all the cells that have this cell in their dependency list and remove this cell.
-	 * @param theSpreadsheet The main spreadsheet.
+	 * Getter for the value in the cell.
+	 * @return Returns the value in the cell, truncated toward 0 if it is a double.
 	 */
-	public void removeSelfFromOtherCellsDependencyList(Spreadsheet theSpreadsheet) {
-		for (int i = 0; i < cellsThatContainMeInFormula.size(); i++) {
-			Cell cellThatContainsMeInFormula = cellsThatContainMeInFormula.get(i);
-			cellThatContainsMeInFormula.removeCellFromDependencyList(this);
-		}
+	public long getValue() {
+		return myValue;
+	}
+
+	/**
+	 * Getter for the value in the cell as a double.
+	 * @return Returns the value in the cell.
+	 */
+	public double getDoubleValue() {
+		return myDoubleValue;
+	}
+
+	/**
+	 * Tells if the value in the cell is a double rather than a whole number.
+	 * @return Returns true for a double.
+	 */
+	public boolean isDouble() {
+		return myIsDouble;
+	}
+
+	/**
+	 * Gets the value in the cell as text. Whole numbers have no decimal point.
+	 * @return Returns the value as text.
+	 */
+	public String getValueString() {
+		return myIsDouble ? Double.toString(myDoubleValue) : Long.toString(myValue);
 	}
 
 	@Override
 	public String toString() {
-		return myFormula;
+		return getFormula();
 	}
 
 	/**
@@ -235,4 +322,12 @@ public class Cell {
 	public int getColumn() {
 		return myCol;
 	}
+
+	/**
+	 * Returns the id of this cell in the spreadsheet's DependencyGraph.
+	 * @return An int that identifies this cell.
+	 */
+	public int getId() {
+		return myId;
+	}
 }
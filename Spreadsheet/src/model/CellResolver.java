@@ -0,0 +1,35 @@
+package model.Spreadsheet.src.model;
+
+/**
+ * CellResolver turns a cell reference into the id of the cell it names,
+ * so compiled formulas can read cells directly by id. A reference to a
+ * cell on another sheet becomes the index of an ExternalReferences entry
+ * instead.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public interface CellResolver {
+    /**
+     * Gets the id of the cell at a position, creating a blank cell there
+     * if there isn't one yet.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the id of the cell, or -1 if the position is off the spreadsheet.
+     */
+    int resolve(int theRow, int theColumn);
+
+    /**
+     * Gets the index of a reference to a cell on another sheet, adding the
+     * reference if no formula has made it yet.
+     * @param theSheet The name of the sheet.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the index of the reference, or -1 if the spreadsheet
+     *         can't refer to other sheets, in which case the cell counts as 0.
+     *         Whatever this throws is thrown on by the parser, which then
+     *         rejects the formula.
+     */
+    default int resolveExternal(String theSheet, int theRow, int theColumn) {
+        return -1;
+    }
+}
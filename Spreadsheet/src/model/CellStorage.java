@@ -0,0 +1,40 @@
+package model.Spreadsheet.src.model;
+
+/**
+ * CellStorage holds the cells of a spreadsheet by their row and column.
+ * Only cells that have been created are stored, so positions that were
+ * never used don't take up any memory. Iterating goes over the stored
+ * cells in no particular order.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public interface CellStorage extends Iterable<Cell> {
+    /**
+     * Gets the cell at the given position.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the cell, or null if there is no cell there.
+     */
+    Cell get(int theRow, int theColumn);
+
+    /**
+     * Stores a cell at its own row and column, replacing any cell that
+     * was there before.
+     * @param theCell The cell to store.
+     */
+    void put(Cell theCell);
+
+    /**
+     * Removes the cell at the given position.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the cell that was removed, or null if there was none.
+     */
+    Cell remove(int theRow, int theColumn);
+
+    /**
+     * Gets the number of stored cells.
+     * @return Returns how many cells are stored.
+     */
+    int size();
+}
@@ -1,26 +1,52 @@
 package model.Spreadsheet.src.model;
 
+import java.util.Objects;
+
 /**
  * CellToken are for the cell tokens with a row and column.
  * An example is row: A
  *               col: 2
  *               Or:  A2
+ * A CellToken can't be changed once it is made, so formulas can share
+ * them. The row and column are packed into one long, which also serves
+ * as the token's hash key.
+ * A cell on another sheet of the workbook is named with the sheet first,
+ * like Inputs!B3; its token also holds the sheet's name.
  * @author Patrick Hern
  * @author Nathameion Montgomery
  */
 public class CellToken extends Token {
-    /** The column of the Cell. */
-    private int myColumn;   // column A = 0, B = 1, ...
-    /** The row of the Cell. */
-    private int myRow;      // row        0, 1, 2, ...
+    /** The row in the high 32 bits and the column in the low 32 bits. */
+    private final long myPosition;
+    /** The name of the sheet the cell is on, or null for the formula's own sheet. */
+    private final String mySheet;
+
+    /**
+     * Public constructor for CellToken.
+     * @param theRow The row of the cell, row 0, 1, 2, ...
+     * @param theColumn The column of the cell, column A = 0, B = 1, ...
+     */
+    public CellToken(final int theRow, final int theColumn) {
+        this(null, theRow, theColumn);
+    }
 
     /**
-     * Public constructor for CellToken that sets the Row
-     * and Column to a default value of 0.
+     * Constructor for a CellToken that may name a cell on another sheet.
+     * @param theSheet The name of the sheet, or null for the formula's own sheet.
+     * @param theRow The row of the cell, row 0, 1, 2, ...
+     * @param theColumn The column of the cell, column A = 0, B = 1, ...
      */
-    public CellToken() {
-        myColumn = 0;
-        myRow = 0;
+    public CellToken(final String theSheet, final int theRow, final int theColumn) {
+        myPosition = ((long) theRow << 32) | (theColumn & 0xFFFFFFFFL);
+        mySheet = theSheet;
+    }
+
+    /**
+     * Getter for the sheet of the CellToken.
+     * @return Returns the name of the sheet, or null if the cell is on the formula's own sheet.
+     */
+    public String getSheet() {
+        return mySheet;
     }
 
     /**
@@ -28,7 +54,7 @@ public class CellToken extends Token {
      * @return Returns an integer of the Cell's row.
      */
     public int getRow() {
-        return myRow;
+        return (int) (myPosition >> 32);
     }
 
     /**
@@ -36,55 +62,29 @@ public class CellToken extends Token {
      * @return Returns an integer of the Cell's column.
      */
     public int getColumn() {
-        return myColumn;
+        return (int) myPosition;
     }
 
-    /**
-     * Setter for the row of the Cell.
-     * @param theNewRow The new row to be set to.
-     */
-    public void setRow(final int theNewRow) {
-        myRow = theNewRow;
+    @Override
+    public boolean equals(final Object theOther) {
+        return theOther instanceof CellToken && ((CellToken) theOther).myPosition == myPosition
+                && Objects.equals(((CellToken) theOther).mySheet, mySheet);
     }
 
-    /**
-     * Setter for the column of the Cell.
-     * @param theNewColumn The new column to be set to.
-     */
-    public void setColumn(final int theNewColumn) {
-        myColumn = theNewColumn;
+    @Override
+    public int hashCode() {
+        return Long.hashCode(myPosition) * 31 + Objects.hashCode(mySheet);
     }
 
     /**
-     * toString method that calls getColumnCharacters method to get
-     * the columns character and myRow to get the row number of
-     * the cell.
-     * @return Returns the ColumnRow (I.E. A0, F10)
+     * toString method that prints the cell the way it is typed in a
+     * formula, using SpreadSheetUtility.printCellToken.
+     * @return Returns the ColumnRow (I.E. A0, F10, AB3, Inputs!B3)
      */
     @Override
     public String toString() {
-        StringBuilder result = new StringBuilder(getColumnCharacters());
-        result.append(myRow);
-        return result.toString();
-    }
-
-    /**
-     * Takes the column and converts it into a char from A to B ... AA
-     * and so on. Uses myRow to get the column since 2D arrays are
-     * stored strange internally.
-     * @return Returns a String of the columns letter representation.
-     */
-    private String getColumnCharacters() {
-        StringBuilder result = new StringBuilder();
-        int currentRow = myRow;
-
-        do {
-            int letterNumber = (myColumn % 26) + 'A';
-            result.append((char) letterNumber);
-            currentRow = currentRow / 26;
-        } while (currentRow > 0);
-
-        return result.toString();
+        String cell = SpreadSheetUtility.printCellToken(this);
+        return mySheet == null ? cell : mySheet + SpreadSheetUtility.SHEET_SEPARATOR + cell;
     }
 
 }
@@ -0,0 +1,367 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+
+/**
+ * ColumnAggregates is a segment tree over the cells of one column, so that
+ * SUM, AVERAGE, MIN, MAX and COUNT over any run of rows take O(log n) node
+ * visits instead of a scan of the rows. Every node holds the sum, the number
+ * of non-blank cells and the ids of the smallest and largest cells of the
+ * rows below it. When a cell's value changes only the nodes above it are
+ * recomputed, which is also O(log n). Whole numbers are summed exactly in a
+ * long; a subtree that holds a double or whose long sum overflowed is marked
+ * inexact, and ranges that include it are summed as doubles instead.
+ * The tree is locked while it is read or changed, since cells in the same
+ * column can be evaluated on different threads.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+final class ColumnAggregates {
+    /** Stored in place of a cell id when a subtree has no non-blank cells. */
+    private static final int NONE = -1;
+
+    /** The graph that holds the cells, by id. */
+    private final DependencyGraph myGraph;
+    /** The number of leaves, a power of two; leaf i is row i and is node mySize + i. */
+    private int mySize;
+    /** The sum of the whole-number cells of each node. */
+    private long[] myLongSums;
+    /** The sum of all the cells of each node, as doubles. */
+    private double[] myDoubleSums;
+    /** The number of non-blank cells of each node. */
+    private int[] myCounts;
+    /** Whether a node has a double cell or overflowed its long sum. */
+    private boolean[] myInexact;
+    /** The id of the smallest non-blank cell of each node, or NONE. */
+    private int[] myMins;
+    /** The id of the largest non-blank cell of each node, or NONE. */
+    private int[] myMaxes;
+
+    /**
+     * Creates an empty tree.
+     * @param theGraph The graph that holds the cells, by id.
+     */
+    ColumnAggregates(final DependencyGraph theGraph) {
+        myGraph = theGraph;
+        allocate(1);
+    }
+
+    /**
+     * Puts a cell into its leaf without fixing up the nodes above it. Used
+     * to fill a new tree, followed by one build().
+     * @param theCell A cell of this column.
+     */
+    void load(final Cell theCell) {
+        if (theCell.getRow() >= mySize) {
+            grow(theCell.getRow());
+        }
+        setLeaf(mySize + theCell.getRow(), theCell);
+    }
+
+    /**
+     * Computes every node above the leaves.
+     */
+    void build() {
+        for (int node = mySize - 1; node > 0; node--) {
+            combine(node);
+        }
+    }
+
+    /**
+     * Takes in the new value of a cell, or the fact that it became blank.
+     * @param theCell A cell of this column.
+     */
+    synchronized void update(final Cell theCell) {
+        if (theCell.getRow() >= mySize) {
+            grow(theCell.getRow());
+            setLeaf(mySize + theCell.getRow(), theCell);
+            build();
+            return;
+        }
+        int node = mySize + theCell.getRow();
+        setLeaf(node, theCell);
+        for (node >>= 1; node > 0; node >>= 1) {
+            combine(node);
+        }
+    }
+
+    /**
+     * Adds a run of rows of this column to an accumulator.
+     * @param theFirstRow The first row.
+     * @param theLastRow The last row, included.
+     * @param theAccumulator Collects the aggregates of every column of a range.
+     */
+    synchronized void query(final int theFirstRow, final int theLastRow, final Accumulator theAccumulator) {
+        int low = mySize + Math.max(theFirstRow, 0);
+        int high = mySize + Math.min(theLastRow, mySize - 1) + 1;
+        while (low < high) {
+            if ((low & 1) != 0) {
+                add(low++, theAccumulator);
+            }
+            if ((high & 1) != 0) {
+                add(--high, theAccumulator);
+            }
+            low >>= 1;
+            high >>= 1;
+        }
+    }
+
+    /**
+     * Adds one node to an accumulator.
+     * @param theNode The node.
+     * @param theAccumulator The accumulator.
+     */
+    private void add(final int theNode, final Accumulator theAccumulator) {
+        long left = theAccumulator.myLongSum;
+        long right = myLongSums[theNode];
+        long sum = left + right;
+        theAccumulator.myInexact |= myInexact[theNode] || ((left ^ sum) & (right ^ sum)) < 0;
+        theAccumulator.myLongSum = sum;
+        theAccumulator.myDoubleSum += myDoubleSums[theNode];
+        theAccumulator.myCount += myCounts[theNode];
+        if (myMins[theNode] != NONE) {
+            Cell min = myGraph.getCell(myMins[theNode]);
+            Cell max = myGraph.getCell(myMaxes[theNode]);
+            if (theAccumulator.myMin == null || compare(min, theAccumulator.myMin) < 0) {
+                theAccumulator.myMin = min;
+            }
+            if (theAccumulator.myMax == null || compare(max, theAccumulator.myMax) > 0) {
+                theAccumulator.myMax = max;
+            }
+        }
+    }
+
+    /**
+     * Sets a leaf from a cell.
+     * @param theNode The leaf.
+     * @param theCell The cell of the leaf's row.
+     */
+    private void setLeaf(final int theNode, final Cell theCell) {
+        boolean blank = !theCell.hasFormula();
+        myLongSums[theNode] = theCell.isDouble() ? 0 : theCell.getValue();
+        myDoubleSums[theNode] = theCell.getDoubleValue();
+        myCounts[theNode] = blank ? 0 : 1;
+        myInexact[theNode] = theCell.isDouble();
+        myMins[theNode] = blank ? NONE : theCell.getId();
+        myMaxes[theNode] = myMins[theNode];
+    }
+
+    /**
+     * Computes a node from its two children.
+     * @param theNode The node, not a leaf.
+     */
+    private void combine(final int theNode) {
+        int left = theNode << 1;
+        int right = left + 1;
+        long leftSum = myLongSums[left];
+        long rightSum = myLongSums[right];
+        long sum = leftSum + rightSum;
+        myLongSums[theNode] = sum;
+        myDoubleSums[theNode] = myDoubleSums[left] + myDoubleSums[right];
+        myCounts[theNode] = myCounts[left] + myCounts[right];
+        myInexact[theNode] = myInexact[left] || myInexact[right] || ((leftSum ^ sum) & (rightSum ^ sum)) < 0;
+        myMins[theNode] = pick(myMins[left], myMins[right], -1);
+        myMaxes[theNode] = pick(myMaxes[left], myMaxes[right], 1);
+    }
+
+    /**
+     * Picks the smaller or larger of two cells.
+     * @param theFirst The id of one cell, or NONE.
+     * @param theSecond The id of the other cell, or NONE.
+     * @param theSign -1 to pick the smaller cell, 1 to pick the larger one.
+     * @return Returns the id of the picked cell, or NONE if both are NONE.
+     */
+    private int pick(final int theFirst, final int theSecond, final int theSign) {
+        if (theFirst == NONE) {
+            return theSecond;
+        }
+        if (theSecond == NONE) {
+            return theFirst;
+        }
+        int comparison = compare(myGraph.getCell(theSecond), myGraph.getCell(theFirst));
+        return comparison * theSign > 0 ? theSecond : theFirst;
+    }
+
+    /**
+     * Makes room for a row, keeping the leaves that are there. The nodes
+     * above the leaves have to be built again afterwards.
+     * @param theRow The row that has to fit.
+     */
+    private void grow(final int theRow) {
+        int oldSize = mySize;
+        long[] longSums = myLongSums;
+        double[] doubleSums = myDoubleSums;
+        int[] counts = myCounts;
+        boolean[] inexact = myInexact;
+        int[] mins = myMins;
+        int[] maxes = myMaxes;
+        allocate(Integer.highestOneBit(theRow) << 1);
+        System.arraycopy(longSums, oldSize, myLongSums, mySize, oldSize);
+        System.arraycopy(doubleSums, oldSize, myDoubleSums, mySize, oldSize);
+        System.arraycopy(counts, oldSize, myCounts, mySize, oldSize);
+        System.arraycopy(inexact, oldSize, myInexact, mySize, oldSize);
+        System.arraycopy(mins, oldSize, myMins, mySize, oldSize);
+        System.arraycopy(maxes, oldSize, myMaxes, mySize, oldSize);
+    }
+
+    /**
+     * Replaces the nodes with empty ones.
+     * @param theSize The number of leaves, a power of two.
+     */
+    private void allocate(final int theSize) {
+        mySize = theSize;
+        myLongSums = new long[2 * theSize];
+        myDoubleSums = new double[2 * theSize];
+        myCounts = new int[2 * theSize];
+        myInexact = new boolean[2 * theSize];
+        myMins = new int[2 * theSize];
+        myMaxes = new int[2 * theSize];
+        Arrays.fill(myMins, NONE);
+        Arrays.fill(myMaxes, NONE);
+    }
+
+    /**
+     * Compares the values of two cells, exactly if both are whole numbers.
+     * @param theFirst One cell.
+     * @param theSecond The other cell.
+     * @return Returns a negative number, zero or a positive number as the
+     *         first cell is less than, equal to or greater than the second.
+     */
+    static int compare(final Cell theFirst, final Cell theSecond) {
+        if (!theFirst.isDouble() && !theSecond.isDouble()) {
+            return Long.compare(theFirst.getValue(), theSecond.getValue());
+        }
+        return Double.compare(theFirst.getDoubleValue(), theSecond.getDoubleValue());
+    }
+
+    /**
+     * Accumulator collects the aggregates of the columns of a range and
+     * then works out the value of a function from them. Each evaluator keeps
+     * one and reuses it, so aggregating doesn't allocate.
+     */
+    static final class Accumulator {
+        /** The sum of the whole-number cells. */
+        private long myLongSum;
+        /** The sum of all the cells, as doubles. */
+        private double myDoubleSum;
+        /** The number of non-blank cells. */
+        private int myCount;
+        /** Whether there was a double cell or the long sum overflowed. */
+        private boolean myInexact;
+        /** The smallest non-blank cell, or null. */
+        private Cell myMin;
+        /** The largest non-blank cell, or null. */
+        private Cell myMax;
+        /** Whether the result is a double. */
+        private boolean myIsDouble;
+        /** The result, truncated if it is a double. */
+        private long myResult;
+        /** The result as a double. */
+        private double myDoubleResult;
+
+        /**
+         * Forgets everything collected so far.
+         */
+        void reset() {
+            myLongSum = 0;
+            myDoubleSum = 0;
+            myCount = 0;
+            myInexact = false;
+            myMin = null;
+            myMax = null;
+        }
+
+        /**
+         * Works out the value of a function from what was collected. Empty
+         * ranges are worth 0 for every function.
+         * @param theFunction One of the FunctionToken constants.
+         */
+        void finish(final int theFunction) {
+            switch (theFunction) {
+                case FunctionToken.COUNT:
+                    setResult(myCount);
+                    break;
+                case FunctionToken.AVERAGE:
+                    if (myCount == 0) {
+                        setResult(0);
+                    } else if (!myInexact && myLongSum % myCount == 0) {
+                        setResult(myLongSum / myCount);
+                    } else {
+                        setResult((myInexact ? myDoubleSum : (double) myLongSum) / myCount);
+                    }
+                    break;
+                case FunctionToken.MIN:
+                    setResult(myMin);
+                    break;
+                case FunctionToken.MAX:
+                    setResult(myMax);
+                    break;
+                default:
+                    if (myInexact) {
+                        setResult(myDoubleSum);
+                    } else {
+                        setResult(myLongSum);
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Tells if the result is a double.
+         * @return Returns true for a double.
+         */
+        boolean isDouble() {
+            return myIsDouble;
+        }
+
+        /**
+         * Getter for the result.
+         * @return Returns the result, truncated toward 0 if it is a double.
+         */
+        long getResult() {
+            return myResult;
+        }
+
+        /**
+         * Getter for the result as a double.
+         * @return Returns the result.
+         */
+        double getDoubleResult() {
+            return myDoubleResult;
+        }
+
+        /**
+         * Sets a whole-number result.
+         * @param theResult The result.
+         */
+        private void setResult(final long theResult) {
+            myIsDouble = false;
+            myResult = theResult;
+            myDoubleResult = theResult;
+        }
+
+        /**
+         * Sets a double result.
+         * @param theResult The result.
+         */
+        private void setResult(final double theResult) {
+            myIsDouble = true;
+            myResult = (long) theResult;
+            myDoubleResult = theResult;
+        }
+
+        /**
+         * Sets the value of a cell as the result.
+         * @param theCell The cell, or null for 0.
+         */
+        private void setResult(final Cell theCell) {
+            if (theCell == null) {
+                setResult(0);
+            } else if (theCell.isDouble()) {
+                setResult(theCell.getDoubleValue());
+            } else {
+                setResult(theCell.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+
+/**
+ * CompiledFormula is a cell's expression tree flattened into a postfix
+ * program of ints. Literals and the ids of referenced cells are stored inline
+ * right after the opcode that uses them, so running the program is one pass
+ * over an int array with no tokens, tree nodes or cell lookups involved.
+ * Literals that don't fit in an int are kept in small constant pools and
+ * pushed by their index instead. A function over a range is a single
+ * instruction that asks the DependencyGraph's column trees for the result.
+ * A parenthesized subexpression that other formulas contain too can be
+ * compiled once into the ExpressionTable and pushed by its id. A cell on
+ * another sheet is pushed by the index of its ExternalReferences entry.
+ * It also remembers which cells and references the formula reads, which
+ * are its edges in the DependencyGraph. Two programs are equal if they have the same code
+ * and constants, which is what the ExpressionTable looks them up by.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class CompiledFormula {
+    /** Pushes the literal that follows. */
+    public static final int PUSH_LITERAL = 0;
+    /** Pushes the value of the cell whose id follows. */
+    public static final int PUSH_CELL = 1;
+    /** Pops two values and pushes their sum. */
+    public static final int ADD = 2;
+    /** Pops two values and pushes the first minus the second. */
+    public static final int SUBTRACT = 3;
+    /** Pops two values and pushes their product. */
+    public static final int MULTIPLY = 4;
+    /** Pops two values and pushes the first divided by the second. */
+    public static final int DIVIDE = 5;
+    /** Pops two values and pushes the first to the power of the second. */
+    public static final int POWER = 6;
+    /**
+     * Added to an operator's opcode when its right operand is the literal that
+     * follows instead of the top of the stack. Folding the operand into the
+     * operator halves the number of instructions in typical formulas.
+     */
+    public static final int WITH_LITERAL = 5;
+    /** Added to an operator's opcode when its right operand is the cell whose id follows. */
+    public static final int WITH_CELL = 10;
+    /** Adds the literal that follows to the top of the stack. */
+    public static final int ADD_LITERAL = ADD + WITH_LITERAL;
+    /** Subtracts the literal that follows from the top of the stack. */
+    public static final int SUBTRACT_LITERAL = SUBTRACT + WITH_LITERAL;
+    /** Multiplies the top of the stack by the literal that follows. */
+    public static final int MULTIPLY_LITERAL = MULTIPLY + WITH_LITERAL;
+    /** Divides the top of the stack by the literal that follows. */
+    public static final int DIVIDE_LITERAL = DIVIDE + WITH_LITERAL;
+    /** Raises the top of the stack to the literal that follows. */
+    public static final int POWER_LITERAL = POWER + WITH_LITERAL;
+    /** Adds the cell that follows to the top of the stack. */
+    public static final int ADD_CELL = ADD + WITH_CELL;
+    /** Subtracts the cell that follows from the top of the stack. */
+    public static final int SUBTRACT_CELL = SUBTRACT + WITH_CELL;
+    /** Multiplies the top of the stack by the cell that follows. */
+    public static final int MULTIPLY_CELL = MULTIPLY + WITH_CELL;
+    /** Divides the top of the stack by the cell that follows. */
+    public static final int DIVIDE_CELL = DIVIDE + WITH_CELL;
+    /** Raises the top of the stack to the cell that follows. */
+    public static final int POWER_CELL = POWER + WITH_CELL;
+
+    /** Pushes the long constant whose index follows. */
+    public static final int PUSH_LONG = 17;
+    /** Pushes the double constant whose index follows. */
+    public static final int PUSH_DOUBLE = 18;
+    /**
+     * Pushes a function of a range. The function follows, then the range's
+     * first row, first column, last row and last column.
+     */
+    public static final int AGGREGATE = 19;
+    /** Pops a value and pushes it negated. */
+    public static final int NEGATE = 20;
+    /** Pushes the value of the ExpressionTable entry whose id follows. */
+    public static final int PUSH_SHARED = 21;
+    /** Pushes the value of the cell on another sheet whose ExternalReferences index follows. */
+    public static final int PUSH_EXTERNAL = 22;
+    /** Shared by every program that pushes no shared subexpressions or references. */
+    private static final int[] NO_IDS = new int[0];
+
+    /** The opcodes and their inline operands. */
+    private final int[] myCode;
+    /** The most values the program ever has on the stack at once. */
+    private final int myMaxStackDepth;
+    /** The ids of the cells the program reads, without duplicates. */
+    private final int[] myPrecedents;
+    /** The long literals that don't fit in an int, by index. */
+    private final long[] myLongConstants;
+    /** The double literals, by index. */
+    private final double[] myDoubleConstants;
+    /** The ranges the program reads, four ints each, without duplicates. */
+    private final int[] myRanges;
+    /** The ids of the ExpressionTable entries the program pushes, one per PUSH_SHARED. */
+    private final int[] mySharedIds;
+    /** The indices of the references to other sheets the program reads, without duplicates. */
+    private final int[] myExternals;
+
+    /**
+     * Creates a compiled formula.
+     * @param theCode The opcodes and their inline operands.
+     * @param theMaxStackDepth The deepest the stack gets while running.
+     * @param thePrecedents The ids of the cells the program reads, without duplicates.
+     * @param theLongConstants The long literals pushed by PUSH_LONG.
+     * @param theDoubleConstants The double literals pushed by PUSH_DOUBLE.
+     * @param theRanges The ranges the program reads, four ints each.
+     */
+    CompiledFormula(final int[] theCode, final int theMaxStackDepth, final int[] thePrecedents,
+                    final long[] theLongConstants, final double[] theDoubleConstants, final int[] theRanges) {
+        this(theCode, theMaxStackDepth, thePrecedents, theLongConstants, theDoubleConstants, theRanges, NO_IDS);
+    }
+
+    /**
+     * Creates a compiled formula that pushes shared subexpressions.
+     * @param theCode The opcodes and their inline operands.
+     * @param theMaxStackDepth The deepest the stack gets while running.
+     * @param thePrecedents The ids of the cells the program reads, without duplicates.
+     * @param theLongConstants The long literals pushed by PUSH_LONG.
+     * @param theDoubleConstants The double literals pushed by PUSH_DOUBLE.
+     * @param theRanges The ranges the program reads, four ints each.
+     * @param theSharedIds The ids pushed by PUSH_SHARED, one per instruction.
+     */
+    CompiledFormula(final int[] theCode, final int theMaxStackDepth, final int[] thePrecedents,
+                    final long[] theLongConstants, final double[] theDoubleConstants, final int[] theRanges,
+                    final int[] theSharedIds) {
+        this(theCode, theMaxStackDepth, thePrecedents, theLongConstants, theDoubleConstants, theRanges,
+                theSharedIds, NO_IDS);
+    }
+
+    /**
+     * Creates a compiled formula that may read cells on other sheets.
+     * @param theCode The opcodes and their inline operands.
+     * @param theMaxStackDepth The deepest the stack gets while running.
+     * @param thePrecedents The ids of the cells the program reads, without duplicates.
+     * @param theLongConstants The long literals pushed by PUSH_LONG.
+     * @param theDoubleConstants The double literals pushed by PUSH_DOUBLE.
+     * @param theRanges The ranges the program reads, four ints each.
+     * @param theSharedIds The ids pushed by PUSH_SHARED, one per instruction.
+     * @param theExternals The indices of the references the program reads, without duplicates.
+     */
+    CompiledFormula(final int[] theCode, final int theMaxStackDepth, final int[] thePrecedents,
+                    final long[] theLongConstants, final double[] theDoubleConstants, final int[] theRanges,
+                    final int[] theSharedIds, final int[] theExternals) {
+        myCode = theCode;
+        myMaxStackDepth = theMaxStackDepth;
+        myPrecedents = thePrecedents;
+        myLongConstants = theLongConstants;
+        myDoubleConstants = theDoubleConstants;
+        myRanges = theRanges;
+        mySharedIds = theSharedIds;
+        myExternals = theExternals;
+    }
+
+    /**
+     * Gets how many ints an instruction takes, its opcode included.
+     * @param theOpcode The opcode.
+     * @return Returns the length of the instruction.
+     */
+    static int instructionLength(final int theOpcode) {
+        if (theOpcode == AGGREGATE) {
+            return 6;
+        }
+        return theOpcode >= ADD && theOpcode <= POWER || theOpcode == NEGATE ? 1 : 2;
+    }
+
+    /**
+     * Getter for the program.
+     * @return Returns the opcodes and their inline operands.
+     */
+    int[] getCode() {
+        return myCode;
+    }
+
+    /**
+     * Getter for the long constant pool.
+     * @return Returns the long literals pushed by PUSH_LONG.
+     */
+    long[] getLongConstants() {
+        return myLongConstants;
+    }
+
+    /**
+     * Getter for the double constant pool.
+     * @return Returns the double literals pushed by PUSH_DOUBLE.
+     */
+    double[] getDoubleConstants() {
+        return myDoubleConstants;
+    }
+
+    /**
+     * Tells if the program has a double literal, in which case it is
+     * evaluated in double arithmetic from the start.
+     * @return Returns true if the program pushes a double constant.
+     */
+    boolean hasDoubleConstants() {
+        return myDoubleConstants.length > 0;
+    }
+
+    /**
+     * Getter for the stack depth the program needs.
+     * @return Returns the deepest the stack gets while running.
+     */
+    public int getMaxStackDepth() {
+        return myMaxStackDepth;
+    }
+
+    /**
+     * Gets the ranges the formula reads, which are its range edges in the
+     * DependencyGraph.
+     * @return Returns four ints per range: first row, first column, last row
+     *         and last column; the array must not be changed.
+     */
+    public int[] getRanges() {
+        return myRanges;
+    }
+
+    /**
+     * Gets the cells the formula reads.
+     * @return Returns their ids, without duplicates; the array must not be changed.
+     */
+    public int[] getPrecedents() {
+        return myPrecedents;
+    }
+
+    /**
+     * Gets the cells on other sheets the formula reads, which are its
+     * reference edges in the DependencyGraph. The shared subexpressions
+     * it pushes read no others.
+     * @return Returns the indices of their ExternalReferences entries,
+     *         without duplicates; the array must not be changed.
+     */
+    public int[] getExternals() {
+        return myExternals;
+    }
+
+    /**
+     * Gets the shared subexpressions the program pushes, which it holds a
+     * reference to in the ExpressionTable.
+     * @return Returns their ids, one per PUSH_SHARED; the array must not be changed.
+     */
+    int[] getSharedIds() {
+        return mySharedIds;
+    }
+
+    @Override
+    public boolean equals(final Object theOther) {
+        if (this == theOther) {
+            return true;
+        }
+        if (!(theOther instanceof CompiledFormula)) {
+            return false;
+        }
+        CompiledFormula other = (CompiledFormula) theOther;
+        return Arrays.equals(myCode, other.myCode) && Arrays.equals(myLongConstants, other.myLongConstants)
+                && Arrays.equals(myDoubleConstants, other.myDoubleConstants);
+    }
+
+    @Override
+    public int hashCode() {
+        return (Arrays.hashCode(myCode) * 31 + Arrays.hashCode(myLongConstants)) * 31
+                + Arrays.hashCode(myDoubleConstants);
+    }
+}
@@ -0,0 +1,567 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+
+/**
+ * DependencyGraph keeps track of which cells use which other cells in their
+ * formulas. Every cell gets an int id when it is created, and the edges are
+ * stored as int arrays indexed by those ids: the precedents of a cell are
+ * the cells its formula reads, the dependents are the cells whose formulas
+ * read it. The edges only change when a formula is set, so nothing has to
+ * be rebuilt or parsed again when the spreadsheet is recalculated.
+ * A formula that reads a range, like SUM(A1:A100000), gets a single range
+ * edge instead of one edge per covered cell. The ranges are kept in a
+ * RangeIndex, so the formulas reading a range over a cell are found in
+ * logarithmic time, and the values of the columns that ranges cover are
+ * kept in ColumnAggregates trees, so a range is aggregated without looking
+ * at all of its cells. The parenthesized subexpressions that formulas
+ * have in common are kept once in an ExpressionTable. Cells on other
+ * sheets are numbered by an ExternalReferences table, and each reference
+ * knows the cells that read it, so a change on the other sheet finds
+ * them without looking at any other cell.
+ * The edges are only changed, and cells only added, by one thread at a
+ * time, the one holding the spreadsheet's write lock. Recalculations read
+ * cells and column trees without it, so the arrays they read are replaced
+ * rather than changed in place when they grow.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class DependencyGraph {
+    /** An empty list of ids, shared by every cell without edges. */
+    private static final int[] NO_IDS = new int[0];
+    /** The cells by id. */
+    private volatile Cell[] myCells = new Cell[64];
+    /** The ids of the cells each cell's formula reads, without duplicates. */
+    private int[][] myPrecedents = new int[64][];
+    /** The ids of the cells that read each cell; only the first myDependentCounts are used. */
+    private int[][] myDependents = new int[64][];
+    /** How many entries of each dependents array are used. */
+    private int[] myDependentCounts = new int[64];
+    /** The ranges each cell's formula reads, four ints each: first row, first column, last row, last column. */
+    private int[][] myRanges = new int[64][];
+    /** The indices of the references to other sheets each cell's formula reads, without duplicates. */
+    private int[][] myExternals = new int[64][];
+    /** The ids of the cells that read each reference to another sheet; only the first myReaderCounts are used. */
+    private int[][] myReaders = new int[0][];
+    /** How many entries of each readers array are used. */
+    private int[] myReaderCounts = new int[0];
+    /** The cells on other sheets the formulas read. */
+    private final ExternalReferences myReferences = new ExternalReferences();
+    /** Finds the formulas whose ranges cover a cell. */
+    private final RangeIndex myRangeIndex = new RangeIndex();
+    /** The aggregate trees by column, null for columns no range has covered yet. */
+    private volatile ColumnAggregates[] myColumns = new ColumnAggregates[0];
+    /** The number of cells created so far, which is also the next id. */
+    private int myCellCount;
+    /** The subexpressions shared by the formulas of the cells. */
+    private final ExpressionTable myExpressions = new ExpressionTable();
+    /** Scratch marks for walks over the graph, compared against myWalk. */
+    private int[] myMarks = new int[64];
+    /** Scratch values stored next to the marks, like a cell's index in a schedule. */
+    private int[] myScratch = new int[64];
+    /** The number of the current walk, so the marks never need clearing. */
+    private int myWalk;
+
+    /**
+     * Creates a new cell with the next free id.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the new cell.
+     */
+    public Cell addCell(final int theRow, final int theColumn) {
+        if (myCellCount == myCells.length) {
+            int capacity = myCells.length * 2;
+            myCells = Arrays.copyOf(myCells, capacity);
+            myPrecedents = Arrays.copyOf(myPrecedents, capacity);
+            myDependents = Arrays.copyOf(myDependents, capacity);
+            myDependentCounts = Arrays.copyOf(myDependentCounts, capacity);
+            myRanges = Arrays.copyOf(myRanges, capacity);
+            myExternals = Arrays.copyOf(myExternals, capacity);
+            myMarks = Arrays.copyOf(myMarks, capacity);
+            myScratch = Arrays.copyOf(myScratch, capacity);
+        }
+        int id = myCellCount++;
+        Cell cell = new Cell(theRow, theColumn, id);
+        myCells[id] = cell;
+        myPrecedents[id] = NO_IDS;
+        myDependents[id] = NO_IDS;
+        myRanges[id] = NO_IDS;
+        myExternals[id] = NO_IDS;
+        return cell;
+    }
+
+    /**
+     * Fills an empty graph with the cells of a snapshot, keeping their ids.
+     * The cells get their values, edges and ranges right away, and the
+     * shared subexpressions go back into the expression table; the formula
+     * of each cell is only decoded when it is first needed. Nothing is
+     * evaluated.
+     * @param theSnapshot The opened snapshot.
+     * @throws IllegalStateException If the graph already has cells.
+     */
+    public void load(final SheetSnapshot theSnapshot) {
+        if (myCellCount > 0) {
+            throw new IllegalStateException("A snapshot can only be loaded into an empty graph");
+        }
+        int count = theSnapshot.getCellCount();
+        int capacity = Math.max(myCells.length, count);
+        myCells = new Cell[capacity];
+        myPrecedents = new int[capacity][];
+        myDependents = new int[capacity][];
+        myDependentCounts = new int[capacity];
+        myRanges = new int[capacity][];
+        myExternals = new int[capacity][];
+        myMarks = new int[capacity];
+        myScratch = new int[capacity];
+        for (int id = 0; id < count; id++) {
+            Cell cell = new Cell(theSnapshot.getRow(id), theSnapshot.getColumn(id), id);
+            theSnapshot.loadCell(cell);
+            myCells[id] = cell;
+            myPrecedents[id] = theSnapshot.getPrecedents(id);
+            for (int precedent : myPrecedents[id]) {
+                myDependentCounts[precedent]++;
+            }
+        }
+        for (int id = 0; id < count; id++) {
+            myDependents[id] = myDependentCounts[id] == 0 ? NO_IDS : new int[myDependentCounts[id]];
+            myDependentCounts[id] = 0;
+        }
+        for (int id = 0; id < count; id++) {
+            for (int precedent : myPrecedents[id]) {
+                myDependents[precedent][myDependentCounts[precedent]++] = id;
+            }
+        }
+        myCellCount = count;
+        int lastColumn = -1;
+        for (int id = 0; id < count; id++) {
+            myRanges[id] = theSnapshot.getRanges(id);
+            myRangeIndex.add(id, myRanges[id]);
+            for (int i = 0; i < myRanges[id].length; i += 4) {
+                lastColumn = Math.max(lastColumn, myRanges[id][i + 3]);
+            }
+        }
+        if (lastColumn >= 0) {
+            boolean[] covered = new boolean[lastColumn + 1];
+            for (int id = 0; id < count; id++) {
+                for (int i = 0; i < myRanges[id].length; i += 4) {
+                    Arrays.fill(covered, myRanges[id][i + 1], myRanges[id][i + 3] + 1, true);
+                }
+            }
+            myColumns = new ColumnAggregates[lastColumn + 1];
+            fillColumns(0, covered);
+        }
+        theSnapshot.loadEntries(myExpressions);
+        theSnapshot.loadReferences(myReferences);
+        for (int id = 0; id < count; id++) {
+            myExternals[id] = NO_IDS;
+            setExternals(id, theSnapshot.getExternals(id));
+        }
+    }
+
+    /**
+     * Gets a cell by its id.
+     * @param theId The id of the cell.
+     * @return Returns the cell.
+     */
+    public Cell getCell(final int theId) {
+        return myCells[theId];
+    }
+
+    /**
+     * Gets the number of cells that have been created.
+     * @return Returns the number of cells, one more than the highest id.
+     */
+    public int getCellCount() {
+        return myCellCount;
+    }
+
+    /**
+     * Gets the subexpressions shared by the formulas of the cells.
+     * @return Returns the expression table.
+     */
+    public ExpressionTable getExpressions() {
+        return myExpressions;
+    }
+
+    /**
+     * Gets the cells on other sheets the formulas of the cells read.
+     * @return Returns the table of external references.
+     */
+    public ExternalReferences getReferences() {
+        return myReferences;
+    }
+
+    /**
+     * Replaces the references to other sheets a cell's formula reads,
+     * updating the readers of both the references it used to read and
+     * those it reads now.
+     * @param theId The id of the cell whose formula changed.
+     * @param theExternals The indices of the references the new formula reads, without duplicates.
+     */
+    public void setExternals(final int theId, final int[] theExternals) {
+        for (int external : myExternals[theId]) {
+            int[] readers = myReaders[external];
+            int last = --myReaderCounts[external];
+            for (int i = last; i >= 0; i--) {
+                if (readers[i] == theId) {
+                    readers[i] = readers[last];
+                    break;
+                }
+            }
+        }
+        myExternals[theId] = theExternals.length == 0 ? NO_IDS : theExternals;
+        for (int external : theExternals) {
+            if (external >= myReaders.length) {
+                int capacity = Math.max(external + 1, myReaders.length * 2);
+                int oldLength = myReaders.length;
+                myReaders = Arrays.copyOf(myReaders, capacity);
+                myReaderCounts = Arrays.copyOf(myReaderCounts, capacity);
+                Arrays.fill(myReaders, oldLength, capacity, NO_IDS);
+            }
+            int count = myReaderCounts[external];
+            if (count == myReaders[external].length) {
+                myReaders[external] = Arrays.copyOf(myReaders[external], Math.max(4, count * 2));
+            }
+            myReaders[external][count] = theId;
+            myReaderCounts[external] = count + 1;
+        }
+    }
+
+    /**
+     * Gets the references to other sheets a cell's formula reads.
+     * @param theId The id of the cell.
+     * @return Returns their indices; the array must not be changed.
+     */
+    public int[] getExternals(final int theId) {
+        return myExternals[theId];
+    }
+
+    /**
+     * Collects the cells whose formulas read any of some references to
+     * other sheets.
+     * @param theExternals The indices of the references.
+     * @return Returns the ids of the cells, without duplicates.
+     */
+    public int[] collectReaders(final int... theExternals) {
+        int walk = startWalk();
+        int[] found = new int[16];
+        int count = 0;
+        for (int external : theExternals) {
+            if (external >= myReaders.length) {
+                continue;
+            }
+            for (int i = 0; i < myReaderCounts[external]; i++) {
+                int reader = myReaders[external][i];
+                if (myMarks[reader] != walk) {
+                    myMarks[reader] = walk;
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = reader;
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Replaces the precedents of a cell, updating the dependents of both the
+     * cells it used to read and the cells it reads now.
+     * @param theId The id of the cell whose formula changed.
+     * @param thePrecedents The ids of the cells the new formula reads, without duplicates.
+     */
+    public void setPrecedents(final int theId, final int[] thePrecedents) {
+        for (int precedent : myPrecedents[theId]) {
+            removeDependent(precedent, theId);
+        }
+        myPrecedents[theId] = thePrecedents.length == 0 ? NO_IDS : thePrecedents;
+        for (int precedent : thePrecedents) {
+            addDependent(precedent, theId);
+        }
+    }
+
+    /**
+     * Replaces the ranges a cell's formula reads. The columns they cover get
+     * aggregate trees if they don't have them yet.
+     * @param theId The id of the cell whose formula changed.
+     * @param theRanges Four ints per range: first row, first column, last row, last column.
+     */
+    public void setRanges(final int theId, final int[] theRanges) {
+        myRangeIndex.remove(theId, myRanges[theId]);
+        myRanges[theId] = theRanges.length == 0 ? NO_IDS : theRanges;
+        myRangeIndex.add(theId, theRanges);
+        for (int i = 0; i < theRanges.length; i += 4) {
+            addColumns(theRanges[i + 1], theRanges[i + 3]);
+        }
+    }
+
+    /**
+     * Gets the ranges a cell's formula reads.
+     * @param theId The id of the cell.
+     * @return Returns four ints per range; the array must not be changed.
+     */
+    public int[] getRanges(final int theId) {
+        return myRanges[theId];
+    }
+
+    /**
+     * Gets the cells whose formulas read a range that covers a cell. Takes
+     * logarithmic time in the number of ranges over the cell's column plus
+     * the number of cells found.
+     * @param theId The id of the cell.
+     * @return Returns the ids of those cells; a formula with two ranges over
+     *         the cell is listed twice.
+     */
+    public int[] getRangeDependents(final int theId) {
+        int column = myCells[theId].getColumn();
+        if (!myRangeIndex.covers(column)) {
+            return NO_IDS;
+        }
+        return myRangeIndex.find(myCells[theId].getRow(), column);
+    }
+
+    /**
+     * Brings the aggregate tree of a cell's column up to date after the
+     * cell was evaluated or became blank. Safe to call from several threads
+     * for cells that are evaluated at the same time.
+     * @param theCell The cell.
+     */
+    public void valueChanged(final Cell theCell) {
+        int column = theCell.getColumn();
+        ColumnAggregates[] columns = myColumns;
+        if (column < columns.length && columns[column] != null) {
+            columns[column].update(theCell);
+        }
+    }
+
+    /**
+     * Works out an aggregate function over a range from the column trees.
+     * @param theFunction One of the FunctionToken constants.
+     * @param theFirstRow The top row of the range.
+     * @param theFirstColumn The leftmost column of the range.
+     * @param theLastRow The bottom row of the range.
+     * @param theLastColumn The rightmost column of the range.
+     * @param theAccumulator Receives the result.
+     */
+    void aggregate(final int theFunction, final int theFirstRow, final int theFirstColumn,
+                   final int theLastRow, final int theLastColumn,
+                   final ColumnAggregates.Accumulator theAccumulator) {
+        theAccumulator.reset();
+        ColumnAggregates[] columns = myColumns;
+        int lastColumn = Math.min(theLastColumn, columns.length - 1);
+        for (int column = theFirstColumn; column <= lastColumn; column++) {
+            if (columns[column] != null) {
+                columns[column].query(theFirstRow, theLastRow, theAccumulator);
+            }
+        }
+        theAccumulator.finish(theFunction);
+    }
+
+    /**
+     * Gets the ids of the cells a cell's formula reads.
+     * @param theId The id of the cell.
+     * @return Returns the precedents; the array must not be changed.
+     */
+    public int[] getPrecedents(final int theId) {
+        return myPrecedents[theId];
+    }
+
+    /**
+     * Gets how many cells read a cell.
+     * @param theId The id of the cell.
+     * @return Returns the number of dependents.
+     */
+    public int getDependentCount(final int theId) {
+        return myDependentCounts[theId];
+    }
+
+    /**
+     * Gets one of the cells that read a cell.
+     * @param theId The id of the cell.
+     * @param theIndex Which dependent, from 0 to getDependentCount().
+     * @return Returns the id of the dependent.
+     */
+    public int getDependent(final int theId, final int theIndex) {
+        return myDependents[theId][theIndex];
+    }
+
+    /**
+     * Collects the given cells together with every cell that depends on
+     * them, directly or through other cells. The work done is proportional
+     * to the number of cells found, not to the size of the spreadsheet.
+     * @param theChangedIds The ids of the cells whose values may have changed.
+     * @return Returns the ids of the cells that have to be evaluated again.
+     */
+    public int[] collectDependents(final int... theChangedIds) {
+        int walk = startWalk();
+        int[] found = new int[Math.max(16, theChangedIds.length)];
+        int count = 0;
+        for (int id : theChangedIds) {
+            if (myMarks[id] != walk) {
+                myMarks[id] = walk;
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = id;
+            }
+        }
+        for (int next = 0; next < count; next++) {
+            int id = found[next];
+            int[] dependents = myDependents[id];
+            int[] rangeDependents = getRangeDependents(id);
+            int dependentCount = myDependentCounts[id];
+            for (int i = 0; i < dependentCount + rangeDependents.length; i++) {
+                int dependent = i < dependentCount ? dependents[i] : rangeDependents[i - dependentCount];
+                if (myMarks[dependent] != walk) {
+                    myMarks[dependent] = walk;
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = dependent;
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Claims the regions a recalculation of some cells touches: the regions
+     * of the cells themselves for writing, and the regions of the cells and
+     * ranges their formulas read for reading. Precedents that are recalculated
+     * too are claimed for writing already and skipped.
+     * @param theDirtyIds The ids of the cells to recalculate, without duplicates.
+     * @param theClaim Receives the regions.
+     */
+    public void claimRegions(final int[] theDirtyIds, final RegionLocks.Claim theClaim) {
+        Cell[] cells = myCells;
+        int walk = startWalk();
+        for (int id : theDirtyIds) {
+            myMarks[id] = walk;
+            theClaim.write(cells[id].getRow(), cells[id].getColumn());
+        }
+        for (int id : theDirtyIds) {
+            if (theClaim.readsAll()) {
+                return;
+            }
+            for (int precedent : myPrecedents[id]) {
+                if (myMarks[precedent] != walk) {
+                    theClaim.read(cells[precedent].getRow(), cells[precedent].getColumn());
+                }
+            }
+            int[] ranges = myRanges[id];
+            for (int i = 0; i < ranges.length; i += 4) {
+                theClaim.readBlock(ranges[i], ranges[i + 1], ranges[i + 2], ranges[i + 3]);
+            }
+        }
+    }
+
+    /**
+     * Starts a new walk over the graph. A cell is part of the walk once
+     * its mark equals the returned number; a new walk forgets the old marks
+     * without touching them.
+     * @return Returns the number of the new walk.
+     */
+    int startWalk() {
+        if (++myWalk == Integer.MAX_VALUE) {
+            Arrays.fill(myMarks, 0);
+            myWalk = 1;
+        }
+        return myWalk;
+    }
+
+    /**
+     * Gets the marks of the current walk.
+     * @return Returns the marks, indexed by cell id.
+     */
+    int[] marks() {
+        return myMarks;
+    }
+
+    /**
+     * Gets the scratch values of the current walk.
+     * @return Returns the scratch values, indexed by cell id.
+     */
+    int[] scratch() {
+        return myScratch;
+    }
+
+    /**
+     * Creates the aggregate trees of the columns that don't have one yet,
+     * filling them with the cells already in those columns.
+     * @param theFirstColumn The first column.
+     * @param theLastColumn The last column, included.
+     */
+    private void addColumns(final int theFirstColumn, final int theLastColumn) {
+        if (theLastColumn >= myColumns.length) {
+            myColumns = Arrays.copyOf(myColumns, theLastColumn + 1);
+        }
+        boolean[] isNew = new boolean[theLastColumn - theFirstColumn + 1];
+        boolean added = false;
+        for (int column = theFirstColumn; column <= theLastColumn; column++) {
+            if (myColumns[column] == null) {
+                isNew[column - theFirstColumn] = true;
+                added = true;
+            }
+        }
+        if (added) {
+            fillColumns(theFirstColumn, isNew);
+        }
+    }
+
+    /**
+     * Creates aggregate trees for columns and fills them with the cells
+     * already in those columns, in a single pass over the cells.
+     * @param theFirstColumn The column isNew starts at.
+     * @param isNew True for each column, from theFirstColumn on, that gets a tree.
+     */
+    private void fillColumns(final int theFirstColumn, final boolean[] isNew) {
+        int lastColumn = theFirstColumn + isNew.length - 1;
+        for (int column = theFirstColumn; column <= lastColumn; column++) {
+            if (isNew[column - theFirstColumn]) {
+                myColumns[column] = new ColumnAggregates(this);
+            }
+        }
+        for (int id = 0; id < myCellCount; id++) {
+            int column = myCells[id].getColumn();
+            if (column >= theFirstColumn && column <= lastColumn && isNew[column - theFirstColumn]) {
+                myColumns[column].load(myCells[id]);
+            }
+        }
+        for (int column = theFirstColumn; column <= lastColumn; column++) {
+            if (isNew[column - theFirstColumn]) {
+                myColumns[column].build();
+            }
+        }
+    }
+
+    /**
+     * Adds a dependent to a cell.
+     * @param theId The id of the cell being read.
+     * @param theDependent The id of the cell reading it.
+     */
+    private void addDependent(final int theId, final int theDependent) {
+        int count = myDependentCounts[theId];
+        if (count == myDependents[theId].length) {
+            myDependents[theId] = Arrays.copyOf(myDependents[theId], Math.max(4, count * 2));
+        }
+        myDependents[theId][count] = theDependent;
+        myDependentCounts[theId] = count + 1;
+    }
+
+    /**
+     * Removes a dependent from a cell by moving the last dependent into its place.
+     * @param theId The id of the cell being read.
+     * @param theDependent The id of the cell that no longer reads it.
+     */
+    private void removeDependent(final int theId, final int theDependent) {
+        int[] dependents = myDependents[theId];
+        int last = myDependentCounts[theId] - 1;
+        for (int i = last; i >= 0; i--) {
+            if (dependents[i] == theDependent) {
+                dependents[i] = dependents[last];
+                myDependentCounts[theId] = last;
+                return;
+            }
+        }
+    }
+}
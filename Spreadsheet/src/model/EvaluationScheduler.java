@@ -0,0 +1,257 @@
+package model.Spreadsheet.src.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * EvaluationScheduler works out the order a set of dirty cells has to be
+ * evaluated in. It counts, for every cell, how many dirty cells are in its
+ * formula and hands out cells from a ready queue as those counts reach zero
+ * (Kahn's algorithm). Whatever is left over is split into strongly connected
+ * components so that only the cells that really are part of a cycle get
+ * reported, while cells that merely depend on a cycle are still evaluated.
+ * Both passes run in time linear in the number of cells and references;
+ * a range counts as an edge from each dirty cell it covers.
+ * The evaluation order is also split into levels: every cell in a level only
+ * depends on cells in earlier levels, so the cells of one level can be
+ * evaluated at the same time.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class EvaluationScheduler {
+    /** The dirty cells, indexed by their position in this scheduler. */
+    private final Cell[] myCells;
+    /** For every dirty cell, the indexes of the dirty cells that use it in their formula. */
+    private final int[][] myDependents;
+    /** The cells in the order they should be evaluated. */
+    private final List<Cell> myEvaluationOrder;
+    /** The groups of cells that reference each other in a cycle. */
+    private final List<List<Cell>> myCycles = new ArrayList<>();
+    /** Where each level starts in the evaluation order, followed by the order's length. */
+    private int[] myLevelStarts;
+    /** The number of levels. */
+    private int myLevelCount;
+
+    /**
+     * Schedules the given cells. Dependents of a dirty cell that are not
+     * dirty themselves are ignored.
+     * @param theGraph The dependency graph the cells belong to.
+     * @param theDirtyIds The ids of the cells that have to be evaluated again, without duplicates.
+     */
+    public EvaluationScheduler(final DependencyGraph theGraph, final int[] theDirtyIds) {
+        int size = theDirtyIds.length;
+        myCells = new Cell[size];
+        int walk = theGraph.startWalk();
+        int[] marks = theGraph.marks();
+        int[] indexes = theGraph.scratch();
+        for (int i = 0; i < size; i++) {
+            int id = theDirtyIds[i];
+            myCells[i] = theGraph.getCell(id);
+            marks[id] = walk;
+            indexes[id] = i;
+        }
+        myDependents = new int[size][];
+        for (int i = 0; i < size; i++) {
+            int id = theDirtyIds[i];
+            int dependentCount = theGraph.getDependentCount(id);
+            int[] rangeDependents = theGraph.getRangeDependents(id);
+            int[] edges = new int[dependentCount + rangeDependents.length];
+            int count = 0;
+            for (int d = 0; d < dependentCount; d++) {
+                int dependent = theGraph.getDependent(id, d);
+                if (marks[dependent] == walk) {
+                    edges[count++] = indexes[dependent];
+                }
+            }
+            for (int dependent : rangeDependents) {
+                if (marks[dependent] == walk) {
+                    edges[count++] = indexes[dependent];
+                }
+            }
+            myDependents[i] = count == edges.length ? edges : Arrays.copyOf(edges, count);
+        }
+        myEvaluationOrder = new ArrayList<>(myCells.length);
+        schedule();
+    }
+
+    /**
+     * Gets the cells in an order where every cell comes after the cells in its formula.
+     * Cells that are part of a cycle are left out.
+     * @return Returns the evaluation order.
+     */
+    public List<Cell> getEvaluationOrder() {
+        return Collections.unmodifiableList(myEvaluationOrder);
+    }
+
+    /**
+     * Gets the number of levels the evaluation order is split into.
+     * @return Returns the number of levels.
+     */
+    public int getLevelCount() {
+        return myLevelCount;
+    }
+
+    /**
+     * Gets where a level starts in the evaluation order.
+     * @param theLevel The level, from 0 to getLevelCount().
+     * @return Returns the index of the level's first cell; for getLevelCount()
+     *         this is the length of the evaluation order.
+     */
+    public int getLevelStart(final int theLevel) {
+        return myLevelStarts[theLevel];
+    }
+
+    /**
+     * Gets the cycles found among the dirty cells. Each cycle holds exactly the
+     * cells of one strongly connected component.
+     * @return Returns the list of cycles, empty if there are none.
+     */
+    public List<List<Cell>> getCycles() {
+        return Collections.unmodifiableList(myCycles);
+    }
+
+    /**
+     * Orders the cells with a ready queue and then sorts out the cells that
+     * never became ready. A cell's level is one more than the highest level
+     * of the cells in its formula. Cells come out of the queue in order of
+     * level, so each level is a contiguous run of the evaluation order.
+     */
+    private void schedule() {
+        int size = myCells.length;
+        int[] inDegree = new int[size];
+        for (int[] edges : myDependents) {
+            for (int dependent : edges) {
+                inDegree[dependent]++;
+            }
+        }
+
+        int[] level = new int[size];
+        myLevelStarts = new int[size + 1];
+        int[] ready = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < size; i++) {
+            if (inDegree[i] == 0) {
+                ready[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            int current = ready[head++];
+            if (head == 1 || level[current] != level[ready[head - 2]]) {
+                myLevelStarts[myLevelCount++] = myEvaluationOrder.size();
+            }
+            myEvaluationOrder.add(myCells[current]);
+            for (int dependent : myDependents[current]) {
+                level[dependent] = Math.max(level[dependent], level[current] + 1);
+                if (--inDegree[dependent] == 0) {
+                    ready[tail++] = dependent;
+                }
+            }
+        }
+
+        if (tail < size) {
+            scheduleLeftovers(inDegree);
+        }
+        myLevelStarts[myLevelCount] = myEvaluationOrder.size();
+    }
+
+    /**
+     * Runs Tarjan's strongly connected components algorithm over the cells
+     * that are still waiting on a prerequisite. Components come out sinks
+     * first, so they are reversed to get them in dependency order. Components
+     * with more than one cell, or a cell that references itself, are cycles.
+     * The rest only depend on a cycle and are added to the evaluation order,
+     * each in a level of its own.
+     * The search keeps its own stack so that long chains can't overflow the
+     * call stack.
+     * @param theInDegree The remaining in-degrees, non-zero for leftover cells.
+     */
+    private void scheduleLeftovers(final int[] theInDegree) {
+        int size = myCells.length;
+        int[] index = new int[size];
+        int[] lowLink = new int[size];
+        boolean[] onStack = new boolean[size];
+        int[] componentStack = new int[size];
+        int componentTop = 0;
+        int[] callStack = new int[size];
+        int[] edgePosition = new int[size];
+        int nextIndex = 1;
+        List<List<Cell>> components = new ArrayList<>();
+        List<Boolean> componentIsCycle = new ArrayList<>();
+
+        for (int start = 0; start < size; start++) {
+            if (theInDegree[start] == 0 || index[start] != 0) {
+                continue;
+            }
+            int callTop = 0;
+            callStack[callTop++] = start;
+            index[start] = nextIndex;
+            lowLink[start] = nextIndex++;
+            componentStack[componentTop++] = start;
+            onStack[start] = true;
+
+            while (callTop > 0) {
+                int current = callStack[callTop - 1];
+                int[] edges = myDependents[current];
+                if (edgePosition[current] < edges.length) {
+                    int next = edges[edgePosition[current]++];
+                    if (theInDegree[next] == 0) {
+                        continue;
+                    }
+                    if (index[next] == 0) {
+                        index[next] = nextIndex;
+                        lowLink[next] = nextIndex++;
+                        componentStack[componentTop++] = next;
+                        onStack[next] = true;
+                        callStack[callTop++] = next;
+                    } else if (onStack[next]) {
+                        lowLink[current] = Math.min(lowLink[current], index[next]);
+                    }
+                    continue;
+                }
+
+                callTop--;
+                if (callTop > 0) {
+                    int parent = callStack[callTop - 1];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[current]);
+                }
+                if (lowLink[current] == index[current]) {
+                    List<Cell> component = new ArrayList<>();
+                    int member;
+                    do {
+                        member = componentStack[--componentTop];
+                        onStack[member] = false;
+                        component.add(myCells[member]);
+                    } while (member != current);
+                    components.add(component);
+                    componentIsCycle.add(component.size() > 1 || referencesItself(current));
+                }
+            }
+        }
+
+        for (int i = components.size() - 1; i >= 0; i--) {
+            if (componentIsCycle.get(i)) {
+                myCycles.add(components.get(i));
+            } else {
+                myLevelStarts[myLevelCount++] = myEvaluationOrder.size();
+                myEvaluationOrder.add(components.get(i).get(0));
+            }
+        }
+    }
+
+    /**
+     * Checks whether a cell uses itself in its own formula.
+     * @param theCell The index of the cell.
+     * @return Returns true if the cell is its own dependent.
+     */
+    private boolean referencesItself(final int theCell) {
+        for (int dependent : myDependents[theCell]) {
+            if (dependent == theCell) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
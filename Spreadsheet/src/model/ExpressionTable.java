@@ -0,0 +1,219 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ExpressionTable hash-conses the subexpressions of a spreadsheet's
+ * formulas. A parenthesized subexpression like (B1 * C1 + D1) is compiled
+ * into a program of its own and looked up here by its code and constants,
+ * so however many cells contain it, it is stored once and the formulas
+ * push it by its int id. Shared subexpressions can themselves contain
+ * shared subexpressions.
+ * Each entry also remembers its value for the current recalculation pass.
+ * The first formula that needs it works it out and every other formula
+ * in the same pass takes the stored value. That is safe because a formula
+ * reads every cell its subexpressions read, so it is only evaluated after
+ * all of them have their final value for the pass; a shared subexpression
+ * therefore behaves like a hidden cell that is evaluated at most once.
+ * Entries are reference counted: every compiled formula, and every entry,
+ * holds one reference per PUSH_SHARED in its code, and an entry is removed
+ * and its id reused once the last formula containing it is replaced.
+ * Entries are added and removed under the table's lock, since formulas
+ * may be parsed on several threads while others recalculate. An entry is
+ * never removed while a cell's formula pushes it, so evaluation reads the
+ * entries without locking. Every evaluation has a pass of its own, and
+ * values may be stored by several threads at once, but all of them store
+ * the same value: the cells an entry reads can't change while a
+ * recalculation that reads them holds their region locks.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class ExpressionTable {
+    /** The ids of the entries, by their program. */
+    private final Map<CompiledFormula, Integer> myIds = new HashMap<>();
+    /** The entries by id, null for free ids; replaced, never changed in place, when it grows. */
+    private volatile Entry[] myEntries = new Entry[16];
+    /** The ids freed by removed entries, for reuse. */
+    private int[] myFreeIds = new int[16];
+    /** The number of ids in myFreeIds. */
+    private int myFreeCount;
+    /** The number of ids handed out so far, which is also the next new id. */
+    private int myIdCount;
+    /** The number of the current recalculation pass. */
+    private int myPass;
+
+    /**
+     * Looks a subexpression up, adding it if no formula contains it yet,
+     * and takes one reference to it. The references the program holds to
+     * the shared subexpressions inside it are handed over to the new entry,
+     * or given back if the subexpression was already there.
+     * @param theProgram The compiled subexpression.
+     * @return Returns the id of its entry.
+     */
+    synchronized int intern(final CompiledFormula theProgram) {
+        Integer id = myIds.get(theProgram);
+        if (id != null) {
+            myEntries[id].myReferences++;
+            release(theProgram);
+            return id;
+        }
+        int newId;
+        if (myFreeCount > 0) {
+            newId = myFreeIds[--myFreeCount];
+        } else {
+            if (myIdCount == myEntries.length) {
+                myEntries = Arrays.copyOf(myEntries, myIdCount * 2);
+            }
+            newId = myIdCount++;
+        }
+        myEntries[newId] = new Entry(theProgram);
+        myIds.put(theProgram, newId);
+        return newId;
+    }
+
+    /**
+     * Gives back the references a compiled formula holds, removing the
+     * entries no other formula contains anymore.
+     * @param theFormula The formula being replaced, may be null.
+     */
+    public synchronized void release(final CompiledFormula theFormula) {
+        if (theFormula == null) {
+            return;
+        }
+        for (int id : theFormula.getSharedIds()) {
+            release(id);
+        }
+    }
+
+    /**
+     * Takes one more reference to every shared subexpression a compiled
+     * formula pushes, for keeping the formula beyond the cell it was set
+     * on, like the undo history does. Given back with release().
+     * @param theFormula The formula, may be null.
+     */
+    public synchronized void retain(final CompiledFormula theFormula) {
+        if (theFormula == null) {
+            return;
+        }
+        for (int id : theFormula.getSharedIds()) {
+            myEntries[id].myReferences++;
+        }
+    }
+
+    /**
+     * Gives back one reference to an entry, removing it if it was the last.
+     * @param theId The id of the entry.
+     */
+    synchronized void release(final int theId) {
+        Entry entry = myEntries[theId];
+        if (--entry.myReferences > 0) {
+            return;
+        }
+        myIds.remove(entry.myProgram);
+        myEntries[theId] = null;
+        if (myFreeCount == myFreeIds.length) {
+            myFreeIds = Arrays.copyOf(myFreeIds, myFreeCount * 2);
+        }
+        myFreeIds[myFreeCount++] = theId;
+        release(entry.myProgram);
+    }
+
+    /**
+     * Gets the number of distinct subexpressions stored.
+     * @return Returns the number of entries.
+     */
+    public synchronized int size() {
+        return myIds.size();
+    }
+
+    /**
+     * Gets the number of ids handed out so far; every entry's id is lower.
+     * @return Returns one more than the highest id used.
+     */
+    synchronized int getIdLimit() {
+        return myIdCount;
+    }
+
+    /**
+     * Puts an entry back under the id it had when it was saved. Called for
+     * every entry of a snapshot, followed by one finishRestore().
+     * @param theId The id of the entry.
+     * @param theProgram The compiled subexpression.
+     * @param theReferences The number of formulas and entries that push it.
+     */
+    synchronized void restore(final int theId, final CompiledFormula theProgram, final int theReferences) {
+        if (theId >= myEntries.length) {
+            myEntries = Arrays.copyOf(myEntries, Math.max(theId + 1, myEntries.length * 2));
+        }
+        Entry entry = new Entry(theProgram);
+        entry.myReferences = theReferences;
+        myEntries[theId] = entry;
+        myIds.put(theProgram, theId);
+        myIdCount = Math.max(myIdCount, theId + 1);
+    }
+
+    /**
+     * Frees the ids below the limit that no restored entry took.
+     * @param theIdLimit The number of ids handed out when the snapshot was saved.
+     */
+    synchronized void finishRestore(final int theIdLimit) {
+        if (theIdLimit > myEntries.length) {
+            myEntries = Arrays.copyOf(myEntries, theIdLimit);
+        }
+        myIdCount = Math.max(myIdCount, theIdLimit);
+        for (int id = 0; id < myIdCount; id++) {
+            if (myEntries[id] == null) {
+                if (myFreeCount == myFreeIds.length) {
+                    myFreeIds = Arrays.copyOf(myFreeIds, myFreeCount * 2);
+                }
+                myFreeIds[myFreeCount++] = id;
+            }
+        }
+    }
+
+    /**
+     * Starts a new recalculation pass, which ignores every value stored in
+     * the passes before it.
+     * @return Returns the number of the new pass, different from every other one.
+     */
+    synchronized int beginPass() {
+        return ++myPass;
+    }
+
+    /**
+     * Gets an entry by id.
+     * @param theId The id of the entry.
+     * @return Returns the entry.
+     */
+    Entry getEntry(final int theId) {
+        return myEntries[theId];
+    }
+
+    /**
+     * A shared subexpression and its value in the pass it was last worked out in.
+     */
+    static final class Entry {
+        /** The compiled subexpression. */
+        final CompiledFormula myProgram;
+        /** The number of formulas and entries that push this entry. */
+        int myReferences = 1;
+        /** The value, truncated toward 0 if it is a double. */
+        long myValue;
+        /** The value if it is a double. */
+        double myDoubleValue;
+        /** True if the value is a double. */
+        boolean myIsDouble;
+        /** The pass the value was worked out in; written after the value. */
+        volatile int myPass = -1;
+
+        /**
+         * Creates an entry with one reference.
+         * @param theProgram The compiled subexpression.
+         */
+        Entry(final CompiledFormula theProgram) {
+            myProgram = theProgram;
+        }
+    }
+}
@@ -34,6 +34,9 @@ public class ExpressionTree {
 	 * @return Returns a String of the ExpressionTree.
 	 */
 	public static String stringTree(ExpressionTreeNode expTreeNode) {
+		if (expTreeNode.getToken() instanceof FunctionToken) {
+			return expTreeNode.getToken() + "(" + expTreeNode.myLeft.getToken() + ")";
+		}
 		String out = "";
 		if (expTreeNode.myLeft != null)
 			out += stringTree(expTreeNode.myLeft) + " ";
@@ -50,28 +53,34 @@ public class ExpressionTree {
 	 * It checks for the different types of tokens and then
 	 * @param expTreeNode The expression tree node and Token to parse.
 	 * @param s The spreadsheet that contains the needed cells.
-	 * @return Returns the integer the ExpressionTree evaluates to.
+	 * Everything is worked out in double arithmetic, unlike the compiled
+	 * formula, which keeps whole numbers exact as longs.
+	 * @return Returns the number the ExpressionTree evaluates to.
 	 */
-	public static int evaluate(ExpressionTreeNode expTreeNode, Spreadsheet s) {
+	public static double evaluate(ExpressionTreeNode expTreeNode, Spreadsheet s) {
 		// Literals and Cell tokens are leaves so just return whatever value is associated with them
 		// But Operators will have both a left and right child, so we need to evaluate those as well.
-		Token token;
 		if (expTreeNode == null) {
-			token = new LiteralToken(0);
-		} else {
-			token = expTreeNode.getToken();
+			return 0;
 		}
+		Token token = expTreeNode.getToken();
 		if (token instanceof LiteralToken) {
-			return ((LiteralToken) token).getValue();
+			return ((LiteralToken) token).getDoubleValue();
+		} else if (token instanceof CellToken && ((CellToken) token).getSheet() != null) {
+			// A cell on another sheet is read through the reference bound to it.
+			ExternalReferences references = s.getDependencyGraph().getReferences();
+			int index = references.indexOf((CellToken) token);
+			Cell c = index < 0 ? null : references.getSource(index);
+			return c == null ? 0 : c.getDoubleValue();
 		} else if (token instanceof CellToken) {
 			Cell c = s.getCell(((CellToken) token).getRow(), ((CellToken) token).getColumn());
 			if (c == null) { // Check if the cell actually exists.
 				return 0;
 			} else { // If it does then grab the value
-				//return c.getValue();
-				int val = c.getValue();
-				return val;
+				return c.getDoubleValue();
 			}
+		} else if (token instanceof FunctionToken) {
+			return aggregate(((FunctionToken) token).getFunction(), (RangeToken) expTreeNode.myLeft.getToken(), s);
 		} else if (token instanceof OperatorToken) {
 			// Continue finding tokens that will form the
 			// right subtree and left subtree.
@@ -88,7 +97,7 @@ public class ExpressionTree {
 			} else if (op == '/') {
 				return evaluate(leftSubtree, s) / evaluate(rightSubtree, s);
 			} else if (op == '^') {
-				return (int) Math.pow(evaluate(leftSubtree, s), evaluate(rightSubtree, s));
+				return Math.pow(evaluate(leftSubtree, s), evaluate(rightSubtree, s));
 			}
 
 		}
@@ -96,5 +105,43 @@ public class ExpressionTree {
 		return -1; // Code should never get here
 	}
 
+	/**
+	 * Works out a function over a range by looking at every cell in it.
+	 * Blank cells are skipped.
+	 * @param function The function, one of the FunctionToken constants.
+	 * @param range The range to aggregate.
+	 * @param s The spreadsheet that contains the needed cells.
+	 * @return Returns the value of the function.
+	 */
+	private static double aggregate(int function, RangeToken range, Spreadsheet s) {
+		double sum = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int count = 0;
+		for (int row = range.getFirstRow(); row <= range.getLastRow(); row++) {
+			for (int col = range.getFirstColumn(); col <= range.getLastColumn(); col++) {
+				Cell c = s.getCell(row, col);
+				if (c != null && c.getFormula() != null) {
+					sum += c.getDoubleValue();
+					min = Math.min(min, c.getDoubleValue());
+					max = Math.max(max, c.getDoubleValue());
+					count++;
+				}
+			}
+		}
+		if (function == FunctionToken.COUNT) {
+			return count;
+		} else if (count == 0) {
+			return 0;
+		} else if (function == FunctionToken.AVERAGE) {
+			return sum / count;
+		} else if (function == FunctionToken.MIN) {
+			return min;
+		} else if (function == FunctionToken.MAX) {
+			return max;
+		}
+		return sum;
+	}
+
 
 }
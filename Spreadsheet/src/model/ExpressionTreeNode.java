@@ -73,9 +73,10 @@ public class ExpressionTreeNode {
 
 		token = (Token) theStack.pop();  // need to handle stack underflow
 		if ((token instanceof LiteralToken) ||
-				(token instanceof CellToken) ) {
+				(token instanceof CellToken) ||
+				(token instanceof RangeToken) ) {
 
-			// Literals and Cells are leaves in the expression tree
+			// Literals, Cells and Ranges are leaves in the expression tree
 			returnTree = new ExpressionTreeNode(token, null, null);
 			return returnTree;
 		} else if (token instanceof OperatorToken) {
@@ -86,6 +87,10 @@ public class ExpressionTreeNode {
 			returnTree =
 					new ExpressionTreeNode(token, leftSubtree, rightSubtree);
 			return returnTree;
+		} else if (token instanceof FunctionToken) {
+			// A function's only child is the range it aggregates.
+			returnTree = new ExpressionTreeNode(token, GetExpressionTree(theStack), null);
+			return returnTree;
 		}
 		return null;
 	}
@@ -0,0 +1,157 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ExternalReferences numbers the cells on other sheets that a spreadsheet's
+ * formulas read, like Inputs!B3. Each distinct reference gets an index the
+ * first time a formula names it, and compiled formulas push the referenced
+ * value by that index, the same way they push a cell of their own sheet by
+ * its id. The table doesn't know the other sheets; whatever holds them,
+ * like a Workbook, binds each index to the cell it names once that cell
+ * exists, and until then the reference counts as 0. Which of this sheet's
+ * cells read a reference is kept in the DependencyGraph.
+ * A spreadsheet refers to few cells elsewhere, so references are never
+ * removed, even after the last formula naming one is replaced.
+ * References are added and bound under the table's lock, since formulas
+ * may be parsed on several threads; evaluation reads the bound cells
+ * without it.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class ExternalReferences {
+    /**
+     * Told about every reference a formula names for the first time, so it
+     * can be bound.
+     */
+    public interface Listener {
+        /**
+         * Called after a reference was added, on the thread parsing the
+         * formula, outside the table's lock. Whatever this throws is thrown
+         * on by intern(); the reference stays added.
+         * @param theIndex The index of the new reference.
+         * @param theReference The cell it names, with its sheet.
+         */
+        void referenceAdded(int theIndex, CellToken theReference);
+    }
+
+    /** The index of every reference; guarded by this. */
+    private final Map<CellToken, Integer> myIndices = new HashMap<>();
+    /** The references by index; replaced, never changed in place, when it grows. */
+    private volatile CellToken[] myReferences = new CellToken[4];
+    /** The cell each reference is bound to, or null; replaced when it grows. */
+    private volatile Cell[] mySources = new Cell[4];
+    /** The number of references, which is also the next index. */
+    private volatile int myCount;
+    /** Told about new references, or null. */
+    private volatile Listener myListener;
+
+    /**
+     * Gets the index of a reference, adding it if no formula named it
+     * before. The listener hears about a new reference before this returns.
+     * @param theReference The cell, with the name of its sheet.
+     * @return Returns the index of the reference.
+     * @throws IllegalArgumentException If the token has no sheet.
+     */
+    public int intern(final CellToken theReference) {
+        if (theReference.getSheet() == null) {
+            throw new IllegalArgumentException("Not a reference to another sheet: " + theReference);
+        }
+        int index;
+        synchronized (this) {
+            Integer known = myIndices.get(theReference);
+            if (known != null) {
+                return known;
+            }
+            index = add(theReference);
+        }
+        Listener listener = myListener;
+        if (listener != null) {
+            listener.referenceAdded(index, theReference);
+        }
+        return index;
+    }
+
+    /**
+     * Puts a reference back under its saved index, without telling the
+     * listener. References must be restored in the order of their indices.
+     * @param theReference The cell, with the name of its sheet.
+     */
+    synchronized void restore(final CellToken theReference) {
+        add(theReference);
+    }
+
+    /**
+     * Gets the index of a reference without adding it.
+     * @param theReference The cell, with the name of its sheet.
+     * @return Returns the index, or -1 if no formula has named it.
+     */
+    public synchronized int indexOf(final CellToken theReference) {
+        Integer index = myIndices.get(theReference);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Gets the number of references.
+     * @return Returns the number of references, one more than the highest index.
+     */
+    public int getCount() {
+        return myCount;
+    }
+
+    /**
+     * Gets a reference by its index.
+     * @param theIndex The index.
+     * @return Returns the cell it names, with its sheet.
+     */
+    public CellToken getReference(final int theIndex) {
+        return myReferences[theIndex];
+    }
+
+    /**
+     * Gets the cell a reference is bound to.
+     * @param theIndex The index of the reference.
+     * @return Returns the cell, or null if the reference isn't bound and counts as 0.
+     */
+    public Cell getSource(final int theIndex) {
+        return mySources[theIndex];
+    }
+
+    /**
+     * Binds a reference to the cell it names on the other sheet.
+     * @param theIndex The index of the reference.
+     * @param theSource The cell, or null to unbind it.
+     */
+    public synchronized void bind(final int theIndex, final Cell theSource) {
+        Cell[] sources = mySources.clone();
+        sources[theIndex] = theSource;
+        mySources = sources;
+    }
+
+    /**
+     * Sets the listener told about new references.
+     * @param theListener The listener, or null for none.
+     */
+    public void setListener(final Listener theListener) {
+        myListener = theListener;
+    }
+
+    /**
+     * Adds a reference under the next index. Called with the lock held.
+     * @param theReference The cell, with the name of its sheet.
+     * @return Returns its index.
+     */
+    private int add(final CellToken theReference) {
+        int index = myCount;
+        if (index == myReferences.length) {
+            mySources = Arrays.copyOf(mySources, index * 2);
+            myReferences = Arrays.copyOf(myReferences, index * 2);
+        }
+        myReferences[index] = theReference;
+        myIndices.put(theReference, index);
+        myCount = index + 1;
+        return index;
+    }
+}
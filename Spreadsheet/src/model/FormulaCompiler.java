@@ -0,0 +1,242 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+
+/**
+ * FormulaCompiler turns an expression tree into a CompiledFormula by
+ * walking it in postfix order. Every CellToken leaf is resolved to a cell
+ * id once, here, and the ids are collected as the formula's precedents.
+ * A leaf naming a cell on another sheet becomes an external reference.
+ * The tree itself is left alone, so it can still be printed or inspected
+ * afterwards.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class FormulaCompiler {
+    /** The program being written. */
+    private int[] myCode = new int[16];
+    /** The number of ints written so far. */
+    private int myLength;
+    /** The stack depth at the current point of the program. */
+    private int myDepth;
+    /** The deepest the stack has been so far. */
+    private int myMaxDepth;
+    /** Turns cell references into cell ids. */
+    private final CellResolver myResolver;
+    /** The ids of the referenced cells, possibly with duplicates. */
+    private int[] myPrecedents = new int[4];
+    /** The number of ids in myPrecedents. */
+    private int myPrecedentCount;
+    /** The indices of the references to other sheets, without duplicates. */
+    private int[] myExternals = new int[0];
+    /** The long literals that don't fit in an int. */
+    private long[] myLongConstants = new long[0];
+    /** The double literals. */
+    private double[] myDoubleConstants = new double[0];
+    /** The ranges read by functions, four ints each. */
+    private int[] myRanges = new int[0];
+
+    /**
+     * Only compile() creates compilers.
+     * @param theResolver Turns cell references into cell ids.
+     */
+    private FormulaCompiler(final CellResolver theResolver) {
+        myResolver = theResolver;
+    }
+
+    /**
+     * Compiles an expression tree. An empty tree compiles to a program
+     * that evaluates to 0, the same as a blank cell, and so does a
+     * reference to a cell off the spreadsheet.
+     * @param theRoot The root of the expression tree, may be null.
+     * @param theResolver Turns cell references into cell ids.
+     * @return Returns the compiled formula.
+     */
+    public static CompiledFormula compile(final ExpressionTreeNode theRoot, final CellResolver theResolver) {
+        FormulaCompiler compiler = new FormulaCompiler(theResolver);
+        compiler.compileNode(theRoot);
+        int[] precedents = Arrays.copyOf(compiler.myPrecedents, compiler.myPrecedentCount);
+        Arrays.sort(precedents);
+        int distinct = 0;
+        for (int i = 0; i < precedents.length; i++) {
+            if (i == 0 || precedents[i] != precedents[i - 1]) {
+                precedents[distinct++] = precedents[i];
+            }
+        }
+        return new CompiledFormula(Arrays.copyOf(compiler.myCode, compiler.myLength), compiler.myMaxDepth,
+                Arrays.copyOf(precedents, distinct), compiler.myLongConstants, compiler.myDoubleConstants, compiler.myRanges,
+                new int[0], compiler.myExternals);
+    }
+
+    /**
+     * Writes the program for one subtree. A missing operand counts as 0,
+     * which is what ExpressionTree.evaluate does too. When the right operand
+     * of an operator is a cell or an int literal it is folded into the
+     * operator's instruction. A function over a range reads no cells
+     * directly; its range is recorded instead.
+     * @param theNode The subtree to compile.
+     */
+    private void compileNode(final ExpressionTreeNode theNode) {
+        Token token = theNode == null ? null : theNode.getToken();
+        int id = resolve(token);
+        if (id >= 0) {
+            emit(CompiledFormula.PUSH_CELL, id);
+            push();
+        } else if (isExternal(token)) {
+            int external = resolveExternal((CellToken) token);
+            if (external >= 0) {
+                emit(CompiledFormula.PUSH_EXTERNAL, external);
+            } else {
+                emit(CompiledFormula.PUSH_LITERAL, 0);
+            }
+            push();
+        } else if (token instanceof OperatorToken) {
+            int opcode = opcodeFor(((OperatorToken) token).getOperatorToken());
+            compileNode(theNode.myLeft);
+            Token right = theNode.myRight == null ? null : theNode.myRight.getToken();
+            int rightId = resolve(right);
+            if (rightId >= 0) {
+                emit(opcode + CompiledFormula.WITH_CELL, rightId);
+            } else if (right instanceof OperatorToken || right instanceof FunctionToken || isExternal(right)
+                    || (right instanceof LiteralToken && !isInt((LiteralToken) right))) {
+                compileNode(theNode.myRight);
+                emit(opcode);
+                myDepth--;
+            } else {
+                int literal = right instanceof LiteralToken ? (int) ((LiteralToken) right).getValue() : 0;
+                emit(opcode + CompiledFormula.WITH_LITERAL, literal);
+            }
+        } else if (token instanceof FunctionToken) {
+            RangeToken range = (RangeToken) theNode.myLeft.getToken();
+            addRange(range);
+            emit(CompiledFormula.AGGREGATE, ((FunctionToken) token).getFunction(), range.getFirstRow(),
+                    range.getFirstColumn(), range.getLastRow(), range.getLastColumn());
+            push();
+        } else if (token instanceof LiteralToken && ((LiteralToken) token).isDouble()) {
+            myDoubleConstants = Arrays.copyOf(myDoubleConstants, myDoubleConstants.length + 1);
+            myDoubleConstants[myDoubleConstants.length - 1] = ((LiteralToken) token).getDoubleValue();
+            emit(CompiledFormula.PUSH_DOUBLE, myDoubleConstants.length - 1);
+            push();
+        } else if (token instanceof LiteralToken && !isInt((LiteralToken) token)) {
+            myLongConstants = Arrays.copyOf(myLongConstants, myLongConstants.length + 1);
+            myLongConstants[myLongConstants.length - 1] = ((LiteralToken) token).getValue();
+            emit(CompiledFormula.PUSH_LONG, myLongConstants.length - 1);
+            push();
+        } else {
+            int literal = token instanceof LiteralToken ? (int) ((LiteralToken) token).getValue() : 0;
+            emit(CompiledFormula.PUSH_LITERAL, literal);
+            push();
+        }
+    }
+
+    /**
+     * Records a range the formula reads, unless it already reads the same range.
+     * @param theRange The range.
+     */
+    private void addRange(final RangeToken theRange) {
+        int[] range = {theRange.getFirstRow(), theRange.getFirstColumn(), theRange.getLastRow(), theRange.getLastColumn()};
+        for (int i = 0; i < myRanges.length; i += 4) {
+            if (Arrays.equals(myRanges, i, i + 4, range, 0, 4)) {
+                return;
+            }
+        }
+        myRanges = Arrays.copyOf(myRanges, myRanges.length + 4);
+        System.arraycopy(range, 0, myRanges, myRanges.length - 4, 4);
+    }
+
+    /**
+     * Tells if a literal can be stored inline in the program.
+     * @param theLiteral The literal.
+     * @return Returns true if it is a whole number that fits in an int.
+     */
+    private static boolean isInt(final LiteralToken theLiteral) {
+        return !theLiteral.isDouble() && theLiteral.getValue() == (int) theLiteral.getValue();
+    }
+
+    /**
+     * Resolves a cell reference and records it as a precedent.
+     * @param theToken The token of a node, may be null.
+     * @return Returns the id of the referenced cell, or -1 if the token isn't
+     *         a cell reference or the cell is off the spreadsheet.
+     */
+    private int resolve(final Token theToken) {
+        if (!(theToken instanceof CellToken) || isExternal(theToken)) {
+            return -1;
+        }
+        CellToken cellToken = (CellToken) theToken;
+        int id = myResolver.resolve(cellToken.getRow(), cellToken.getColumn());
+        if (id >= 0) {
+            if (myPrecedentCount == myPrecedents.length) {
+                myPrecedents = Arrays.copyOf(myPrecedents, myPrecedentCount * 2);
+            }
+            myPrecedents[myPrecedentCount++] = id;
+        }
+        return id;
+    }
+
+    /**
+     * Tells if a token names a cell on another sheet.
+     * @param theToken The token of a node, may be null.
+     * @return Returns true for a CellToken with a sheet.
+     */
+    private static boolean isExternal(final Token theToken) {
+        return theToken instanceof CellToken && ((CellToken) theToken).getSheet() != null;
+    }
+
+    /**
+     * Resolves a reference to a cell on another sheet and records it.
+     * @param theToken The token naming the cell.
+     * @return Returns the index of the reference, or -1 if the cell counts as 0.
+     */
+    private int resolveExternal(final CellToken theToken) {
+        int external = myResolver.resolveExternal(theToken.getSheet(), theToken.getRow(), theToken.getColumn());
+        if (external >= 0 && Arrays.stream(myExternals).noneMatch(index -> index == external)) {
+            myExternals = Arrays.copyOf(myExternals, myExternals.length + 1);
+            myExternals[myExternals.length - 1] = external;
+            Arrays.sort(myExternals);
+        }
+        return external;
+    }
+
+    /**
+     * Gets the opcode for an operator.
+     * @param theOperator The operator character.
+     * @return Returns the matching opcode.
+     */
+    private static int opcodeFor(final char theOperator) {
+        switch (theOperator) {
+            case OperatorToken.Plus:
+                return CompiledFormula.ADD;
+            case OperatorToken.Minus:
+                return CompiledFormula.SUBTRACT;
+            case OperatorToken.Mult:
+                return CompiledFormula.MULTIPLY;
+            case OperatorToken.Div:
+                return CompiledFormula.DIVIDE;
+            case OperatorToken.Exponent:
+                return CompiledFormula.POWER;
+            default:
+                throw new IllegalArgumentException("Unknown operator " + theOperator);
+        }
+    }
+
+    /**
+     * Accounts for one more value on the stack.
+     */
+    private void push() {
+        myDepth++;
+        myMaxDepth = Math.max(myMaxDepth, myDepth);
+    }
+
+    /**
+     * Appends ints to the program, growing it when needed.
+     * @param theInts The opcode followed by its operands.
+     */
+    private void emit(final int... theInts) {
+        if (myLength + theInts.length > myCode.length) {
+            myCode = Arrays.copyOf(myCode, Math.max(myCode.length * 2, myLength + theInts.length));
+        }
+        System.arraycopy(theInts, 0, myCode, myLength, theInts.length);
+        myLength += theInts.length;
+    }
+}
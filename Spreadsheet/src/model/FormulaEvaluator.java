@@ -0,0 +1,414 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+
+/**
+ * FormulaEvaluator runs compiled formulas on primitive stacks that are
+ * reused from one formula to the next, so evaluating doesn't allocate.
+ * Formulas are first run in exact long arithmetic. Only when that isn't
+ * enough, because a result overflows a long, a division has a remainder, a
+ * power has a negative exponent, or a literal, cell or function holds a double, is the
+ * formula run again in double arithmetic. A double result that is a whole
+ * number small enough to be exact comes back as a long again, so cells that
+ * merely pass through doubles keep their dependents on the long path.
+ * Division is exact, so 5 / 2 gives 2.5 where the old int evaluation
+ * truncated it to 2. Dividing by 0 throws an ArithmeticException, which
+ * Cell turns into the error value NaN.
+ * A shared subexpression is worked out once per recalculation pass, the
+ * first time a formula pushes it, on the part of the stacks above the
+ * formula that pushed it, and is taken from its ExpressionTable entry
+ * after that. Its value is worked out the same way as a cell's, so a
+ * formula that falls back to doubles still gets the exact long value of a
+ * shared subexpression; only results beyond 2^53 can therefore differ in
+ * their last bits from working the same formula out inline.
+ * A cell on another sheet is read through the reference it is bound to,
+ * and counts as 0 while it isn't bound.
+ * An evaluator is not thread safe; every thread needs its own. Powers use
+ * StrictMath so every thread gets exactly the same result.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class FormulaEvaluator {
+    /** The largest whole number every smaller one of which a double holds exactly, 2^53. */
+    private static final double EXACT_LIMIT = 9007199254740992.0;
+    /** Returned by power() when the result isn't a long. */
+    private static final long NOT_A_LONG = Long.MIN_VALUE;
+
+    /** The graph that holds the cells, by id. */
+    private final DependencyGraph myGraph;
+    /** The long operand stack, grown to the deepest formula seen so far. */
+    private long[] myStack = new long[16];
+    /** The double operand stack, grown to the deepest formula seen so far. */
+    private double[] myDoubleStack = new double[16];
+    /** True if the last formula evaluated to a double. */
+    private boolean myIsDouble;
+    /** The value of the last formula if it was a double. */
+    private double myDoubleResult;
+    /** Collects the result of a function over a range. */
+    private final ColumnAggregates.Accumulator myAccumulator = new ColumnAggregates.Accumulator();
+    /** The pass of the shared subexpressions the evaluated formulas are in. */
+    private int myPass;
+
+    /**
+     * Creates an evaluator that reads cell values by id from the given graph.
+     * @param theGraph The dependency graph of the spreadsheet.
+     */
+    public FormulaEvaluator(final DependencyGraph theGraph) {
+        myGraph = theGraph;
+    }
+
+    /**
+     * Sets the recalculation pass the following formulas are evaluated in.
+     * Shared subexpressions are worked out once per pass.
+     * @param thePass The pass, from ExpressionTable.beginPass().
+     */
+    void setPass(final int thePass) {
+        myPass = thePass;
+    }
+
+    /**
+     * Evaluates a compiled formula. Blank cells count as 0. If the result is
+     * a double, isDoubleResult() returns true afterwards and
+     * getDoubleResult() has the value.
+     * @param theFormula The formula to evaluate.
+     * @return Returns the value of the formula, truncated toward 0 if it is a double.
+     * @throws ArithmeticException If the formula divides by 0.
+     */
+    public long evaluate(final CompiledFormula theFormula) {
+        myIsDouble = false;
+        return run(theFormula, 0);
+    }
+
+    /**
+     * Evaluates a formula, in double arithmetic straight away if it has
+     * double literals.
+     * @param theFormula The formula to evaluate.
+     * @param theBase The index of the stacks the formula's stack starts at.
+     * @return Returns the value of the formula, truncated toward 0 if it is a double.
+     */
+    private long run(final CompiledFormula theFormula, final int theBase) {
+        if (theFormula.hasDoubleConstants()) {
+            return evaluateDouble(theFormula, theBase);
+        }
+        return evaluateLong(theFormula, theBase);
+    }
+
+    /**
+     * Evaluates a formula in exact long arithmetic, falling back to double
+     * arithmetic when that isn't enough.
+     * @param theFormula The formula to evaluate.
+     * @param theBase The index of the stacks the formula's stack starts at.
+     * @return Returns the value of the formula, truncated toward 0 if it is a double.
+     */
+    private long evaluateLong(final CompiledFormula theFormula, final int theBase) {
+        if (myStack.length < theBase + theFormula.getMaxStackDepth()) {
+            myStack = Arrays.copyOf(myStack, Math.max(theBase + theFormula.getMaxStackDepth(), myStack.length * 2));
+        }
+        int[] code = theFormula.getCode();
+        long[] stack = myStack;
+        int top = theBase - 1;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc];
+            int operator;
+            long right;
+            switch (opcode) {
+                case CompiledFormula.PUSH_LITERAL:
+                    stack[++top] = code[pc + 1];
+                    pc += 2;
+                    continue;
+                case CompiledFormula.PUSH_LONG:
+                    stack[++top] = theFormula.getLongConstants()[code[pc + 1]];
+                    pc += 2;
+                    continue;
+                case CompiledFormula.PUSH_CELL:
+                    Cell cell = myGraph.getCell(code[pc + 1]);
+                    if (cell.isDouble()) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    stack[++top] = cell.getValue();
+                    pc += 2;
+                    continue;
+                case CompiledFormula.PUSH_EXTERNAL:
+                    Cell source = myGraph.getReferences().getSource(code[pc + 1]);
+                    if (source != null && source.isDouble()) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    stack[++top] = source == null ? 0 : source.getValue();
+                    pc += 2;
+                    continue;
+                case CompiledFormula.AGGREGATE:
+                    aggregate(code, pc);
+                    if (myAccumulator.isDouble()) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    stack[++top] = myAccumulator.getResult();
+                    pc += 6;
+                    continue;
+                case CompiledFormula.NEGATE:
+                    if (stack[top] == Long.MIN_VALUE) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    stack[top] = -stack[top];
+                    pc++;
+                    continue;
+                case CompiledFormula.PUSH_SHARED:
+                    ExpressionTable.Entry entry = shared(code[pc + 1], top + 1);
+                    if (entry.myIsDouble) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    stack = myStack;
+                    stack[++top] = entry.myValue;
+                    pc += 2;
+                    continue;
+                default:
+                    if (opcode < CompiledFormula.ADD || opcode > CompiledFormula.POWER_CELL) {
+                        throw new IllegalStateException("Bad opcode " + opcode);
+                    }
+                    if (opcode < CompiledFormula.ADD_LITERAL) {
+                        operator = opcode;
+                        right = stack[top--];
+                        pc++;
+                    } else if (opcode < CompiledFormula.ADD_CELL) {
+                        operator = opcode - CompiledFormula.WITH_LITERAL;
+                        right = code[pc + 1];
+                        pc += 2;
+                    } else {
+                        Cell rightCell = myGraph.getCell(code[pc + 1]);
+                        if (rightCell.isDouble()) {
+                            return evaluateDouble(theFormula, theBase);
+                        }
+                        operator = opcode - CompiledFormula.WITH_CELL;
+                        right = rightCell.getValue();
+                        pc += 2;
+                    }
+            }
+            long left = stack[top];
+            long result;
+            switch (operator) {
+                case CompiledFormula.ADD:
+                    result = left + right;
+                    if (((left ^ result) & (right ^ result)) < 0) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    break;
+                case CompiledFormula.SUBTRACT:
+                    result = left - right;
+                    if (((left ^ right) & (left ^ result)) < 0) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    break;
+                case CompiledFormula.MULTIPLY:
+                    result = left * right;
+                    if (Math.multiplyHigh(left, right) != (result >> 63)) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    break;
+                case CompiledFormula.DIVIDE:
+                    if (left % right != 0 || (left == Long.MIN_VALUE && right == -1)) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    result = left / right;
+                    break;
+                default:
+                    result = power(left, right);
+                    if (result == NOT_A_LONG) {
+                        return evaluateDouble(theFormula, theBase);
+                    }
+                    break;
+            }
+            stack[top] = result;
+        }
+        return stack[theBase];
+    }
+
+    /**
+     * Tells if the last formula evaluated to a double rather than a long.
+     * @return Returns true for a double.
+     */
+    public boolean isDoubleResult() {
+        return myIsDouble;
+    }
+
+    /**
+     * Gets the value of the last formula if it evaluated to a double.
+     * @return Returns the value, only meaningful if isDoubleResult() is true.
+     */
+    public double getDoubleResult() {
+        return myDoubleResult;
+    }
+
+    /**
+     * Evaluates a formula in double arithmetic and sets the result.
+     * @param theFormula The formula to evaluate.
+     * @param theBase The index of the stacks the formula's stack starts at.
+     * @return Returns the value of the formula, truncated toward 0.
+     */
+    private long evaluateDouble(final CompiledFormula theFormula, final int theBase) {
+        if (myDoubleStack.length < theBase + theFormula.getMaxStackDepth()) {
+            myDoubleStack = Arrays.copyOf(myDoubleStack,
+                    Math.max(theBase + theFormula.getMaxStackDepth(), myDoubleStack.length * 2));
+        }
+        int[] code = theFormula.getCode();
+        double[] stack = myDoubleStack;
+        int top = theBase - 1;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc];
+            int operator;
+            double right;
+            switch (opcode) {
+                case CompiledFormula.PUSH_LITERAL:
+                    stack[++top] = code[pc + 1];
+                    pc += 2;
+                    continue;
+                case CompiledFormula.PUSH_LONG:
+                    stack[++top] = theFormula.getLongConstants()[code[pc + 1]];
+                    pc += 2;
+                    continue;
+                case CompiledFormula.PUSH_DOUBLE:
+                    stack[++top] = theFormula.getDoubleConstants()[code[pc + 1]];
+                    pc += 2;
+                    continue;
+                case CompiledFormula.PUSH_CELL:
+                    stack[++top] = myGraph.getCell(code[pc + 1]).getDoubleValue();
+                    pc += 2;
+                    continue;
+                case CompiledFormula.PUSH_EXTERNAL:
+                    Cell source = myGraph.getReferences().getSource(code[pc + 1]);
+                    stack[++top] = source == null ? 0 : source.getDoubleValue();
+                    pc += 2;
+                    continue;
+                case CompiledFormula.AGGREGATE:
+                    aggregate(code, pc);
+                    stack[++top] = myAccumulator.getDoubleResult();
+                    pc += 6;
+                    continue;
+                case CompiledFormula.NEGATE:
+                    stack[top] = -stack[top];
+                    pc++;
+                    continue;
+                case CompiledFormula.PUSH_SHARED:
+                    ExpressionTable.Entry entry = shared(code[pc + 1], top + 1);
+                    stack = myDoubleStack;
+                    stack[++top] = entry.myIsDouble ? entry.myDoubleValue : entry.myValue;
+                    pc += 2;
+                    continue;
+                default:
+                    if (opcode < CompiledFormula.ADD || opcode > CompiledFormula.POWER_CELL) {
+                        throw new IllegalStateException("Bad opcode " + opcode);
+                    }
+                    if (opcode < CompiledFormula.ADD_LITERAL) {
+                        operator = opcode;
+                        right = stack[top--];
+                        pc++;
+                    } else if (opcode < CompiledFormula.ADD_CELL) {
+                        operator = opcode - CompiledFormula.WITH_LITERAL;
+                        right = code[pc + 1];
+                        pc += 2;
+                    } else {
+                        operator = opcode - CompiledFormula.WITH_CELL;
+                        right = myGraph.getCell(code[pc + 1]).getDoubleValue();
+                        pc += 2;
+                    }
+            }
+            double left = stack[top];
+            switch (operator) {
+                case CompiledFormula.ADD:
+                    stack[top] = left + right;
+                    break;
+                case CompiledFormula.SUBTRACT:
+                    stack[top] = left - right;
+                    break;
+                case CompiledFormula.MULTIPLY:
+                    stack[top] = left * right;
+                    break;
+                case CompiledFormula.DIVIDE:
+                    if (right == 0) {
+                        throw new ArithmeticException("/ by zero");
+                    }
+                    stack[top] = left / right;
+                    break;
+                default:
+                    stack[top] = StrictMath.pow(left, right);
+                    break;
+            }
+        }
+        double result = stack[theBase];
+        if (result == Math.rint(result) && Math.abs(result) <= EXACT_LIMIT) {
+            return (long) result;
+        }
+        myIsDouble = true;
+        myDoubleResult = result;
+        return (long) result;
+    }
+
+    /**
+     * Gets a shared subexpression with its value for the current pass,
+     * working the value out first if no formula has needed it in this pass yet.
+     * @param theId The id of the ExpressionTable entry.
+     * @param theBase The index of the stacks it may be worked out at.
+     * @return Returns the entry.
+     */
+    private ExpressionTable.Entry shared(final int theId, final int theBase) {
+        ExpressionTable expressions = myGraph.getExpressions();
+        ExpressionTable.Entry entry = expressions.getEntry(theId);
+        int pass = myPass;
+        if (entry.myPass != pass) {
+            entry.myValue = run(entry.myProgram, theBase);
+            entry.myIsDouble = myIsDouble;
+            entry.myDoubleValue = myDoubleResult;
+            entry.myPass = pass;
+            myIsDouble = false;
+        }
+        return entry;
+    }
+
+    /**
+     * Works out the function of an AGGREGATE instruction into myAccumulator.
+     * @param theCode The program.
+     * @param thePc The position of the instruction.
+     */
+    private void aggregate(final int[] theCode, final int thePc) {
+        myGraph.aggregate(theCode[thePc + 1], theCode[thePc + 2], theCode[thePc + 3],
+                theCode[thePc + 4], theCode[thePc + 5], myAccumulator);
+    }
+
+    /**
+     * Raises a long to a long power exactly, by repeated squaring.
+     * @param theBase The base.
+     * @param theExponent The exponent.
+     * @return Returns the power, or NOT_A_LONG if it overflows or isn't a
+     *         whole number; a power that really is Long.MIN_VALUE is then
+     *         simply worked out again in double arithmetic.
+     */
+    private static long power(final long theBase, final long theExponent) {
+        if (theExponent < 0) {
+            if (theBase == 1 || theBase == -1) {
+                return (theExponent & 1) == 0 ? 1 : theBase;
+            }
+            return NOT_A_LONG;
+        }
+        long result = 1;
+        long base = theBase;
+        long exponent = theExponent;
+        while (true) {
+            if ((exponent & 1) != 0) {
+                long product = result * base;
+                if (Math.multiplyHigh(result, base) != (product >> 63)) {
+                    return NOT_A_LONG;
+                }
+                result = product;
+            }
+            exponent >>= 1;
+            if (exponent == 0) {
+                return result;
+            }
+            long square = base * base;
+            if (Math.multiplyHigh(base, base) != (square >> 63)) {
+                return NOT_A_LONG;
+            }
+            base = square;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package model.Spreadsheet.src.model;
+
+/**
+ * FormulaParseException is thrown when a typed formula can't be parsed.
+ * It says what was wrong and where, so the formula can be fixed instead
+ * of the program exiting.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class FormulaParseException extends IllegalArgumentException {
+    /** The version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /** The formula that couldn't be parsed. */
+    private final String myFormula;
+    /** The index of the character the error was found at. */
+    private final int myErrorIndex;
+
+    /**
+     * Creates an exception for a formula.
+     * @param theFormula The formula as typed.
+     * @param theErrorIndex The index of the character the error was found at,
+     *                      the length of the formula if it ended too soon.
+     * @param theReason What was wrong.
+     */
+    public FormulaParseException(final String theFormula, final int theErrorIndex, final String theReason) {
+        super(theReason + " at position " + (theErrorIndex + 1) + " of \"" + theFormula + "\"");
+        myFormula = theFormula;
+        myErrorIndex = theErrorIndex;
+    }
+
+    /**
+     * Returns the formula to the user.
+     * @return Returns the formula as typed.
+     */
+    public String getFormula() {
+        return myFormula;
+    }
+
+    /**
+     * Returns where the error is to the user.
+     * @return Returns the index of the character the error was found at.
+     */
+    public int getErrorIndex() {
+        return myErrorIndex;
+    }
+}
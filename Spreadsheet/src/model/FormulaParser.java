@@ -0,0 +1,783 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+
+/**
+ * FormulaParser turns a typed formula straight into a CompiledFormula in a
+ * single pass over its characters. No tokens or expression tree are built
+ * on the way: operators wait on an array-backed stack as plain chars and
+ * come out as opcodes, numbers are read into longs digit by digit and cell
+ * references resolve to cell ids as soon as they are read; a reference to
+ * a cell on another sheet, like Inputs!B3, resolves to the index of an
+ * external reference instead. Only a number
+ * with a decimal point is handed to Double.parseDouble. The buffers are
+ * kept between calls, so one parser can load a whole file without creating
+ * garbage per formula.
+ * A formula that can't be parsed doesn't stop the program; parse() returns
+ * null and the parser tells where the error was and what it was.
+ * Given an ExpressionTable, the parser also shares subexpressions between
+ * formulas: every function over a range, and every parenthesized group of
+ * at least three instructions, is compiled into a program of its own,
+ * interned in the table and pushed by its id. The formula then holds a
+ * reference to each of those entries, which the caller gives back with
+ * ExpressionTable.release() once the formula is replaced.
+ * Without a table it produces the same programs as compiling the tree from
+ * SpreadSheetUtility.getFormula() with FormulaCompiler; only the parser
+ * reads a sign in front of an operand, though. A parser is not thread safe.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class FormulaParser {
+    /** The stack marker of an open parenthesis. */
+    private static final char OPEN = OperatorToken.LeftParen;
+    /** The stack marker of a minus sign in front of an operand; not an operator that can be typed. */
+    private static final char NEGATE = '~';
+    /** The largest row or column a reference may name, so they can't overflow. */
+    private static final int MAX_INDEX = Integer.MAX_VALUE / 32;
+    /** The largest whole number every double holds exactly, 2^53. */
+    private static final long MAX_EXACT = 1L << 53;
+    /** The powers of ten that are exact doubles, by exponent. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /** Shared by every formula without precedents or ranges. */
+    private static final int[] NO_INTS = new int[0];
+    /** Shared by every formula without long constants. */
+    private static final long[] NO_LONGS = new long[0];
+    /** Shared by every formula without double constants. */
+    private static final double[] NO_DOUBLES = new double[0];
+    /** The number of ints recorded per open parenthesis in myGroups. */
+    private static final int GROUP_SIZE = 5;
+    /** The fewest instructions a parenthesized group needs to be shared. */
+    private static final int MIN_SHARED_INSTRUCTIONS = 3;
+
+    /** Turns cell references into cell ids. */
+    private final CellResolver myResolver;
+    /** Interns the shared subexpressions, or null to share none. */
+    private final ExpressionTable myExpressions;
+    /** The program being written. */
+    private int[] myCode = new int[32];
+    /** The number of ints written so far. */
+    private int myLength;
+    /** The index of the last push that an operator may still fold, or -1. */
+    private int myLastPush;
+    /** The stack depth at the current point of the program. */
+    private int myDepth;
+    /** The deepest the stack has been so far. */
+    private int myMaxDepth;
+    /** The operators and open parentheses waiting for their right operand. */
+    private char[] myOperators = new char[16];
+    /** The number of chars in myOperators. */
+    private int myOperatorCount;
+    /** The ids of the referenced cells, possibly with duplicates. */
+    private int[] myPrecedents = new int[16];
+    /** The number of ids in myPrecedents. */
+    private int myPrecedentCount;
+    /** The indices of the references to other sheets, possibly with duplicates. */
+    private int[] myExternals = new int[4];
+    /** The number of indices in myExternals. */
+    private int myExternalCount;
+    /** The long literals that don't fit in an int. */
+    private long[] myLongConstants = new long[4];
+    /** The number of longs in myLongConstants. */
+    private int myLongCount;
+    /** The double literals. */
+    private double[] myDoubleConstants = new double[4];
+    /** The number of doubles in myDoubleConstants. */
+    private int myDoubleCount;
+    /** The ranges read by functions, four ints each. */
+    private int[] myRanges = new int[8];
+    /** The number of ints in myRanges. */
+    private int myRangeLength;
+    /**
+     * Where the program was at each open parenthesis: its length, the
+     * number of long and double constants, the number of owned ids and the
+     * deepest stack so far, GROUP_SIZE ints each.
+     */
+    private int[] myGroups = new int[4 * GROUP_SIZE];
+    /** The number of ints in myGroups. */
+    private int myGroupLength;
+    /** The ids of the shared subexpressions pushed so far, one reference each. */
+    private int[] myOwned = new int[8];
+    /** The number of ids in myOwned. */
+    private int myOwnedCount;
+    /** The row of the cell reference read last. */
+    private int myRow;
+    /** The column of the cell reference read last. */
+    private int myColumn;
+    /** The index of the character the last error was found at, or -1. */
+    private int myErrorIndex = -1;
+    /** What the last error was, or null. */
+    private String myErrorMessage;
+
+    /**
+     * Creates a parser.
+     * @param theResolver Turns cell references into cell ids.
+     */
+    public FormulaParser(final CellResolver theResolver) {
+        this(theResolver, null);
+    }
+
+    /**
+     * Creates a parser that shares subexpressions through a table.
+     * @param theResolver Turns cell references into cell ids.
+     * @param theExpressions Interns the shared subexpressions, or null to share none.
+     */
+    public FormulaParser(final CellResolver theResolver, final ExpressionTable theExpressions) {
+        myResolver = theResolver;
+        myExpressions = theExpressions;
+    }
+
+    /**
+     * Parses a formula. Operators are left associative; ^ binds tightest,
+     * then * and /, then + and -. A minus sign in front of an operand
+     * negates it, binding tighter than * and / but looser than ^, so
+     * 8 / -2 / 2 is -2 and -2 ^ 2 is -4; a plus sign there is ignored. A
+     * reference to a cell off the spreadsheet counts as 0. The referenced
+     * cells are resolved even if the formula turns out to be malformed
+     * further on.
+     * @param theFormula The formula as typed.
+     * @return Returns the compiled formula, or null if the formula is
+     *         malformed, in which case getErrorIndex() and getErrorMessage()
+     *         tell why.
+     */
+    public CompiledFormula parse(final CharSequence theFormula) {
+        reset();
+        int length = theFormula.length();
+        int index = 0;
+        boolean expectOperand = true;
+        while ((index = skipWhitespace(theFormula, index)) < length) {
+            char ch = theFormula.charAt(index);
+            if (expectOperand) {
+                if (isDigit(ch)) {
+                    index = readLiteral(theFormula, index);
+                    expectOperand = false;
+                } else if (SpreadSheetUtility.sheetNameEnd(theFormula, index) >= 0) {
+                    index = readExternal(theFormula, index);
+                    if (index < 0) {
+                        return null;
+                    }
+                    expectOperand = false;
+                } else if (isLetter(ch)) {
+                    index = readReference(theFormula, index);
+                    if (index < 0) {
+                        return null;
+                    }
+                    expectOperand = false;
+                } else if (ch == OPEN) {
+                    pushOperator(OPEN);
+                    openGroup();
+                    index++;
+                } else if (ch == OperatorToken.Minus) {
+                    pushOperator(NEGATE);
+                    index++;
+                } else if (ch == OperatorToken.Plus) {
+                    index++;
+                } else {
+                    return error(index, "Expected a number, a cell or '('");
+                }
+            } else if (ch == ')') {
+                while (myOperatorCount > 0 && myOperators[myOperatorCount - 1] != OPEN) {
+                    emitOperator(myOperators[--myOperatorCount]);
+                }
+                if (myOperatorCount == 0) {
+                    return error(index, "')' without a matching '('");
+                }
+                myOperatorCount--;
+                closeGroup();
+                index++;
+            } else if (ch != NEGATE && priority(ch) >= 0) {
+                while (myOperatorCount > 0 && myOperators[myOperatorCount - 1] != OPEN
+                        && priority(myOperators[myOperatorCount - 1]) >= priority(ch)) {
+                    emitOperator(myOperators[--myOperatorCount]);
+                }
+                pushOperator(ch);
+                index++;
+                expectOperand = true;
+            } else {
+                return error(index, "Expected an operator or ')'");
+            }
+        }
+        if (expectOperand) {
+            return error(length, myOperatorCount == 0 ? "The formula is empty" : "Expected a number, a cell or '('");
+        }
+        while (myOperatorCount > 0) {
+            char operator = myOperators[--myOperatorCount];
+            if (operator == OPEN) {
+                return error(length, "Missing ')'");
+            }
+            emitOperator(operator);
+        }
+        return build();
+    }
+
+    /**
+     * Returns where the last error was to the user.
+     * @return Returns the index of the character the error was found at,
+     *         the length of the formula if it ended too soon, or -1 if the
+     *         last formula parsed.
+     */
+    public int getErrorIndex() {
+        return myErrorIndex;
+    }
+
+    /**
+     * Returns what the last error was to the user.
+     * @return Returns the reason the last formula couldn't be parsed, or
+     *         null if it parsed.
+     */
+    public String getErrorMessage() {
+        return myErrorMessage;
+    }
+
+    /**
+     * Forgets the previous formula, keeping the buffers.
+     */
+    private void reset() {
+        myLength = 0;
+        myLastPush = -1;
+        myDepth = 0;
+        myMaxDepth = 0;
+        myOperatorCount = 0;
+        myPrecedentCount = 0;
+        myExternalCount = 0;
+        myLongCount = 0;
+        myDoubleCount = 0;
+        myRangeLength = 0;
+        myGroupLength = 0;
+        myOwnedCount = 0;
+        myErrorIndex = -1;
+        myErrorMessage = null;
+    }
+
+    /**
+     * Records an error, giving back the shared subexpressions pushed so far.
+     * @param theIndex The index of the character the error was found at.
+     * @param theMessage What was wrong.
+     * @return Returns null, so callers can return it.
+     */
+    private CompiledFormula error(final int theIndex, final String theMessage) {
+        for (int i = 0; i < myOwnedCount; i++) {
+            myExpressions.release(myOwned[i]);
+        }
+        myOwnedCount = 0;
+        myErrorIndex = theIndex;
+        myErrorMessage = theMessage;
+        return null;
+    }
+
+    /**
+     * Reads a number. Whole numbers are read straight into a long; one with
+     * a decimal part, or one too big for a long, becomes a double. When the
+     * digits and the power of ten are both exact doubles a single division
+     * gives the correctly rounded value, so only long decimals need
+     * Double.parseDouble and the string it takes.
+     * @param theFormula The formula.
+     * @param theStart The index of the first digit.
+     * @return Returns the index just after the number.
+     */
+    private int readLiteral(final CharSequence theFormula, final int theStart) {
+        int length = theFormula.length();
+        int index = theStart;
+        long value = 0;
+        boolean overflow = false;
+        while (index < length && isDigit(theFormula.charAt(index))) {
+            int digit = theFormula.charAt(index) - '0';
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                overflow = true;
+            } else {
+                value = value * 10 + digit;
+            }
+            index++;
+        }
+        boolean decimal = index + 1 < length && theFormula.charAt(index) == '.'
+                && isDigit(theFormula.charAt(index + 1));
+        int fractionDigits = 0;
+        if (decimal) {
+            index++;
+            while (index < length && isDigit(theFormula.charAt(index))) {
+                int digit = theFormula.charAt(index) - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10) {
+                    overflow = true;
+                } else {
+                    value = value * 10 + digit;
+                }
+                fractionDigits++;
+                index++;
+            }
+        }
+        if (decimal || overflow) {
+            if (myDoubleCount == myDoubleConstants.length) {
+                myDoubleConstants = Arrays.copyOf(myDoubleConstants, myDoubleCount * 2);
+            }
+            myDoubleConstants[myDoubleCount] = !overflow && value <= MAX_EXACT && fractionDigits < POWERS_OF_TEN.length
+                    ? value / POWERS_OF_TEN[fractionDigits]
+                    : Double.parseDouble(theFormula.subSequence(theStart, index).toString());
+            emitPush(CompiledFormula.PUSH_DOUBLE, myDoubleCount++, false);
+        } else if (value != (int) value) {
+            if (myLongCount == myLongConstants.length) {
+                myLongConstants = Arrays.copyOf(myLongConstants, myLongCount * 2);
+            }
+            myLongConstants[myLongCount] = value;
+            emitPush(CompiledFormula.PUSH_LONG, myLongCount++, false);
+        } else {
+            emitPush(CompiledFormula.PUSH_LITERAL, (int) value, true);
+        }
+        return index;
+    }
+
+    /**
+     * Reads a cell reference, or a function call if the capital letters are
+     * followed by '('.
+     * @param theFormula The formula.
+     * @param theStart The index of the first capital letter.
+     * @return Returns the index just after the reference or call, or -1 if
+     *         it is malformed.
+     */
+    private int readReference(final CharSequence theFormula, final int theStart) {
+        int nameEnd = theStart;
+        while (nameEnd < theFormula.length() && isLetter(theFormula.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        if (nameEnd < theFormula.length() && theFormula.charAt(nameEnd) == OPEN) {
+            return readFunctionCall(theFormula, theStart, nameEnd);
+        }
+        int index = readCell(theFormula, theStart);
+        if (index < 0) {
+            return -1;
+        }
+        int id = myResolver.resolve(myRow, myColumn);
+        if (id >= 0) {
+            if (myPrecedentCount == myPrecedents.length) {
+                myPrecedents = Arrays.copyOf(myPrecedents, myPrecedentCount * 2);
+            }
+            myPrecedents[myPrecedentCount++] = id;
+            emitPush(CompiledFormula.PUSH_CELL, id, true);
+        } else {
+            emitPush(CompiledFormula.PUSH_LITERAL, 0, true);
+        }
+        return index;
+    }
+
+    /**
+     * Reads a reference to a cell on another sheet, like Inputs!B3. It is
+     * never folded into an operator, so the folded opcodes only ever read
+     * cells of this sheet.
+     * @param theFormula The formula.
+     * @param theStart The index of the sheet's name.
+     * @return Returns the index just after the reference, or -1 if it is malformed.
+     */
+    private int readExternal(final CharSequence theFormula, final int theStart) {
+        int nameEnd = SpreadSheetUtility.sheetNameEnd(theFormula, theStart);
+        int index = readCell(theFormula, nameEnd + 1);
+        if (index < 0) {
+            return -1;
+        }
+        int external;
+        try {
+            external = myResolver.resolveExternal(theFormula.subSequence(theStart, nameEnd).toString(),
+                    myRow, myColumn);
+        } catch (RuntimeException exception) {
+            error(theStart, exception.getMessage());
+            throw exception;
+        }
+        if (external >= 0) {
+            if (myExternalCount == myExternals.length) {
+                myExternals = Arrays.copyOf(myExternals, myExternalCount * 2);
+            }
+            myExternals[myExternalCount++] = external;
+            emitPush(CompiledFormula.PUSH_EXTERNAL, external, false);
+        } else {
+            emitPush(CompiledFormula.PUSH_LITERAL, 0, true);
+        }
+        return index;
+    }
+
+    /**
+     * Reads a function applied to a range, like SUM(A1:A100), or to a
+     * single cell, like SUM(A1).
+     * @param theFormula The formula.
+     * @param theStart The index of the function's name.
+     * @param theNameEnd The index of the '(' after the name.
+     * @return Returns the index just after the closing parenthesis, or -1 if
+     *         the function is unknown or the call is malformed.
+     */
+    private int readFunctionCall(final CharSequence theFormula, final int theStart, final int theNameEnd) {
+        int function = FunctionToken.forName(theFormula, theStart, theNameEnd);
+        if (function < 0) {
+            error(theStart, "Unknown function");
+            return -1;
+        }
+        int index = readCell(theFormula, skipWhitespace(theFormula, theNameEnd + 1));
+        if (index < 0) {
+            return -1;
+        }
+        int firstRow = myRow;
+        int firstColumn = myColumn;
+        index = skipWhitespace(theFormula, index);
+        if (index < theFormula.length() && theFormula.charAt(index) == ':') {
+            index = readCell(theFormula, skipWhitespace(theFormula, index + 1));
+            if (index < 0) {
+                return -1;
+            }
+            index = skipWhitespace(theFormula, index);
+        }
+        if (index == theFormula.length() || theFormula.charAt(index) != ')') {
+            error(index, "Expected ')' after the range");
+            return -1;
+        }
+        int row1 = Math.min(firstRow, myRow);
+        int column1 = Math.min(firstColumn, myColumn);
+        int row2 = Math.max(firstRow, myRow);
+        int column2 = Math.max(firstColumn, myColumn);
+        addRange(row1, column1, row2, column2);
+        if (myExpressions != null) {
+            pushShared(new CompiledFormula(new int[] {CompiledFormula.AGGREGATE, function, row1, column1, row2, column2},
+                    1, NO_INTS, NO_LONGS, NO_DOUBLES, NO_INTS));
+        } else {
+            emitPush(CompiledFormula.AGGREGATE, function, false);
+            emit(row1);
+            emit(column1);
+            emit(row2);
+            emit(column2);
+        }
+        return index + 1;
+    }
+
+    /**
+     * Reads the capital letters and digits of a cell reference into myRow
+     * and myColumn, numbered the same way as SpreadSheetUtility.getCellToken().
+     * @param theFormula The formula.
+     * @param theStart The index of the first capital letter.
+     * @return Returns the index just after the reference, or -1 if there
+     *         is no valid reference there.
+     */
+    private int readCell(final CharSequence theFormula, final int theStart) {
+        int length = theFormula.length();
+        int index = theStart;
+        if (index == length || !isLetter(theFormula.charAt(index))) {
+            error(index, "Expected a cell");
+            return -1;
+        }
+        int column = theFormula.charAt(index++) - 'A';
+        while (index < length && isLetter(theFormula.charAt(index))) {
+            column = (column + 1) * 26 + (theFormula.charAt(index++) - 'A');
+            if (column > MAX_INDEX) {
+                error(theStart, "Column out of range");
+                return -1;
+            }
+        }
+        if (index == length || !isDigit(theFormula.charAt(index))) {
+            error(index, "Expected the row of the cell");
+            return -1;
+        }
+        int row = 0;
+        while (index < length && isDigit(theFormula.charAt(index))) {
+            row = row * 10 + (theFormula.charAt(index++) - '0');
+            if (row > MAX_INDEX) {
+                error(theStart, "Row out of range");
+                return -1;
+            }
+        }
+        myRow = row;
+        myColumn = column;
+        return index;
+    }
+
+    /**
+     * Records a range the formula reads, unless it already reads the same range.
+     * @param theFirstRow The top row.
+     * @param theFirstColumn The leftmost column.
+     * @param theLastRow The bottom row.
+     * @param theLastColumn The rightmost column.
+     */
+    private void addRange(final int theFirstRow, final int theFirstColumn,
+                          final int theLastRow, final int theLastColumn) {
+        for (int i = 0; i < myRangeLength; i += 4) {
+            if (myRanges[i] == theFirstRow && myRanges[i + 1] == theFirstColumn
+                    && myRanges[i + 2] == theLastRow && myRanges[i + 3] == theLastColumn) {
+                return;
+            }
+        }
+        if (myRangeLength + 4 > myRanges.length) {
+            myRanges = Arrays.copyOf(myRanges, myRanges.length * 2);
+        }
+        myRanges[myRangeLength++] = theFirstRow;
+        myRanges[myRangeLength++] = theFirstColumn;
+        myRanges[myRangeLength++] = theLastRow;
+        myRanges[myRangeLength++] = theLastColumn;
+    }
+
+    /**
+     * Pushes an operator or an open parenthesis onto the operator stack.
+     * @param theOperator The operator character.
+     */
+    private void pushOperator(final char theOperator) {
+        if (myOperatorCount == myOperators.length) {
+            myOperators = Arrays.copyOf(myOperators, myOperatorCount * 2);
+        }
+        myOperators[myOperatorCount++] = theOperator;
+    }
+
+    /**
+     * Records where the program is at an open parenthesis, so the group can
+     * be cut out and shared when it closes.
+     */
+    private void openGroup() {
+        if (myGroupLength + GROUP_SIZE > myGroups.length) {
+            myGroups = Arrays.copyOf(myGroups, myGroups.length * 2);
+        }
+        myGroups[myGroupLength++] = myLength;
+        myGroups[myGroupLength++] = myLongCount;
+        myGroups[myGroupLength++] = myDoubleCount;
+        myGroups[myGroupLength++] = myOwnedCount;
+        myGroups[myGroupLength++] = myMaxDepth;
+    }
+
+    /**
+     * Closes the innermost group. If there is a table and the group is long
+     * enough to be worth a lookup, its instructions and constants are moved
+     * into a program of their own that is pushed as one shared value.
+     */
+    private void closeGroup() {
+        myGroupLength -= GROUP_SIZE;
+        if (myExpressions == null) {
+            return;
+        }
+        int start = myGroups[myGroupLength];
+        int instructions = 0;
+        for (int pc = start; pc < myLength; pc += CompiledFormula.instructionLength(myCode[pc])) {
+            instructions++;
+        }
+        if (instructions < MIN_SHARED_INSTRUCTIONS) {
+            return;
+        }
+        int longBase = myGroups[myGroupLength + 1];
+        int doubleBase = myGroups[myGroupLength + 2];
+        int ownedBase = myGroups[myGroupLength + 3];
+        int[] code = Arrays.copyOfRange(myCode, start, myLength);
+        int depth = 0;
+        int maxDepth = 0;
+        for (int pc = 0; pc < code.length; pc += CompiledFormula.instructionLength(code[pc])) {
+            int opcode = code[pc];
+            if (opcode == CompiledFormula.PUSH_LONG) {
+                code[pc + 1] -= longBase;
+            } else if (opcode == CompiledFormula.PUSH_DOUBLE) {
+                code[pc + 1] -= doubleBase;
+            }
+            if (opcode == CompiledFormula.NEGATE) {
+                continue;
+            }
+            if (opcode < CompiledFormula.ADD || opcode >= CompiledFormula.PUSH_LONG) {
+                maxDepth = Math.max(maxDepth, ++depth);
+            } else if (opcode <= CompiledFormula.POWER) {
+                depth--;
+            }
+        }
+        CompiledFormula group = new CompiledFormula(code, maxDepth, NO_INTS,
+                longBase == myLongCount ? NO_LONGS : Arrays.copyOfRange(myLongConstants, longBase, myLongCount),
+                doubleBase == myDoubleCount ? NO_DOUBLES
+                        : Arrays.copyOfRange(myDoubleConstants, doubleBase, myDoubleCount),
+                NO_INTS,
+                ownedBase == myOwnedCount ? NO_INTS : Arrays.copyOfRange(myOwned, ownedBase, myOwnedCount));
+        myLength = start;
+        myLongCount = longBase;
+        myDoubleCount = doubleBase;
+        myOwnedCount = ownedBase;
+        myMaxDepth = myGroups[myGroupLength + 4];
+        myDepth--;
+        pushShared(group);
+    }
+
+    /**
+     * Interns a subexpression and writes the push of its shared value. The
+     * program keeps the reference the table hands out.
+     * @param theProgram The compiled subexpression.
+     */
+    private void pushShared(final CompiledFormula theProgram) {
+        int id = myExpressions.intern(theProgram);
+        if (myOwnedCount == myOwned.length) {
+            myOwned = Arrays.copyOf(myOwned, myOwnedCount * 2);
+        }
+        myOwned[myOwnedCount++] = id;
+        emitPush(CompiledFormula.PUSH_SHARED, id, false);
+    }
+
+    /**
+     * Writes an operator that now has both operands. If its right operand
+     * was the last thing pushed and is a cell or an int literal, the push is
+     * turned into the operator's folded form instead.
+     * @param theOperator The operator character, or NEGATE.
+     */
+    private void emitOperator(final char theOperator) {
+        if (theOperator == NEGATE) {
+            emitNegate();
+            return;
+        }
+        int opcode = opcodeFor(theOperator);
+        if (myLastPush >= 0) {
+            myCode[myLastPush] = opcode + (myCode[myLastPush] == CompiledFormula.PUSH_CELL
+                    ? CompiledFormula.WITH_CELL : CompiledFormula.WITH_LITERAL);
+        } else {
+            emit(opcode);
+        }
+        myLastPush = -1;
+        myDepth--;
+    }
+
+    /**
+     * Writes the negation of the value on top of the stack. An int literal
+     * that was just pushed is negated in place, and may still be folded.
+     */
+    private void emitNegate() {
+        if (myLastPush >= 0 && myCode[myLastPush] == CompiledFormula.PUSH_LITERAL) {
+            myCode[myLastPush + 1] = -myCode[myLastPush + 1];
+            return;
+        }
+        myMaxDepth = Math.max(myMaxDepth, myDepth);
+        myLastPush = -1;
+        emit(CompiledFormula.NEGATE);
+    }
+
+    /**
+     * Writes an instruction that pushes one value. A push that may still be
+     * folded only counts towards the deepest stack once the next thing is
+     * pushed or the program ends, the same as in FormulaCompiler.
+     * @param theOpcode The push opcode.
+     * @param theOperand Its operand.
+     * @param isFoldable True if an operator may fold the push into itself.
+     */
+    private void emitPush(final int theOpcode, final int theOperand, final boolean isFoldable) {
+        myMaxDepth = Math.max(myMaxDepth, myDepth);
+        myLastPush = isFoldable ? myLength : -1;
+        emit(theOpcode);
+        emit(theOperand);
+        myDepth++;
+        if (!isFoldable) {
+            myMaxDepth = Math.max(myMaxDepth, myDepth);
+        }
+    }
+
+    /**
+     * Appends an int to the program, growing it when needed.
+     * @param theInt The int.
+     */
+    private void emit(final int theInt) {
+        if (myLength == myCode.length) {
+            myCode = Arrays.copyOf(myCode, myLength * 2);
+        }
+        myCode[myLength++] = theInt;
+    }
+
+    /**
+     * Copies the finished program out of the buffers.
+     * @return Returns the compiled formula.
+     */
+    private CompiledFormula build() {
+        int distinct = distinct(myPrecedents, myPrecedentCount);
+        int externals = distinct(myExternals, myExternalCount);
+        return new CompiledFormula(Arrays.copyOf(myCode, myLength), Math.max(myMaxDepth, myDepth),
+                distinct == 0 ? NO_INTS : Arrays.copyOf(myPrecedents, distinct),
+                myLongCount == 0 ? NO_LONGS : Arrays.copyOf(myLongConstants, myLongCount),
+                myDoubleCount == 0 ? NO_DOUBLES : Arrays.copyOf(myDoubleConstants, myDoubleCount),
+                myRangeLength == 0 ? NO_INTS : Arrays.copyOf(myRanges, myRangeLength),
+                myOwnedCount == 0 ? NO_INTS : Arrays.copyOf(myOwned, myOwnedCount),
+                externals == 0 ? NO_INTS : Arrays.copyOf(myExternals, externals));
+    }
+
+    /**
+     * Sorts the start of a buffer and moves each distinct int to the front.
+     * @param theInts The buffer.
+     * @param theCount The number of ints in it.
+     * @return Returns the number of distinct ints.
+     */
+    private static int distinct(final int[] theInts, final int theCount) {
+        if (theCount < 2) {
+            return theCount;
+        }
+        Arrays.sort(theInts, 0, theCount);
+        int distinct = 0;
+        for (int i = 0; i < theCount; i++) {
+            if (i == 0 || theInts[i] != theInts[i - 1]) {
+                theInts[distinct++] = theInts[i];
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Gets the opcode for an operator.
+     * @param theOperator The operator character.
+     * @return Returns the matching opcode.
+     */
+    private static int opcodeFor(final char theOperator) {
+        switch (theOperator) {
+            case OperatorToken.Plus:
+                return CompiledFormula.ADD;
+            case OperatorToken.Minus:
+                return CompiledFormula.SUBTRACT;
+            case OperatorToken.Mult:
+                return CompiledFormula.MULTIPLY;
+            case OperatorToken.Div:
+                return CompiledFormula.DIVIDE;
+            default:
+                return CompiledFormula.POWER;
+        }
+    }
+
+    /**
+     * Gets how tightly an operator binds.
+     * @param theOperator The character.
+     * @return Returns 0 for + and -, 1 for * and /, 2 for NEGATE, 3 for ^,
+     *         or -1 if the character isn't an operator.
+     */
+    private static int priority(final char theOperator) {
+        switch (theOperator) {
+            case OperatorToken.Plus:
+            case OperatorToken.Minus:
+                return 0;
+            case OperatorToken.Mult:
+            case OperatorToken.Div:
+                return 1;
+            case NEGATE:
+                return 2;
+            case OperatorToken.Exponent:
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Skips whitespace characters.
+     * @param theFormula The formula.
+     * @param theStart The index to start at.
+     * @return Returns the index of the next character that isn't whitespace.
+     */
+    private static int skipWhitespace(final CharSequence theFormula, final int theStart) {
+        int index = theStart;
+        while (index < theFormula.length() && Character.isWhitespace(theFormula.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Tells if a character is a decimal digit.
+     * @param theChar The character.
+     * @return Returns true for 0 through 9.
+     */
+    private static boolean isDigit(final char theChar) {
+        return theChar >= '0' && theChar <= '9';
+    }
+
+    /**
+     * Tells if a character can be part of a column or function name.
+     * @param theChar The character.
+     * @return Returns true for A through Z.
+     */
+    private static boolean isLetter(final char theChar) {
+        return theChar >= 'A' && theChar <= 'Z';
+    }
+}
@@ -0,0 +1,107 @@
+package model.Spreadsheet.src.model;
+
+/**
+ * FunctionToken is an aggregate function applied to a range, like
+ * SUM(A1:A100). In the expression tree it is a node whose left child is
+ * the RangeToken it aggregates. Blank cells in the range are skipped, so
+ * COUNT counts the cells that have a formula, and AVERAGE, MIN and MAX
+ * only look at those. There is one token per function, shared by every
+ * formula.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class FunctionToken extends Token {
+    /** Adds up the values in the range. */
+    public static final int SUM = 0;
+    /** The sum of the range divided by its count, 0 if it is empty. */
+    public static final int AVERAGE = 1;
+    /** The smallest value in the range, 0 if it is empty. */
+    public static final int MIN = 2;
+    /** The largest value in the range, 0 if it is empty. */
+    public static final int MAX = 3;
+    /** The number of cells in the range that aren't blank. */
+    public static final int COUNT = 4;
+    /** The names of the functions as typed, indexed by the constants above. */
+    private static final String[] NAMES = {"SUM", "AVERAGE", "MIN", "MAX", "COUNT"};
+    /** The one token of each function, indexed by the constants above. */
+    private static final FunctionToken[] TOKENS = new FunctionToken[NAMES.length];
+
+    static {
+        for (int i = 0; i < TOKENS.length; i++) {
+            TOKENS[i] = new FunctionToken(i);
+        }
+    }
+
+    /** Which function this is, one of the constants above. */
+    private final int myFunction;
+
+    /**
+     * Only the shared tokens in TOKENS are created.
+     * @param theFunction One of SUM, AVERAGE, MIN, MAX or COUNT.
+     */
+    private FunctionToken(final int theFunction) {
+        myFunction = theFunction;
+    }
+
+    /**
+     * Gets the shared token for a function.
+     * @param theFunction One of SUM, AVERAGE, MIN, MAX or COUNT.
+     * @return Returns the token.
+     */
+    public static FunctionToken valueOf(final int theFunction) {
+        return TOKENS[theFunction];
+    }
+
+    /**
+     * Looks a function up by the name it is typed with.
+     * @param theName The name, in capitals.
+     * @return Returns the function's constant, or -1 if there is no such function.
+     */
+    public static int forName(final String theName) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(theName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Looks a function up by a name inside a formula, without copying it out.
+     * @param theText The text holding the name.
+     * @param theStart The index of the name's first character.
+     * @param theEnd The index just after the name.
+     * @return Returns the function's constant, or -1 if there is no such function.
+     */
+    public static int forName(final CharSequence theText, final int theStart, final int theEnd) {
+        int length = theEnd - theStart;
+        for (int i = 0; i < NAMES.length; i++) {
+            int matched = 0;
+            while (matched < length && matched < NAMES[i].length()
+                    && NAMES[i].charAt(matched) == theText.charAt(theStart + matched)) {
+                matched++;
+            }
+            if (matched == length && length == NAMES[i].length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the function to the user.
+     * @return Returns one of SUM, AVERAGE, MIN, MAX or COUNT.
+     */
+    public int getFunction() {
+        return myFunction;
+    }
+
+    /**
+     * Basic toString that returns the name of the function.
+     * @return Returns the name, like SUM.
+     */
+    @Override
+    public String toString() {
+        return NAMES[myFunction];
+    }
+}
@@ -1,29 +1,85 @@
 package model.Spreadsheet.src.model;
 
 /**
- * LiteralToken is a type of token that holds a literal value/integer.
+ * LiteralToken is a type of token that holds a literal value. Whole numbers
+ * are kept as longs and only literals with a decimal point, or too big for a
+ * long, are kept as doubles. Tokens are created through valueOf(), which
+ * hands out one shared token for each of the small whole numbers formulas
+ * use most, like 0, 1 and 100.
  * @author Patrick Hern
  * @author Nathameion Montgomery
  */
 public class LiteralToken extends Token {
-    /** The literal value of the Token. */
-    private int myLiteral;
+    /** The largest whole number with a shared token. */
+    private static final int CACHE_HIGH = 1024;
+    /** The shared tokens for 0 through CACHE_HIGH, by value. */
+    private static final LiteralToken[] CACHE = new LiteralToken[CACHE_HIGH + 1];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new LiteralToken(i, false);
+        }
+    }
+
+    /** The value of a whole number, or the bits of a double. */
+    private final long myBits;
+    /** True if the literal is a double rather than a whole number. */
+    private final boolean myIsDouble;
+
+    /**
+     * Only valueOf() creates literals.
+     * @param theBits The value of a whole number, or the bits of a double.
+     * @param isDouble True if theBits are the bits of a double.
+     */
+    private LiteralToken(final long theBits, final boolean isDouble) {
+        myBits = theBits;
+        myIsDouble = isDouble;
+    }
+
+    /**
+     * Gets a token for a whole number.
+     * @param theLiteral The literal value passed in.
+     * @return Returns the shared token if there is one, otherwise a new token.
+     */
+    public static LiteralToken valueOf(final long theLiteral) {
+        if (theLiteral >= 0 && theLiteral <= CACHE_HIGH) {
+            return CACHE[(int) theLiteral];
+        }
+        return new LiteralToken(theLiteral, false);
+    }
 
     /**
-     * Basic constructor that constructs a new literal passed in by the
-     * user.
+     * Gets a token for a literal that isn't a whole number, or is too big
+     * for a long.
      * @param theLiteral The literal value passed in.
+     * @return Returns a new token.
      */
-    public LiteralToken(final int theLiteral) {
-        myLiteral = theLiteral;
+    public static LiteralToken valueOf(final double theLiteral) {
+        return new LiteralToken(Double.doubleToRawLongBits(theLiteral), true);
     }
 
     /**
      * Returns the value of the literal to the user.
-     * @return
+     * @return Returns the value, truncated toward 0 if it is a double.
+     */
+    public long getValue() {
+        return myIsDouble ? (long) Double.longBitsToDouble(myBits) : myBits;
+    }
+
+    /**
+     * Returns the value of the literal as a double.
+     * @return Returns the value.
+     */
+    public double getDoubleValue() {
+        return myIsDouble ? Double.longBitsToDouble(myBits) : myBits;
+    }
+
+    /**
+     * Tells if the literal is a double rather than a whole number.
+     * @return Returns true for a double.
      */
-    public int getValue() {
-        return myLiteral;
+    public boolean isDouble() {
+        return myIsDouble;
     }
 
     /**
@@ -33,6 +89,6 @@ public class LiteralToken extends Token {
      */
     @Override
     public String toString() {
-        return Integer.toString(myLiteral);
+        return myIsDouble ? Double.toString(Double.longBitsToDouble(myBits)) : Long.toString(myBits);
     }
 }
@@ -3,7 +3,8 @@ package model.Spreadsheet.src.model;
 /**
  * OperatorToken is a type of Token that stores a char of the
  * basic operations that can be performed. Also includes
- * their priority (order of operations).
+ * their priority (order of operations). There is one token per
+ * operator, shared by every formula; get it with valueOf().
  * @author Patrick Hern
  * @author Nathameion Montgomery
  */
@@ -18,18 +19,56 @@ public class OperatorToken extends Token {
     public static final char Div = '/';
     /** A constant char that represents precedence with a parenthesis. */
     public static final char LeftParen = '(';
+    /** A constant char that represents exponentiation. */
     public static final char Exponent = '^';
+    /** The token for addition. */
+    private static final OperatorToken PLUS = new OperatorToken(Plus);
+    /** The token for subtraction. */
+    private static final OperatorToken MINUS = new OperatorToken(Minus);
+    /** The token for multiplication. */
+    private static final OperatorToken MULT = new OperatorToken(Mult);
+    /** The token for division. */
+    private static final OperatorToken DIV = new OperatorToken(Div);
+    /** The token for a left parenthesis. */
+    private static final OperatorToken LEFT_PAREN = new OperatorToken(LeftParen);
+    /** The token for exponentiation. */
+    private static final OperatorToken EXPONENT = new OperatorToken(Exponent);
     /** A constant char that represents the operator. */
     private final char myOperator;
 
     /**
-     * Basic constructor to set operator tokens value.
+     * Only the shared tokens above are created.
      * @param theOperator The operator token to set myOperator to.
      */
-    public OperatorToken(final char theOperator) {
+    private OperatorToken(final char theOperator) {
         myOperator = theOperator;
     }
 
+    /**
+     * Gets the shared token for an operator.
+     * @param theOperator One of the operator chars above.
+     * @return Returns the token.
+     * @throws IllegalArgumentException If the char isn't an operator.
+     */
+    public static OperatorToken valueOf(final char theOperator) {
+        switch (theOperator) {
+            case Plus:
+                return PLUS;
+            case Minus:
+                return MINUS;
+            case Mult:
+                return MULT;
+            case Div:
+                return DIV;
+            case LeftParen:
+                return LEFT_PAREN;
+            case Exponent:
+                return EXPONENT;
+            default:
+                throw new IllegalArgumentException("Unknown operator " + theOperator);
+        }
+    }
+
     /**
      * Returns the operator token to the user.
      * @return Returns a char of the operator.
@@ -0,0 +1,304 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Arrays;
+
+/**
+ * RangeIndex answers "which formulas read a range that covers this cell?"
+ * without looking at every range. Every column has an interval tree of the
+ * row spans of the ranges that cover it; a range over several columns is
+ * entered once per column, but never once per cell, so a range of 100,000
+ * rows costs one entry. The trees are treaps ordered by first row, and every
+ * node also knows the last row reached anywhere below it, so a lookup only
+ * visits the O(log n) nodes on its path plus the ranges it finds. Nodes live
+ * in parallel int arrays indexed by node number, like the rest of the graph,
+ * and freed nodes are reused.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+final class RangeIndex {
+    /** Marks a missing child or an empty tree. */
+    private static final int NIL = -1;
+
+    /** The root node of each column's tree, NIL for columns no range covers. */
+    private int[] myRoots = new int[0];
+    /** The first row of each node's range. */
+    private int[] myFirstRows = new int[16];
+    /** The last row of each node's range. */
+    private int[] myLastRows = new int[16];
+    /** The id of the cell whose formula reads each node's range. */
+    private int[] myReaders = new int[16];
+    /** The largest last row in each node's subtree. */
+    private int[] myMaxLastRows = new int[16];
+    /** The left child of each node; for free nodes, the next free node. */
+    private int[] myLefts = new int[16];
+    /** The right child of each node. */
+    private int[] myRights = new int[16];
+    /** The random heap priority of each node, which keeps the trees balanced. */
+    private int[] myPriorities = new int[16];
+    /** The number of nodes ever used. */
+    private int myNodeCount;
+    /** The first free node, NIL if there is none. */
+    private int myFree = NIL;
+    /** The state of the generator for the priorities. */
+    private int mySeed = 0x2545F491;
+    /** The readers found by the current lookup. */
+    private int[] myFound = new int[16];
+    /** The number of readers found by the current lookup. */
+    private int myFoundCount;
+
+    /**
+     * Adds the ranges a cell's formula reads.
+     * @param theReader The id of the cell.
+     * @param theRanges Four ints per range: first row, first column, last row, last column.
+     */
+    void add(final int theReader, final int[] theRanges) {
+        for (int i = 0; i < theRanges.length; i += 4) {
+            if (theRanges[i + 3] >= myRoots.length) {
+                int old = myRoots.length;
+                myRoots = Arrays.copyOf(myRoots, theRanges[i + 3] + 1);
+                Arrays.fill(myRoots, old, myRoots.length, NIL);
+            }
+            for (int column = theRanges[i + 1]; column <= theRanges[i + 3]; column++) {
+                int node = newNode(theRanges[i], theRanges[i + 2], theReader);
+                myRoots[column] = insert(myRoots[column], node);
+            }
+        }
+    }
+
+    /**
+     * Removes the ranges a cell's formula used to read.
+     * @param theReader The id of the cell.
+     * @param theRanges The same ranges that were added for it.
+     */
+    void remove(final int theReader, final int[] theRanges) {
+        for (int i = 0; i < theRanges.length; i += 4) {
+            for (int column = theRanges[i + 1]; column <= theRanges[i + 3]; column++) {
+                myRoots[column] = delete(myRoots[column], theRanges[i], theRanges[i + 2], theReader);
+            }
+        }
+    }
+
+    /**
+     * Tells if any range covers a column.
+     * @param theColumn The column.
+     * @return Returns true if the column's tree isn't empty.
+     */
+    boolean covers(final int theColumn) {
+        return theColumn < myRoots.length && myRoots[theColumn] != NIL;
+    }
+
+    /**
+     * Finds the formulas that read a range covering a cell.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the ids of the cells whose formulas read such a range.
+     *         A formula with two ranges over the cell is listed twice.
+     */
+    int[] find(final int theRow, final int theColumn) {
+        if (!covers(theColumn)) {
+            return new int[0];
+        }
+        myFoundCount = 0;
+        collect(myRoots[theColumn], theRow);
+        return Arrays.copyOf(myFound, myFoundCount);
+    }
+
+    /**
+     * Collects the ranges of a subtree that contain a row. Left subtrees
+     * are searched recursively and right ones in the loop, and a subtree
+     * is skipped as soon as none of its ranges reaches down to the row.
+     * @param theNode The root of the subtree.
+     * @param theRow The row.
+     */
+    private void collect(final int theNode, final int theRow) {
+        int node = theNode;
+        while (node != NIL && myMaxLastRows[node] >= theRow) {
+            collect(myLefts[node], theRow);
+            if (myFirstRows[node] > theRow) {
+                return;
+            }
+            if (myLastRows[node] >= theRow) {
+                if (myFoundCount == myFound.length) {
+                    myFound = Arrays.copyOf(myFound, myFoundCount * 2);
+                }
+                myFound[myFoundCount++] = myReaders[node];
+            }
+            node = myRights[node];
+        }
+    }
+
+    /**
+     * Inserts a node into a subtree.
+     * @param theRoot The root of the subtree, may be NIL.
+     * @param theNode The new node.
+     * @return Returns the new root of the subtree.
+     */
+    private int insert(final int theRoot, final int theNode) {
+        if (theRoot == NIL) {
+            return theNode;
+        }
+        int root = theRoot;
+        if (compare(theNode, myFirstRows[root], myLastRows[root], myReaders[root]) < 0) {
+            myLefts[root] = insert(myLefts[root], theNode);
+            if (myPriorities[myLefts[root]] > myPriorities[root]) {
+                root = rotateRight(root);
+            }
+        } else {
+            myRights[root] = insert(myRights[root], theNode);
+            if (myPriorities[myRights[root]] > myPriorities[root]) {
+                root = rotateLeft(root);
+            }
+        }
+        update(root);
+        return root;
+    }
+
+    /**
+     * Deletes one node with the given range and reader from a subtree.
+     * @param theRoot The root of the subtree, may be NIL.
+     * @param theFirstRow The first row of the range.
+     * @param theLastRow The last row of the range.
+     * @param theReader The reader of the range.
+     * @return Returns the new root of the subtree.
+     */
+    private int delete(final int theRoot, final int theFirstRow, final int theLastRow, final int theReader) {
+        if (theRoot == NIL) {
+            return NIL;
+        }
+        int comparison = -compare(theRoot, theFirstRow, theLastRow, theReader);
+        if (comparison == 0) {
+            int merged = merge(myLefts[theRoot], myRights[theRoot]);
+            myLefts[theRoot] = myFree;
+            myFree = theRoot;
+            return merged;
+        }
+        if (comparison < 0) {
+            myLefts[theRoot] = delete(myLefts[theRoot], theFirstRow, theLastRow, theReader);
+        } else {
+            myRights[theRoot] = delete(myRights[theRoot], theFirstRow, theLastRow, theReader);
+        }
+        update(theRoot);
+        return theRoot;
+    }
+
+    /**
+     * Joins two subtrees where every node of the first comes before every
+     * node of the second.
+     * @param theFirst The root of the first subtree, may be NIL.
+     * @param theSecond The root of the second subtree, may be NIL.
+     * @return Returns the root of the joined tree.
+     */
+    private int merge(final int theFirst, final int theSecond) {
+        if (theFirst == NIL) {
+            return theSecond;
+        }
+        if (theSecond == NIL) {
+            return theFirst;
+        }
+        if (myPriorities[theFirst] > myPriorities[theSecond]) {
+            myRights[theFirst] = merge(myRights[theFirst], theSecond);
+            update(theFirst);
+            return theFirst;
+        }
+        myLefts[theSecond] = merge(theFirst, myLefts[theSecond]);
+        update(theSecond);
+        return theSecond;
+    }
+
+    /**
+     * Rotates a node's left child up into its place.
+     * @param theNode The node.
+     * @return Returns the new root of the subtree.
+     */
+    private int rotateRight(final int theNode) {
+        int left = myLefts[theNode];
+        myLefts[theNode] = myRights[left];
+        myRights[left] = theNode;
+        update(theNode);
+        return left;
+    }
+
+    /**
+     * Rotates a node's right child up into its place.
+     * @param theNode The node.
+     * @return Returns the new root of the subtree.
+     */
+    private int rotateLeft(final int theNode) {
+        int right = myRights[theNode];
+        myRights[theNode] = myLefts[right];
+        myLefts[right] = theNode;
+        update(theNode);
+        return right;
+    }
+
+    /**
+     * Recomputes the largest last row of a node's subtree from its children.
+     * @param theNode The node.
+     */
+    private void update(final int theNode) {
+        int max = myLastRows[theNode];
+        if (myLefts[theNode] != NIL) {
+            max = Math.max(max, myMaxLastRows[myLefts[theNode]]);
+        }
+        if (myRights[theNode] != NIL) {
+            max = Math.max(max, myMaxLastRows[myRights[theNode]]);
+        }
+        myMaxLastRows[theNode] = max;
+    }
+
+    /**
+     * Orders a node against a range by first row, then reader, then last row.
+     * @param theNode The node.
+     * @param theFirstRow The first row of the range.
+     * @param theLastRow The last row of the range.
+     * @param theReader The reader of the range.
+     * @return Returns a negative number, zero or a positive number as the
+     *         node comes before, is equal to or comes after the range.
+     */
+    private int compare(final int theNode, final int theFirstRow, final int theLastRow, final int theReader) {
+        if (myFirstRows[theNode] != theFirstRow) {
+            return Integer.compare(myFirstRows[theNode], theFirstRow);
+        }
+        if (myReaders[theNode] != theReader) {
+            return Integer.compare(myReaders[theNode], theReader);
+        }
+        return Integer.compare(myLastRows[theNode], theLastRow);
+    }
+
+    /**
+     * Gets a free node, or a new one, for a range.
+     * @param theFirstRow The first row of the range.
+     * @param theLastRow The last row of the range.
+     * @param theReader The reader of the range.
+     * @return Returns the node.
+     */
+    private int newNode(final int theFirstRow, final int theLastRow, final int theReader) {
+        int node = myFree;
+        if (node != NIL) {
+            myFree = myLefts[node];
+        } else {
+            if (myNodeCount == myFirstRows.length) {
+                int capacity = myNodeCount * 2;
+                myFirstRows = Arrays.copyOf(myFirstRows, capacity);
+                myLastRows = Arrays.copyOf(myLastRows, capacity);
+                myReaders = Arrays.copyOf(myReaders, capacity);
+                myMaxLastRows = Arrays.copyOf(myMaxLastRows, capacity);
+                myLefts = Arrays.copyOf(myLefts, capacity);
+                myRights = Arrays.copyOf(myRights, capacity);
+                myPriorities = Arrays.copyOf(myPriorities, capacity);
+            }
+            node = myNodeCount++;
+        }
+        mySeed ^= mySeed << 13;
+        mySeed ^= mySeed >>> 17;
+        mySeed ^= mySeed << 5;
+        myFirstRows[node] = theFirstRow;
+        myLastRows[node] = theLastRow;
+        myReaders[node] = theReader;
+        myMaxLastRows[node] = theLastRow;
+        myLefts[node] = NIL;
+        myRights[node] = NIL;
+        myPriorities[node] = mySeed;
+        return node;
+    }
+}
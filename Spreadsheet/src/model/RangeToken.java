@@ -0,0 +1,74 @@
+package model.Spreadsheet.src.model;
+
+/**
+ * RangeToken is a rectangle of cells, written as two corner cells
+ * separated by a colon, like A1:B10. It is only used as the argument of
+ * a FunctionToken. The corners are stored with the first row and column
+ * at most the last ones, however they were typed.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class RangeToken extends Token {
+    /** The top row of the range. */
+    private final int myFirstRow;
+    /** The leftmost column of the range. */
+    private final int myFirstColumn;
+    /** The bottom row of the range. */
+    private final int myLastRow;
+    /** The rightmost column of the range. */
+    private final int myLastColumn;
+
+    /**
+     * Creates a range between two corner cells.
+     * @param theFirst One corner of the range.
+     * @param theLast The opposite corner of the range.
+     */
+    public RangeToken(final CellToken theFirst, final CellToken theLast) {
+        myFirstRow = Math.min(theFirst.getRow(), theLast.getRow());
+        myFirstColumn = Math.min(theFirst.getColumn(), theLast.getColumn());
+        myLastRow = Math.max(theFirst.getRow(), theLast.getRow());
+        myLastColumn = Math.max(theFirst.getColumn(), theLast.getColumn());
+    }
+
+    /**
+     * Getter for the top row.
+     * @return Returns the top row of the range.
+     */
+    public int getFirstRow() {
+        return myFirstRow;
+    }
+
+    /**
+     * Getter for the leftmost column.
+     * @return Returns the leftmost column of the range.
+     */
+    public int getFirstColumn() {
+        return myFirstColumn;
+    }
+
+    /**
+     * Getter for the bottom row.
+     * @return Returns the bottom row of the range.
+     */
+    public int getLastRow() {
+        return myLastRow;
+    }
+
+    /**
+     * Getter for the rightmost column.
+     * @return Returns the rightmost column of the range.
+     */
+    public int getLastColumn() {
+        return myLastColumn;
+    }
+
+    /**
+     * toString method that prints the range the way it is typed in a formula.
+     * @return Returns the two corners, like A1:B10.
+     */
+    @Override
+    public String toString() {
+        return SpreadSheetUtility.printCellToken(new CellToken(myFirstRow, myFirstColumn)) + ":"
+                + SpreadSheetUtility.printCellToken(new CellToken(myLastRow, myLastColumn));
+    }
+}
@@ -0,0 +1,239 @@
+package model.Spreadsheet.src.model;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RecalculationExecutor evaluates the cells of an EvaluationScheduler level
+ * by level. Cells in the same level don't depend on each other, so a level
+ * with enough cells in it is split across a ForkJoinPool while smaller levels
+ * are evaluated on the calling thread. Every cell is still evaluated exactly
+ * once, after all of its prerequisites, with the same arithmetic, so the
+ * results are the same as evaluating in order on one thread.
+ * An evaluation can be cancelled from another thread; it then stops at
+ * the next check, leaving the remaining cells with their old values.
+ * Several threads may evaluate different cells through the same executor
+ * at once; each evaluation gets a pass of its own for the shared
+ * subexpressions, and every thread evaluates with its own evaluator.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class RecalculationExecutor {
+    /** The default number of cells a level needs before it is evaluated in parallel. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+    /** The most cells one task evaluates without splitting further. */
+    private static final int MIN_CELLS_PER_TASK = 512;
+    /** How many cells are evaluated on the calling thread between checks for cancellation. */
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    /** The graph whose column trees are told about new values. */
+    private final DependencyGraph myGraph;
+    /**
+     * The evaluators not in use. Every thread that evaluates, calling or
+     * pool thread, takes one and puts it back when it is done, so they are
+     * never shared and go away with the executor, unlike thread locals.
+     */
+    private final ConcurrentLinkedDeque<FormulaEvaluator> myEvaluators = new ConcurrentLinkedDeque<>();
+    /** The number of threads to evaluate with, 1 for no parallelism. */
+    private int myParallelism = 1;
+    /** The number of cells a level needs before it is evaluated in parallel. */
+    private int myParallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    /** The pool for parallel levels, created the first time one is needed. */
+    private ForkJoinPool myPool;
+    /** Counts the calls to cancel(), so an evaluation can tell if one came after it was set up. */
+    private final AtomicInteger myCancellations = new AtomicInteger();
+
+    /**
+     * Creates an executor for the cells in the given graph. It starts out
+     * evaluating on the calling thread only.
+     * @param theGraph The dependency graph of the spreadsheet.
+     */
+    public RecalculationExecutor(final DependencyGraph theGraph) {
+        myGraph = theGraph;
+    }
+
+    /**
+     * Sets how many threads recalculation may use. The pool is replaced the
+     * next time a level is evaluated in parallel.
+     * @param theParallelism The number of threads, 1 to evaluate on the calling thread only.
+     */
+    public synchronized void setParallelism(final int theParallelism) {
+        if (theParallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + theParallelism);
+        }
+        if (theParallelism != myParallelism) {
+            shutdown();
+            myParallelism = theParallelism;
+        }
+    }
+
+    /**
+     * Getter for the parallelism.
+     * @return Returns how many threads recalculation may use.
+     */
+    public int getParallelism() {
+        return myParallelism;
+    }
+
+    /**
+     * Sets how many cells a level needs before it is split across threads.
+     * @param theThreshold The smallest level size evaluated in parallel.
+     */
+    public void setParallelThreshold(final int theThreshold) {
+        myParallelThreshold = Math.max(1, theThreshold);
+    }
+
+    /**
+     * Asks the running evaluations to stop. Safe to call from any thread.
+     */
+    public void cancel() {
+        myCancellations.incrementAndGet();
+    }
+
+    /**
+     * Marks where an evaluation is set up, so it stops at the first call to
+     * cancel() after this one and not at the calls before it.
+     * @return Returns the mark to pass to evaluate().
+     */
+    public int markCancellation() {
+        return myCancellations.get();
+    }
+
+    /**
+     * Evaluates every cell in the schedule's evaluation order, as a new
+     * pass of the shared subexpressions.
+     * @param theSchedule The scheduled cells.
+     * @param theMark The mark from markCancellation() taken when the
+     *                evaluation was set up.
+     * @return Returns true if every cell was evaluated, false if the
+     *         evaluation was cancelled part of the way through.
+     */
+    public boolean evaluate(final EvaluationScheduler theSchedule, final int theMark) {
+        List<Cell> order = theSchedule.getEvaluationOrder();
+        boolean parallel = myParallelism > 1 && order.size() >= myParallelThreshold;
+        int pass = myGraph.getExpressions().beginPass();
+        FormulaEvaluator evaluator = takeEvaluator(pass);
+        try {
+            for (int level = 0; level < theSchedule.getLevelCount(); level++) {
+                int from = theSchedule.getLevelStart(level);
+                int to = theSchedule.getLevelStart(level + 1);
+                if (parallel && to - from >= myParallelThreshold) {
+                    pool().invoke(new LevelTask(order, from, to, pass, theMark));
+                    if (myCancellations.get() != theMark) {
+                        return false;
+                    }
+                } else {
+                    for (int i = from; i < to; i++) {
+                        if (i % CANCEL_CHECK_INTERVAL == 0 && myCancellations.get() != theMark) {
+                            return false;
+                        }
+                        Cell cell = order.get(i);
+                        cell.evaluate(evaluator);
+                        myGraph.valueChanged(cell);
+                    }
+                }
+            }
+            return true;
+        } finally {
+            myEvaluators.push(evaluator);
+        }
+    }
+
+    /**
+     * Takes an evaluator no other thread is using, creating one if there is none.
+     * @param thePass The pass of the shared subexpressions to evaluate in.
+     * @return Returns the evaluator, to be put back into myEvaluators afterwards.
+     */
+    private FormulaEvaluator takeEvaluator(final int thePass) {
+        FormulaEvaluator evaluator = myEvaluators.poll();
+        if (evaluator == null) {
+            evaluator = new FormulaEvaluator(myGraph);
+        }
+        evaluator.setPass(thePass);
+        return evaluator;
+    }
+
+    /**
+     * Stops the pool threads, if there are any. A later parallel level
+     * starts a new pool.
+     */
+    public synchronized void shutdown() {
+        if (myPool != null) {
+            myPool.shutdown();
+            myPool = null;
+        }
+    }
+
+    /**
+     * Gets the pool, creating it if needed.
+     * @return Returns the pool.
+     */
+    private synchronized ForkJoinPool pool() {
+        if (myPool == null) {
+            myPool = new ForkJoinPool(myParallelism);
+        }
+        return myPool;
+    }
+
+    /**
+     * Evaluates a run of cells from one level, splitting it in half until
+     * the pieces are small enough.
+     */
+    private final class LevelTask extends RecursiveAction {
+        /** The version of the serialized form. */
+        private static final long serialVersionUID = 1L;
+        /** The evaluation order. */
+        private final List<Cell> myOrder;
+        /** The first cell to evaluate. */
+        private final int myFrom;
+        /** One past the last cell to evaluate. */
+        private final int myTo;
+        /** The pass of the shared subexpressions the evaluation is in. */
+        private final int myPass;
+        /** The cancellation mark of the evaluation. */
+        private final int myMark;
+
+        /**
+         * Creates a task for part of a level.
+         * @param theOrder The evaluation order.
+         * @param theFrom The first cell to evaluate.
+         * @param theTo One past the last cell to evaluate.
+         * @param thePass The pass of the shared subexpressions the evaluation is in.
+         * @param theMark The cancellation mark of the evaluation.
+         */
+        LevelTask(final List<Cell> theOrder, final int theFrom, final int theTo,
+                  final int thePass, final int theMark) {
+            myOrder = theOrder;
+            myFrom = theFrom;
+            myTo = theTo;
+            myPass = thePass;
+            myMark = theMark;
+        }
+
+        @Override
+        protected void compute() {
+            if (myTo - myFrom <= MIN_CELLS_PER_TASK) {
+                if (myCancellations.get() != myMark) {
+                    return;
+                }
+                FormulaEvaluator evaluator = takeEvaluator(myPass);
+                try {
+                    for (int i = myFrom; i < myTo; i++) {
+                        Cell cell = myOrder.get(i);
+                        cell.evaluate(evaluator);
+                        myGraph.valueChanged(cell);
+                    }
+                } finally {
+                    myEvaluators.push(evaluator);
+                }
+                return;
+            }
+            int middle = (myFrom + myTo) >>> 1;
+            invokeAll(new LevelTask(myOrder, myFrom, middle, myPass, myMark),
+                    new LevelTask(myOrder, middle, myTo, myPass, myMark));
+        }
+    }
+}
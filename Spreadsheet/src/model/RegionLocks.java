@@ -0,0 +1,219 @@
+package model.Spreadsheet.src.model;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * RegionLocks guards the values of a spreadsheet's cells by region. The
+ * sheet is cut into regions of REGION_ROWS by REGION_COLUMNS cells, and
+ * every region hashes to one of STRIPES stamped locks, so edits to regions
+ * far apart from each other take different locks and don't wait on each
+ * other, while memory stays the same however big the sheet is.
+ * A recalculation claims the stripes of the cells it evaluates for writing
+ * and the stripes of the cells they read for reading, and takes them all
+ * before it evaluates anything. Stripes are always taken in ascending
+ * order. Readers first read without locking and then check that no stripe
+ * they read was written in the meantime, which is the common case; only if
+ * one was do they read again under the read locks.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class RegionLocks {
+    /** The number of rows in a region. */
+    public static final int REGION_ROWS = 64;
+    /** The number of columns in a region. */
+    public static final int REGION_COLUMNS = 8;
+    /** The number of locks; one bit of a long per stripe. */
+    public static final int STRIPES = 64;
+    /** Turns a row into the row of its region. */
+    private static final int ROW_SHIFT = Integer.numberOfTrailingZeros(REGION_ROWS);
+    /** Turns a column into the column of its region. */
+    private static final int COLUMN_SHIFT = Integer.numberOfTrailingZeros(REGION_COLUMNS);
+    /** Turns a hash into a stripe by keeping its top bits. */
+    private static final int STRIPE_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(STRIPES);
+    /** Every stripe. */
+    private static final long ALL = -1L;
+
+    /** The lock of each stripe. */
+    private final StampedLock[] myLocks = new StampedLock[STRIPES];
+
+    /**
+     * Creates the locks of a spreadsheet, all unlocked.
+     */
+    public RegionLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            myLocks[i] = new StampedLock();
+        }
+    }
+
+    /**
+     * Gets the stripe that guards a cell. Neighbouring regions are spread
+     * over the stripes, so a block of regions shares as few of them as it can.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the stripe, from 0 to STRIPES - 1.
+     */
+    public static int stripeOf(final int theRow, final int theColumn) {
+        int hash = (theRow >>> ROW_SHIFT) * 0x9E3779B1 ^ (theColumn >>> COLUMN_SHIFT) * 0x85EBCA77;
+        return hash >>> STRIPE_SHIFT;
+    }
+
+    /**
+     * Starts a claim on some of the stripes, with none of them in it yet.
+     * @return Returns the empty claim.
+     */
+    public Claim claim() {
+        return new Claim();
+    }
+
+    /**
+     * A set of stripes to read or write, and the stamps they were taken
+     * with. A claim is built up by one thread, taken, and released once;
+     * a stripe claimed for both reading and writing is written.
+     */
+    public final class Claim {
+        /** The stripes to read, one bit each. */
+        private long myReads;
+        /** The stripes to write, one bit each. */
+        private long myWrites;
+        /** The stamps of the claimed stripes, in ascending order of stripe, or null before they are taken. */
+        private long[] myStamps;
+        /** True between taking the stripes and releasing them. */
+        private boolean myHeld;
+
+        /**
+         * Adds the stripe of a cell that will be written.
+         * @param theRow The row of the cell.
+         * @param theColumn The column of the cell.
+         */
+        public void write(final int theRow, final int theColumn) {
+            myWrites |= 1L << stripeOf(theRow, theColumn);
+        }
+
+        /**
+         * Adds the stripe of a cell that will be read.
+         * @param theRow The row of the cell.
+         * @param theColumn The column of the cell.
+         */
+        public void read(final int theRow, final int theColumn) {
+            myReads |= 1L << stripeOf(theRow, theColumn);
+        }
+
+        /**
+         * Adds the stripes of every region a block of cells overlaps, for
+         * reading. A block over more regions than there are stripes just
+         * adds all of them.
+         * @param theFirstRow The top row of the block.
+         * @param theFirstColumn The leftmost column of the block.
+         * @param theLastRow The bottom row of the block.
+         * @param theLastColumn The rightmost column of the block.
+         */
+        public void readBlock(final int theFirstRow, final int theFirstColumn,
+                              final int theLastRow, final int theLastColumn) {
+            long rows = (theLastRow >>> ROW_SHIFT) - (theFirstRow >>> ROW_SHIFT) + 1L;
+            long columns = (theLastColumn >>> COLUMN_SHIFT) - (theFirstColumn >>> COLUMN_SHIFT) + 1L;
+            if (rows * columns >= STRIPES) {
+                myReads = ALL;
+                return;
+            }
+            for (int row = theFirstRow & -REGION_ROWS; row <= theLastRow; row += REGION_ROWS) {
+                for (int column = theFirstColumn & -REGION_COLUMNS; column <= theLastColumn;
+                     column += REGION_COLUMNS) {
+                    read(row, column);
+                }
+            }
+        }
+
+        /**
+         * Adds every stripe, for writing.
+         */
+        public void writeAll() {
+            myWrites = ALL;
+        }
+
+        /**
+         * Adds every stripe, for reading.
+         */
+        public void readAll() {
+            myReads = ALL;
+        }
+
+        /**
+         * Tells if every stripe is claimed for reading already, so adding
+         * more reads changes nothing.
+         * @return Returns true if every stripe is read or written.
+         */
+        public boolean readsAll() {
+            return (myReads | myWrites) == ALL;
+        }
+
+        /**
+         * Takes the claimed stripes, in ascending order, waiting for the
+         * threads that hold them.
+         */
+        public void acquire() {
+            long claimed = myReads | myWrites;
+            myStamps = new long[Long.bitCount(claimed)];
+            for (int i = 0; claimed != 0; i++) {
+                int stripe = Long.numberOfTrailingZeros(claimed);
+                claimed &= claimed - 1;
+                myStamps[i] = (myWrites & 1L << stripe) != 0
+                        ? myLocks[stripe].writeLock() : myLocks[stripe].readLock();
+            }
+            myHeld = true;
+        }
+
+        /**
+         * Gives back the stripes taken by acquire(). Does nothing if they
+         * were not taken or were released already.
+         */
+        public void release() {
+            if (!myHeld) {
+                return;
+            }
+            myHeld = false;
+            long claimed = myReads | myWrites;
+            for (int i = 0; claimed != 0; i++) {
+                int stripe = Long.numberOfTrailingZeros(claimed);
+                claimed &= claimed - 1;
+                myLocks[stripe].unlock(myStamps[i]);
+            }
+        }
+
+        /**
+         * Starts an optimistic read of the claimed stripes, without locking.
+         * The values read afterwards may only be used if validate() says so.
+         * @return Returns false if one of the stripes is being written, so
+         *         reading optimistically would be wasted.
+         */
+        public boolean tryOptimisticRead() {
+            long claimed = myReads | myWrites;
+            myStamps = new long[Long.bitCount(claimed)];
+            for (int i = 0; claimed != 0; i++) {
+                int stripe = Long.numberOfTrailingZeros(claimed);
+                claimed &= claimed - 1;
+                myStamps[i] = myLocks[stripe].tryOptimisticRead();
+                if (myStamps[i] == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Checks that none of the claimed stripes was written since
+         * tryOptimisticRead().
+         * @return Returns true if what was read in between is consistent.
+         */
+        public boolean validate() {
+            long claimed = myReads | myWrites;
+            for (int i = 0; claimed != 0; i++) {
+                int stripe = Long.numberOfTrailingZeros(claimed);
+                claimed &= claimed - 1;
+                if (!myLocks[stripe].validate(myStamps[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,908 @@
+package model.Spreadsheet.src.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * SheetSnapshot is a spreadsheet saved in a compact binary form that opens
+ * without parsing or recalculating anything. Everything is stored by cell
+ * id in columnar sections: the positions, the values, the flags, the
+ * precedents and ranges of the dependency graph, the formula texts and the
+ * compiled programs, followed by the shared subexpressions of the
+ * ExpressionTable, the references to other sheets each cell reads and the
+ * cells on other sheets those references name. The row offsets of the variable length sections come
+ * first, so any cell's part of them is found in constant time.
+ * A snapshot is opened by mapping the file into memory. Loading it into a
+ * DependencyGraph creates the cells with their values and edges straight
+ * from the mapped sections; a cell's formula text and program are only
+ * decoded the first time something asks the cell for them. The file stays
+ * mapped as long as any cell hasn't been asked yet.
+ * Files are limited to 2 GB, the most a single mapping holds.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public final class SheetSnapshot {
+    /** The first four bytes of every snapshot, "SSNP". */
+    private static final int MAGIC = 0x53534E50;
+    /** The version of the format written. */
+    private static final int VERSION = 2;
+    /** The version before references to other sheets, which is still read. */
+    private static final int VERSION_WITHOUT_REFERENCES = 1;
+    /** The number of sections. */
+    private static final int SECTIONS = 15;
+    /** The number of sections of a snapshot without references to other sheets. */
+    private static final int SECTIONS_WITHOUT_REFERENCES = 12;
+    /** The number of bytes before the first section. */
+    private static final int HEADER_SIZE = 8 * 4 + SECTIONS * 4;
+    /** The row and column of every cell, packed like SparseCellStorage.key(). */
+    private static final int POSITIONS = 0;
+    /** The value of every cell, or the bits of the double if it is one. */
+    private static final int VALUES = 1;
+    /** The flags of every cell, one byte each. */
+    private static final int FLAGS = 2;
+    /** Where each cell's precedents start in PRECEDENTS, plus the end. */
+    private static final int PRECEDENT_STARTS = 3;
+    /** The precedents of all cells, back to back. */
+    private static final int PRECEDENTS = 4;
+    /** Where each cell's ranges start in RANGES, plus the end. */
+    private static final int RANGE_STARTS = 5;
+    /** The ranges of all cells, four ints each. */
+    private static final int RANGES = 6;
+    /** Where each cell's formula and in order formula start in TEXT, plus the end. */
+    private static final int TEXT_STARTS = 7;
+    /** The formula texts in UTF-8. */
+    private static final int TEXT = 8;
+    /** Where each cell's program starts in PROGRAMS, plus the end. */
+    private static final int PROGRAM_STARTS = 9;
+    /** The compiled programs, in the form writeProgram() writes. */
+    private static final int PROGRAMS = 10;
+    /** The shared subexpressions: id, references and program of each. */
+    private static final int ENTRIES = 11;
+    /** Where each cell's references to other sheets start in EXTERNALS, plus the end. */
+    private static final int EXTERNAL_STARTS = 12;
+    /** The indices of the references of all cells, back to back. */
+    private static final int EXTERNALS = 13;
+    /** The cells the references name: row, column, name length and name in UTF-8 of each. */
+    private static final int REFERENCES = 14;
+    /** The flag of a cell whose value is a double. */
+    private static final byte IS_DOUBLE = 1;
+    /** The flag of a cell that is part of a cycle. */
+    private static final byte IN_CYCLE = 2;
+    /** The flag of a cell with a formula. */
+    private static final byte HAS_FORMULA = 4;
+    /** The flag of a cell with an in order formula. */
+    private static final byte HAS_IN_ORDER = 8;
+    /** The flag of a cell whose in order formula is the same text as its formula. */
+    private static final byte SAME_TEXT = 16;
+    /** The flag of a cell with a compiled program. */
+    private static final byte HAS_PROGRAM = 32;
+    /** The number of bytes written to the file at a time. */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Shared by every decoded program without precedents or ranges. */
+    private static final int[] NO_INTS = new int[0];
+    /** Shared by every decoded program without long constants. */
+    private static final long[] NO_LONGS = new long[0];
+    /** Shared by every decoded program without double constants. */
+    private static final double[] NO_DOUBLES = new double[0];
+
+    /** The mapped file. Only absolute gets are used, so threads can share it. */
+    private final ByteBuffer myBuffer;
+    /** The number of rows and columns of the saved spreadsheet. */
+    private final int mySize;
+    /** The number of cells. */
+    private final int myCellCount;
+    /** The number of shared subexpressions. */
+    private final int myEntryCount;
+    /** The number of ids the ExpressionTable had handed out. */
+    private final int myIdLimit;
+    /** The number of references to cells on other sheets. */
+    private final int myReferenceCount;
+    /** The number of sections in the file. */
+    private final int mySectionCount;
+    /** The byte offset of every section. */
+    private final int[] myOffsets = new int[SECTIONS];
+    /** The positions section. */
+    private final LongBuffer myPositions;
+    /** The values section. */
+    private final LongBuffer myValues;
+    /** The precedent offsets section. */
+    private final IntBuffer myPrecedentStarts;
+    /** The precedents section. */
+    private final IntBuffer myPrecedents;
+    /** The range offsets section. */
+    private final IntBuffer myRangeStarts;
+    /** The ranges section. */
+    private final IntBuffer myRanges;
+    /** The text offsets section. */
+    private final IntBuffer myTextStarts;
+    /** The program offsets section. */
+    private final IntBuffer myProgramStarts;
+    /** The external reference offsets section, or null if the file has none. */
+    private final IntBuffer myExternalStarts;
+    /** The external references section, or null if the file has none. */
+    private final IntBuffer myExternals;
+
+    /**
+     * Only open() creates snapshots.
+     * @param theBuffer The mapped file.
+     * @throws IOException If the file isn't a snapshot.
+     */
+    private SheetSnapshot(final ByteBuffer theBuffer) throws IOException {
+        myBuffer = theBuffer;
+        if (theBuffer.capacity() < 8 || theBuffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a spreadsheet snapshot");
+        }
+        int version = theBuffer.getInt(4);
+        if (version != VERSION && version != VERSION_WITHOUT_REFERENCES) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        mySectionCount = version == VERSION ? SECTIONS : SECTIONS_WITHOUT_REFERENCES;
+        if (theBuffer.capacity() < headerSize()) {
+            throw new IOException("Truncated or damaged snapshot");
+        }
+        mySize = theBuffer.getInt(8);
+        myCellCount = theBuffer.getInt(12);
+        myEntryCount = theBuffer.getInt(16);
+        myIdLimit = theBuffer.getInt(20);
+        myReferenceCount = theBuffer.getInt(24);
+        for (int i = 0; i < mySectionCount; i++) {
+            myOffsets[i] = theBuffer.getInt(32 + 4 * i);
+        }
+        myPositions = section(POSITIONS, 8L * myCellCount).asLongBuffer();
+        myValues = section(VALUES, 8L * myCellCount).asLongBuffer();
+        section(FLAGS, myCellCount);
+        myPrecedentStarts = section(PRECEDENT_STARTS, 4L * (myCellCount + 1)).asIntBuffer();
+        myPrecedents = section(PRECEDENTS, 4L * myPrecedentStarts.get(myCellCount)).asIntBuffer();
+        myRangeStarts = section(RANGE_STARTS, 4L * (myCellCount + 1)).asIntBuffer();
+        myRanges = section(RANGES, 4L * myRangeStarts.get(myCellCount)).asIntBuffer();
+        myTextStarts = section(TEXT_STARTS, 4L * (2 * myCellCount + 1)).asIntBuffer();
+        section(TEXT, myTextStarts.get(2 * myCellCount));
+        myProgramStarts = section(PROGRAM_STARTS, 4L * (myCellCount + 1)).asIntBuffer();
+        section(PROGRAMS, myProgramStarts.get(myCellCount));
+        if (mySectionCount > EXTERNAL_STARTS) {
+            myExternalStarts = section(EXTERNAL_STARTS, 4L * (myCellCount + 1)).asIntBuffer();
+            myExternals = section(EXTERNALS, 4L * myExternalStarts.get(myCellCount)).asIntBuffer();
+            section(REFERENCES, 0);
+        } else {
+            myExternalStarts = null;
+            myExternals = null;
+        }
+    }
+
+    /**
+     * Gets the number of bytes before the first section.
+     * @return Returns the size of the header for the file's version.
+     */
+    private int headerSize() {
+        return 8 * 4 + mySectionCount * 4;
+    }
+
+    /**
+     * Opens a snapshot by mapping its file. Nothing is decoded yet.
+     * @param theFile The file to open.
+     * @return Returns the snapshot.
+     * @throws IOException If the file can't be read or isn't a snapshot.
+     */
+    public static SheetSnapshot open(final Path theFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshots are limited to 2 GB");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new SheetSnapshot(buffer);
+        }
+    }
+
+    /**
+     * Saves the cells of a dependency graph, with their formulas, values and
+     * edges, to a file, replacing it if it exists. The snapshot is written
+     * and forced to a temporary file next to it first, which is then renamed
+     * over the file, so a crash leaves either the old snapshot or the new
+     * one, and a spreadsheet still decoding cells from the old mapping keeps
+     * reading the old file. No recalculation may run while the snapshot is
+     * written.
+     * @param theGraph The graph holding the cells.
+     * @param theSize The number of rows and columns of the spreadsheet.
+     * @param theFile The file to write.
+     * @throws IOException If the file can't be written or would be over 2 GB.
+     */
+    public static void write(final DependencyGraph theGraph, final int theSize,
+                             final Path theFile) throws IOException {
+        Path temporary = theFile.resolveSibling(theFile.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                new Writer(theGraph, channel).write(theSize);
+                channel.force(true);
+            }
+            Files.move(temporary, theFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Getter for the size.
+     * @return Returns the number of rows and columns of the saved spreadsheet.
+     */
+    public int getSize() {
+        return mySize;
+    }
+
+    /**
+     * Getter for the cell count.
+     * @return Returns the number of cells, blank ones included.
+     */
+    public int getCellCount() {
+        return myCellCount;
+    }
+
+    /**
+     * Gets the row of a cell.
+     * @param theId The id of the cell.
+     * @return Returns its row.
+     */
+    int getRow(final int theId) {
+        return (int) (myPositions.get(theId) >> 32);
+    }
+
+    /**
+     * Gets the column of a cell.
+     * @param theId The id of the cell.
+     * @return Returns its column.
+     */
+    int getColumn(final int theId) {
+        return (int) myPositions.get(theId);
+    }
+
+    /**
+     * Puts the value and state of a cell into it. Cells with a formula
+     * remember the snapshot, to read the formula from when it is needed.
+     * @param theCell The new cell with the saved id.
+     */
+    void loadCell(final Cell theCell) {
+        int id = theCell.getId();
+        byte flags = myBuffer.get(myOffsets[FLAGS] + id);
+        long bits = myValues.get(id);
+        boolean isDouble = (flags & IS_DOUBLE) != 0;
+        double doubleValue = isDouble ? Double.longBitsToDouble(bits) : bits;
+        boolean hasFormula = (flags & (HAS_FORMULA | HAS_IN_ORDER | HAS_PROGRAM)) != 0;
+        theCell.load(hasFormula ? this : null, isDouble ? (long) doubleValue : bits, doubleValue,
+                isDouble, (flags & IN_CYCLE) != 0);
+    }
+
+    /**
+     * Gets the precedents of a cell.
+     * @param theId The id of the cell.
+     * @return Returns a new array of their ids, or an empty one.
+     */
+    int[] getPrecedents(final int theId) {
+        return slice(myPrecedents, myPrecedentStarts.get(theId), myPrecedentStarts.get(theId + 1));
+    }
+
+    /**
+     * Gets the references to other sheets a cell reads.
+     * @param theId The id of the cell.
+     * @return Returns a new array of their indices, or an empty one.
+     */
+    int[] getExternals(final int theId) {
+        if (myExternals == null) {
+            return NO_INTS;
+        }
+        return slice(myExternals, myExternalStarts.get(theId), myExternalStarts.get(theId + 1));
+    }
+
+    /**
+     * Gets the ranges of a cell.
+     * @param theId The id of the cell.
+     * @return Returns a new array of four ints per range, or an empty one.
+     */
+    int[] getRanges(final int theId) {
+        return slice(myRanges, myRangeStarts.get(theId), myRangeStarts.get(theId + 1));
+    }
+
+    /**
+     * Decodes the formula of a cell.
+     * @param theId The id of the cell.
+     * @return Returns the formula, or null if it has none.
+     */
+    String getFormula(final int theId) {
+        if ((myBuffer.get(myOffsets[FLAGS] + theId) & HAS_FORMULA) == 0) {
+            return null;
+        }
+        return text(myTextStarts.get(2 * theId), myTextStarts.get(2 * theId + 1));
+    }
+
+    /**
+     * Decodes the in order formula of a cell.
+     * @param theId The id of the cell.
+     * @return Returns the in order formula, or null if it has none.
+     */
+    String getInOrderFormula(final int theId) {
+        byte flags = myBuffer.get(myOffsets[FLAGS] + theId);
+        if ((flags & SAME_TEXT) != 0) {
+            return getFormula(theId);
+        }
+        if ((flags & HAS_IN_ORDER) == 0) {
+            return null;
+        }
+        return text(myTextStarts.get(2 * theId + 1), myTextStarts.get(2 * theId + 2));
+    }
+
+    /**
+     * Decodes the compiled program of a cell.
+     * @param theId The id of the cell.
+     * @return Returns the program, or null if it has none.
+     */
+    CompiledFormula getProgram(final int theId) {
+        if ((myBuffer.get(myOffsets[FLAGS] + theId) & HAS_PROGRAM) == 0) {
+            return null;
+        }
+        return readProgram(myOffsets[PROGRAMS] + myProgramStarts.get(theId), getPrecedents(theId), getRanges(theId),
+                getExternals(theId));
+    }
+
+    /**
+     * Puts the saved shared subexpressions back into an empty table, under
+     * their saved ids.
+     * @param theTable The table.
+     */
+    void loadEntries(final ExpressionTable theTable) {
+        int offset = myOffsets[ENTRIES];
+        for (int i = 0; i < myEntryCount; i++) {
+            int id = myBuffer.getInt(offset);
+            int references = myBuffer.getInt(offset + 4);
+            offset += 8;
+            theTable.restore(id, readProgram(offset, NO_INTS, NO_INTS, NO_INTS), references);
+            offset += programSize(myBuffer.getInt(offset), myBuffer.getInt(offset + 8),
+                    myBuffer.getInt(offset + 12), myBuffer.getInt(offset + 16));
+        }
+        theTable.finishRestore(myIdLimit);
+    }
+
+    /**
+     * Puts the saved references to other sheets back into an empty table,
+     * under their saved indices. They come back unbound.
+     * @param theReferences The table.
+     * @throws IllegalStateException If the section is damaged.
+     */
+    void loadReferences(final ExternalReferences theReferences) {
+        int offset = myReferenceCount == 0 ? 0 : myOffsets[REFERENCES];
+        for (int i = 0; i < myReferenceCount; i++) {
+            int row = myBuffer.getInt(offset);
+            int column = myBuffer.getInt(offset + 4);
+            int length = myBuffer.getInt(offset + 8);
+            if (length < 0 || offset + 12L + length > myBuffer.capacity()) {
+                throw new IllegalStateException("Damaged snapshot references");
+            }
+            byte[] name = new byte[length];
+            myBuffer.get(offset + 12, name);
+            theReferences.restore(new CellToken(new String(name, StandardCharsets.UTF_8), row, column));
+            offset += 12 + length;
+        }
+    }
+
+    /**
+     * Decodes a program.
+     * @param theOffset Where the program starts in the file.
+     * @param thePrecedents The precedents of the program.
+     * @param theRanges The ranges of the program.
+     * @param theExternals The references to other sheets the program reads.
+     * @return Returns the program.
+     */
+    private CompiledFormula readProgram(final int theOffset, final int[] thePrecedents, final int[] theRanges,
+                                        final int[] theExternals) {
+        int codeLength = myBuffer.getInt(theOffset);
+        int maxDepth = myBuffer.getInt(theOffset + 4);
+        int longCount = myBuffer.getInt(theOffset + 8);
+        int doubleCount = myBuffer.getInt(theOffset + 12);
+        int sharedCount = myBuffer.getInt(theOffset + 16);
+        int position = theOffset + 20;
+        int[] code = new int[codeLength];
+        for (int i = 0; i < codeLength; i++, position += 4) {
+            code[i] = myBuffer.getInt(position);
+        }
+        int[] shared = sharedCount == 0 ? NO_INTS : new int[sharedCount];
+        for (int i = 0; i < sharedCount; i++, position += 4) {
+            shared[i] = myBuffer.getInt(position);
+        }
+        long[] longs = longCount == 0 ? NO_LONGS : new long[longCount];
+        for (int i = 0; i < longCount; i++, position += 8) {
+            longs[i] = myBuffer.getLong(position);
+        }
+        double[] doubles = doubleCount == 0 ? NO_DOUBLES : new double[doubleCount];
+        for (int i = 0; i < doubleCount; i++, position += 8) {
+            doubles[i] = Double.longBitsToDouble(myBuffer.getLong(position));
+        }
+        return new CompiledFormula(code, maxDepth, thePrecedents, longs, doubles, theRanges, shared, theExternals);
+    }
+
+    /**
+     * Decodes UTF-8 text from the text section.
+     * @param theStart The offset of the first byte in the section.
+     * @param theEnd The offset just after the last byte.
+     * @return Returns the text.
+     */
+    private String text(final int theStart, final int theEnd) {
+        byte[] bytes = new byte[theEnd - theStart];
+        myBuffer.get(myOffsets[TEXT] + theStart, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies part of an int section.
+     * @param theSection The section.
+     * @param theStart The index of the first int.
+     * @param theEnd The index just after the last int.
+     * @return Returns a new array, or the shared empty one.
+     */
+    private static int[] slice(final IntBuffer theSection, final int theStart, final int theEnd) {
+        if (theStart == theEnd) {
+            return NO_INTS;
+        }
+        int[] ints = new int[theEnd - theStart];
+        theSection.get(theStart, ints);
+        return ints;
+    }
+
+    /**
+     * Checks that a section lies inside the file and gets a view of it.
+     * @param theSection The number of the section.
+     * @param theLength The length of the section in bytes.
+     * @return Returns a view of the section.
+     * @throws IOException If the section doesn't fit in the file.
+     */
+    private ByteBuffer section(final int theSection, final long theLength) throws IOException {
+        int offset = myOffsets[theSection];
+        if (offset < headerSize() || theLength < 0 || offset + theLength > myBuffer.capacity()) {
+            throw new IOException("Truncated or damaged snapshot");
+        }
+        return myBuffer.slice(offset, (int) theLength);
+    }
+
+    /**
+     * Gets the number of bytes a program takes in the file.
+     * @param theCodeLength The number of ints of code.
+     * @param theLongCount The number of long constants.
+     * @param theDoubleCount The number of double constants.
+     * @param theSharedCount The number of shared subexpression ids.
+     * @return Returns the size in bytes.
+     */
+    private static int programSize(final int theCodeLength, final int theLongCount,
+                                   final int theDoubleCount, final int theSharedCount) {
+        return 20 + 4 * (theCodeLength + theSharedCount) + 8 * (theLongCount + theDoubleCount);
+    }
+
+    /**
+     * Gets the number of bytes a program takes in the file.
+     * @param theProgram The program.
+     * @return Returns the size in bytes.
+     */
+    private static int programSize(final CompiledFormula theProgram) {
+        return programSize(theProgram.getCode().length, theProgram.getLongConstants().length,
+                theProgram.getDoubleConstants().length, theProgram.getSharedIds().length);
+    }
+
+    /**
+     * Writes the sections of a snapshot one after another through a fixed
+     * size buffer, then goes back and fills in the header.
+     */
+    private static final class Writer {
+        /** The graph holding the cells. */
+        private final DependencyGraph myGraph;
+        /** The file. */
+        private final FileChannel myChannel;
+        /** The bytes not written to the file yet. */
+        private final ByteBuffer myOutput = ByteBuffer.allocate(BUFFER_SIZE);
+        /** The number of bytes written so far, including those still in myOutput. */
+        private long myPosition;
+
+        /**
+         * Creates a writer.
+         * @param theGraph The graph holding the cells.
+         * @param theChannel The file.
+         */
+        Writer(final DependencyGraph theGraph, final FileChannel theChannel) {
+            myGraph = theGraph;
+            myChannel = theChannel;
+        }
+
+        /**
+         * Writes the whole snapshot.
+         * @param theSize The number of rows and columns of the spreadsheet.
+         * @throws IOException If the file can't be written or would be over 2 GB.
+         */
+        void write(final int theSize) throws IOException {
+            int count = myGraph.getCellCount();
+            ExpressionTable table = myGraph.getExpressions();
+            int[] offsets = new int[SECTIONS];
+            skip(HEADER_SIZE);
+
+            offsets[POSITIONS] = start();
+            for (int id = 0; id < count; id++) {
+                Cell cell = myGraph.getCell(id);
+                putLong(SparseCellStorage.key(cell.getRow(), cell.getColumn()));
+            }
+            offsets[VALUES] = start();
+            for (int id = 0; id < count; id++) {
+                Cell cell = myGraph.getCell(id);
+                putLong(cell.isDouble() ? Double.doubleToRawLongBits(cell.getDoubleValue()) : cell.getValue());
+            }
+            offsets[FLAGS] = start();
+            for (int id = 0; id < count; id++) {
+                putByte(flags(myGraph.getCell(id)));
+            }
+
+            offsets[PRECEDENT_STARTS] = start();
+            int total = 0;
+            for (int id = 0; id < count; id++) {
+                putInt(total);
+                total += myGraph.getPrecedents(id).length;
+            }
+            putInt(total);
+            offsets[PRECEDENTS] = start();
+            for (int id = 0; id < count; id++) {
+                for (int precedent : myGraph.getPrecedents(id)) {
+                    putInt(precedent);
+                }
+            }
+
+            offsets[RANGE_STARTS] = start();
+            total = 0;
+            for (int id = 0; id < count; id++) {
+                putInt(total);
+                total += myGraph.getRanges(id).length;
+            }
+            putInt(total);
+            offsets[RANGES] = start();
+            for (int id = 0; id < count; id++) {
+                for (int range : myGraph.getRanges(id)) {
+                    putInt(range);
+                }
+            }
+
+            offsets[TEXT_STARTS] = start();
+            long textTotal = 0;
+            for (int id = 0; id < count; id++) {
+                Cell cell = myGraph.getCell(id);
+                putInt((int) textTotal);
+                textTotal += utf8Length(cell.getFormula());
+                putInt((int) textTotal);
+                textTotal += sameText(cell) ? 0 : utf8Length(cell.getInOrderFormula());
+                checkSize(textTotal);
+            }
+            putInt((int) textTotal);
+            offsets[TEXT] = start();
+            for (int id = 0; id < count; id++) {
+                Cell cell = myGraph.getCell(id);
+                putText(cell.getFormula());
+                if (!sameText(cell)) {
+                    putText(cell.getInOrderFormula());
+                }
+            }
+
+            offsets[PROGRAM_STARTS] = start();
+            long programTotal = 0;
+            for (int id = 0; id < count; id++) {
+                putInt((int) programTotal);
+                CompiledFormula program = myGraph.getCell(id).getCompiledFormula();
+                programTotal += program == null ? 0 : programSize(program);
+                checkSize(programTotal);
+            }
+            putInt((int) programTotal);
+            offsets[PROGRAMS] = start();
+            for (int id = 0; id < count; id++) {
+                CompiledFormula program = myGraph.getCell(id).getCompiledFormula();
+                if (program != null) {
+                    writeProgram(program);
+                }
+            }
+
+            offsets[ENTRIES] = start();
+            int entryCount = 0;
+            int[] references = countReferences(table, count);
+            for (int id = 0; id < table.getIdLimit(); id++) {
+                ExpressionTable.Entry entry = table.getEntry(id);
+                if (entry != null && references[id] > 0) {
+                    putInt(id);
+                    putInt(references[id]);
+                    writeProgram(entry.myProgram);
+                    entryCount++;
+                }
+            }
+
+            offsets[EXTERNAL_STARTS] = start();
+            total = 0;
+            for (int id = 0; id < count; id++) {
+                putInt(total);
+                total += myGraph.getExternals(id).length;
+            }
+            putInt(total);
+            offsets[EXTERNALS] = start();
+            for (int id = 0; id < count; id++) {
+                for (int external : myGraph.getExternals(id)) {
+                    putInt(external);
+                }
+            }
+
+            offsets[REFERENCES] = start();
+            ExternalReferences externals = myGraph.getReferences();
+            int referenceCount = externals.getCount();
+            for (int i = 0; i < referenceCount; i++) {
+                CellToken reference = externals.getReference(i);
+                byte[] name = reference.getSheet().getBytes(StandardCharsets.UTF_8);
+                putInt(reference.getRow());
+                putInt(reference.getColumn());
+                putInt(name.length);
+                putBytes(name);
+            }
+            flush();
+            checkSize(myPosition);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(theSize).putInt(count)
+                    .putInt(entryCount).putInt(table.getIdLimit()).putInt(referenceCount).putInt(0);
+            for (int offset : offsets) {
+                header.putInt(offset);
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                myChannel.write(header, HEADER_SIZE - header.remaining());
+            }
+        }
+
+        /**
+         * Counts the references the cells' programs hold to the shared
+         * subexpressions, and those the referenced entries hold in turn.
+         * References held by anything else, like the undo history, are
+         * left out, and so are the entries only they hold.
+         * @param theTable The table of shared subexpressions.
+         * @param theCount The number of cells.
+         * @return Returns the number of references by entry id.
+         */
+        private int[] countReferences(final ExpressionTable theTable, final int theCount) {
+            int[] references = new int[theTable.getIdLimit()];
+            int[] pending = new int[16];
+            int pendingCount = 0;
+            for (int id = 0; id < theCount; id++) {
+                CompiledFormula program = myGraph.getCell(id).getCompiledFormula();
+                if (program == null) {
+                    continue;
+                }
+                for (int shared : program.getSharedIds()) {
+                    if (references[shared]++ == 0) {
+                        if (pendingCount == pending.length) {
+                            pending = Arrays.copyOf(pending, pendingCount * 2);
+                        }
+                        pending[pendingCount++] = shared;
+                    }
+                }
+            }
+            while (pendingCount > 0) {
+                for (int shared : theTable.getEntry(pending[--pendingCount]).myProgram.getSharedIds()) {
+                    if (references[shared]++ == 0) {
+                        if (pendingCount == pending.length) {
+                            pending = Arrays.copyOf(pending, pendingCount * 2);
+                        }
+                        pending[pendingCount++] = shared;
+                    }
+                }
+            }
+            return references;
+        }
+
+        /**
+         * Gets the flags of a cell.
+         * @param theCell The cell.
+         * @return Returns the flags.
+         */
+        private static byte flags(final Cell theCell) {
+            int flags = 0;
+            if (theCell.isDouble()) {
+                flags |= IS_DOUBLE;
+            }
+            if (theCell.isInCycle()) {
+                flags |= IN_CYCLE;
+            }
+            if (theCell.getFormula() != null) {
+                flags |= HAS_FORMULA;
+            }
+            if (theCell.getInOrderFormula() != null) {
+                flags |= HAS_IN_ORDER;
+            }
+            if (theCell.getFormula() != null && sameText(theCell)) {
+                flags |= SAME_TEXT;
+            }
+            if (theCell.getCompiledFormula() != null) {
+                flags |= HAS_PROGRAM;
+            }
+            return (byte) flags;
+        }
+
+        /**
+         * Tells if a cell's in order formula is the same text as its formula,
+         * so it is only stored once.
+         * @param theCell The cell.
+         * @return Returns true if both are the same.
+         */
+        private static boolean sameText(final Cell theCell) {
+            String formula = theCell.getFormula();
+            return formula != null && formula.equals(theCell.getInOrderFormula());
+        }
+
+        /**
+         * Gets the length of text in UTF-8 without encoding it.
+         * @param theText The text, or null.
+         * @return Returns the number of bytes, 0 for null.
+         */
+        private static int utf8Length(final String theText) {
+            if (theText == null) {
+                return 0;
+            }
+            int length = 0;
+            for (int i = 0; i < theText.length(); i++) {
+                char ch = theText.charAt(i);
+                if (ch < 0x80) {
+                    length++;
+                } else if (ch < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(ch) && i + 1 < theText.length()
+                        && Character.isLowSurrogate(theText.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Writes text in UTF-8.
+         * @param theText The text, or null to write nothing.
+         * @throws IOException If the file can't be written.
+         */
+        private void putText(final String theText) throws IOException {
+            if (theText != null) {
+                putBytes(theText.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Writes a program: the lengths, then the code, the shared ids and the constants.
+         * @param theProgram The program.
+         * @throws IOException If the file can't be written.
+         */
+        private void writeProgram(final CompiledFormula theProgram) throws IOException {
+            putInt(theProgram.getCode().length);
+            putInt(theProgram.getMaxStackDepth());
+            putInt(theProgram.getLongConstants().length);
+            putInt(theProgram.getDoubleConstants().length);
+            putInt(theProgram.getSharedIds().length);
+            for (int instruction : theProgram.getCode()) {
+                putInt(instruction);
+            }
+            for (int id : theProgram.getSharedIds()) {
+                putInt(id);
+            }
+            for (long constant : theProgram.getLongConstants()) {
+                putLong(constant);
+            }
+            for (double constant : theProgram.getDoubleConstants()) {
+                putLong(Double.doubleToRawLongBits(constant));
+            }
+        }
+
+        /**
+         * Pads the output to a multiple of 8 bytes, where the next section starts.
+         * @return Returns the offset of the section.
+         * @throws IOException If the file can't be written or would be over 2 GB.
+         */
+        private int start() throws IOException {
+            skip((int) (-myPosition & 7));
+            checkSize(myPosition);
+            return (int) myPosition;
+        }
+
+        /**
+         * Fails if a size doesn't fit a snapshot.
+         * @param theSize The size in bytes.
+         * @throws IOException If it is over 2 GB.
+         */
+        private static void checkSize(final long theSize) throws IOException {
+            if (theSize > Integer.MAX_VALUE) {
+                throw new IOException("Snapshots are limited to 2 GB");
+            }
+        }
+
+        /**
+         * Writes zero bytes.
+         * @param theCount The number of bytes.
+         * @throws IOException If the file can't be written.
+         */
+        private void skip(final int theCount) throws IOException {
+            for (int i = 0; i < theCount; i++) {
+                putByte((byte) 0);
+            }
+        }
+
+        /**
+         * Writes a byte.
+         * @param theByte The byte.
+         * @throws IOException If the file can't be written.
+         */
+        private void putByte(final byte theByte) throws IOException {
+            if (!myOutput.hasRemaining()) {
+                flush();
+            }
+            myOutput.put(theByte);
+            myPosition++;
+        }
+
+        /**
+         * Writes an int.
+         * @param theInt The int.
+         * @throws IOException If the file can't be written.
+         */
+        private void putInt(final int theInt) throws IOException {
+            if (myOutput.remaining() < 4) {
+                flush();
+            }
+            myOutput.putInt(theInt);
+            myPosition += 4;
+        }
+
+        /**
+         * Writes a long.
+         * @param theLong The long.
+         * @throws IOException If the file can't be written.
+         */
+        private void putLong(final long theLong) throws IOException {
+            if (myOutput.remaining() < 8) {
+                flush();
+            }
+            myOutput.putLong(theLong);
+            myPosition += 8;
+        }
+
+        /**
+         * Writes bytes.
+         * @param theBytes The bytes.
+         * @throws IOException If the file can't be written.
+         */
+        private void putBytes(final byte[] theBytes) throws IOException {
+            int written = 0;
+            while (written < theBytes.length) {
+                if (!myOutput.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(myOutput.remaining(), theBytes.length - written);
+                myOutput.put(theBytes, written, length);
+                written += length;
+            }
+            myPosition += theBytes.length;
+        }
+
+        /**
+         * Writes the buffered bytes to the file.
+         * @throws IOException If the file can't be written.
+         */
+        private void flush() throws IOException {
+            myOutput.flip();
+            while (myOutput.hasRemaining()) {
+                myChannel.write(myOutput);
+            }
+            myOutput.clear();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package model.Spreadsheet.src.model;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SparseCellStorage keeps cells in an open addressing hash table keyed by
+ * the row and column packed into a single long. The keys live in a primitive
+ * array next to the cells, so looking a cell up doesn't allocate, and memory
+ * grows with the number of stored cells rather than the size of the sheet.
+ * Collisions are resolved with linear probing and removals shift the
+ * following entries back so that no tombstones are needed.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class SparseCellStorage implements CellStorage {
+    /** The number of slots the table starts out with. */
+    private static final int INITIAL_CAPACITY = 64;
+    /** The packed row and column of the cell in each slot. */
+    private long[] myKeys;
+    /** The cell in each slot, null for an empty slot. */
+    private Cell[] myCells;
+    /** The number of stored cells. */
+    private int mySize;
+    /** The number of slots minus one, used to wrap slot indexes. */
+    private int myMask;
+
+    /**
+     * Creates an empty storage.
+     */
+    public SparseCellStorage() {
+        this(INITIAL_CAPACITY / 2);
+    }
+
+    /**
+     * Creates an empty storage that holds the given number of cells
+     * without growing.
+     * @param theExpectedSize The number of cells that will be stored.
+     */
+    public SparseCellStorage(final int theExpectedSize) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < 2 * (long) theExpectedSize + 1) {
+            capacity *= 2;
+        }
+        myKeys = new long[capacity];
+        myCells = new Cell[capacity];
+        myMask = capacity - 1;
+    }
+
+    /**
+     * Packs a row and a column into one key.
+     * @param theRow The row.
+     * @param theColumn The column.
+     * @return Returns the key for that position.
+     */
+    public static long key(final int theRow, final int theColumn) {
+        return ((long) theRow << 32) | (theColumn & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public Cell get(final int theRow, final int theColumn) {
+        long key = key(theRow, theColumn);
+        int slot = slotFor(key);
+        while (myCells[slot] != null) {
+            if (myKeys[slot] == key) {
+                return myCells[slot];
+            }
+            slot = (slot + 1) & myMask;
+        }
+        return null;
+    }
+
+    @Override
+    public void put(final Cell theCell) {
+        long key = key(theCell.getRow(), theCell.getColumn());
+        int slot = slotFor(key);
+        while (myCells[slot] != null) {
+            if (myKeys[slot] == key) {
+                myCells[slot] = theCell;
+                return;
+            }
+            slot = (slot + 1) & myMask;
+        }
+        myKeys[slot] = key;
+        myCells[slot] = theCell;
+        mySize++;
+        if (mySize * 2 > myCells.length) {
+            resize(myCells.length * 2);
+        }
+    }
+
+    @Override
+    public Cell remove(final int theRow, final int theColumn) {
+        long key = key(theRow, theColumn);
+        int slot = slotFor(key);
+        while (myCells[slot] != null) {
+            if (myKeys[slot] == key) {
+                Cell removed = myCells[slot];
+                shiftBack(slot);
+                mySize--;
+                return removed;
+            }
+            slot = (slot + 1) & myMask;
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return mySize;
+    }
+
+    @Override
+    public Iterator<Cell> iterator() {
+        return new Iterator<Cell>() {
+            /** The slot of the next cell to return. */
+            private int mySlot = nextSlot(0);
+
+            @Override
+            public boolean hasNext() {
+                return mySlot < myCells.length;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Cell cell = myCells[mySlot];
+                mySlot = nextSlot(mySlot + 1);
+                return cell;
+            }
+        };
+    }
+
+    /**
+     * Finds the first occupied slot at or after the given one.
+     * @param theStart The slot to start looking from.
+     * @return Returns the occupied slot, or the table length if there is none.
+     */
+    private int nextSlot(final int theStart) {
+        int slot = theStart;
+        while (slot < myCells.length && myCells[slot] == null) {
+            slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * Gets the home slot of a key. The key is mixed first so that
+     * neighbouring rows and columns spread out over the table.
+     * @param theKey The packed key.
+     * @return Returns the slot the key should go in.
+     */
+    private int slotFor(final long theKey) {
+        long hash = theKey * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & myMask;
+    }
+
+    /**
+     * Empties a slot and moves later entries of the same probe run back
+     * into it, so lookups never stop early at the hole.
+     * @param theSlot The slot being emptied.
+     */
+    private void shiftBack(final int theSlot) {
+        int hole = theSlot;
+        int slot = (hole + 1) & myMask;
+        while (myCells[slot] != null) {
+            int home = slotFor(myKeys[slot]);
+            // move the entry if its home slot is not between the hole and where it sits
+            if (((slot - home) & myMask) >= ((slot - hole) & myMask)) {
+                myKeys[hole] = myKeys[slot];
+                myCells[hole] = myCells[slot];
+                hole = slot;
+            }
+            slot = (slot + 1) & myMask;
+        }
+        myCells[hole] = null;
+    }
+
+    /**
+     * Moves every entry into a new table.
+     * @param theCapacity The new number of slots, a power of two.
+     */
+    private void resize(final int theCapacity) {
+        long[] oldKeys = myKeys;
+        Cell[] oldCells = myCells;
+        myKeys = new long[theCapacity];
+        myCells = new Cell[theCapacity];
+        myMask = theCapacity - 1;
+        for (int i = 0; i < oldCells.length; i++) {
+            if (oldCells[i] != null) {
+                int slot = slotFor(oldKeys[i]);
+                while (myCells[slot] != null) {
+                    slot = (slot + 1) & myMask;
+                }
+                myKeys[slot] = oldKeys[i];
+                myCells[slot] = oldCells[i];
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package model.Spreadsheet.src.model;
 
+import java.text.ParsePosition;
 import java.util.Collection;
 import java.util.Stack;
 
@@ -13,6 +14,10 @@ import java.util.Stack;
 public class SpreadSheetUtility {
 
     private final static int BadCell = -1;
+    /** Separates the name of a sheet from a cell on it, as in Inputs!B3. */
+    public static final char SHEET_SEPARATOR = '!';
+    /** The token returned for a cell reference that couldn't be parsed. */
+    private final static CellToken BAD_CELL_TOKEN = new CellToken(BadCell, BadCell);
     /**
      * Return a string associated with a token
      * @param expTreeToken  an ExpressionTreeToken
@@ -23,9 +28,10 @@ public class SpreadSheetUtility {
         if (expTreeToken instanceof OperatorToken) {
             returnString = ((OperatorToken) expTreeToken).getOperatorToken() + " ";
         } else if (expTreeToken instanceof CellToken) {
-            returnString = printCellToken((CellToken) expTreeToken) + " ";
-        } else if (expTreeToken instanceof LiteralToken) {
-            returnString = ((LiteralToken) expTreeToken).getValue() + " ";
+            returnString = expTreeToken.toString() + " ";
+        } else if (expTreeToken instanceof LiteralToken || expTreeToken instanceof RangeToken
+                || expTreeToken instanceof FunctionToken) {
+            returnString = expTreeToken.toString() + " ";
         } else {
             // This case should NEVER happen
             System.out.println("Error in printExpressionTreeToken.");
@@ -76,38 +82,35 @@ public class SpreadSheetUtility {
     /**
      * getCellToken
      *
-     * Assuming that the next chars in a String (at the given startIndex)
-     * is a cell reference, set cellToken's column and row to the
-     * cell's column and row.
-     * If the cell reference is invalid, the row and column of the return CellToken
-     * are both set to BadCell (which should be a final int that equals -1).
-     * Also, return the index of the position in the string after processing
-     * the cell reference.
-     * (Possible improvement: instead of returning a CellToken with row and
-     * column equal to BadCell, throw an exception that indicates a parsing error.)
+     * Assuming that the next chars in a String (at the given position's
+     * index) are a cell reference, return a CellToken with the cell's
+     * column and row.
+     * If the cell reference is invalid, the row and column of the returned
+     * CellToken are both BadCell (which should be a final int that equals -1)
+     * and the position's error index is set.
+     * Also, the position's index is moved to just after the cell reference.
      *
      * A cell reference is defined to be a sequence of CAPITAL letters,
      * followed by a sequence of digits (0-9).  The letters refer to
      * columns as follows: A = 0, B = 1, C = 2, ..., Z = 25, AA = 26,
      * AB = 27, ..., AZ = 51, BA = 52, ..., ZA = 676, ..., ZZ = 701,
      * AAA = 702.  The digits represent the row number.
+     * The reference may start with the name of another sheet and a '!',
+     * like Inputs!B3; see sheetNameEnd() for what a sheet name is.
      *
      * @param inputString  the input string
-     * @param startIndex  the index of the first char to process
-     * @param cellToken  a cellToken (essentially a return value)
-     * @return  index corresponding to the position in the string just after the cell
-    reference
+     * @param position  the index of the first char to process, which is
+     *                  moved past the cell reference
+     * @return  the cell reference, with row and column BadCell if it is invalid
      */
-    public static int getCellToken(String inputString, int startIndex, CellToken cellToken) {
+    public static CellToken getCellToken(String inputString, ParsePosition position) {
         char ch;
         int column = 0;
         int row = 0;
-        int index = startIndex;
+        int index = position.getIndex();
         // handle a bad startIndex
-        if ((startIndex < 0) || (startIndex >= inputString.length() )) {
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
+        if ((index < 0) || (index >= inputString.length() )) {
+            return badCell(position, index);
         }
         // get rid of leading whitespace characters
         while (index < inputString.length() ) {
@@ -119,17 +122,22 @@ public class SpreadSheetUtility {
         }
         if (index == inputString.length()) {
             // reached the end of the string before finding a capital letter
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
+            return badCell(position, index);
         }
         // ASSERT: index now points to the first non-whitespace character
+        String sheet = null;
+        int nameEnd = sheetNameEnd(inputString, index);
+        if (nameEnd >= 0) {
+            sheet = inputString.substring(index, nameEnd);
+            index = nameEnd + 1;
+            if (index == inputString.length()) {
+                return badCell(position, index);
+            }
+        }
         ch = inputString.charAt(index);
         // process CAPITAL alphabetic characters to calculate the column
         if (!Character.isUpperCase(ch)) {
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
+            return badCell(position, index);
         } else {
             column = ch - 'A';
             index++;
@@ -145,9 +153,7 @@ public class SpreadSheetUtility {
         }
         if (index == inputString.length() ) {
             // reached the end of the string before fully parsing the cell reference
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
+            return badCell(position, index);
         }
         // ASSERT: We have processed leading whitespace and the
         // capital letters of the cell reference
@@ -156,9 +162,7 @@ public class SpreadSheetUtility {
             row = ch - '0';
             index++;
         } else {
-            cellToken.setColumn(BadCell);
-            cellToken.setRow(BadCell);
-            return index;
+            return badCell(position, index);
         }
         while (index < inputString.length() ) {
             ch = inputString.charAt(index);
@@ -170,9 +174,59 @@ public class SpreadSheetUtility {
             }
         }
         // successfully parsed a cell reference
-        cellToken.setColumn(column);
-        cellToken.setRow(row);
-        return index;
+        position.setIndex(index);
+        return sheet == null ? new CellToken(row, column) : new CellToken(sheet, row, column);
+    }
+
+    /**
+     * Finds the end of a sheet name in front of a cell reference. A sheet
+     * name is a letter or '_' followed by letters, digits and '_', and it
+     * only counts as one if a SHEET_SEPARATOR comes right after it.
+     * @param inputString  the input string
+     * @param startIndex  the index the name would start at
+     * @return  the index of the SHEET_SEPARATOR, or -1 if there is no sheet name there
+     */
+    public static int sheetNameEnd(CharSequence inputString, int startIndex) {
+        int index = startIndex;
+        if (index >= inputString.length() || !isSheetNameStart(inputString.charAt(index))) {
+            return -1;
+        }
+        index++;
+        while (index < inputString.length() && (isSheetNameStart(inputString.charAt(index))
+                || (inputString.charAt(index) >= '0' && inputString.charAt(index) <= '9'))) {
+            index++;
+        }
+        return index < inputString.length() && inputString.charAt(index) == SHEET_SEPARATOR ? index : -1;
+    }
+
+    /**
+     * Tells if a string is a sheet name that formulas can refer to.
+     * @param name  the name
+     * @return  true if sheetNameEnd() would read all of it as a sheet name
+     */
+    public static boolean isSheetName(String name) {
+        return !name.isEmpty() && sheetNameEnd(name + SHEET_SEPARATOR, 0) == name.length();
+    }
+
+    /**
+     * Tells if a character can start a sheet name.
+     * @param ch  the character
+     * @return  true for an ASCII letter or '_'
+     */
+    private static boolean isSheetNameStart(char ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || ch == '_';
+    }
+
+    /**
+     * Reports a cell reference that couldn't be parsed.
+     * @param position  the position to update
+     * @param index  the index the error was found at
+     * @return  the CellToken with row and column BadCell
+     */
+    private static CellToken badCell(ParsePosition position, int index) {
+        position.setIndex(index);
+        position.setErrorIndex(index);
+        return BAD_CELL_TOKEN;
     }
     /**
      *  Given a CellToken, print it out as it appears on the
@@ -221,8 +275,11 @@ public class SpreadSheetUtility {
      * A formula is defined as a sequence of tokens that represents
      * a legal infix expression.
      *
-     * A token can consist of a numeric literal, a cell reference, or an
-     * operator (+, -, *, /).
+     * A token can consist of a numeric literal, a cell reference, an
+     * operator (+, -, *, /), or a function applied to a range, like
+     * SUM(A1:A100). A function call goes on the stack as its RangeToken
+     * followed by its FunctionToken. A cell reference may name a cell on
+     * another sheet, like Inputs!B3; a range can't.
      *
      * Multiplication (*) and division (/) have higher precedence than
      * addition (+) and subtraction (-).  Among operations within the same
@@ -230,20 +287,20 @@ public class SpreadSheetUtility {
      *
      * This algorithm follows the algorithm described in Weiss, pages 105-108.
      */
-    public static Stack getFormula(String formula) {
+    public static Stack<Token> getFormula(String formula) {
         if (formula == null) {
             formula = "0";
         }
 
-        Stack returnStack = new Stack();  // stack of Tokens (representing a postfix expression)
+        Stack<Token> returnStack = new Stack<>();  // stack of Tokens (representing a postfix expression)
         boolean error = false;
         char ch = ' ';
-        int literalValue = 0;
         CellToken cellToken;
+        ParsePosition position = new ParsePosition(0);  // reused for every cell reference
         int column = 0;
         int row = 0;
         int index = 0;  // index into formula
-        Stack operatorStack = new Stack();  // stack of operators
+        Stack<Token> operatorStack = new Stack<>();  // stack of operators
         while (index < formula.length() ) {
             // get rid of leading whitespace characters
             while (index < formula.length() ) {
@@ -291,7 +348,7 @@ public class SpreadSheetUtility {
                         break;
                 }
                 // push the operator on the operator stack
-                operatorStack.push(new OperatorToken(ch));
+                operatorStack.push(OperatorToken.valueOf(ch));
                 index++;
             } else if (ch == ')') {    // maybe define OperatorToken.RightParen ?
                 OperatorToken stackOperator;
@@ -316,25 +373,33 @@ public class SpreadSheetUtility {
                 }
                 index++;
             } else if (Character.isDigit(ch)) {
-                // We found a literal token
-                literalValue = ch - '0';
+                // We found a literal token, which may have a decimal part
+                int start = index;
                 index++;
-                while (index < formula.length()) {
-                    ch = formula.charAt(index);
-                    if (Character.isDigit(ch)) {
-                        literalValue = (literalValue * 10) + (ch - '0');
+                while (index < formula.length() && Character.isDigit(formula.charAt(index))) {
+                    index++;
+                }
+                if (index + 1 < formula.length() && formula.charAt(index) == '.'
+                        && Character.isDigit(formula.charAt(index + 1))) {
+                    index++;
+                    while (index < formula.length() && Character.isDigit(formula.charAt(index))) {
                         index++;
-                    } else {
-                        break;
                     }
                 }
                 // place the literal on the output stack
-                returnStack.push(new LiteralToken(literalValue));
-            } else if (Character.isUpperCase(ch)) {
-                // We found a cell reference token
-                //CellToken cellToken = new CellToken();
-                cellToken = new CellToken();
-                index = getCellToken(formula, index, cellToken);
+                returnStack.push(literalToken(formula.substring(start, index)));
+            } else if (Character.isUpperCase(ch) && isFunctionCall(formula, index)) {
+                // We found a function applied to a range
+                index = getFunctionCall(formula, index, returnStack);
+                if (index < 0) {
+                    error = true;
+                    break;
+                }
+            } else if (Character.isUpperCase(ch) || sheetNameEnd(formula, index) >= 0) {
+                // We found a cell reference token, maybe on another sheet
+                position.setIndex(index);
+                cellToken = getCellToken(formula, position);
+                index = position.getIndex();
                 if (cellToken.getRow() == BadCell) {
                     error = true;
                     break;
@@ -358,6 +423,91 @@ public class SpreadSheetUtility {
         return returnStack;
     }
 
+    /**
+     * Checks whether the capital letters at an index are the name of a
+     * function, that is, whether they are followed by a left parenthesis.
+     * @param formula  the formula
+     * @param startIndex  the index of the first capital letter
+     * @return  true if the letters are followed by '('
+     */
+    private static boolean isFunctionCall(String formula, int startIndex) {
+        int index = startIndex;
+        while (index < formula.length() && Character.isUpperCase(formula.charAt(index))) {
+            index++;
+        }
+        return index < formula.length() && formula.charAt(index) == OperatorToken.LeftParen;
+    }
+
+    /**
+     * Parses a function call like SUM(A1:A100) or SUM(A1) and pushes its
+     * RangeToken and FunctionToken onto the output stack.
+     * @param formula  the formula
+     * @param startIndex  the index of the function's name
+     * @param returnStack  the output stack
+     * @return  the index just after the closing parenthesis, or -1 if the
+     *          function is unknown or the call is malformed
+     */
+    private static int getFunctionCall(String formula, int startIndex, Stack<Token> returnStack) {
+        int index = formula.indexOf(OperatorToken.LeftParen, startIndex);
+        int function = FunctionToken.forName(formula.substring(startIndex, index));
+        if (function < 0) {
+            return -1;
+        }
+        ParsePosition position = new ParsePosition(index + 1);
+        CellToken first = getCellToken(formula, position);
+        if (first.getRow() == BadCell || first.getSheet() != null) {
+            return -1;
+        }
+        index = skipWhitespace(formula, position.getIndex());
+        CellToken last = first;
+        if (index < formula.length() && formula.charAt(index) == ':') {
+            position.setIndex(index + 1);
+            last = getCellToken(formula, position);
+            if (last.getRow() == BadCell || last.getSheet() != null) {
+                return -1;
+            }
+            index = skipWhitespace(formula, position.getIndex());
+        }
+        if (index == formula.length() || formula.charAt(index) != ')') {
+            return -1;
+        }
+        returnStack.push(new RangeToken(first, last));
+        returnStack.push(FunctionToken.valueOf(function));
+        return index + 1;
+    }
+
+    /**
+     * Skips whitespace characters.
+     * @param formula  the formula
+     * @param startIndex  the index to start at
+     * @return  the index of the next character that isn't whitespace
+     */
+    private static int skipWhitespace(String formula, int startIndex) {
+        int index = startIndex;
+        while (index < formula.length() && Character.isWhitespace(formula.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Makes the token for a numeric literal. Whole numbers become longs so
+     * they stay on the evaluator's integer path; a literal with a decimal
+     * point, or one too big for a long, becomes a double.
+     * @param literal  the digits of the literal, with an optional decimal part
+     * @return  the literal token
+     */
+    static LiteralToken literalToken(String literal) {
+        if (literal.indexOf('.') < 0) {
+            try {
+                return LiteralToken.valueOf(Long.parseLong(literal));
+            } catch (NumberFormatException e) {
+                // too big for a long, fall through to a double
+            }
+        }
+        return LiteralToken.valueOf(Double.parseDouble(literal));
+    }
+
     /**
      * isOperator returns a true if the char passed in is one of the
      * supported operations.
@@ -1,18 +1,13 @@
 package model.Spreadsheet.src.model;
 
 /**
- * Abstract class for the Tokens included in each cell.
+ * Abstract class for the Tokens included in each cell. Tokens are
+ * immutable, so one token can be shared by any number of formulas:
+ * operators and functions are singletons and common literals are cached.
  * @author Patrick Hern
  * @author Nathameion Montgomery
  */
 public abstract class Token {
-    /** The String that represents the token. */
-    public String myToken;
-    /** A public method that returns the token to the user. */
-    public String getToken() {
-        return myToken;
-    }
-
     /**
      * The printExpressionTreeToken method prints out a token from
      * the expression tree. It'll either be a cell, literal,
@@ -25,9 +20,10 @@ public abstract class Token {
         if (expTreeToken instanceof OperatorToken) {
             returnString = ((OperatorToken) expTreeToken).getOperatorToken() + " ";
         } else if (expTreeToken instanceof CellToken) {
-            returnString = SpreadSheetUtility.printCellToken((CellToken) expTreeToken) + " ";
-        } else if (expTreeToken instanceof LiteralToken) {
-            returnString = ((LiteralToken) expTreeToken).getValue() + " ";
+            returnString = expTreeToken.toString() + " ";
+        } else if (expTreeToken instanceof LiteralToken || expTreeToken instanceof RangeToken
+                || expTreeToken instanceof FunctionToken) {
+            returnString = expTreeToken.toString() + " ";
         } else {
             // This case should NEVER happen
             System.out.println("Error in printExpressionTreeToken.");
@@ -36,8 +32,10 @@ public abstract class Token {
         return returnString;
     }
 
+    /**
+     * Returns the token the way it is typed in a formula.
+     * @return Returns a String of the token.
+     */
     @Override
-    public String toString() {
-        return myToken;
-    }
+    public abstract String toString();
 }
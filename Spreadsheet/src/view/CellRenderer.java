@@ -0,0 +1,48 @@
+package model.Spreadsheet.src.view;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableCellRenderer;
+import java.awt.*;
+
+/**
+ * CellRenderer paints the cells of the spreadsheet table in the colors of
+ * the current theme. One renderer is stamped onto every visible cell in
+ * turn, so the number of cells doesn't cost any components.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class CellRenderer extends DefaultTableCellRenderer {
+    /** The version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /** The window the table is in, which knows the theme. */
+    private final SpreadsheetGUI myGUI;
+
+    /**
+     * Creates a renderer that centers the text like the old cell panels did.
+     * @param theGUI The window the table is in.
+     */
+    public CellRenderer(final SpreadsheetGUI theGUI) {
+        myGUI = theGUI;
+        setHorizontalAlignment(SwingConstants.CENTER);
+    }
+
+    @Override
+    public Component getTableCellRendererComponent(final JTable theTable, final Object theValue,
+                                                   final boolean isSelected, final boolean hasFocus,
+                                                   final int theRow, final int theColumn) {
+        super.getTableCellRendererComponent(theTable, theValue, isSelected, hasFocus, theRow, theColumn);
+        SpreadsheetTableModel model = (SpreadsheetTableModel) theTable.getModel();
+        String color = "normal";
+        if (model.isErrorAt(theRow, theColumn)) {
+            color = "error";
+        } else if (hasFocus) {
+            color = "highlight";
+        }
+        setBackground(ColorData.getColor(myGUI.getTheme(), color));
+        setForeground(ColorData.getColor(myGUI.getTheme(), "text"));
+        setBorder(hasFocus ? BorderFactory.createLineBorder(ColorData.getColor(myGUI.getTheme(), "border"))
+                : BorderFactory.createEmptyBorder());
+        return this;
+    }
+}
@@ -0,0 +1,47 @@
+package model.Spreadsheet.src.view;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * FormulaCellEditor is the one text field used to edit cells. It is only
+ * placed over the cell being edited and shows that cell's formula instead
+ * of its value, like selecting a cell used to.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class FormulaCellEditor extends DefaultCellEditor {
+    /** The version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+    /** The text field the formula is typed into. */
+    private final JTextField myTextField;
+
+    /** The window the table is in, which knows the theme. */
+    private final SpreadsheetGUI myGUI;
+
+    /**
+     * Creates the editor.
+     * @param theGUI The window the table is in.
+     */
+    public FormulaCellEditor(final SpreadsheetGUI theGUI) {
+        super(new JTextField());
+        myGUI = theGUI;
+        myTextField = (JTextField) getComponent();
+        myTextField.setHorizontalAlignment(SwingConstants.CENTER);
+        setClickCountToStart(1);
+    }
+
+    @Override
+    public Component getTableCellEditorComponent(final JTable theTable, final Object theValue,
+                                                 final boolean isSelected, final int theRow,
+                                                 final int theColumn) {
+        SpreadsheetTableModel model = (SpreadsheetTableModel) theTable.getModel();
+        super.getTableCellEditorComponent(theTable, model.getFormulaAt(theRow, theColumn),
+                isSelected, theRow, theColumn);
+        myTextField.setBackground(ColorData.getColor(myGUI.getTheme(), "highlight"));
+        myTextField.setForeground(ColorData.getColor(myGUI.getTheme(), "text"));
+        myTextField.setCaretColor(ColorData.getColor(myGUI.getTheme(), "text"));
+        myTextField.setBorder(BorderFactory.createLineBorder(ColorData.getColor(myGUI.getTheme(), "border")));
+        return myTextField;
+    }
+}
@@ -0,0 +1,111 @@
+package model.Spreadsheet.src.view;
+
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RepaintQueue carries the results of recalculations over to the Swing
+ * event dispatch thread. Recalculations may run on any thread; they add
+ * the text each changed cell should show and return right away. At most
+ * once per frame the collected changes are handed to the table model on
+ * the event dispatch thread in one go. A cell that changes several times
+ * within a frame is only shown with its last text. The cells a running
+ * recalculation hasn't settled yet travel the same way, so a recalculation
+ * that finishes within a frame never shows them as calculating.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class RepaintQueue {
+    /** How long changes are collected before they are shown, about one frame. */
+    private static final int FRAME_MILLIS = 16;
+
+    /** The model the changes are published to. */
+    private final SpreadsheetTableModel myModel;
+    /** Fires once a frame after the first change arrives. Only used on the event dispatch thread. */
+    private final Timer myTimer;
+    /** The text of the changed cells by SpreadsheetTableModel.key(), guarded by this. */
+    private Map<Long, String> myPending = new HashMap<>();
+    /** The sorted keys of the cells being recalculated, guarded by this. */
+    private long[] myCalculating = new long[0];
+    /** True if myCalculating changed since the last flush, guarded by this. */
+    private boolean myCalculatingChanged;
+    /** True while a flush is scheduled, guarded by this. */
+    private boolean myScheduled;
+
+    /**
+     * Creates a queue for a table model.
+     * @param theModel The model the changes are published to.
+     */
+    public RepaintQueue(final SpreadsheetTableModel theModel) {
+        myModel = theModel;
+        myTimer = new Timer(FRAME_MILLIS, e -> flush());
+        myTimer.setRepeats(false);
+    }
+
+    /**
+     * Adds the new text of a cell. Safe to call from any thread.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @param theText The text the cell should show, empty for a blank cell.
+     */
+    public void add(final int theRow, final int theColumn, final String theText) {
+        synchronized (this) {
+            myPending.put(SpreadsheetTableModel.key(theRow, theColumn), theText);
+        }
+        schedule();
+    }
+
+    /**
+     * Sets the cells that are being recalculated, replacing the ones set
+     * before. Safe to call from any thread.
+     * @param theRows The rows of the cells.
+     * @param theColumns The columns of the cells.
+     * @param theCount The number of cells, 0 once the recalculation is done.
+     */
+    public void setCalculating(final int[] theRows, final int[] theColumns, final int theCount) {
+        long[] keys = new long[theCount];
+        for (int i = 0; i < theCount; i++) {
+            keys[i] = SpreadsheetTableModel.key(theRows[i], theColumns[i]);
+        }
+        Arrays.sort(keys);
+        synchronized (this) {
+            myCalculating = keys;
+            myCalculatingChanged = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Makes sure a flush is coming.
+     */
+    private void schedule() {
+        boolean schedule;
+        synchronized (this) {
+            schedule = !myScheduled;
+            myScheduled = true;
+        }
+        if (schedule) {
+            SwingUtilities.invokeLater(myTimer::restart);
+        }
+    }
+
+    /**
+     * Publishes every change collected so far. Runs on the event dispatch thread.
+     */
+    private void flush() {
+        Map<Long, String> changes;
+        long[] calculating = null;
+        synchronized (this) {
+            changes = myPending;
+            myPending = new HashMap<>();
+            if (myCalculatingChanged) {
+                calculating = myCalculating;
+                myCalculatingChanged = false;
+            }
+            myScheduled = false;
+        }
+        myModel.publish(changes, calculating);
+    }
+}
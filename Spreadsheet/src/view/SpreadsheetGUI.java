@@ -1,77 +1,98 @@
 package model.Spreadsheet.src.view;
 
+import model.Spreadsheet.src.controller.SpreadsheetApp;
+import model.Spreadsheet.src.controller.SpreadsheetListener;
+import model.Spreadsheet.src.model.Cell;
+
 import javax.swing.*;
+import javax.swing.table.JTableHeader;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.KeyEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.util.List;
 
 /**
  * SpreadsheetGUI contains the GUI components for the Spreadsheet
- * and displays the GUI to the user.
+ * and displays the GUI to the user. The cells are shown in a JTable,
+ * which only paints the cells inside the visible part of the window and
+ * only creates an editor for the cell being edited, so opening a big
+ * spreadsheet costs no more than opening a small one.
  * @author Patrick Hern
  * @author Nathameion Montgomery
  */
-public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
+public class SpreadsheetGUI extends JFrame implements PropertyChangeListener, SpreadsheetListener {
     /** Default toolkit. */
     private static final Toolkit KIT = Toolkit.getDefaultToolkit();
     /**  The users screen size. */
     private static final Dimension SCREEN_SIZE = KIT.getScreenSize();
     /** Sets the Dimensions of the program window to a 90% of the screen space. */
     private static final Dimension PROGRAM_DEFAULT_SIZE = new Dimension(SCREEN_SIZE.width * 9 / 10, SCREEN_SIZE.height * 9 / 10);
-    /** Sets the Dimensions of the cells to be decently large in the program. */
-    private static final Dimension CELL_PANEL_SIZE = new Dimension(PROGRAM_DEFAULT_SIZE.width * 6, PROGRAM_DEFAULT_SIZE.height * 2);
-    /** The number of rows for the side label. */
-    private static int rows = 57; // The top row is for labels (57 is the default number of rows)
-    /** The number of columns for the top label. */
-    private static int columns = 57; // The left column is for labels (57 is the default number of columns)
-    /** The defualt theme for the spreadsheet. */
-    public static String theme = "light";
-    /** Contain for the borderComponents. */
-    public JComponent[] borderComponents;
-    /** The layout of the cells. */
-    private static LayoutManager CELL_LAYOUT;
-    /** The GUI element for the spreadsheet cells. */
-    private static CellGUI[][] myCells;
+    /** The width of a column of cells. */
+    private static final int CELL_WIDTH = 90;
+    /** The height of a row of cells. */
+    private static final int CELL_HEIGHT = 24;
+    /** The width of the row labels on the left. */
+    private static final int ROW_HEADER_WIDTH = 50;
+    /** The number of rows in the spreadsheet. */
+    private final int rows;
+    /** The number of columns in the spreadsheet. */
+    private final int columns;
+    /** The current theme of the spreadsheet, light by default. */
+    private String theme = "light";
+    /** Drives the spreadsheet shown, and takes the edits and undos made here. */
+    private final SpreadsheetApp myApp;
+    /** Reads the cells to show out of the spreadsheet. */
+    private final SpreadsheetTableModel myModel;
+    /** Carries the changed cells of each recalculation over to the event dispatch thread. */
+    private final RepaintQueue myRepaintQueue;
+    /** The table showing the cells. */
+    private JTable myTable;
+    /** The row labels on the left of the table. */
+    private JList<String> myRowHeader;
     /** The file menu. */
-    private static JMenu fileMenu;
+    private JMenu fileMenu;
     /** The exit button menu option */
-    private static JMenuItem exitButton;
+    private JMenuItem exitButton;
     /** The options' menu. */
-    private static JMenu optionsMenu;
+    private JMenu optionsMenu;
     /** The themes' submenu. */
-    private static JMenu themesMenu;
+    private JMenu themesMenu;
     /** The radio button for the light theme. */
-    private static JRadioButtonMenuItem lightThemeButton;
+    private JRadioButtonMenuItem lightThemeButton;
     /** The radio button for the dark theme. */
-    private static JRadioButtonMenuItem darkThemeButton;
+    private JRadioButtonMenuItem darkThemeButton;
     /** The radio button for the pink theme. */
-    private static JRadioButtonMenuItem pinkThemeButton;
+    private JRadioButtonMenuItem pinkThemeButton;
     /** The radio button for the nature theme. */
-    private static JRadioButtonMenuItem natureThemeButton;
+    private JRadioButtonMenuItem natureThemeButton;
     /** The radio button for the fun theme. */
-    private static JRadioButtonMenuItem funThemeButton;
-    /** The main panel.. */
-    private static JPanel mainPanel = new JPanel();
-    /** The cell panel. */
-    private static JPanel cellPanel = new JPanel();
+    private JRadioButtonMenuItem funThemeButton;
     /** The scroll pane. */
     private JScrollPane scrollPane;
 
     /**
      * Public constructor for the GUI that calls the other
      * methods to set up the GUI.
-     * @param theRows The rows of the spreadsheet.
-     * @param theColumns The columns of the spreadsheet.
+     * @param theApp The driver of the spreadsheet to show.
      */
-    public SpreadsheetGUI(int theRows, int theColumns) {
-        rows = theRows;
-        columns = theColumns;
-        CELL_LAYOUT = new GridLayout(rows, columns);
-        borderComponents = new JComponent[rows + columns - 1]; // This array keeps track of the border components so their themes can be changed later
-        myCells = new CellGUI[rows][columns];
-        setupGUI(theRows, theColumns);
+    public SpreadsheetGUI(SpreadsheetApp theApp) {
+        myApp = theApp;
+        rows = theApp.getSpreadsheet().getNumRows();
+        columns = theApp.getSpreadsheet().getNumColumns();
+        myModel = new SpreadsheetTableModel(theApp);
+        myRepaintQueue = new RepaintQueue(myModel);
+        setupGUI(rows, columns);
+    }
+
+    /**
+     * Getter for the theme.
+     * @return Returns the name of the current theme, for ColorData.
+     */
+    public String getTheme() {
+        return theme;
     }
 
     /**
@@ -85,6 +106,50 @@ public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
 
     }
 
+    /**
+     * Shows the new values of the cells a recalculation changed, or
+     * CYCLE for cells that are part of a cycle and ERROR for cells whose
+     * formula divided by 0. This may be called on any thread; the texts are
+     * worked out here, while the values are settled, and shown on the event
+     * dispatch thread with the next frame.
+     * @param theChangedCells The cells that changed.
+     */
+    @Override
+    public void cellsChanged(List<Cell> theChangedCells) {
+        for (Cell cell : theChangedCells) {
+            myRepaintQueue.add(cell.getRow(), cell.getColumn(), SpreadsheetTableModel.displayText(cell));
+        }
+    }
+
+    /**
+     * Shows the cells a recalculation is about to work on as calculating
+     * until it finishes. Cells without a formula are left blank.
+     * @param theDirtyCells The cells that will be evaluated.
+     */
+    @Override
+    public void recalculationStarted(List<Cell> theDirtyCells) {
+        int[] cellRows = new int[theDirtyCells.size()];
+        int[] cellColumns = new int[theDirtyCells.size()];
+        int count = 0;
+        for (Cell cell : theDirtyCells) {
+            if (cell.hasFormula()) {
+                cellRows[count] = cell.getRow();
+                cellColumns[count] = cell.getColumn();
+                count++;
+            }
+        }
+        myRepaintQueue.setCalculating(cellRows, cellColumns, count);
+    }
+
+    /**
+     * Stops showing cells as calculating once their values are settled,
+     * or once the recalculation failed and they are shown as they were left.
+     */
+    @Override
+    public void recalculationFinished() {
+        myRepaintQueue.setCalculating(new int[0], new int[0], 0);
+    }
+
     /**
      * Sets up the general GUI, the cells, and the menus.
      * @param theRows The rows in the spreadsheet.
@@ -92,14 +157,15 @@ public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
      */
     private void setupGUI(int theRows, int theColumns) {
         setTitle("Spreadsheet");
-        scrollPane = new JScrollPane(cellPanel, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
-        cellPanel.setSize(PROGRAM_DEFAULT_SIZE);
+        setUpCells();
+        scrollPane = new JScrollPane(myTable, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
+        scrollPane.setRowHeaderView(myRowHeader);
         add(scrollPane, BorderLayout.CENTER);
         scrollPane.getVerticalScrollBar().setUnitIncrement(16);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        setUpCells();
         setUpMenu();
+        applyTheme();
         setSize(PROGRAM_DEFAULT_SIZE);
         setLocationRelativeTo(null);
         getContentPane().setBackground(Color.black);
@@ -107,46 +173,41 @@ public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
     }
 
     /**
-     * Set the dimensions and attributes of the Cells in the GUI.
+     * Set the dimensions and attributes of the Cells in the GUI. The table
+     * gets one renderer and one editor for all of its cells; the row labels
+     * are a list that, like the table, only paints the visible rows.
      */
     private void setUpCells() {
-        cellPanel.setLayout(CELL_LAYOUT);
-        cellPanel.setPreferredSize(CELL_PANEL_SIZE);
-        int borderComponentIndex = 0;
-        for (int row = 0; row < rows; row++) {
-            for (int col = 0; col < columns; col++) {
-                if (row == 0 && col == 0) {
-                    JLabel adding = new JLabel(" ");
-                    adding.setOpaque(true);
-                    adding.setBackground(ColorData.getColor(theme, "normal"));
-                    borderComponents[borderComponentIndex] = adding;
-                    borderComponentIndex++;
-                    cellPanel.add(adding);
-                } else if (row == 0) {
-                    JLabel adding = new JLabel(getColumnString(col), SwingConstants.CENTER);
-                    adding.setOpaque(true);
-                    adding.setBackground(ColorData.getColor(theme, "normal"));
-                    adding.setForeground(ColorData.getColor(theme, "text"));
-                    borderComponents[borderComponentIndex] = adding;
-                    borderComponentIndex++;
-                    cellPanel.add(adding);
-                } else if (col == 0) {
-                    JLabel adding = new JLabel(Integer.toString(row - 1), SwingConstants.CENTER);
-                    adding.setOpaque(true);
-                    adding.setBackground(ColorData.getColor(theme, "normal"));
-                    adding.setForeground(ColorData.getColor(theme, "text"));
-                    borderComponents[borderComponentIndex] = adding;
-                    borderComponentIndex++;
-                    cellPanel.add(adding);
-                } else {
-                    CellGUI cellAdding = new CellGUI(row - 1, col - 1);
-                    myCells[row][col] = cellAdding;
-                    cellPanel.add(cellAdding);
-                }
-            }
+        myTable = new JTable(myModel);
+        myTable.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        myTable.setRowHeight(CELL_HEIGHT);
+        myTable.setCellSelectionEnabled(true);
+        myTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        myTable.getTableHeader().setReorderingAllowed(false);
+        myTable.setDefaultRenderer(Object.class, new CellRenderer(this));
+        myTable.setDefaultEditor(Object.class, new FormulaCellEditor(this));
+        myTable.putClientProperty("terminateEditOnFocusLost", Boolean.TRUE);
+        for (int col = 0; col < columns; col++) {
+            myTable.getColumnModel().getColumn(col).setPreferredWidth(CELL_WIDTH);
         }
-        cellPanel.revalidate();
-        cellPanel.setVisible(true);
+
+        myRowHeader = new JList<>(new AbstractListModel<String>() {
+            @Override
+            public int getSize() {
+                return rows;
+            }
+
+            @Override
+            public String getElementAt(int theIndex) {
+                return Integer.toString(theIndex);
+            }
+        });
+        myRowHeader.setFixedCellWidth(ROW_HEADER_WIDTH);
+        myRowHeader.setFixedCellHeight(CELL_HEIGHT);
+        myRowHeader.setFocusable(false);
+        DefaultListCellRenderer labelRenderer = new DefaultListCellRenderer();
+        labelRenderer.setHorizontalAlignment(SwingConstants.CENTER);
+        myRowHeader.setCellRenderer(labelRenderer);
     }
 
     /**
@@ -159,6 +220,13 @@ public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
         fileMenu = new JMenu("File");
         exitButton = new JMenuItem("Exit");
         fileMenu.add(exitButton);
+        JMenu editMenu = new JMenu("Edit");
+        JMenuItem undoButton = new JMenuItem("Undo");
+        undoButton.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, KIT.getMenuShortcutKeyMaskEx()));
+        JMenuItem redoButton = new JMenuItem("Redo");
+        redoButton.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, KIT.getMenuShortcutKeyMaskEx()));
+        editMenu.add(undoButton);
+        editMenu.add(redoButton);
         optionsMenu = new JMenu("Options");
         themesMenu = new JMenu("Themes");
         optionsMenu.add(themesMenu);
@@ -180,6 +248,7 @@ public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
         themesMenu.add(natureThemeButton);
         themesMenu.add(funThemeButton);
         menuBar.add(fileMenu);
+        menuBar.add(editMenu);
         menuBar.add(optionsMenu);
         setJMenuBar(menuBar);
 
@@ -220,23 +289,18 @@ public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
                 System.exit(0);
             }
         });
-    }
-
-    /**
-     * Takes an integer that represents the column and then converts it
-     * into a character (like excel and other spreadsheets).
-     * @param theColumn The integer representation of the
-     * @return Returns a String of the column. A = 0, B, C, ...,  AA
-     */
-    private String getColumnString(int theColumn) {
-        StringBuilder result = new StringBuilder();
-        int currentCol = theColumn;
-        while (currentCol / 26 > 0) {
-            result.append((char) (currentCol % 26 + 'A'));
-            currentCol = currentCol / 26;
-        }
-        result.append((char) (currentCol % 26 + 'A' - 1));
-        return result.reverse().toString();
+        undoButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                myApp.submitUndo();
+            }
+        });
+        redoButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                myApp.submitRedo();
+            }
+        });
     }
 
     /**
@@ -248,34 +312,28 @@ public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
             return;
         }
         theme = newTheme;
-        for (int row = 0; row < rows; row++) {
-            for (int col = 0; col < columns; col++) {
-                if (myCells[row][col] != null) {
-                    //System.out.println(Integer.toString(row) + "," + Integer.toString(col));
-                    myCells[row][col].changeTheme();
-                } else {
-                    //System.out.println("null cell");
-                }
-            }
-        }
-        for (JComponent component : borderComponents) {
-            component.setOpaque(true);
-            component.setBackground(ColorData.getColor(theme, "normal"));
-            component.setForeground(ColorData.getColor(theme, "text"));
-        }
+        applyTheme();
     }
 
     /**
-     * Sets the cells text.
-     * @param theRow The integer value for the row.
-     * @param theCol The integer value for the column.
-     * @param theText The cell text to be displayed.
+     * Colors the table, its labels and its grid lines with the current theme.
+     * The cells pick up the theme the next time they are painted.
      */
-    public void setCellText(int theRow, int theCol, String theText) {
-        if (myCells[theRow][theCol] == null) {
-            return;
-        }
-        myCells[theRow][theCol].updateText(theText);
+    private void applyTheme() {
+        Color normal = ColorData.getColor(theme, "normal");
+        Color text = ColorData.getColor(theme, "text");
+        myTable.setBackground(normal);
+        myTable.setForeground(text);
+        myTable.setGridColor(ColorData.getColor(theme, "border"));
+        JTableHeader header = myTable.getTableHeader();
+        header.setBackground(normal);
+        header.setForeground(text);
+        myRowHeader.setBackground(normal);
+        myRowHeader.setForeground(text);
+        scrollPane.getViewport().setBackground(normal);
+        myTable.repaint();
+        header.repaint();
+        myRowHeader.repaint();
     }
 
     /**
@@ -287,10 +345,10 @@ public class SpreadsheetGUI extends JFrame implements PropertyChangeListener {
      * @param message The message to be displayed.
      */
     public void setErrorInCell(int row, int col, boolean setting, String message) {
-        try {
-            myCells[row + 1][col + 1].setErrorInCell(setting, message);
-        } catch (Exception e) {
-
+        if (setting) {
+            myModel.setErrorAt(row, col, message == null ? "" : message);
+        } else {
+            myModel.setErrorAt(row, col, null);
         }
     }
 
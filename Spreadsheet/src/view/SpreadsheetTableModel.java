@@ -0,0 +1,257 @@
+package model.Spreadsheet.src.view;
+
+import model.Spreadsheet.src.controller.SpreadsheetApp;
+import model.Spreadsheet.src.model.Cell;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SpreadsheetTableModel lets a JTable show the spreadsheet. The table asks
+ * for the cells it is about to paint, so only the visible part of the sheet
+ * is ever looked at. The text shown comes from the results recalculations
+ * published through a RepaintQueue, never from cells a recalculation may
+ * still be writing to. Editing a cell sends the typed formula to the
+ * spreadsheet.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public class SpreadsheetTableModel extends AbstractTableModel {
+    /** The text shown in cells that are part of a cycle. */
+    public static final String CYCLE_TEXT = "CYCLE";
+    /** The text shown in cells whose value is an error, like a division by 0. */
+    public static final String ERROR_TEXT = "ERROR";
+    /** The text shown in cells whose value is still being recalculated. */
+    public static final String CALCULATING_TEXT = "calculating...";
+    /** No cells. */
+    private static final long[] NO_KEYS = new long[0];
+    /** The version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /** Drives the spreadsheet shown, and takes the edits. */
+    private final SpreadsheetApp myApp;
+    /** The number of rows in the spreadsheet. */
+    private final int myRows;
+    /** The number of columns in the spreadsheet. */
+    private final int myColumns;
+    /** The text typed into cells whose formula could not be used, by row and column. */
+    private final Map<Long, String> myErrors = new HashMap<>();
+    /** The text shown in every non-blank cell, by row and column. */
+    private final Map<Long, String> myDisplayed = new HashMap<>();
+    /** The sorted keys of the cells a running recalculation hasn't settled yet. */
+    private long[] myCalculating = NO_KEYS;
+    /** The number of edits sent to the spreadsheet so far, used to number them. */
+    private int myEditCount;
+    /** The number of the newest edit of every cell whose edit isn't done yet, by row and column. */
+    private final Map<Long, Integer> myNewestEdits = new HashMap<>();
+
+    /**
+     * Creates a model for the spreadsheet a driver changes.
+     * @param theApp The driver of the spreadsheet.
+     */
+    public SpreadsheetTableModel(final SpreadsheetApp theApp) {
+        myApp = theApp;
+        myRows = theApp.getSpreadsheet().getNumRows();
+        myColumns = theApp.getSpreadsheet().getNumColumns();
+    }
+
+    @Override
+    public int getRowCount() {
+        return myRows;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return myColumns;
+    }
+
+    /**
+     * Gets the label of a column the way it is written in a formula.
+     * @param theColumn The column.
+     * @return Returns the label, A for column 0, AA for column 26 and so on.
+     */
+    @Override
+    public String getColumnName(final int theColumn) {
+        StringBuilder name = new StringBuilder();
+        int column = theColumn;
+        do {
+            name.append((char) ('A' + column % 26));
+            column = column / 26 - 1;
+        } while (column >= 0);
+        return name.reverse().toString();
+    }
+
+    /**
+     * Gets the text shown in a cell: its value, CYCLE, ERROR, the text that
+     * caused an error, or nothing for a blank cell.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the text to show.
+     */
+    @Override
+    public Object getValueAt(final int theRow, final int theColumn) {
+        String error = myErrors.get(key(theRow, theColumn));
+        if (error != null) {
+            return error;
+        }
+        long key = key(theRow, theColumn);
+        if (myCalculating.length > 0 && Arrays.binarySearch(myCalculating, key) >= 0) {
+            return CALCULATING_TEXT;
+        }
+        String text = myDisplayed.get(key);
+        return text == null ? "" : text;
+    }
+
+    /**
+     * Gets the text a cell should show after a recalculation.
+     * @param theCell The cell.
+     * @return Returns CYCLE, ERROR, the cell's value, or an empty string for a blank cell.
+     */
+    public static String displayText(final Cell theCell) {
+        if (!theCell.hasFormula()) {
+            return "";
+        }
+        if (theCell.isInCycle()) {
+            return CYCLE_TEXT;
+        }
+        if (theCell.isError()) {
+            return ERROR_TEXT;
+        }
+        return theCell.getValueString();
+    }
+
+    /**
+     * Shows the results of one or more recalculations. Cells whose text
+     * didn't change are skipped, and the table is told about the rest with
+     * a single event covering their rows, so it repaints once. Must be
+     * called on the event dispatch thread.
+     * @param theChanges The new text of the changed cells, by key().
+     * @param theCalculating The sorted keys of the cells still being
+     *                       recalculated, or null if they didn't change.
+     */
+    void publish(final Map<Long, String> theChanges, final long[] theCalculating) {
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        if (theCalculating != null) {
+            for (long[] keys : new long[][] {myCalculating, theCalculating}) {
+                if (keys.length > 0) {
+                    firstRow = Math.min(firstRow, (int) (keys[0] >> 32));
+                    lastRow = Math.max(lastRow, (int) (keys[keys.length - 1] >> 32));
+                }
+            }
+            myCalculating = theCalculating;
+        }
+        for (Map.Entry<Long, String> change : theChanges.entrySet()) {
+            String text = change.getValue();
+            String old = text.isEmpty() ? myDisplayed.remove(change.getKey())
+                    : myDisplayed.put(change.getKey(), text);
+            if (!text.equals(old == null ? "" : old)) {
+                int row = (int) (change.getKey() >> 32);
+                firstRow = Math.min(firstRow, row);
+                lastRow = Math.max(lastRow, row);
+            }
+        }
+        if (lastRow >= 0) {
+            fireTableRowsUpdated(firstRow, lastRow);
+        }
+    }
+
+    @Override
+    public boolean isCellEditable(final int theRow, final int theColumn) {
+        return true;
+    }
+
+    /**
+     * Sends an edited formula to the spreadsheet, which recalculates in the
+     * background. An empty edit leaves the cell alone. If the formula can't
+     * be used the typed text stays in the cell and the cell is shown as an
+     * error until it is edited again. Edits of a cell are numbered, and when
+     * an edit is done after a newer edit of the same cell was sent, it is
+     * ignored, so a slow failure never covers a newer formula.
+     * @param theValue The typed formula.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     */
+    @Override
+    public void setValueAt(final Object theValue, final int theRow, final int theColumn) {
+        String formula = theValue == null ? "" : theValue.toString().trim();
+        if (formula.isEmpty()) {
+            return;
+        }
+        long key = key(theRow, theColumn);
+        Integer edit = ++myEditCount;
+        myNewestEdits.put(key, edit);
+        setErrorAt(theRow, theColumn, null);
+        myApp.submitCellChange(theRow, theColumn, formula).whenComplete((theResult, theError) ->
+                SwingUtilities.invokeLater(() -> {
+                    if (!edit.equals(myNewestEdits.get(key))) {
+                        return;
+                    }
+                    myNewestEdits.remove(key);
+                    if (theError != null) {
+                        setErrorAt(theRow, theColumn, formula);
+                    }
+                }));
+    }
+
+    /**
+     * Gets the formula of a cell as it was typed, for editing.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the formula, or an empty string for a blank cell.
+     */
+    public String getFormulaAt(final int theRow, final int theColumn) {
+        String error = myErrors.get(key(theRow, theColumn));
+        if (error != null) {
+            return error;
+        }
+        Cell cell = myApp.getSpreadsheet().getCell(theRow, theColumn);
+        if (cell == null || cell.getInOrderFormula() == null) {
+            return "";
+        }
+        return cell.getInOrderFormula();
+    }
+
+    /**
+     * Checks whether a cell is shown as an error, because its formula
+     * couldn't be used, it is part of a cycle or its value is an error.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns true if the cell has an error.
+     */
+    public boolean isErrorAt(final int theRow, final int theColumn) {
+        if (myErrors.containsKey(key(theRow, theColumn))) {
+            return true;
+        }
+        String text = myDisplayed.get(key(theRow, theColumn));
+        return CYCLE_TEXT.equals(text) || ERROR_TEXT.equals(text);
+    }
+
+    /**
+     * Shows a cell as an error with the given text, or clears the error.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @param theText The text to show, or null to show the cell's value again.
+     */
+    public void setErrorAt(final int theRow, final int theColumn, final String theText) {
+        if (theText == null) {
+            myErrors.remove(key(theRow, theColumn));
+        } else {
+            myErrors.put(key(theRow, theColumn), theText);
+        }
+        fireTableCellUpdated(theRow, theColumn);
+    }
+
+    /**
+     * Combines a row and column into one key.
+     * @param theRow The row.
+     * @param theColumn The column.
+     * @return Returns the key.
+     */
+    static long key(final int theRow, final int theColumn) {
+        return ((long) theRow << 32) | (theColumn & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,74 @@
+package model.Spreadsheet.src.controller;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests undoing and redoing edits, in particular that ranges read through
+ * the column aggregates see the restored cells.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class EditHistoryTest {
+    @Test
+    void undoAndRedoRestoreValues() {
+        Spreadsheet sheet = new Spreadsheet(10);
+        sheet.setCellFormula(0, 0, "2");
+        sheet.setCellFormula(0, 1, "A0 * 3");
+        sheet.setCellFormula(0, 0, "5");
+        assertEquals(15, sheet.getCell(0, 1).getValue());
+        assertTrue(sheet.undo());
+        assertEquals(6, sheet.getCell(0, 1).getValue());
+        assertTrue(sheet.redo());
+        assertEquals(15, sheet.getCell(0, 1).getValue());
+        sheet.shutdown();
+    }
+
+    @Test
+    void undoOfBlankToZeroUpdatesCount() {
+        Spreadsheet sheet = new Spreadsheet(10);
+        sheet.setCellFormula(0, 2, "COUNT(A0:A3)");
+        sheet.setCellFormula(0, 0, "0");
+        assertEquals(1, sheet.getCell(0, 2).getValue());
+        assertTrue(sheet.undo());
+        assertEquals(0, sheet.getCell(0, 2).getValue());
+        sheet.setCellFormula(1, 2, "COUNT(A0:A3)");
+        assertEquals(0, sheet.getCell(1, 2).getValue());
+        sheet.shutdown();
+    }
+
+    @Test
+    void redoOfBlankToZeroUpdatesCount() {
+        Spreadsheet sheet = new Spreadsheet(10);
+        sheet.setCellFormula(0, 2, "COUNT(A0:A3)");
+        sheet.setCellFormula(0, 0, "0");
+        assertTrue(sheet.undo());
+        assertTrue(sheet.redo());
+        assertEquals(1, sheet.getCell(0, 2).getValue());
+        sheet.setCellFormula(1, 2, "COUNT(A0:A3)");
+        assertEquals(1, sheet.getCell(1, 2).getValue());
+        sheet.shutdown();
+    }
+
+    @Test
+    void undoOfZeroToBlankUpdatesMinAndMax() {
+        Spreadsheet sheet = new Spreadsheet(10);
+        sheet.setCellFormula(0, 0, "0");
+        sheet.setCellFormula(1, 0, "4");
+        sheet.setCellFormula(2, 0, "7");
+        sheet.replayEdit(0, 0, null);
+        sheet.setCellFormula(0, 1, "MIN(A0:A3)");
+        assertEquals(4, sheet.getCell(0, 1).getValue());
+        sheet.undo();
+        assertNull(sheet.getCell(0, 1).getFormula());
+        sheet.undo();
+        sheet.setCellFormula(1, 1, "MIN(A0:A3) + COUNT(A0:A3)");
+        assertEquals(3, sheet.getCell(1, 1).getValue());
+        assertFalse(sheet.canRedo());
+        sheet.shutdown();
+    }
+}
@@ -0,0 +1,133 @@
+package model.Spreadsheet.src.controller;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests that the edits written to an EditJournal come back when it is
+ * replayed, on its own and on top of a checkpoint, and that records that
+ * can't be used are counted instead of stopping the replay.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class EditJournalTest {
+    /** The size of the spreadsheets. */
+    private static final int SIZE = 10;
+
+    /** A directory for the journals and snapshots. */
+    @TempDir
+    Path myDirectory;
+
+    @Test
+    void replayRestoresEveryPolicy() throws IOException {
+        for (EditJournal.SyncPolicy policy : EditJournal.SyncPolicy.values()) {
+            Path file = myDirectory.resolve(policy + ".journal");
+            Spreadsheet sheet = new Spreadsheet(SIZE);
+            try (EditJournal journal = EditJournal.open(file, policy)) {
+                sheet.setJournal(journal);
+                edit(sheet);
+            }
+            sheet.shutdown();
+            Spreadsheet replayed = new Spreadsheet(SIZE);
+            try (EditJournal journal = EditJournal.open(file, policy)) {
+                EditJournal.Result result = journal.replay(replayed);
+                assertEquals(7, result.getReplayed(), policy.toString());
+                assertEquals(0, result.getMalformed(), policy.toString());
+            }
+            assertEquals(SnapshotTest.contents(sheet), SnapshotTest.contents(replayed), policy.toString());
+            replayed.shutdown();
+        }
+    }
+
+    @Test
+    void tornRecordIsCutOff() throws IOException {
+        Path file = myDirectory.resolve("torn.journal");
+        Spreadsheet sheet = new Spreadsheet(SIZE);
+        try (EditJournal journal = EditJournal.open(file, EditJournal.SyncPolicy.EVERY_COMMIT)) {
+            sheet.setJournal(journal);
+            sheet.setCellFormula(0, 0, "1");
+            sheet.setCellFormula(1, 0, "A0 + 1");
+        }
+        long length = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(length - 1);
+        }
+        Spreadsheet replayed = new Spreadsheet(SIZE);
+        try (EditJournal journal = EditJournal.open(file, EditJournal.SyncPolicy.EVERY_COMMIT)) {
+            assertEquals(1, journal.replay(replayed).getReplayed());
+        }
+        assertEquals(1, replayed.getCell(0, 0).getValue());
+        assertNull(replayed.getCell(1, 0));
+        sheet.shutdown();
+        replayed.shutdown();
+    }
+
+    @Test
+    void malformedRecordsAreCounted() throws IOException {
+        Path file = myDirectory.resolve("malformed.journal");
+        try (EditJournal journal = EditJournal.open(file, EditJournal.SyncPolicy.EVERY_COMMIT)) {
+            journal.append(0, 0, "2");
+            journal.append(0, 1, "A0 *");
+            journal.append(0, 2, "A0 + 1");
+            journal.append(0, 3, "(A0");
+            journal.commit();
+        }
+        Spreadsheet replayed = new Spreadsheet(SIZE);
+        try (EditJournal journal = EditJournal.open(file, EditJournal.SyncPolicy.EVERY_COMMIT)) {
+            EditJournal.Result result = journal.replay(replayed);
+            assertEquals(2, result.getReplayed());
+            assertEquals(2, result.getMalformed());
+        }
+        assertEquals(3, replayed.getCell(0, 2).getValue());
+        assertNull(replayed.getCell(0, 1).getInOrderFormula());
+        replayed.shutdown();
+    }
+
+    @Test
+    void crashAfterCheckpointReplaysTheRest() throws IOException {
+        Path snapshot = myDirectory.resolve("sheet.snap");
+        Path file = myDirectory.resolve("sheet.journal");
+        Spreadsheet sheet = new Spreadsheet(SIZE);
+        EditJournal journal = EditJournal.open(file, EditJournal.SyncPolicy.EVERY_COMMIT);
+        sheet.setJournal(journal);
+        sheet.setCellFormula(0, 0, "2");
+        sheet.setCellFormula(0, 1, "A0 * 10");
+        sheet.checkpoint(snapshot);
+        sheet.setCellFormula(0, 0, "3");
+        sheet.setCellFormula(0, 2, "B0 + A0");
+        Spreadsheet recovered = Spreadsheet.openSnapshot(snapshot);
+        try (EditJournal reopened = EditJournal.open(file, EditJournal.SyncPolicy.EVERY_COMMIT)) {
+            reopened.replay(recovered);
+        }
+        assertEquals(SnapshotTest.contents(sheet), SnapshotTest.contents(recovered));
+        assertEquals(33, recovered.getCell(0, 2).getValue());
+        journal.close();
+        sheet.shutdown();
+        recovered.shutdown();
+    }
+
+    /**
+     * Makes a mix of edits, in and out of a batch, including clearing a cell.
+     * @param theSheet The spreadsheet to edit.
+     */
+    private static void edit(final Spreadsheet theSheet) {
+        theSheet.setCellFormula(0, 0, "4");
+        theSheet.setCellFormula(0, 1, "A0 * 2.5");
+        theSheet.setCellFormula(1, 0, "SUM(A0:B0)");
+        theSheet.beginBatch();
+        theSheet.setCellFormula(2, 0, "A1 - 1");
+        theSheet.setCellFormula(0, 0, "6");
+        theSheet.commitBatch();
+        theSheet.setCellFormula(3, 3, "7");
+        theSheet.replayEdit(3, 3, null);
+    }
+}
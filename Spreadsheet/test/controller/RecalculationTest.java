@@ -0,0 +1,207 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.Cell;
+import model.Spreadsheet.src.model.CellToken;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that a recalculation gets through all of its cells and tells the
+ * listeners it finished, even when a formula divides by 0, that division is
+ * exact, and that evaluating in parallel gives the same values, bit for bit,
+ * as evaluating on one thread.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class RecalculationTest {
+    /** The number of rows of the sheet the parallel test fills. */
+    private static final int ROWS = 12;
+    /** The number of columns of the sheet the parallel test fills, enough to split a level. */
+    private static final int COLUMNS = 600;
+
+    /** The spreadsheet under test. */
+    private final Spreadsheet mySheet = new Spreadsheet(10);
+    /** The cells the listener was told about. */
+    private final List<Cell> myChanged = new ArrayList<>();
+    /** The number of recalculations the listener heard start. */
+    private int myStarted;
+    /** The number of recalculations the listener heard finish. */
+    private int myFinished;
+    /** True while the listener should fail the next recalculation that starts. */
+    private boolean myFailNext;
+
+    RecalculationTest() {
+        mySheet.addListener(new SpreadsheetListener() {
+            @Override
+            public void cellsChanged(final List<Cell> theChangedCells) {
+                myChanged.addAll(theChangedCells);
+            }
+
+            @Override
+            public void recalculationStarted(final List<Cell> theDirtyCells) {
+                myStarted++;
+                if (myFailNext) {
+                    myFailNext = false;
+                    throw new IllegalStateException("failed listener");
+                }
+            }
+
+            @Override
+            public void recalculationFinished() {
+                myFinished++;
+            }
+        });
+    }
+
+    @AfterEach
+    void shutdown() {
+        mySheet.shutdown();
+    }
+
+    @Test
+    void divisionByZeroIsAnErrorValue() {
+        mySheet.setCellFormula(0, 1, "2");
+        mySheet.setCellFormula(0, 0, "10/B0");
+        mySheet.setCellFormula(0, 2, "A0+1");
+        mySheet.setCellFormula(0, 3, "B0+5");
+        assertEquals(5, mySheet.getCell(0, 0).getValue());
+
+        myChanged.clear();
+        mySheet.setCellFormula(0, 1, "0");
+        assertTrue(mySheet.getCell(0, 0).isError());
+        assertTrue(myChanged.contains(mySheet.getCell(0, 0)));
+        assertTrue(mySheet.getCell(0, 2).isError());
+        assertEquals(5, mySheet.getCell(0, 3).getValue());
+        assertFalse(mySheet.hasUnfinishedRecalculation());
+        assertEquals(myStarted, myFinished);
+
+        mySheet.setCellFormula(0, 1, "4");
+        assertFalse(mySheet.getCell(0, 0).isError());
+        assertEquals(2.5, mySheet.getCell(0, 0).getDoubleValue());
+        assertEquals(3.5, mySheet.getCell(0, 2).getDoubleValue());
+    }
+
+    @Test
+    void divisionIsExact() {
+        mySheet.setCellFormula(0, 0, "5/2");
+        mySheet.setCellFormula(0, 1, "6/2");
+        mySheet.setCellFormula(0, 2, "A0*2");
+        assertTrue(mySheet.getCell(0, 0).isDouble());
+        assertEquals(2.5, mySheet.getCell(0, 0).getDoubleValue());
+        assertEquals("2.5", mySheet.getCell(0, 0).getValueString());
+        assertFalse(mySheet.getCell(0, 1).isDouble());
+        assertEquals(3, mySheet.getCell(0, 1).getValue());
+        assertFalse(mySheet.getCell(0, 2).isDouble());
+        assertEquals(5, mySheet.getCell(0, 2).getValue());
+    }
+
+    @Test
+    void divisionByZeroInBatchAndInDoubles() {
+        mySheet.beginBatch();
+        mySheet.setCellFormula(1, 0, "0 / 0");
+        mySheet.setCellFormula(1, 1, "1.5 / (A1 - A1)");
+        mySheet.setCellFormula(1, 2, "7");
+        mySheet.setCellFormula(1, 3, "SUM(A1:C1)");
+        mySheet.commitBatch();
+        assertTrue(mySheet.getCell(1, 0).isError());
+        assertTrue(mySheet.getCell(1, 1).isError());
+        assertEquals(7, mySheet.getCell(1, 2).getValue());
+        assertTrue(mySheet.getCell(1, 3).isError());
+        assertEquals(myStarted, myFinished);
+    }
+
+    @Test
+    void failedRecalculationIsFinishedAndKept() {
+        mySheet.setCellFormula(0, 0, "1");
+        mySheet.setCellFormula(0, 1, "A0+1");
+
+        myFailNext = true;
+        assertThrows(IllegalStateException.class, () -> mySheet.setCellFormula(0, 0, "4"));
+        assertEquals(myStarted, myFinished);
+        assertTrue(mySheet.hasUnfinishedRecalculation());
+
+        myChanged.clear();
+        mySheet.finishRecalculation();
+        assertFalse(mySheet.hasUnfinishedRecalculation());
+        assertTrue(myChanged.contains(mySheet.getCell(0, 1)));
+        assertEquals(5, mySheet.getCell(0, 1).getValue());
+        assertEquals(myStarted, myFinished);
+    }
+
+    @Test
+    void parallelValuesMatchSequentialValues() {
+        Spreadsheet sequential = new Spreadsheet(COLUMNS);
+        fillRandomSheet(sequential);
+        sequential.evaluate();
+        long[][] expected = values(sequential);
+        sequential.shutdown();
+
+        Spreadsheet parallel = new Spreadsheet(COLUMNS);
+        parallel.setParallelism(4);
+        parallel.setParallelThreshold(1);
+        fillRandomSheet(parallel);
+        parallel.evaluate();
+        for (int row = 0; row < ROWS; row++) {
+            for (int col = 0; col < COLUMNS; col++) {
+                assertEquals(expected[row][col], valueBits(parallel.getCell(row, col)));
+            }
+        }
+        parallel.shutdown();
+    }
+
+    /**
+     * Fills the sheet with constants in the first row and, below it, formulas
+     * that each read two random cells from random earlier rows, so the levels
+     * have different sizes. The divisions make some of the values doubles.
+     * @param theSheet The sheet to fill.
+     */
+    private static void fillRandomSheet(final Spreadsheet theSheet) {
+        Random random = new Random(7);
+        theSheet.beginBatch();
+        for (int col = 0; col < COLUMNS; col++) {
+            theSheet.setCellFormula(0, col, Integer.toString(random.nextInt(100)));
+        }
+        for (int row = 1; row < ROWS; row++) {
+            for (int col = 0; col < COLUMNS; col++) {
+                CellToken first = new CellToken(random.nextInt(row), random.nextInt(COLUMNS));
+                CellToken second = new CellToken(random.nextInt(row), random.nextInt(COLUMNS));
+                theSheet.setCellFormula(row, col, theSheet.printCellToken(first) + "*2-"
+                        + theSheet.printCellToken(second) + "/" + (random.nextInt(9) + 1));
+            }
+        }
+        theSheet.commitBatch();
+    }
+
+    /**
+     * Gets the values of a sheet.
+     * @param theSheet The sheet.
+     * @return Returns the bits of the values, by row and column.
+     */
+    private static long[][] values(final Spreadsheet theSheet) {
+        long[][] values = new long[ROWS][COLUMNS];
+        for (int row = 0; row < ROWS; row++) {
+            for (int col = 0; col < COLUMNS; col++) {
+                values[row][col] = valueBits(theSheet.getCell(row, col));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Gets the exact bits of a cell's value, so doubles are compared bit for bit.
+     * @param theCell The cell.
+     * @return Returns the value, or the bits of the double if it is one.
+     */
+    private static long valueBits(final Cell theCell) {
+        return theCell.isDouble() ? Double.doubleToRawLongBits(theCell.getDoubleValue()) : theCell.getValue();
+    }
+}
@@ -0,0 +1,82 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.Cell;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests that the worker ends every recalculation it started, even when
+ * the change that started it threw.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class RecalculationWorkerTest {
+    /** The spreadsheet under test. */
+    private final Spreadsheet mySheet = new Spreadsheet(10);
+    /** The worker making the changes. */
+    private final RecalculationWorker myWorker = new RecalculationWorker(mySheet);
+    /** The number of recalculations the listener heard finish. */
+    private volatile int myFinished;
+    /** True while the listener should cancel the next recalculation that starts. */
+    private volatile boolean myCancelNext;
+
+    RecalculationWorkerTest() {
+        mySheet.addListener(new SpreadsheetListener() {
+            @Override
+            public void cellsChanged(final List<Cell> theChangedCells) {
+            }
+
+            @Override
+            public void recalculationStarted(final List<Cell> theDirtyCells) {
+                if (myCancelNext) {
+                    myCancelNext = false;
+                    mySheet.cancelRecalculation();
+                }
+            }
+
+            @Override
+            public void recalculationFinished() {
+                myFinished++;
+            }
+        });
+    }
+
+    @AfterEach
+    void shutdown() {
+        myWorker.shutdown();
+        mySheet.shutdown();
+    }
+
+    @Test
+    void cancelledRecalculationIsFinishedAfterAFailedChange() throws Exception {
+        myWorker.submit(() -> mySheet.setCellFormula(0, 0, "1")).get(10, TimeUnit.SECONDS);
+        int finished = myFinished;
+
+        myCancelNext = true;
+        CompletableFuture<Void> failed = myWorker.submit(() -> {
+            mySheet.setCellFormula(0, 1, "A0 + 1");
+            throw new IllegalStateException("failed change");
+        });
+        ExecutionException exception = assertThrows(ExecutionException.class,
+                () -> failed.get(10, TimeUnit.SECONDS));
+        assertEquals("failed change", exception.getCause().getMessage());
+
+        // nothing else is submitted, so the worker has to finish the cancelled recalculation itself
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (myFinished == finished && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(finished + 1, myFinished);
+        assertFalse(mySheet.hasUnfinishedRecalculation());
+        assertEquals(2, mySheet.getCell(0, 1).getValue());
+    }
+}
@@ -0,0 +1,85 @@
+package model.Spreadsheet.src.controller;
+
+import model.Spreadsheet.src.model.Cell;
+import model.Spreadsheet.src.model.CellToken;
+import model.Spreadsheet.src.model.ExternalReferences;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that a spreadsheet saved with saveSnapshot() opens again with the
+ * same formulas and values, and recalculates like the original.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class SnapshotTest {
+    /** A directory for the snapshots. */
+    @TempDir
+    Path myDirectory;
+
+    @Test
+    void roundTripKeepsFormulasAndValues() throws IOException {
+        Spreadsheet sheet = new Spreadsheet(20);
+        sheet.setCellFormula(0, 0, "3");
+        sheet.setCellFormula(0, 1, "A0 * 2.5");
+        sheet.setCellFormula(1, 0, "SUM(A0:B0) + MAX(A0:B0)");
+        sheet.setCellFormula(2, 0, "(A1 - A0) * (A1 - A0)");
+        sheet.setCellFormula(3, 0, "3000000000 * A0");
+        sheet.setCellFormula(4, 0, "A5 + 1");
+        sheet.setCellFormula(5, 0, "A4 + 1");
+        Path file = myDirectory.resolve("sheet.snap");
+        sheet.saveSnapshot(file);
+        Spreadsheet opened = Spreadsheet.openSnapshot(file);
+        assertEquals(contents(sheet), contents(opened));
+
+        sheet.setCellFormula(0, 0, "4");
+        opened.setCellFormula(0, 0, "4");
+        assertEquals(contents(sheet), contents(opened));
+        assertEquals(400, opened.getCell(2, 0).getValue());
+        assertTrue(opened.getCell(4, 0).isInCycle());
+        sheet.shutdown();
+        opened.shutdown();
+    }
+
+    @Test
+    void roundTripKeepsReferencesToOtherSheets() throws IOException {
+        Spreadsheet sheet = new Spreadsheet(10);
+        sheet.setCellFormula(0, 0, "Inputs!B3 * 2");
+        sheet.setCellFormula(0, 1, "Rates!A0 + Inputs!B3");
+        Path file = myDirectory.resolve("refs.snap");
+        sheet.saveSnapshot(file);
+        Spreadsheet opened = Spreadsheet.openSnapshot(file);
+        ExternalReferences references = opened.getDependencyGraph().getReferences();
+        assertEquals(2, references.getCount());
+        assertEquals(new CellToken("Inputs", 3, 1), references.getReference(0));
+        assertEquals(new CellToken("Rates", 0, 0), references.getReference(1));
+        assertEquals(0, references.indexOf(new CellToken("Inputs", 3, 1)));
+        assertEquals(contents(sheet), contents(opened));
+        sheet.shutdown();
+        opened.shutdown();
+    }
+
+    /**
+     * Describes the formula and value of every cell with a formula.
+     * @param theSheet The spreadsheet.
+     * @return Returns the description of each cell by row and column.
+     */
+    static Map<String, String> contents(final Spreadsheet theSheet) {
+        Map<String, String> contents = new TreeMap<>();
+        for (Cell cell : theSheet.getCells()) {
+            if (cell.hasFormula()) {
+                contents.put(cell.getRow() + "," + cell.getColumn(),
+                        cell.getFormula() + "=" + cell.getValueString() + (cell.isInCycle() ? " cycle" : ""));
+            }
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,48 @@
+package model.Spreadsheet.src.controller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests that importing a file counts the fields it couldn't use instead of
+ * stopping at them.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class SpreadsheetImporterTest {
+    /** The directory of the imported files. */
+    @TempDir
+    Path myDirectory;
+    /** The spreadsheet under test. */
+    private final Spreadsheet mySheet = new Spreadsheet(3);
+
+    @AfterEach
+    void shutdown() {
+        mySheet.shutdown();
+    }
+
+    @Test
+    void skippedAndMalformedFieldsAreCounted() throws IOException {
+        Path file = myDirectory.resolve("cells.csv");
+        Files.writeString(file, "1,A0 + 1,,,9\n2 *,\"B0 * 2\"\n(3,4\n5\n");
+
+        SpreadsheetImporter.Result result = SpreadsheetImporter.read(mySheet, file);
+        assertEquals(4, result.getLoaded());
+        assertEquals(2, result.getSkipped());
+        assertEquals(2, result.getMalformed());
+
+        assertEquals(2, mySheet.getCell(0, 1).getValue());
+        assertEquals(4, mySheet.getCell(1, 1).getValue());
+        assertEquals(4, mySheet.getCell(2, 1).getValue());
+        assertNull(mySheet.getCell(1, 0).getInOrderFormula());
+        assertNull(mySheet.getCell(3, 0));
+    }
+}
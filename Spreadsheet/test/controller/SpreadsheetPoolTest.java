@@ -0,0 +1,49 @@
+package model.Spreadsheet.src.controller;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that a pool only changes the JVM's heap thresholds when it is
+ * asked to watch the heap.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class SpreadsheetPoolTest {
+    /** The directory of the pool's snapshots. */
+    @TempDir
+    Path myDirectory;
+
+    @Test
+    void poolLeavesHeapThresholdsAloneUnlessAsked() throws IOException {
+        List<Long> before = thresholds();
+        try (SpreadsheetPool pool = new SpreadsheetPool(myDirectory, 10, 2)) {
+            pool.checkOut("sheet").setCellFormula(0, 0, "1");
+            pool.checkIn("sheet");
+        }
+        assertEquals(before, thresholds());
+    }
+
+    /**
+     * Gets the collection usage thresholds of the memory pools that have one.
+     * @return Returns the thresholds, in the order the pools are listed.
+     */
+    private static List<Long> thresholds() {
+        List<Long> thresholds = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.isCollectionUsageThresholdSupported()) {
+                thresholds.add(pool.getCollectionUsageThreshold());
+            }
+        }
+        return thresholds;
+    }
+}
@@ -0,0 +1,65 @@
+package model.Spreadsheet.src.controller;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that a workbook marks cycles running through several sheets and
+ * tells the caller when a sheet a formula names can't be opened.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class WorkbookTest {
+    /** The directory of the workbook's snapshots. */
+    @TempDir
+    Path myDirectory;
+
+    @Test
+    void cycleThroughTwoSheetsIsMarked() throws IOException {
+        try (Workbook workbook = new Workbook(myDirectory, 10)) {
+            Spreadsheet left = workbook.getSheet("Left");
+            Spreadsheet right = workbook.getSheet("Right");
+            left.setCellFormula(0, 1, "A0 + 5");
+            right.setCellFormula(0, 1, "4");
+            left.setCellFormula(0, 0, "Right!A0 + 1");
+            right.setCellFormula(0, 0, "Left!A0 + Right!B0");
+
+            assertTrue(left.getCell(0, 0).isInCycle());
+            assertTrue(right.getCell(0, 0).isInCycle());
+            assertEquals(0, left.getCell(0, 0).getValue());
+            assertFalse(left.getCell(0, 1).isInCycle());
+            assertEquals(5, left.getCell(0, 1).getValue());
+            assertFalse(right.getCell(0, 1).isInCycle());
+
+            right.setCellFormula(0, 0, "7");
+            assertFalse(left.getCell(0, 0).isInCycle());
+            assertFalse(right.getCell(0, 0).isInCycle());
+            assertEquals(8, left.getCell(0, 0).getValue());
+            assertEquals(13, left.getCell(0, 1).getValue());
+        }
+    }
+
+    @Test
+    void sheetThatCantBeOpenedIsReported() throws IOException {
+        Files.writeString(myDirectory.resolve("Broken" + Workbook.SNAPSHOT_EXTENSION), "not a snapshot");
+        try (Workbook workbook = new Workbook(myDirectory, 10)) {
+            Spreadsheet sheet = workbook.getSheet("Sheet");
+            assertThrows(UncheckedIOException.class, () -> sheet.setCellFormula(0, 0, "Broken!A0 + 1"));
+            assertNull(sheet.getCell(0, 0).getInOrderFormula());
+
+            sheet.setCellFormula(0, 0, "2 + 1");
+            assertEquals(3, sheet.getCell(0, 0).getValue());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package model.Spreadsheet.src.model;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests that formulas with a subexpression in common share one
+ * ExpressionTable entry, that entries go away with the last formula that
+ * contains them, and that cells pushing a shared value still recalculate
+ * correctly.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class ExpressionTableTest {
+    /** The table under test. */
+    private final ExpressionTable myTable = new ExpressionTable();
+    /** A parser that shares through the table; cell ids are row * 100 + column. */
+    private final FormulaParser myParser = new FormulaParser((theRow, theColumn) -> theRow * 100 + theColumn,
+            myTable);
+
+    @Test
+    void formulasShareOneEntry() {
+        CompiledFormula first = myParser.parse("(A0 * B0 + C0) * 2");
+        CompiledFormula second = myParser.parse("1 - (A0 * B0 + C0)");
+        CompiledFormula sum = myParser.parse("SUM(A0:B3) + 1");
+        CompiledFormula otherSum = myParser.parse("SUM(A0:B3) * 2");
+        assertEquals(2, myTable.size());
+        assertEquals(1, first.getSharedIds().length);
+        assertArrayEquals(first.getSharedIds(), second.getSharedIds());
+        assertArrayEquals(sum.getSharedIds(), otherSum.getSharedIds());
+        assertNotEquals(first.getSharedIds()[0], sum.getSharedIds()[0]);
+
+        // too short to be worth sharing
+        assertEquals(0, myParser.parse("(A0 + 1) * 2").getSharedIds().length);
+        assertEquals(2, myTable.size());
+    }
+
+    @Test
+    void lastReleaseRemovesTheEntry() {
+        CompiledFormula first = myParser.parse("(A0 * B0 + C0) * 2");
+        CompiledFormula nested = myParser.parse("((A0 * B0 + C0) + D0 * 2) / 4");
+        // the outer group is an entry of its own that holds a reference to the inner one
+        assertEquals(2, myTable.size());
+
+        myTable.release(first);
+        assertEquals(2, myTable.size());
+        myTable.release(nested);
+        assertEquals(0, myTable.size());
+
+        // the freed ids are handed out again
+        CompiledFormula again = myParser.parse("(A0 * B0 + C0) * 2");
+        assertEquals(1, myTable.size());
+        assertArrayEquals(first.getSharedIds(), again.getSharedIds());
+        myTable.release(again);
+        assertEquals(0, myTable.size());
+    }
+
+    @Test
+    void sharedValuesFollowTheirCells() {
+        Spreadsheet sheet = new Spreadsheet(10);
+        sheet.setCellFormula(0, 0, "2");
+        sheet.setCellFormula(0, 1, "3");
+        sheet.setCellFormula(1, 0, "(A0 * B0 + 1) * 2");
+        sheet.setCellFormula(1, 1, "(A0 * B0 + 1) - 10");
+        sheet.setCellFormula(1, 2, "A1 + (A0 * B0 + 1)");
+        assertEquals(14, sheet.getCell(1, 0).getValue());
+        assertEquals(-3, sheet.getCell(1, 1).getValue());
+        assertEquals(21, sheet.getCell(1, 2).getValue());
+
+        sheet.setCellFormula(0, 1, "0.5");
+        assertEquals(4, sheet.getCell(1, 0).getValue());
+        assertEquals(-8, sheet.getCell(1, 1).getValue());
+        assertEquals(6, sheet.getCell(1, 2).getValue());
+        sheet.shutdown();
+    }
+}
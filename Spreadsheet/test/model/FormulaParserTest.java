@@ -0,0 +1,78 @@
+package model.Spreadsheet.src.model;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests the precedence and associativity of the operators FormulaParser
+ * reads, signs in front of operands included, by evaluating the formulas
+ * in a spreadsheet.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class FormulaParserTest {
+    /** The spreadsheet the formulas are evaluated in; A0 holds 5 and B0 holds 2.5. */
+    private final Spreadsheet mySheet = new Spreadsheet(10);
+
+    @AfterEach
+    void shutdown() {
+        mySheet.shutdown();
+    }
+
+    @Test
+    void binaryOperators() {
+        assertEquals(14, value("2 + 3 * 4"));
+        assertEquals(20, value("(2 + 3) * 4"));
+        assertEquals(1, value("8 - 4 - 3"));
+        assertEquals(2, value("8 / 2 / 2"));
+        assertEquals(64, value("2 ^ 3 ^ 2"));
+        assertEquals(19, value("3 + 2 ^ 4"));
+        assertEquals(2.5, value("5 / 2"));
+    }
+
+    @Test
+    void minusInFrontOfAnOperand() {
+        assertEquals(-7, value("-7"));
+        assertEquals(-6, value("2 * -3"));
+        assertEquals(-2, value("8 / -2 / 2"));
+        assertEquals(-6, value("4 / -2 * 3"));
+        assertEquals(-4, value("-2 ^ 2"));
+        assertEquals(0.5, value("2 ^ -1"));
+        assertEquals(0.125, value("2 ^ -1 * 0.25"));
+        assertEquals(2, value("1 - -1"));
+        assertEquals(3, value("- -3"));
+        assertEquals(5, value("+5"));
+        assertEquals(-10, value("-A0 * 2"));
+        assertEquals(-12.5, value("-(A0 * B0)"));
+        assertEquals(2.5, value("-B0 * -1"));
+        assertEquals(-1, value("-(A0 - 4)"));
+        assertEquals(-25, value("-A0 ^ 2"));
+        assertEquals(-13.5, value("-(A0 * B0 + 1)"));
+        assertEquals(-9, value("(-A0 * 2 + 1)"));
+        assertEquals(9.223372036854775808E18, value("-(0 - 9223372036854775807 - 1)"));
+    }
+
+    @Test
+    void malformedFormulasAreRejected() {
+        FormulaParser parser = new FormulaParser((theRow, theColumn) -> -1);
+        assertNull(parser.parse("-"));
+        assertNull(parser.parse("2 * -"));
+        assertNull(parser.parse("2 ~ 3"));
+        assertNull(parser.parse("~3"));
+    }
+
+    /**
+     * Evaluates a formula in cell C0.
+     * @param theFormula The formula.
+     * @return Returns its value as a double.
+     */
+    private double value(final String theFormula) {
+        mySheet.setCellFormula(0, 0, "5");
+        mySheet.setCellFormula(0, 1, "2.5");
+        return mySheet.setCellFormula(0, 2, theFormula).getDoubleValue();
+    }
+}
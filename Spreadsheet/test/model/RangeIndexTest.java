@@ -0,0 +1,97 @@
+package model.Spreadsheet.src.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that RangeIndex finds exactly the readers whose ranges cover a
+ * cell, the same as checking every range, through adds and removes.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class RangeIndexTest {
+    @Test
+    void findsTheRangesCoveringACell() {
+        RangeIndex index = new RangeIndex();
+        index.add(1, new int[] {0, 0, 9, 0});
+        index.add(2, new int[] {5, 0, 5, 2, 0, 1, 30, 1});
+        assertTrue(index.covers(1));
+        assertFalse(index.covers(3));
+
+        assertArrayEquals(new int[] {1}, sorted(index.find(0, 0)));
+        assertArrayEquals(new int[] {1, 2}, sorted(index.find(5, 0)));
+        assertArrayEquals(new int[] {2, 2}, sorted(index.find(5, 1)));
+        assertArrayEquals(new int[] {2}, sorted(index.find(30, 1)));
+        assertArrayEquals(new int[0], index.find(31, 1));
+        assertArrayEquals(new int[0], index.find(0, 7));
+
+        index.remove(2, new int[] {5, 0, 5, 2, 0, 1, 30, 1});
+        assertArrayEquals(new int[] {1}, sorted(index.find(5, 0)));
+        assertFalse(index.covers(2));
+    }
+
+    @Test
+    void matchesCheckingEveryRange() {
+        RangeIndex index = new RangeIndex();
+        List<int[]> ranges = new ArrayList<>();
+        Random random = new Random(3);
+        for (int step = 0; step < 5000; step++) {
+            if (!ranges.isEmpty() && random.nextInt(3) == 0) {
+                int[] range = ranges.remove(random.nextInt(ranges.size()));
+                index.remove(range[4], Arrays.copyOf(range, 4));
+            } else {
+                int firstRow = random.nextInt(200);
+                int firstColumn = random.nextInt(8);
+                int[] range = {firstRow, firstColumn, firstRow + random.nextInt(50),
+                        firstColumn + random.nextInt(3), random.nextInt(100)};
+                ranges.add(range);
+                index.add(range[4], Arrays.copyOf(range, 4));
+            }
+            int row = random.nextInt(260);
+            int column = random.nextInt(11);
+            assertArrayEquals(expected(ranges, row, column), sorted(index.find(row, column)));
+        }
+        for (int[] range : ranges) {
+            index.remove(range[4], Arrays.copyOf(range, 4));
+        }
+        for (int column = 0; column < 11; column++) {
+            assertFalse(index.covers(column));
+        }
+        assertEquals(0, index.find(0, 0).length);
+    }
+
+    /**
+     * Checks every range for the ones covering a cell.
+     * @param theRanges The ranges, each first row, first column, last row, last column and reader.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the sorted readers of the covering ranges.
+     */
+    private static int[] expected(final List<int[]> theRanges, final int theRow, final int theColumn) {
+        return sorted(theRanges.stream()
+                .filter(theRange -> theRange[0] <= theRow && theRow <= theRange[2]
+                        && theRange[1] <= theColumn && theColumn <= theRange[3])
+                .mapToInt(theRange -> theRange[4])
+                .toArray());
+    }
+
+    /**
+     * Sorts readers, since the index finds them in no particular order.
+     * @param theReaders The readers.
+     * @return Returns the readers, sorted.
+     */
+    private static int[] sorted(final int[] theReaders) {
+        int[] readers = theReaders.clone();
+        Arrays.sort(readers);
+        return readers;
+    }
+}
@@ -0,0 +1,81 @@
+package model.Spreadsheet.src.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests that SparseCellStorage finds, replaces and removes cells like a map
+ * keyed by position, through growing and backward-shift deletion.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class SparseCellStorageTest {
+    @Test
+    void putGetAndRemove() {
+        SparseCellStorage storage = new SparseCellStorage();
+        assertNull(storage.get(0, 0));
+        Cell first = cell(3, 7);
+        storage.put(first);
+        assertSame(first, storage.get(3, 7));
+        assertNull(storage.get(7, 3));
+
+        Cell replacement = cell(3, 7);
+        storage.put(replacement);
+        assertSame(replacement, storage.get(3, 7));
+        assertEquals(1, storage.size());
+
+        assertSame(replacement, storage.remove(3, 7));
+        assertNull(storage.remove(3, 7));
+        assertNull(storage.get(3, 7));
+        assertEquals(0, storage.size());
+    }
+
+    @Test
+    void matchesAMapThroughGrowthAndRemovals() {
+        SparseCellStorage storage = new SparseCellStorage();
+        Map<Long, Cell> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int row = random.nextInt(300);
+            int column = random.nextInt(300);
+            long key = SparseCellStorage.key(row, column);
+            if (random.nextInt(3) == 0) {
+                assertSame(expected.remove(key), storage.remove(row, column));
+            } else {
+                Cell cell = cell(row, column);
+                expected.put(key, cell);
+                storage.put(cell);
+            }
+        }
+        assertEquals(expected.size(), storage.size());
+        for (Map.Entry<Long, Cell> entry : expected.entrySet()) {
+            Cell cell = entry.getValue();
+            assertSame(cell, storage.get(cell.getRow(), cell.getColumn()));
+        }
+        Set<Cell> iterated = new HashSet<>();
+        for (Cell cell : storage) {
+            iterated.add(cell);
+        }
+        assertEquals(new HashSet<>(expected.values()), iterated);
+    }
+
+    /**
+     * Creates a cell that isn't part of any spreadsheet, so it has no
+     * dependency graph id.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the cell.
+     */
+    private static Cell cell(final int theRow, final int theColumn) {
+        return new Cell(theRow, theColumn, -1);
+    }
+}
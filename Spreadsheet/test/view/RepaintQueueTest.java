@@ -0,0 +1,87 @@
+package model.Spreadsheet.src.view;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import model.Spreadsheet.src.controller.SpreadsheetApp;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the changes collected within a frame reach the table as one
+ * event, with the last text of every cell.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+class RepaintQueueTest {
+    /** The spreadsheet behind the model. */
+    private final Spreadsheet mySheet = new Spreadsheet(10);
+    /** The model the queue publishes to. */
+    private final SpreadsheetTableModel myModel = new SpreadsheetTableModel(new SpreadsheetApp(mySheet, null));
+    /** The queue under test. */
+    private final RepaintQueue myQueue = new RepaintQueue(myModel);
+    /** The events the table would have received. */
+    private final List<TableModelEvent> myEvents = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void shutdown() {
+        mySheet.shutdown();
+    }
+
+    @Test
+    void changesWithinAFrameAreShownOnce() throws Exception {
+        CountDownLatch published = new CountDownLatch(1);
+        myModel.addTableModelListener(theEvent -> {
+            myEvents.add(theEvent);
+            published.countDown();
+        });
+
+        // Added on the event dispatch thread, so the frame can't end in between.
+        SwingUtilities.invokeAndWait(() -> {
+            myQueue.add(0, 0, "1");
+            myQueue.add(3, 1, "CYCLE");
+            myQueue.add(0, 0, "2");
+        });
+        assertTrue(published.await(5, TimeUnit.SECONDS));
+        settle();
+
+        assertEquals(1, myEvents.size());
+        assertEquals(0, myEvents.get(0).getFirstRow());
+        assertEquals(3, myEvents.get(0).getLastRow());
+        assertEquals("2", myModel.getValueAt(0, 0));
+        assertEquals("CYCLE", myModel.getValueAt(3, 1));
+        assertTrue(myModel.isErrorAt(3, 1));
+    }
+
+    @Test
+    void unchangedTextIsNotRepainted() throws Exception {
+        SwingUtilities.invokeAndWait(() -> myModel.publish(Map.of(SpreadsheetTableModel.key(2, 2), "7"), null));
+        myModel.addTableModelListener(myEvents::add);
+
+        SwingUtilities.invokeAndWait(() -> myQueue.add(2, 2, "7"));
+        settle();
+        assertTrue(myEvents.isEmpty());
+        assertEquals("7", myModel.getValueAt(2, 2));
+    }
+
+    /**
+     * Waits until a frame has passed and the event dispatch thread ran
+     * everything queued before it.
+     * @throws InterruptedException If the wait is interrupted.
+     * @throws InvocationTargetException If a queued task failed.
+     */
+    private static void settle() throws InterruptedException, InvocationTargetException {
+        Thread.sleep(100);
+        SwingUtilities.invokeAndWait(() -> { });
+    }
+}
@@ -0,0 +1,151 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import model.Spreadsheet.src.model.RegionLocks;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how edits scale with the number of threads editing one sheet.
+ * Every thread owns a region of its own and edits the root of a chain of
+ * cells in it, so the threads only share the short install under the write
+ * lock and recalculate their chains at the same time. The score is the
+ * total number of edits per millisecond over all threads; with enough
+ * cores it grows with the number of writers.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class ConcurrentEditBenchmark {
+    /** The most threads any of the benchmarks uses, one region each. */
+    private static final int MAX_WRITERS = 8;
+    /** The number of cells in each region's chain, which fills four columns of a region. */
+    private static final int CHAIN = RegionLocks.REGION_ROWS * 4;
+
+    /**
+     * The sheet the threads edit, with one chain per region.
+     */
+    @State(Scope.Benchmark)
+    public static class Sheet {
+        /** The sheet. */
+        private Spreadsheet mySheet;
+        /** Hands out the regions to the threads. */
+        private final AtomicInteger myNextRegion = new AtomicInteger();
+
+        /**
+         * Builds the chains once per trial. The regions lie one under the
+         * other, so each takes a stripe of its own.
+         */
+        @Setup
+        public void setUp() {
+            mySheet = new Spreadsheet(MAX_WRITERS * RegionLocks.REGION_ROWS);
+            mySheet.beginBatch();
+            for (int region = 0; region < MAX_WRITERS; region++) {
+                int top = region * RegionLocks.REGION_ROWS;
+                SheetShape.setFormula(mySheet, top, 0, "1");
+                for (int i = 1; i < CHAIN; i++) {
+                    SheetShape.setFormula(mySheet, top + i % RegionLocks.REGION_ROWS, i / RegionLocks.REGION_ROWS,
+                            SheetShape.cellName(top + (i - 1) % RegionLocks.REGION_ROWS, (i - 1) / RegionLocks.REGION_ROWS)
+                                    + " + 1");
+                }
+            }
+            mySheet.commitBatch();
+            mySheet.setHistoryLimits(1, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * The region one thread edits.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        /** The row of the root of the thread's chain. */
+        private int myRoot;
+        /** Flips between two values for the root so every edit changes the chain. */
+        private boolean myFlip;
+
+        /**
+         * Takes the next free region.
+         * @param theSheet The shared sheet.
+         */
+        @Setup
+        public void setUp(final Sheet theSheet) {
+            myRoot = theSheet.myNextRegion.getAndIncrement() % MAX_WRITERS * RegionLocks.REGION_ROWS;
+        }
+
+        /**
+         * Edits the root of the thread's chain, recalculating the chain.
+         * @param theSheet The shared sheet.
+         * @return Returns the sheet.
+         */
+        Spreadsheet edit(final Sheet theSheet) {
+            myFlip = !myFlip;
+            SheetShape.setFormula(theSheet.mySheet, myRoot, 0, myFlip ? "2" : "1");
+            return theSheet.mySheet;
+        }
+    }
+
+    /**
+     * One thread editing.
+     * @param theSheet The shared sheet.
+     * @param theWriter The thread's region.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    @Threads(1)
+    public Spreadsheet writers1(final Sheet theSheet, final Writer theWriter) {
+        return theWriter.edit(theSheet);
+    }
+
+    /**
+     * Two threads editing their own regions.
+     * @param theSheet The shared sheet.
+     * @param theWriter The thread's region.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    @Threads(2)
+    public Spreadsheet writers2(final Sheet theSheet, final Writer theWriter) {
+        return theWriter.edit(theSheet);
+    }
+
+    /**
+     * Four threads editing their own regions.
+     * @param theSheet The shared sheet.
+     * @param theWriter The thread's region.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    @Threads(4)
+    public Spreadsheet writers4(final Sheet theSheet, final Writer theWriter) {
+        return theWriter.edit(theSheet);
+    }
+
+    /**
+     * Eight threads editing their own regions.
+     * @param theSheet The shared sheet.
+     * @param theWriter The thread's region.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    @Threads(8)
+    public Spreadsheet writers8(final Sheet theSheet, final Writer theWriter) {
+        return theWriter.edit(theSheet);
+    }
+}
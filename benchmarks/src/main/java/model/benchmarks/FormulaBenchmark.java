@@ -0,0 +1,184 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import model.Spreadsheet.src.model.CellResolver;
+import model.Spreadsheet.src.model.CompiledFormula;
+import model.Spreadsheet.src.model.DependencyGraph;
+import model.Spreadsheet.src.model.ExpressionTree;
+import model.Spreadsheet.src.model.ExpressionTreeNode;
+import model.Spreadsheet.src.model.FormulaCompiler;
+import model.Spreadsheet.src.model.FormulaEvaluator;
+import model.Spreadsheet.src.model.FormulaParser;
+import model.Spreadsheet.src.model.SpreadSheetUtility;
+import model.Spreadsheet.src.model.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work done for a single formula: tokenizing it, building the
+ * expression tree, evaluating the tree, evaluating the compiled program,
+ * compiling it, which resolves the cells it references, and updating the
+ * dependency graph with those cells. parse goes from the typed formula to
+ * the compiled program in one pass and is to be compared with tokenize,
+ * buildTree and compile together. The literals of the formula are either
+ * whole numbers, which evaluate on the exact long path, or have a decimal
+ * part, which evaluate in double arithmetic.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FormulaBenchmark {
+    /** The number of terms in the formula. */
+    @Param({"4", "64"})
+    public int terms;
+
+    /** Whether the literals are whole numbers, "long", or decimals, "double". */
+    @Param({"long", "double"})
+    public String numbers;
+
+    /** The formula as typed. */
+    private String myFormula;
+    /** The postfix tokens of the formula, copied before each tree build. */
+    private Stack<Token> myPostfix;
+    /** The expression tree of the formula. */
+    private ExpressionTreeNode myTree;
+    /** The formula compiled into a program. */
+    private CompiledFormula myCompiled;
+    /** Parses the formula straight into a program. */
+    private FormulaParser myParser;
+    /** Runs the compiled program. */
+    private FormulaEvaluator myEvaluator;
+    /** The sheet holding the referenced cells. */
+    private Spreadsheet mySheet;
+    /** Turns cell references into cell ids of the sheet. */
+    private CellResolver myResolver;
+    /** The dependency graph of the sheet. */
+    private DependencyGraph myGraph;
+    /** The id of the cell holding the formula. */
+    private int myCellId;
+
+    /**
+     * Builds the formula "A0 * 3 - C2 + 5 * E4 ..." and a sheet with values
+     * in the cells it references.
+     */
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        mySheet = new Spreadsheet(10);
+        for (int i = 0; i < 10; i++) {
+            SheetShape.setFormula(mySheet, i, i, Integer.toString(i + 1));
+        }
+        String[] operators = {" + ", " * ", " - "};
+        StringBuilder formula = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) {
+                formula.append(operators[i % operators.length]);
+            }
+            formula.append(i % 2 == 0 ? SheetShape.cellName(i % 10, i % 10) : literal(i + 2));
+        }
+        myFormula = formula.toString();
+        myPostfix = SpreadSheetUtility.getFormula(myFormula);
+        myTree = ExpressionTreeNode.GetExpressionTree((Stack<Token>) myPostfix.clone());
+        myResolver = (row, col) -> mySheet.getOrCreateCell(row, col).getId();
+        myCompiled = FormulaCompiler.compile(myTree, myResolver);
+        myParser = new FormulaParser(myResolver);
+        myGraph = mySheet.getDependencyGraph();
+        myEvaluator = new FormulaEvaluator(myGraph);
+        SheetShape.setFormula(mySheet, 9, 0, myFormula);
+        myCellId = mySheet.getOrCreateCell(9, 0).getId();
+    }
+
+    /**
+     * Writes a literal of the formula.
+     * @param theValue The whole part of the literal.
+     * @return Returns the literal, with a decimal part if numbers is "double".
+     */
+    private String literal(final int theValue) {
+        return "double".equals(numbers) ? theValue + ".5" : Integer.toString(theValue);
+    }
+
+    /**
+     * Tokenizes the formula into a postfix stack.
+     * @return Returns the stack.
+     */
+    @Benchmark
+    public Stack tokenize() {
+        return SpreadSheetUtility.getFormula(myFormula);
+    }
+
+    /**
+     * Builds the expression tree from a copy of the postfix stack.
+     * The copy is part of the measurement since building empties the stack.
+     * @return Returns the root of the tree.
+     */
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public ExpressionTreeNode buildTree() {
+        return ExpressionTreeNode.GetExpressionTree((Stack<Token>) myPostfix.clone());
+    }
+
+    /**
+     * Evaluates the expression tree recursively.
+     * @return Returns the value.
+     */
+    @Benchmark
+    public double evaluateTree() {
+        return ExpressionTree.evaluate(myTree, mySheet);
+    }
+
+    /**
+     * Evaluates the compiled program.
+     * @return Returns the value.
+     */
+    @Benchmark
+    public long evaluateCompiled() {
+        return myEvaluator.evaluate(myCompiled);
+    }
+
+    /**
+     * Compiles the expression tree, resolving every cell it references.
+     * @return Returns the compiled formula.
+     */
+    @Benchmark
+    public CompiledFormula compile() {
+        return FormulaCompiler.compile(myTree, myResolver);
+    }
+
+    /**
+     * Parses the typed formula into a program in one pass, resolving every
+     * cell it references.
+     * @return Returns the compiled formula.
+     */
+    @Benchmark
+    public CompiledFormula parse() {
+        return myParser.parse(myFormula);
+    }
+
+    /**
+     * Replaces the edges of the formula's cell in the dependency graph with
+     * the same edges, which is what setting a formula costs the graph.
+     * @return Returns the graph, so the work isn't thrown away.
+     */
+    @Benchmark
+    public DependencyGraph setPrecedents() {
+        myGraph.setPrecedents(myCellId, myCompiled.getPrecedents());
+        return myGraph;
+    }
+}
@@ -0,0 +1,93 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.EditJournal;
+import model.Spreadsheet.src.controller.Spreadsheet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what journaling adds to an edit. The edited cells read no
+ * cells and have no dependents, so the edit itself is little more than
+ * parsing the formula, and the rest is the journal: appending the record,
+ * and with EVERY_COMMIT writing and forcing it before the edit returns.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class JournalBenchmark {
+    /** The number of rows and columns of the sheet. */
+    private static final int SIZE = 1000;
+    /** The number of rows the edits go around, so the sheet stops growing after warmup. */
+    private static final int ROWS = 100;
+
+    /** The sync policy of the journal, or OFF for no journal. */
+    @Param({"OFF", "NEVER", "INTERVAL", "EVERY_COMMIT"})
+    public String policy;
+
+    /** The sheet being edited. */
+    private Spreadsheet mySheet;
+    /** The journal, or null. */
+    private EditJournal myJournal;
+    /** The journal file, or null. */
+    private Path myFile;
+    /** Counts the edits, to pick the next cell and formula. */
+    private int myEdits;
+
+    /**
+     * Creates the sheet and its journal once per trial.
+     * @throws IOException If the journal can't be created.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        mySheet = new Spreadsheet(SIZE);
+        if (!"OFF".equals(policy)) {
+            myFile = Files.createTempFile("sheet", ".journal");
+            Files.delete(myFile);
+            myJournal = EditJournal.open(myFile, EditJournal.SyncPolicy.valueOf(policy));
+            mySheet.setJournal(myJournal);
+        }
+    }
+
+    /**
+     * Closes and deletes the journal.
+     * @throws IOException If the journal can't be closed.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        if (myJournal != null) {
+            myJournal.close();
+            Files.deleteIfExists(myFile);
+        }
+    }
+
+    /**
+     * Sets a formula without cell references on a cell nothing reads.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    public Spreadsheet edit() {
+        int edit = myEdits++;
+        mySheet.setCellFormula(2 + edit % ROWS, edit / ROWS % SIZE, "(3 + 4) * " + edit);
+        return mySheet;
+    }
+}
@@ -0,0 +1,99 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import model.Spreadsheet.src.controller.SpreadsheetPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures editing many workbooks hosted in one program through a
+ * SpreadsheetPool. Each edit checks out the next workbook in turn, sets the
+ * formula of its first cell and checks it in again. With every workbook
+ * loaded that is just the edit; with fewer, every checkout also saves the
+ * least recently used workbook and opens the next one from its snapshot.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class PoolBenchmark {
+    /** The number of workbooks. */
+    private static final int WORKBOOKS = 64;
+    /** The number of cells with a formula in each workbook. */
+    private static final int CELLS = 2000;
+
+    /** The most workbooks the pool keeps loaded. */
+    @Param({"64", "8", "0"})
+    public int loaded;
+
+    /** The directory of the snapshots. */
+    private Path myDirectory;
+    /** The pool the workbooks are edited through. */
+    private SpreadsheetPool myPool;
+    /** Counts the edits, to pick the next workbook. */
+    private int myEdits;
+
+    /**
+     * Saves the workbooks and opens the pool over them once per trial.
+     * @throws IOException If a snapshot can't be written.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        myDirectory = Files.createTempDirectory("pool");
+        Spreadsheet sheet = SheetShape.RANDOM_DAG.build(CELLS);
+        for (int i = 0; i < WORKBOOKS; i++) {
+            sheet.saveSnapshot(myDirectory.resolve("wb" + i + SpreadsheetPool.SNAPSHOT_EXTENSION));
+        }
+        myPool = new SpreadsheetPool(myDirectory, CELLS, loaded);
+    }
+
+    /**
+     * Closes the pool and deletes the snapshots.
+     * @throws IOException If the pool can't save or a file can't be deleted.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        myPool.close();
+        try (Stream<Path> files = Files.walk(myDirectory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Edits the next workbook.
+     * @return Returns the edited workbook.
+     * @throws IOException If a workbook can't be opened.
+     */
+    @Benchmark
+    public Spreadsheet edit() throws IOException {
+        int edit = myEdits++;
+        String name = "wb" + edit % WORKBOOKS;
+        Spreadsheet sheet = myPool.checkOut(name);
+        sheet.setCellFormula(0, 0, Integer.toString(edit % 100));
+        myPool.checkIn(name);
+        return sheet;
+    }
+}
@@ -0,0 +1,78 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures recalculating whole sheets of different shapes and sizes, both
+ * through a full Spreadsheet.evaluate() and through an edit of the root
+ * cell that every other cell depends on, on one thread and on several.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class RecalculationBenchmark {
+    /** The shape of the dependency graph. */
+    @Param({"CHAIN", "FAN_OUT", "RANDOM_DAG"})
+    public SheetShape shape;
+
+    /** The number of cells with a formula. */
+    @Param({"100", "10000", "1000000"})
+    public int cells;
+
+    /** The number of threads recalculation may use. */
+    @Param({"1", "4"})
+    public int threads;
+
+    /** The sheet being recalculated. */
+    private Spreadsheet mySheet;
+    /** Flips between two values for the root cell so every edit changes something. */
+    private boolean myFlip;
+
+    /**
+     * Builds the sheet once per trial.
+     */
+    @Setup
+    public void setUp() {
+        mySheet = shape.build(cells);
+        mySheet.setParallelism(threads);
+    }
+
+    /**
+     * Rebuilds every cell's dependencies and evaluates every cell.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    public Spreadsheet fullEvaluate() {
+        mySheet.evaluate();
+        return mySheet;
+    }
+
+    /**
+     * Changes the root cell, which recalculates every cell that depends on it.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    public Spreadsheet editRoot() {
+        myFlip = !myFlip;
+        SheetShape.setFormula(mySheet, 0, 0, myFlip ? "2" : "1");
+        return mySheet;
+    }
+}
@@ -0,0 +1,93 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures recalculating a sheet whose formulas repeat the same few
+ * subexpressions, the way generated sheets do: every formula cell reads
+ * (B1 * C1 + D1) and a SUM over the input block. With sharing the formulas
+ * are set through Spreadsheet.setCellFormula(), which interns those
+ * subexpressions; without it they are compiled from expression trees,
+ * which share nothing. Editing B1 recalculates every formula either way.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class SharedSubexpressionBenchmark {
+    /** The number of rows of input cells in columns B through D. */
+    private static final int INPUT_ROWS = 100;
+
+    /** True to set the formulas through the parser that shares subexpressions. */
+    @Param({"true", "false"})
+    public boolean shared;
+
+    /** The number of cells with a formula. */
+    @Param({"1000", "100000"})
+    public int cells;
+
+    /** The sheet being recalculated. */
+    private Spreadsheet mySheet;
+    /** Flips between two values for B1 so every edit changes something. */
+    private boolean myFlip;
+
+    /**
+     * Builds the sheet once per trial, in one batch.
+     */
+    @Setup
+    public void setUp() {
+        mySheet = new Spreadsheet(Math.max(cells, INPUT_ROWS));
+        mySheet.beginBatch();
+        for (int row = 0; row < INPUT_ROWS; row++) {
+            for (int column = 1; column <= 3; column++) {
+                set(row, column, Integer.toString(row + column));
+            }
+        }
+        for (int row = 0; row < cells; row++) {
+            set(row, 0, "(B1 * C1 + D1) * " + (row % 100 + 1) + " + (SUM(B0:D" + (INPUT_ROWS - 1) + ") - B1)");
+        }
+        mySheet.commitBatch();
+    }
+
+    /**
+     * Changes B1, which every formula reads through its shared subexpressions.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    public Spreadsheet editShared() {
+        myFlip = !myFlip;
+        set(1, 1, myFlip ? "2" : "1");
+        return mySheet;
+    }
+
+    /**
+     * Sets a formula the way the benchmark is configured to.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @param theFormula The formula as typed.
+     */
+    private void set(final int theRow, final int theColumn, final String theFormula) {
+        if (shared) {
+            mySheet.setCellFormula(theRow, theColumn, theFormula);
+        } else {
+            SheetShape.setFormula(mySheet, theRow, theColumn, theFormula);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import model.Spreadsheet.src.model.CellToken;
+import model.Spreadsheet.src.model.ExpressionTree;
+import model.Spreadsheet.src.model.ExpressionTreeNode;
+import model.Spreadsheet.src.model.SpreadSheetUtility;
+
+import java.util.Random;
+
+/**
+ * The shapes of dependency graph the benchmarks build sheets with. Every
+ * shape has its root cell at A0, so changing A0 touches the whole graph.
+ * Sheets are built without a GUI.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+public enum SheetShape {
+    /** Column A where every cell adds one to the cell above it. */
+    CHAIN {
+        @Override
+        void fill(final Spreadsheet theSheet, final int theCells) {
+            setFormula(theSheet, 0, 0, "1");
+            for (int row = 1; row < theCells; row++) {
+                setFormula(theSheet, row, 0, cellName(row - 1, 0) + " + 1");
+            }
+        }
+    },
+    /** Column B where every cell reads A0 directly. */
+    FAN_OUT {
+        @Override
+        void fill(final Spreadsheet theSheet, final int theCells) {
+            setFormula(theSheet, 0, 0, "1");
+            for (int row = 0; row < theCells - 1; row++) {
+                setFormula(theSheet, row, 1, "A0 * " + (row % 100 + 1));
+            }
+        }
+    },
+    /**
+     * Cells laid out DAG_WIDTH to a row, each reading one to three random
+     * cells that come before it, so the graph has no cycles.
+     */
+    RANDOM_DAG {
+        @Override
+        void fill(final Spreadsheet theSheet, final int theCells) {
+            Random random = new Random(342);
+            setFormula(theSheet, 0, 0, "1");
+            for (int i = 1; i < theCells; i++) {
+                StringBuilder formula = new StringBuilder();
+                int references = 1 + random.nextInt(3);
+                for (int r = 0; r < references; r++) {
+                    int before = random.nextInt(i);
+                    if (r > 0) {
+                        formula.append(" + ");
+                    }
+                    formula.append(cellName(before / DAG_WIDTH, before % DAG_WIDTH));
+                }
+                setFormula(theSheet, i / DAG_WIDTH, i % DAG_WIDTH, formula.toString());
+            }
+        }
+    };
+
+    /** The number of columns the random DAG is spread over. */
+    static final int DAG_WIDTH = 100;
+
+    /**
+     * Builds a new sheet of this shape. All formulas are set in one batch,
+     * so the sheet is evaluated once at the end.
+     * @param theCells The number of cells with a formula.
+     * @return Returns the sheet, fully evaluated.
+     */
+    public Spreadsheet build(final int theCells) {
+        Spreadsheet sheet = new Spreadsheet(Math.max(theCells, DAG_WIDTH));
+        sheet.beginBatch();
+        fill(sheet, theCells);
+        sheet.commitBatch();
+        return sheet;
+    }
+
+    /**
+     * Puts the formulas of this shape into a sheet.
+     * @param theSheet The empty sheet.
+     * @param theCells The number of cells with a formula.
+     */
+    abstract void fill(Spreadsheet theSheet, int theCells);
+
+    /**
+     * Parses a formula and stores it in a cell, the way SpreadsheetApp does
+     * but without the debug output.
+     * @param theSheet The sheet to change.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @param theFormula The formula as typed.
+     */
+    static void setFormula(final Spreadsheet theSheet, final int theRow, final int theColumn,
+                           final String theFormula) {
+        ExpressionTreeNode root = ExpressionTreeNode.GetExpressionTree(SpreadSheetUtility.getFormula(theFormula));
+        theSheet.changeCellFormulaAndRecalculate(new CellToken(theRow, theColumn), ExpressionTree.stringTree(root),
+                theFormula, root);
+    }
+
+    /**
+     * Gets the name of a cell as it is typed in a formula, like "B3".
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return Returns the cell's name.
+     */
+    static String cellName(final int theRow, final int theColumn) {
+        return SpreadSheetUtility.printCellToken(new CellToken(theRow, theColumn));
+    }
+}
@@ -0,0 +1,71 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures opening a sheet from a binary snapshot, which rebuilds the
+ * cells and the dependency graph from the mapped file without parsing a
+ * formula or recalculating anything.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class SnapshotBenchmark {
+    /** The number of cells with a formula. */
+    @Param({"10000", "1000000"})
+    public int cells;
+
+    /** The snapshot being opened. */
+    private Path myFile;
+
+    /**
+     * Builds a random DAG sheet and saves it once per trial.
+     * @throws IOException If the snapshot can't be written.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        myFile = Files.createTempFile("sheet", ".snap");
+        SheetShape.RANDOM_DAG.build(cells).saveSnapshot(myFile);
+    }
+
+    /**
+     * Deletes the snapshot.
+     * @throws IOException If the snapshot can't be deleted.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(myFile);
+    }
+
+    /**
+     * Opens the snapshot.
+     * @return Returns the opened sheet.
+     * @throws IOException If the snapshot can't be read.
+     */
+    @Benchmark
+    public Spreadsheet open() throws IOException {
+        return Spreadsheet.openSnapshot(myFile);
+    }
+}
@@ -0,0 +1,100 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import model.Spreadsheet.src.model.CellResolver;
+import model.Spreadsheet.src.model.CompiledFormula;
+import model.Spreadsheet.src.model.ExpressionTreeNode;
+import model.Spreadsheet.src.model.FormulaParser;
+import model.Spreadsheet.src.model.SpreadSheetUtility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the heap taken by parsed formulas. Each operation parses a
+ * batch of typical formulas, like "A3 * 100 + B4 - 1", and keeps all of
+ * them, once as expression trees and once as compiled programs. Run with
+ * -prof gc: the gc.alloc.rate.norm line is then the bytes allocated per
+ * formula, which for the trees is mostly the tokens and nodes they keep.
+ * The literals repeat the constants 0, 1 and 100 and every operator
+ * repeats, so shared tokens show up directly in that number.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TokenFootprintBenchmark {
+    /** The number of formulas parsed per operation. */
+    private static final int FORMULAS = 1000;
+    /** The size of the sheet the formulas reference. */
+    private static final int SIZE = 100;
+
+    /** The formulas as typed. */
+    private String[] myFormulas;
+    /** Turns the references of the compiled programs into cell ids. */
+    private FormulaParser myParser;
+
+    /**
+     * Writes the formulas and creates the cells they reference, so
+     * parsing doesn't create cells.
+     */
+    @Setup
+    public void setUp() {
+        String[] constants = {"0", "1", "100"};
+        String[] operators = {" * ", " + ", " - ", " / "};
+        myFormulas = new String[FORMULAS];
+        for (int i = 0; i < FORMULAS; i++) {
+            myFormulas[i] = SheetShape.cellName(i % SIZE, i % 7) + operators[i % 4] + constants[i % 3]
+                    + operators[(i + 1) % 4] + SheetShape.cellName((i * 7) % SIZE, i % 5)
+                    + operators[(i + 2) % 4] + constants[(i + 1) % 3];
+        }
+        Spreadsheet sheet = new Spreadsheet(SIZE);
+        CellResolver resolver = (row, col) -> sheet.getOrCreateCell(row, col).getId();
+        myParser = new FormulaParser(resolver);
+        for (String formula : myFormulas) {
+            myParser.parse(formula);
+        }
+    }
+
+    /**
+     * Tokenizes every formula and builds its expression tree.
+     * @return Returns the trees, so they are all alive at the end.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FORMULAS)
+    public ExpressionTreeNode[] trees() {
+        ExpressionTreeNode[] trees = new ExpressionTreeNode[FORMULAS];
+        for (int i = 0; i < FORMULAS; i++) {
+            trees[i] = ExpressionTreeNode.GetExpressionTree(SpreadSheetUtility.getFormula(myFormulas[i]));
+        }
+        return trees;
+    }
+
+    /**
+     * Parses every formula straight into its compiled program.
+     * @return Returns the programs, so they are all alive at the end.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FORMULAS)
+    public CompiledFormula[] compiled() {
+        CompiledFormula[] programs = new CompiledFormula[FORMULAS];
+        for (int i = 0; i < FORMULAS; i++) {
+            programs[i] = myParser.parse(myFormulas[i]);
+        }
+        return programs;
+    }
+}
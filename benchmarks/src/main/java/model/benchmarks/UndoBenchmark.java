@@ -0,0 +1,83 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures undoing and redoing an edit of the root cell against making
+ * the same edit again. Undo and redo put back the values the edit changed
+ * instead of recalculating them, so they only touch the affected cells.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class UndoBenchmark {
+    /** The shape of the sheet. */
+    @Param({"CHAIN", "RANDOM_DAG"})
+    public SheetShape shape;
+
+    /** The number of cells with a formula. */
+    @Param({"10000", "1000000"})
+    public int cells;
+
+    /** The sheet being edited. */
+    private Spreadsheet mySheet;
+    /** True if the edit is undone, so the next call redoes it. */
+    private boolean myUndone;
+    /** Flips between two values for the root cell so every edit changes something. */
+    private boolean myFlip;
+
+    /**
+     * Builds the sheet and edits its root once per trial, so there is an
+     * edit to undo.
+     */
+    @Setup
+    public void setUp() {
+        mySheet = shape.build(cells);
+        mySheet.clearHistory();
+        SheetShape.setFormula(mySheet, 0, 0, "2");
+    }
+
+    /**
+     * Undoes the edit of the root cell, or redoes it if it is undone.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    public Spreadsheet undoRedo() {
+        myUndone = !myUndone;
+        if (myUndone) {
+            mySheet.undo();
+        } else {
+            mySheet.redo();
+        }
+        return mySheet;
+    }
+
+    /**
+     * Changes the root cell, for comparison with undoing the change.
+     * @return Returns the sheet.
+     */
+    @Benchmark
+    public Spreadsheet editRoot() {
+        myFlip = !myFlip;
+        SheetShape.setFormula(mySheet, 0, 0, myFlip ? "1" : "2");
+        return mySheet;
+    }
+}
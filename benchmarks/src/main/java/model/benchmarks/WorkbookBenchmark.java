@@ -0,0 +1,130 @@
+package model.benchmarks;
+
+import model.Spreadsheet.src.controller.Spreadsheet;
+import model.Spreadsheet.src.controller.Workbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures a workbook of one Inputs sheet and many calculation sheets,
+ * each of which reads its own cell of Inputs at the start of a chain of
+ * formulas. Editing an input recalculates only the one sheet reading it,
+ * so it should cost about as much as recalculating a single sheet however
+ * many sheets there are. Opening the workbook and asking for one sheet
+ * loads just that sheet and Inputs, not the rest.
+ * @author Patrick Hern
+ * @author Nathameion Montgomery
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class WorkbookBenchmark {
+    /** The number of calculation sheets. */
+    private static final int SHEETS = 49;
+    /** The number of cells with a formula on each calculation sheet. */
+    private static final int CELLS = 2000;
+
+    /** The directory of the snapshots of both copies of the workbook. */
+    private Path myDirectory;
+    /** The copy of the workbook the inputs are edited in. */
+    private Workbook myWorkbook;
+    /** The Inputs sheet of the workbook. */
+    private Spreadsheet myInputs;
+    /** Counts the edits, to pick the next input. */
+    private int myEdits;
+
+    /**
+     * Builds the workbook twice, once per trial: one copy is kept open with
+     * every sheet loaded to edit, the other is saved to be opened again.
+     * @throws IOException If a snapshot can't be written.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        myDirectory = Files.createTempDirectory("workbook");
+        build(myDirectory.resolve("saved")).close();
+        myWorkbook = build(myDirectory.resolve("edited"));
+        myInputs = myWorkbook.getSheet("Inputs");
+    }
+
+    /**
+     * Closes the workbook and deletes the snapshots.
+     * @throws IOException If a sheet can't be saved or a file can't be deleted.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        myWorkbook.close();
+        try (Stream<Path> files = Files.walk(myDirectory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Builds the workbook in a directory.
+     * @param theDirectory The directory of its snapshots.
+     * @return Returns the workbook, with every sheet loaded.
+     * @throws IOException If the directory can't be created.
+     */
+    private static Workbook build(final Path theDirectory) throws IOException {
+        Workbook workbook = new Workbook(theDirectory, CELLS);
+        Spreadsheet inputs = workbook.getSheet("Inputs");
+        for (int i = 0; i < SHEETS; i++) {
+            inputs.setCellFormula(i, 0, Integer.toString(i));
+        }
+        for (int i = 0; i < SHEETS; i++) {
+            Spreadsheet sheet = workbook.getSheet("Calc" + i);
+            sheet.beginBatch();
+            sheet.setCellFormula(0, 0, "Inputs!A" + i + " + 1");
+            for (int row = 1; row < CELLS; row++) {
+                sheet.setCellFormula(row, 0, "A" + (row - 1) + " + 1");
+            }
+            sheet.commitBatch();
+        }
+        return workbook;
+    }
+
+    /**
+     * Edits the next input, recalculating the one sheet that reads it.
+     * @return Returns the Inputs sheet.
+     */
+    @Benchmark
+    public Spreadsheet editInput() {
+        int edit = myEdits++;
+        myInputs.setCellFormula(edit % SHEETS, 0, Integer.toString(edit % 100));
+        return myInputs;
+    }
+
+    /**
+     * Opens the workbook from its snapshots and asks for one calculation
+     * sheet, which loads it and Inputs only.
+     * @return Returns the number of sheets loaded.
+     * @throws IOException If a snapshot can't be opened or saved.
+     */
+    @Benchmark
+    public int openOneSheet() throws IOException {
+        try (Workbook workbook = new Workbook(myDirectory.resolve("saved"), CELLS)) {
+            workbook.getSheet("Calc" + myEdits++ % SHEETS);
+            return workbook.getLoadedCount();
+        }
+    }
+}